@@ -0,0 +1,116 @@
+/*
+ * AdaptiveIntegrationBenchmark.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.benchmarks;
+
+import java.util.Random;
+import wts.models.DisMELS.IBMs.POP.Environment.SyntheticOcean;
+import wts.models.DisMELS.IBMs.POP.Movement.AdaptiveIntegrator;
+
+/**
+ * Micro-benchmark comparing the accuracy and cost of particle tracking with
+ * the fixed-step predictor-corrector (Heun) scheme the POP stages use and with
+ * the AdaptiveIntegrator, on a SyntheticOcean.
+ *
+ * The ocean has a strong, narrow along-shelf jet at mid-shelf and a cross-shelf
+ * drift. Particles start at random positions and depths across the shelf (most
+ * in smooth flow outside the jet; some drift into or out of it) and drift for a
+ * number of model steps of DT. Each scheme's final positions are compared with a
+ * reference (Heun with steps of DT/1024). The report gives the mean and max
+ * position error (grid cells), the number of rate evaluations per individual
+ * and model step (the cost), and the run time.
+ *
+ * Usage: java wts.models.DisMELS.IBMs.POP.benchmarks.AdaptiveIntegrationBenchmark [nIndivs] [nSteps]
+ *
+ * @author William Stockhausen
+ */
+public class AdaptiveIntegrationBenchmark {
+
+    /** model time step (s) */
+    private static final double DT = 3600.0;
+
+    /** ocean with a strong, narrow along-shelf jet (1 m/s, 4 cells wide) and a 0.1 m/s cross-shelf drift */
+    private final SyntheticOcean ocean = new SyntheticOcean(400,200,30,2000.0,20.0,300.0,57.0,-165.0,
+                                                            1.0,4.0,50.0,0.1,
+                                                            8.0,3.0,30.0,31.5,33.5,50.0);
+    private final double[] uvw = new double[]{0.0,0.0,0.0};
+    private final double[][] start;
+    private final int nSteps;
+
+    AdaptiveIntegrationBenchmark(int n, int nSteps){
+        this.nSteps = nSteps;
+        start = new double[n][];
+        Random rnd = new Random(20170601L);
+        for (int i=0;i<n;i++)
+            start[i] = new double[]{ocean.getL()*(0.05+0.1*rnd.nextDouble()),
+                                    ocean.getM()*(0.1+0.8*rnd.nextDouble()),
+                                    ocean.getN()*rnd.nextDouble()};
+    }
+
+    /** Heun step, as in SyntheticOcean.doCorrectorStep */
+    private double[] heun(double[] p, double dt){
+        double[] r0 = ocean.calcGridRates(p,uvw,0.0);
+        double[] p1 = advance(p,r0,dt);
+        double[] r1 = ocean.calcGridRates(p1,uvw,0.0);
+        return advance(p,new double[]{0.5*(r0[0]+r1[0]),0.5*(r0[1]+r1[1]),0.5*(r0[2]+r1[2])},dt);
+    }
+
+    private double[] advance(double[] p, double[] r, double dt){
+        return new double[]{p[0]+dt*r[0],p[1]+dt*r[1],Math.min(Math.max(p[2]+dt*r[2],0.0),ocean.getN())};
+    }
+
+    private double[][] trackHeun(int subSteps){
+        double[][] end = new double[start.length][];
+        for (int i=0;i<start.length;i++){
+            double[] p = start[i];
+            for (int s=0;s<nSteps*subSteps;s++) p = heun(p,DT/subSteps);
+            end[i] = p;
+        }
+        return end;
+    }
+
+    private double[][] trackAdaptive(double tol, long[] nEvals){
+        double[][] end = new double[start.length][];
+        for (int i=0;i<start.length;i++){
+            AdaptiveIntegrator ai = new AdaptiveIntegrator(tol);
+            double[] p = start[i];
+            for (int s=0;s<nSteps;s++) p = ai.integrate(ocean,p,uvw,s*DT,DT);
+            end[i] = p;
+            nEvals[0] += ai.getNumEvaluations();
+        }
+        return end;
+    }
+
+    private void report(String label, double[][] end, double[][] ref, double evalsPerStep, long nanos){
+        double sum = 0.0, max = 0.0;
+        for (int i=0;i<end.length;i++){
+            double e = Math.hypot(end[i][0]-ref[i][0],end[i][1]-ref[i][1]);
+            sum += e;
+            max = Math.max(max,e);
+        }
+        System.out.println(String.format("%-26s error mean = %9.2e  max = %9.2e cells  evaluations/step = %6.2f  time = %7.1f ms",
+                           label,sum/end.length,max,evalsPerStep,nanos*1.0e-6));
+    }
+
+    public static void main(String[] args){
+        int n      = (args.length>0) ? Integer.parseInt(args[0]) : 1000;
+        int nSteps = (args.length>1) ? Integer.parseInt(args[1]) : 120;
+        AdaptiveIntegrationBenchmark b = new AdaptiveIntegrationBenchmark(n,nSteps);
+        double[][] ref = b.trackHeun(1024);
+        for (int rep=0;rep<2;rep++){//first repetition is warm-up
+            System.out.println((rep==0) ? "warm-up:" : "results:");
+            for (int sub: new int[]{1,4,16}){
+                long t0 = System.nanoTime();
+                double[][] end = b.trackHeun(sub);
+                b.report("Heun, DT/"+sub,end,ref,2.0*sub,System.nanoTime()-t0);
+            }
+            for (double tol: new double[]{1.0e-2,1.0e-3,1.0e-4}){
+                long[] nEvals = new long[1];
+                long t0 = System.nanoTime();
+                double[][] end = b.trackAdaptive(tol,nEvals);
+                b.report("adaptive, tol = "+tol,end,ref,(double) nEvals[0]/((long) n*nSteps),System.nanoTime()-t0);
+            }
+        }
+    }
+}
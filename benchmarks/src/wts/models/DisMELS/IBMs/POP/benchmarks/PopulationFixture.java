@@ -0,0 +1,176 @@
+/*
+ * PopulationFixture.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.benchmarks;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import wts.models.DisMELS.IBMFunctions.Growth.ExponentialGrowthFunction;
+import wts.models.DisMELS.IBMFunctions.Growth.vonBertalanffyGrowthFunction;
+import wts.models.DisMELS.IBMFunctions.Miscellaneous.ConstantFunction;
+import wts.models.DisMELS.IBMFunctions.Miscellaneous.LogisticFunction;
+import wts.models.DisMELS.IBMFunctions.Miscellaneous.PowerLawFunction;
+import wts.models.DisMELS.IBMFunctions.Mortality.ConstantMortalityRate;
+import wts.models.DisMELS.IBMFunctions.Mortality.TemperatureDependentMortalityRate_Houde1989;
+import wts.models.DisMELS.IBMFunctions.SwimmingBehavior.ConstantMovementRateFunction;
+import wts.models.DisMELS.IBMFunctions.SwimmingBehavior.PowerLawSwimmingSpeedFunction;
+import wts.models.DisMELS.IBMs.POP.Adult.AdultStage;
+import wts.models.DisMELS.IBMs.POP.BenthicJuvenile.BenthicJuvenileStage;
+import wts.models.DisMELS.IBMs.POP.Environment.SyntheticOcean;
+import wts.models.DisMELS.IBMs.POP.Larva.LarvaStage;
+import wts.models.DisMELS.IBMs.POP.Settler.SettlerStage;
+import wts.models.DisMELS.IBMs.POP.SyntheticRun;
+import wts.models.DisMELS.framework.AbstractLHS;
+import wts.models.DisMELS.framework.AbstractLHSParameters;
+import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
+
+/**
+ * Set-up shared by the JMH benchmarks: starts an offline run on a SyntheticOcean
+ * (SyntheticRun) and creates populations of POP individuals.
+ *
+ * The life stage types are read from the LHS types file given by the system
+ * property "wts.models.DisMELS.IBMs.POP.benchmarks.lhsTypes" or, if that is not
+ * set, from the minimal types file bundled with the module (see SyntheticRun).
+ * The type names used for the stages default to "Larva", "Settler",
+ * "BenthicJuvenile" and "Adult", and can be changed with the system properties
+ * "wts.models.DisMELS.IBMs.POP.benchmarks.[stage]Type".
+ *
+ * IBM functions are selected by "function set":
+ * <ul>
+ *   <li>"constant": constant rates (evaluated once per time step through the step plan)
+ *   <li>"covariate": temperature- or size-dependent functions (evaluated per individual)
+ * </ul>
+ * Vertical movement (diel vertical migration) is not selected, so the benchmarks do
+ * not depend on solar position.
+ *
+ * @author William Stockhausen
+ */
+final class PopulationFixture {
+
+    /** prefix for system properties */
+    static final String PREFIX = "wts.models.DisMELS.IBMs.POP.benchmarks.";
+    /** system property giving the LHS types file */
+    static final String PROP_LHS_TYPES = PREFIX+"lhsTypes";
+    /** time step (s) */
+    static final double DT = 3600.0;
+    /** day-of-year returned by the benchmark calendar */
+    static final double YEAR_DAY = 120.0;
+
+    /** stage classes by stage name */
+    private static final Map<String,Class<? extends AbstractLHS>> mapStages = new LinkedHashMap<>(8);
+    static {
+        mapStages.put("Larva",          LarvaStage.class);
+        mapStages.put("Settler",        SettlerStage.class);
+        mapStages.put("BenthicJuvenile",BenthicJuvenileStage.class);
+        mapStages.put("Adult",          AdultStage.class);
+    }
+
+    /** preferred IBM function classes for the "constant" function set */
+    private static final Class<?>[] CONSTANT = new Class<?>[]{
+        ConstantMortalityRate.class,ConstantFunction.class,ConstantMovementRateFunction.class};
+    /** preferred IBM function classes for the "covariate" function set */
+    private static final Class<?>[] COVARIATE = new Class<?>[]{
+        TemperatureDependentMortalityRate_Houde1989.class,ExponentialGrowthFunction.class,
+        vonBertalanffyGrowthFunction.class,PowerLawSwimmingSpeedFunction.class,
+        LogisticFunction.class,PowerLawFunction.class};
+
+    /** the ocean the individuals move through */
+    static final SyntheticOcean ocean = new SyntheticOcean(200,200,30);
+
+    private static boolean initialized = false;
+
+    private PopulationFixture(){}
+
+    /**
+     * Reads the LHS types, sets the calendar, installs the ocean and starts
+     * the model run (once).
+     *
+     * @throws Exception - if the LHS types cannot be read
+     */
+    static synchronized void initialize() throws Exception {
+        if (initialized) return;
+        String fn = System.getProperty(PROP_LHS_TYPES);
+        SyntheticRun.start(ocean,(fn==null)||fn.isEmpty() ? null : new File(fn),YEAR_DAY);
+        initialized = true;
+    }
+
+    /**
+     * Selects the IBM functions in each category from a function set.
+     * Categories with no function in the set keep their current selection,
+     * except vertical movement, which is deselected.
+     *
+     * @param params    - the stage parameters
+     * @param functions - "constant" or "covariate"
+     */
+    static void selectFunctions(AbstractLHSParameters params, String functions){
+        Class<?>[] prefs = functions.equals("covariate") ? COVARIATE : CONSTANT;
+        for (String cat: params.getIBMFunctionCategories()){
+            if (cat.equals("vertical movement")){
+                params.selectIBMFunctionForCategory(cat,null);
+                continue;
+            }
+            String sel = null;
+            for (int p=0;(p<prefs.length)&&(sel==null);p++){
+                for (String name: params.getIBMFunctionNamesByCategory(cat)){
+                    IBMFunctionInterface f = params.getIBMFunction(cat,name);
+                    if (prefs[p].isInstance(f)) {sel = name; break;}
+                }
+            }
+            if (sel!=null) params.selectIBMFunctionForCategory(cat,sel);
+        }
+    }
+
+    /**
+     * Creates a population of individuals at random positions in the interior
+     * of the ocean (mid-shelf, where the along-shelf jet is).
+     *
+     * @param stage     - stage name ("Larva", "Settler", "BenthicJuvenile" or "Adult")
+     * @param n         - number of individuals
+     * @param functions - IBM function set ("constant" or "covariate")
+     * @param ready     - true to make the individuals ready to transition to the next
+     *                    stage (old, large and on the bottom)
+     * @return - the individuals
+     * @throws Exception - if the individuals cannot be created
+     */
+    static AbstractLHS[] createPopulation(String stage, int n, String functions, boolean ready) throws Exception {
+        Class<? extends AbstractLHS> cls = mapStages.get(stage);
+        if (cls==null) throw new IllegalArgumentException("Unknown stage "+stage);
+        String typeName = System.getProperty(PREFIX+stage.substring(0,1).toLowerCase()+stage.substring(1)+"Type",stage);
+        AbstractLHS proto = cls.getConstructor(String.class).newInstance(typeName);
+        AbstractLHSParameters params = (AbstractLHSParameters) proto.getParameters();
+        selectFunctions(params,functions);
+
+        Random rnd = new Random(20170601L+n);
+        AbstractLHS[] pop = new AbstractLHS[n];
+        for (int i=0;i<n;i++){
+            double[] IJ = new double[]{ocean.getL()*(0.25+0.5*rnd.nextDouble()),
+                                       ocean.getM()*(0.25+0.5*rnd.nextDouble())};
+            double h = ocean.interpolateBathymetricDepth(IJ);
+            double depth = ready ? h-1.0 : 5.0+(h-10.0)*rnd.nextDouble();
+            double age = ready ? 400.0 : 10.0*rnd.nextDouble();
+            double ageInStage = ready ? 400.0 : 10.0*rnd.nextDouble();
+            double size = ready ? 1000.0 : 1.0+rnd.nextDouble();
+            double weight = ready ? 1000.0 : 0.01*rnd.nextDouble();
+            AbstractLHS lhs = SyntheticRun.createIndividual(proto,params,ocean,IJ,depth,age,ageInStage,
+                                                            1.0e6,size,weight);
+            pop[i] = lhs;
+        }
+        return pop;
+    }
+
+    /**
+     * Copies a population (by cloning the individuals).
+     *
+     * @param pop - the population
+     * @return - the copy
+     * @throws CloneNotSupportedException - not thrown by the POP stages
+     */
+    static AbstractLHS[] copy(AbstractLHS[] pop) throws CloneNotSupportedException {
+        AbstractLHS[] c = new AbstractLHS[pop.length];
+        for (int i=0;i<pop.length;i++) c[i] = (AbstractLHS) pop[i].clone();
+        return c;
+    }
+}
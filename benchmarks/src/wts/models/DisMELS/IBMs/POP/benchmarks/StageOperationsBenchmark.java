@@ -0,0 +1,110 @@
+/*
+ * StageOperationsBenchmark.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import wts.models.DisMELS.framework.AbstractLHS;
+import wts.models.DisMELS.framework.LifeStageAttributesInterface;
+
+/**
+ * JMH benchmarks of the per-individual operations other than step(dt) for the
+ * POP life stages: getReport(), setValues(...) on the attributes, clone() and
+ * stage transitions (getMetamorphosedIndividuals(dt)), by population size and
+ * IBM function set (see PopulationFixture).
+ *
+ * One operation applies the method to every individual in the population.
+ *
+ * @author William Stockhausen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class StageOperationsBenchmark {
+
+    @Param({"Larva","Settler","BenthicJuvenile","Adult"})
+    public String stage;
+
+    @Param({"1000","100000"})
+    public int popSize;
+
+    @Param({"constant","covariate"})
+    public String functions;
+
+    /** the individuals */
+    private AbstractLHS[] population;
+    /** copies of the individuals' attributes */
+    private LifeStageAttributesInterface[] atts;
+    /** attribute values, as given to setValues(...) */
+    private String[][] values;
+
+    @Setup(Level.Trial)
+    public void createPopulation() throws Exception {
+        PopulationFixture.initialize();
+        population = PopulationFixture.createPopulation(stage,popSize,functions,false);
+        atts   = new LifeStageAttributesInterface[popSize];
+        values = new String[popSize][];
+        for (int i=0;i<popSize;i++){
+            atts[i]   = (LifeStageAttributesInterface) population[i].getAttributes().clone();
+            values[i] = atts[i].getCSV().split(",");
+        }
+    }
+
+    /**
+     * Population of individuals ready to transition, recreated before each
+     * operation (because non-super-individuals die when they transition).
+     */
+    @State(Scope.Thread)
+    public static class ReadyPopulation {
+        private AbstractLHS[] start;
+        AbstractLHS[] population;
+
+        @Setup(Level.Trial)
+        public void createPopulation(StageOperationsBenchmark b) throws Exception {
+            PopulationFixture.initialize();
+            start = PopulationFixture.createPopulation(b.stage,b.popSize,b.functions,true);
+        }
+
+        @Setup(Level.Invocation)
+        public void resetPopulation() throws Exception {
+            population = PopulationFixture.copy(start);
+        }
+    }
+
+    @Benchmark
+    public void getReport(Blackhole bh){
+        for (AbstractLHS lhs: population) bh.consume(lhs.getReport());
+    }
+
+    @Benchmark
+    public void setValues(){
+        for (int i=0;i<atts.length;i++) atts[i].setValues(values[i]);
+    }
+
+    @Benchmark
+    public void cloneIndividuals(Blackhole bh) throws CloneNotSupportedException {
+        for (AbstractLHS lhs: population) bh.consume(lhs.clone());
+    }
+
+    @Benchmark
+    public void transitions(ReadyPopulation ready, Blackhole bh){
+        for (AbstractLHS lhs: ready.population) bh.consume(lhs.getMetamorphosedIndividuals(PopulationFixture.DT));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * StageStepBenchmark.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import wts.models.DisMELS.framework.AbstractLHS;
+
+/**
+ * JMH benchmark of step(dt) for the POP life stages, by population size and
+ * IBM function set (see PopulationFixture).
+ *
+ * One operation steps every active individual in the population once, so the
+ * cost per individual-step is 1/(throughput*popSize). The population is recreated
+ * from the same starting individuals for each measurement iteration.
+ *
+ * @author William Stockhausen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class StageStepBenchmark {
+
+    @Param({"Larva","Settler","BenthicJuvenile","Adult"})
+    public String stage;
+
+    @Param({"1000","100000"})
+    public int popSize;
+
+    @Param({"constant","covariate"})
+    public String functions;
+
+    /** starting individuals */
+    private AbstractLHS[] start;
+    /** individuals being stepped */
+    private AbstractLHS[] population;
+
+    @Setup(Level.Trial)
+    public void createPopulation() throws Exception {
+        PopulationFixture.initialize();
+        start = PopulationFixture.createPopulation(stage,popSize,functions,false);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPopulation() throws Exception {
+        population = PopulationFixture.copy(start);
+    }
+
+    @Benchmark
+    public int step(){
+        int n = 0;
+        for (AbstractLHS lhs: population){
+            if (lhs.isActive()){
+                lhs.step(PopulationFixture.DT);
+                n++;
+            }
+        }
+        return n;
+    }
+}
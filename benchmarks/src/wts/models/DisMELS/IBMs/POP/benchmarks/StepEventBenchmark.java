@@ -0,0 +1,134 @@
+/*
+ * StepEventBenchmark.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.benchmarks;
+
+import java.util.Random;
+import wts.models.DisMELS.IBMs.POP.Environment.SyntheticOcean;
+import wts.models.DisMELS.IBMs.POP.Movement.StepEventDetector;
+
+/**
+ * Micro-benchmark comparing settlement and grid exit detection with long time
+ * steps and in-step event detection (StepEventDetector) against the same long
+ * steps and a short-step baseline with the events tested only at step ends.
+ *
+ * Particles start at mid-depth on a SyntheticOcean and sink at individual rates
+ * while drifting with the current, until they come within the settlement height
+ * of the bottom or leave the grid. Each particle is tracked with the Heun
+ * predictor-corrector step the SyntheticOcean uses, at a reference step of
+ * DT/64, a baseline step of DT/nSmall and the long step DT. The report gives the
+ * number of steps and the mean error in the event time (relative to the
+ * reference) for each, and the run time.
+ *
+ * Usage: java wts.models.DisMELS.IBMs.POP.benchmarks.StepEventBenchmark [nIndivs] [nSmall]
+ *
+ * @author William Stockhausen
+ */
+public class StepEventBenchmark {
+
+    /** long time step (s) */
+    private static final double DT = 3600.0;
+    /** max tracking time (s) */
+    private static final double HORIZON = 20*86400.0;
+    /** max height (m) above the bottom for settlement */
+    private static final double HEIGHT = 5.0;
+
+    private final SyntheticOcean ocean = new SyntheticOcean(200,200,30);
+    private final double dx = ocean.getCellSize();
+    private final int N = ocean.getN();
+
+    /** starting positions and sinking rates */
+    private final double[][] start;
+    private final double[] sink;
+
+    /** result of tracking one particle */
+    private static final class Result {
+        double time = Double.NaN;//event time (NaN if none)
+        int steps = 0;
+    }
+
+    StepEventBenchmark(int n){
+        start = new double[n][];
+        sink  = new double[n];
+        Random rnd = new Random(20170601L);
+        for (int i=0;i<n;i++){
+            start[i] = new double[]{ocean.getL()*(0.1+0.8*rnd.nextDouble()),ocean.getM()*(0.1+0.8*rnd.nextDouble()),0.5*N};
+            sink[i]  = 0.0005+0.0045*rnd.nextDouble();
+        }
+    }
+
+    private double[] rates(double[] p, double w){
+        double[] c = ocean.calcCurrent(p);
+        return new double[]{c[0]/dx,c[1]/dx,(c[2]+w)*N/ocean.interpolateBathymetricDepth(p)};
+    }
+
+    private double[] advance(double[] p, double[] r, double dt){
+        return new double[]{p[0]+dt*r[0],p[1]+dt*r[1],Math.min(Math.max(p[2]+dt*r[2],0.0),N)};
+    }
+
+    private double[] heun(double[] p, double w, double dt){
+        double[] r0 = rates(p,w);
+        double[] r1 = rates(advance(p,r0,dt),w);
+        return advance(p,new double[]{0.5*(r0[0]+r1[0]),0.5*(r0[1]+r1[1]),0.5*(r0[2]+r1[2])},dt);
+    }
+
+    private final StepEventDetector.Condition event = new StepEventDetector.Condition(){
+        @Override
+        public boolean isMet(double[] pos){
+            if (ocean.isAtGridEdge(pos,0.5)) return true;
+            double depth = -ocean.calcZfromK(pos[0],pos[1],pos[2]);
+            return depth>(ocean.interpolateBathymetricDepth(pos)-HEIGHT);
+        }
+    };
+
+    /** tracks a particle, testing for events at step ends only or also inside steps */
+    private Result track(int i, double dt, boolean detect){
+        Result res = new Result();
+        double[] p = start[i];
+        double w = -sink[i];
+        for (double t=0.0;t<HORIZON;t+=dt){
+            double[] p1 = heun(p,w,dt);
+            res.steps++;
+            if (detect){
+                double s = StepEventDetector.findFirst(p,p1,event);
+                if (s<StepEventDetector.NO_EVENT) {res.time = t+s*dt; return res;}
+            }
+            if (event.isMet(p1)) {res.time = t+dt; return res;}
+            p = p1;
+        }
+        return res;
+    }
+
+    private void report(String label, double dt, boolean detect, Result[] ref){
+        long t0 = System.nanoTime();
+        long steps = 0;
+        double err = 0.0;
+        int nEvents = 0, nMissed = 0;
+        for (int i=0;i<start.length;i++){
+            Result r = track(i,dt,detect);
+            steps += r.steps;
+            if (Double.isNaN(ref[i].time)) continue;
+            if (Double.isNaN(r.time)) {nMissed++; continue;}
+            err += Math.abs(r.time-ref[i].time);
+            nEvents++;
+        }
+        long t1 = System.nanoTime();
+        System.out.println(String.format("%-28s steps/indiv = %8.1f  mean |event time error| = %8.1f s  missed = %d  time = %6.1f ms",
+                           label,(double) steps/start.length,(nEvents>0) ? err/nEvents : 0.0,nMissed,(t1-t0)*1.0e-6));
+    }
+
+    public static void main(String[] args){
+        int n      = (args.length>0) ? Integer.parseInt(args[0]) : 2000;
+        int nSmall = (args.length>1) ? Integer.parseInt(args[1]) : 12;
+        StepEventBenchmark b = new StepEventBenchmark(n);
+        Result[] ref = new Result[n];
+        for (int i=0;i<n;i++) ref[i] = b.track(i,DT/64,false);
+        for (int rep=0;rep<2;rep++){//first repetition is warm-up
+            System.out.println((rep==0) ? "warm-up:" : "results:");
+            b.report("DT/"+nSmall+", step-end tests",DT/nSmall,false,ref);
+            b.report("DT, step-end tests",DT,false,ref);
+            b.report("DT, event detection",DT,true,ref);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * StepPlanBenchmark.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import wts.models.DisMELS.IBMFunctions.Miscellaneous.ConstantFunction;
+import wts.models.DisMELS.IBMFunctions.Mortality.ConstantMortalityRate;
+import wts.models.DisMELS.IBMs.POP.Biology.CohortBiology;
+import wts.models.DisMELS.IBMs.POP.Biology.StepPlan;
+import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
+
+/**
+ * JMH benchmark comparing the number, age and size updates of a stage's step()
+ * done with the per-step look-ups of the IBM functions and the dt-dependent
+ * terms (as before the step plans: instanceof tests, boxed calculate(...) calls
+ * and exp(...) per individual) and with the shared StepPlan (look-up by stage
+ * type and dt when the plan is invalid, then precomputed factors).
+ *
+ * The functions are a constant mortality rate and a constant growth rate, with
+ * fixed values so the benchmark does not depend on their parameter set-up.
+ * The set-up checks that both give identical results over several steps.
+ *
+ * @author William Stockhausen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class StepPlanBenchmark {
+
+    @Param({"1000","100000"})
+    public int popSize;
+
+    private static final double DAY_SECS = StepPlan.DAY_SECS;
+    private static final double minStageDuration = 5.0;
+    private static final double maxStageDuration = 1000.0;
+    private static final double stageTransRate = 0.1;
+    private static final double horizRWP = 0.0;
+
+    private final IBMFunctionInterface fcnMort = new ConstantMortalityRate(){
+        @Override
+        public Object calculate(Object vars){return 0.05;}
+    };
+    private final IBMFunctionInterface fcnGrowth = new ConstantFunction(){
+        @Override
+        public Object calculate(Object vars){return 0.2;}
+    };
+
+    /** individual, with the fields used by the biology updates */
+    private final class Indiv {
+        double age, ageInStage, size, number, numTrans;
+        boolean alive = true;
+        StepPlan plan;
+
+        /** updateNum, updateAge and updateSize with per-step look-ups */
+        void updateWithLookups(double dt){
+            double mortalityRate = 0.0;
+            if (fcnMort instanceof ConstantMortalityRate) mortalityRate = (Double)fcnMort.calculate(null);
+            double totRate = mortalityRate;
+            if (ageInStage>=minStageDuration){
+                totRate += stageTransRate;
+                numTrans = numTrans*Math.exp(-dt*mortalityRate/DAY_SECS)+
+                        (stageTransRate/totRate)*number*(1-Math.exp(-dt*totRate/DAY_SECS));
+            }
+            number = number*Math.exp(-dt*totRate/DAY_SECS);
+            age        = age+dt/DAY_SECS;
+            ageInStage = ageInStage+dt/DAY_SECS;
+            if (ageInStage>maxStageDuration) alive = false;
+            if (fcnGrowth instanceof ConstantFunction){
+                double rate = (Double)fcnGrowth.calculate(null);
+                size += rate*dt/DAY_SECS;
+            }
+        }
+
+        /** updateNum, updateAge and updateSize with the step plan */
+        void updateWithPlan(double dt){
+            if ((plan==null)||!plan.isValidFor(dt)) plan = compileStepPlan(dt);
+            boolean inTrans = (ageInStage>=minStageDuration);
+            numTrans = CohortBiology.numTransAfter(plan,numTrans,number,inTrans);
+            number   = CohortBiology.numberAfter(plan,number,inTrans);
+            age        = age+plan.dtDays;
+            ageInStage = ageInStage+plan.dtDays;
+            if (ageInStage>maxStageDuration) alive = false;
+            if (plan.hasConstantGrowth) size += plan.growthIncrement;
+        }
+
+        /** as compileStepPlan(dt) in the stages */
+        private StepPlan compileStepPlan(double dt){
+            double mortalityRate = Double.NaN;
+            if (fcnMort instanceof ConstantMortalityRate) mortalityRate = (Double)fcnMort.calculate(null);
+            double growthRate = Double.NaN;
+            if (fcnGrowth instanceof ConstantFunction) growthRate = (Double)fcnGrowth.calculate(null);
+            return StepPlan.getInstance("Benchmark",dt,horizRWP,mortalityRate,stageTransRate,growthRate,Double.NaN);
+        }
+    }
+
+    private Indiv[] lookups, planned;
+
+    @Setup(Level.Iteration)
+    public void createPopulation(){
+        Random rnd = new Random(20170601L);
+        lookups = new Indiv[popSize];
+        planned = new Indiv[popSize];
+        for (int i=0;i<popSize;i++){
+            double ageInStage = 10.0*rnd.nextDouble(), size = 1.0+rnd.nextDouble();
+            lookups[i] = createIndiv(ageInStage,size);
+            planned[i] = createIndiv(ageInStage,size);
+        }
+        for (int s=0;s<10;s++){
+            withLookups();
+            withPlan();
+        }
+        for (int i=0;i<popSize;i++){
+            Indiv a = lookups[i], b = planned[i];
+            if ((a.number!=b.number)||(a.numTrans!=b.numTrans)||(a.age!=b.age)||
+                (a.ageInStage!=b.ageInStage)||(a.size!=b.size)||(a.alive!=b.alive))
+                throw new IllegalStateException("Step plan and per-step look-ups differ for individual "+i);
+        }
+    }
+
+    private Indiv createIndiv(double ageInStage, double size){
+        Indiv ind = new Indiv();
+        ind.ageInStage = ageInStage;
+        ind.age        = ageInStage;
+        ind.size       = size;
+        ind.number     = 1.0e6;
+        return ind;
+    }
+
+    @Benchmark
+    public void withLookups(){
+        for (Indiv ind: lookups) ind.updateWithLookups(PopulationFixture.DT);
+    }
+
+    @Benchmark
+    public void withPlan(){
+        for (Indiv ind: planned) ind.updateWithPlan(PopulationFixture.DT);
+    }
+}
@@ -6,12 +6,39 @@ package wts.models.DisMELS.IBMs.POP.Adult;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import org.openide.util.lookup.ServiceProvider;
+import wts.models.DisMELS.IBMFunctions.Miscellaneous.ConstantFunction;
+import wts.models.DisMELS.IBMFunctions.Miscellaneous.PowerLawFunction;
+import wts.models.DisMELS.IBMs.POP.Biology.CohortBiology;
+import wts.models.DisMELS.IBMs.POP.Biology.StepPlan;
+import wts.models.DisMELS.IBMs.POP.Environment.EnvironmentalFieldRegistry;
+import wts.models.DisMELS.IBMs.POP.Environment.EnvironmentalFieldSet;
+import wts.models.DisMELS.IBMs.POP.Environment.ExposureAccumulator;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModels;
+import wts.models.DisMELS.IBMs.POP.Grid.BoundaryDistanceField;
+import wts.models.DisMELS.IBMs.POP.Grid.CellCursor;
+import wts.models.DisMELS.IBMs.POP.Grid.GridLocator;
+import wts.models.DisMELS.IBMs.POP.Grid.SpatialIndex;
+import wts.models.DisMELS.IBMs.POP.Grid.StaticFieldTable;
+import wts.models.DisMELS.IBMs.POP.Grid.VerticalGridCache;
+import wts.models.DisMELS.IBMs.POP.IBMFunctions.FormulaFunction;
+import wts.models.DisMELS.IBMs.POP.IBMFunctions.TabulatedFunction;
 import wts.models.DisMELS.IBMs.POP.Larva.LarvaStage;
 import wts.models.DisMELS.IBMs.POP.Larva.LarvaStageAttributes;
+import wts.models.DisMELS.IBMs.POP.Movement.AdaptiveIntegrator;
+import wts.models.DisMELS.IBMs.POP.Movement.StepEventDetector;
+import wts.models.DisMELS.IBMs.POP.Monitoring.PopEvents;
+import wts.models.DisMELS.IBMs.POP.Monitoring.StageMetrics;
+import wts.models.DisMELS.IBMs.POP.Monitoring.StepPhaseTimer;
 import wts.models.DisMELS.IBMs.POP.NewAttributes;
+import wts.models.DisMELS.IBMs.POP.Output.ConnectivityAccumulator;
+import wts.models.DisMELS.IBMs.POP.Output.GriddedRasterAccumulator;
+import wts.models.DisMELS.IBMs.POP.Output.LifeEventJournal;
+import wts.models.DisMELS.IBMs.POP.Output.StageSummaryAccumulator;
 import wts.models.DisMELS.framework.*;
 import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
 import wts.models.utilities.CalendarIF;
@@ -77,6 +104,14 @@ public class AdultStage extends AbstractLHS {
     protected double meanTimeToSpawn;
     /** flag to randomize spawning */
     protected boolean randomizeSpawning;
+    /** flag to use tabulated IBM functions */
+    protected boolean tabulateFunctions;
+    /** max relative error for tabulated IBM functions */
+    protected double tabMaxRelError;
+    /** min size for tabulated IBM functions */
+    protected double tabMinSize;
+    /** max size for tabulated IBM functions */
+    protected double tabMaxSize;
     
     
         //fields that reflect (new) attribute values
@@ -108,6 +143,8 @@ public class AdultStage extends AbstractLHS {
             //other fields
     /** number of individuals transitioning to next stage */
     private double numTrans;  
+    /** total depth (m) at individual's position */
+    private double totalDepth;
      /** day of year */
     private double dayOfYear;
      /** fecundity as number of spawned class objects to create */
@@ -116,6 +153,44 @@ public class AdultStage extends AbstractLHS {
     private boolean isSpawningSeason;
     /** flag to clean up after spawning */
     private boolean doOnceAfterSpawningSeason = true;
+    /** step plan shared by the stage type (looked up again when dt or the parameters change) */
+    private StepPlan plan = null;
+    /** spatial index of live individuals by grid cell (null if not maintained) */
+    private static final SpatialIndex cellIndex = SpatialIndex.getInstance(AdultStage.class);
+    /** individual's entry in the spatial index */
+    private SpatialIndex.Entry cellEntry = null;
+    /** accumulator for gridded abundance/biomass rasters (null if not used) */
+    private static final GriddedRasterAccumulator rasters = GriddedRasterAccumulator.getInstance(AdultStage.class);
+    /** accumulator for per-output-time stage summaries (null if not used) */
+    private static final StageSummaryAccumulator summaries = StageSummaryAccumulator.getInstance(AdultStage.class);
+    /** accumulator for the connectivity matrix (null if not used) */
+    private static final ConnectivityAccumulator connectivity = ConnectivityAccumulator.getInstance();
+    /** timer for the step phases (null if not used) */
+    private static final StepPhaseTimer phaseTimer = StepPhaseTimer.getInstance(AdultStage.class);
+    /** grid cell of the last position (reused while the individual stays in it) */
+    private CellCursor cursor = new CellCursor();
+    /** environmental exposure accumulated along the track (null if not enabled) */
+    private ExposureAccumulator exposure = ExposureAccumulator.isEnabled() ? new ExposureAccumulator() : null;
+    /** flag indicating the adaptive integrator is selected for the stage */
+    private static final boolean useAdaptiveIntegrator = AdaptiveIntegrator.isSelectedFor(AdultStage.class);
+    /** adaptive particle integrator (null if not selected) */
+    private AdaptiveIntegrator integrator = useAdaptiveIntegrator ? new AdaptiveIntegrator() : null;
+    /** timing sample for the step in progress (null if not sampled) */
+    private StepPhaseTimer.Sample timing = null;
+    /** step batch counters for PopEvents */
+    private static final PopEvents.StepBatches stepBatches = PopEvents.getStepBatches(AdultStage.class);
+    /** live metrics published through JMX (null if not used) */
+    private static final StageMetrics metrics = StageMetrics.getInstance(AdultStage.class);
+    /** journal of life events (null if not used) */
+    private static final LifeEventJournal journal = LifeEventJournal.getInstance(AdultStage.class);
+    /** environmental fields sampled by this stage */
+    private static final EnvironmentalFieldSet envFields = EnvironmentalFieldRegistry.getFieldSet(AdultStage.class);
+    /** model time (s) the environmental fields were last sampled (NaN = never) */
+    private double envSampleTime = Double.NaN;
+    /** tabulated mortality function (null if not used) */
+    private TabulatedFunction tabMortality = null;
+    /** tabulated fecundity function (null if not used) */
+    private TabulatedFunction tabFecundity = null;
    
     /** IBM function selected for growth */
     private IBMFunctionInterface fcnGrowth = null; 
@@ -393,6 +468,7 @@ public class AdultStage extends AbstractLHS {
             setParametersFromSubClass(params);
             setParameterValues();
             setIBMFunctions();
+            plan = null;//force look-up of the step plan
         } else {
             //TODO: throw some error
         }
@@ -406,6 +482,42 @@ public class AdultStage extends AbstractLHS {
         fcnMortality      = params.getSelectedIBMFunctionForCategory(AdultStageParameters.FCAT_Mortality);
         fcnMaturity       = params.getSelectedIBMFunctionForCategory(AdultStageParameters.FCAT_Maturity);
         fcnFecundity      = params.getSelectedIBMFunctionForCategory(AdultStageParameters.FCAT_Fecundity);
+        //set up tables for the mortality and fecundity functions, if requested
+        tabMortality = null;
+        tabFecundity = null;
+        if (tabulateFunctions){
+            if (fcnMortality instanceof PowerLawFunction){
+                final IBMFunctionInterface f = fcnMortality;
+                tabMortality = TabulatedFunction.getInstance(TabulatedFunction.createKey(f),
+                        new TabulatedFunction.Evaluator() {
+                            @Override
+                            public double evaluate(double x) {return (Double) f.calculate(x);}
+                        },tabMinSize,tabMaxSize,tabMaxRelError);
+            }
+            if (fcnFecundity instanceof PowerLawFunction){
+                final IBMFunctionInterface f = fcnFecundity;
+                tabFecundity = TabulatedFunction.getInstance(TabulatedFunction.createKey(f),
+                        new TabulatedFunction.Evaluator() {
+                            @Override
+                            public double evaluate(double x) {return (Double) f.calculate(new double[]{x});}
+                        },tabMinSize,tabMaxSize,tabMaxRelError);
+            }
+        }
+        checkEnvironmentalCovariates();
+    }
+    
+    /**
+     * Checks that the stage samples the environmental fields the selected IBM
+     * functions read (see EnvironmentalFieldRegistry), so none sees a stale value.
+     * 
+     * @throws IllegalStateException - if a function reads a field that is not sampled
+     */
+    private void checkEnvironmentalCovariates(){
+        for (IBMFunctionInterface f: new IBMFunctionInterface[]{fcnGrowth,fcnMortality,fcnMaturity,fcnFecundity}){
+            if (f instanceof FormulaFunction)
+                envFields.require(((FormulaFunction)f).getCovariatesUsed(),
+                                  "AdultStage formula '"+((FormulaFunction)f).getFormula()+"'");
+        }
     }
     
     /*
@@ -438,6 +550,27 @@ public class AdultStage extends AbstractLHS {
                 params.getValue(params.PARAM_meanTimeToSpawn,meanTimeToSpawn);
         randomizeSpawning = 
                 params.getValue(params.PARAM_randomizeTransitions,true);
+        tabulateFunctions = 
+                params.getValue(params.PARAM_tabulateFunctions,false);
+        tabMaxRelError = 
+                params.getValue(params.PARAM_tabMaxRelError,tabMaxRelError);
+        tabMinSize = 
+                params.getValue(params.PARAM_tabMinSize,tabMinSize);
+        tabMaxSize = 
+                params.getValue(params.PARAM_tabMaxSize,tabMaxSize);
+    }
+    
+    /**
+     * Gets the (shared) step plan for the given time step from the current
+     * parameter values and selected IBM functions.
+     * 
+     * @param dt - time step in seconds
+     * @return   - the step plan
+     */
+    private StepPlan compileStepPlan(double dt) {
+        double mortalityRate = Double.NaN;
+        if (fcnMortality instanceof ConstantFunction) mortalityRate = (Double)fcnMortality.calculate(size);
+        return StepPlan.getInstance(typeName,dt,horizRWP,mortalityRate,stageTransRate,Double.NaN,Double.NaN);
     }
     
     /**
@@ -450,6 +583,11 @@ public class AdultStage extends AbstractLHS {
         AdultStage clone = null;
         try {
             clone       = (AdultStage) super.clone();
+            clone.cellEntry = null;//clone is indexed separately
+            clone.timing    = null;
+            clone.cursor    = new CellCursor();
+            clone.integrator = (integrator!=null) ? new AdaptiveIntegrator(integrator.getTolerance()) : null;
+            clone.exposure = (exposure!=null) ? new ExposureAccumulator() : null;//filled from atts
             clone.setAttributes((AdultStageAttributes) atts.clone());
             clone.setParameters((AdultStageParameters) params.clone());
             clone.lp    = (LagrangianParticle) lp.clone();
@@ -462,6 +600,7 @@ public class AdultStage extends AbstractLHS {
 
     @Override
     public List<LifeStageInterface> getMetamorphosedIndividuals(double dt) {
+        StepPhaseTimer.Sample s = (phaseTimer!=null) ? phaseTimer.begin(StepPhaseTimer.ENTRY_TRANSITIONS) : null;
         double dtp = 0.25*(dt/DAY_SECS);//use 1/4 timestep (converted from sec to d)
         output.clear();
         List<LifeStageInterface> nLHSs;
@@ -469,11 +608,13 @@ public class AdultStage extends AbstractLHS {
             nLHSs = createMetamorphosedIndividuals();
             if (nLHSs!=null) output.addAll(nLHSs);
         }
+        if (s!=null) s.mark(StepPhaseTimer.PHASE_TRANSITIONS);
         return output;
     }
 
     private List<LifeStageInterface> createMetamorphosedIndividuals() {
         List<LifeStageInterface> nLHSs = null;
+        double numTransitioning = isSuperIndividual ? numTrans : number;
         try {
             //create LHS with "output" stage
             if (isSuperIndividual) {
@@ -504,7 +645,13 @@ public class AdultStage extends AbstractLHS {
                 nLHSs = LHS_Factory.createNextLHSsFromIndividual(typeName,this);
                 alive  = false; //allow only 1 transition, so kill this stage
                 active = false; //set stage inactive, also
+                updateCellIndex(null);//remove from spatial index
             }
+            if ((nLHSs!=null)&&PopEvents.isEnabled())
+                PopEvents.transition(getClass().getSimpleName(),id,time,numTransitioning,nLHSs.size());
+            if ((nLHSs!=null)&&(metrics!=null)) metrics.transition();
+            if ((nLHSs!=null)&&!nLHSs.isEmpty()&&(journal!=null))
+                journal.transition(id,nLHSs.get(0).getID(),time,numTransitioning,lon,lat);
         } catch (IllegalAccessException | InstantiationException ex) {
             ex.printStackTrace();
         }
@@ -513,9 +660,11 @@ public class AdultStage extends AbstractLHS {
 
     @Override
     public List<LifeStageInterface> getSpawnedIndividuals() {
+        StepPhaseTimer.Sample s = (phaseTimer!=null) ? phaseTimer.begin(StepPhaseTimer.ENTRY_SPAWNING) : null;
         output.clear();
         //logger.info("Adult "+id+": "+isSpawningSeason+", "+elapsedTimeToSpawn);
         if (isSpawningSeason && (timeToSpawn<0)) doSpawning();
+        if (s!=null) s.mark(StepPhaseTimer.PHASE_SPAWNING);
         return output;
     }
     
@@ -525,7 +674,11 @@ public class AdultStage extends AbstractLHS {
             //logger.info("Adult"+id+" spawning: fecundity = "+fecundity);
             LifeStageInterface nLHS = null;
             LifeStageAttributesInterface newAttsI = null;
-            fecundity = (Double)fcnFecundity.calculate(new double[]{size});
+            if (tabFecundity!=null) {
+                fecundity = tabFecundity.value(size);
+            } else {
+                fecundity = (Double)fcnFecundity.calculate(new double[]{size});
+            }
             for (int i=0;i<fecundity;i++) {
                 /** 
                  * For each individual, we need to:
@@ -571,8 +724,15 @@ public class AdultStage extends AbstractLHS {
                     logger.info("AdultStage.doSpawning(): no match for attributes type:"+newAttsI.toString());
                 }
                 output.add(nLHS);
+                if (journal!=null) journal.birth(nLHS.getID(),id,time,1.0,lon,lat);
                 nLHS = null;
             }
+            if ((connectivity!=null)&&!output.isEmpty()) //record origin region of the offspring (origID = id)
+                connectivity.recordOrigin(id,lp.getIJK());
+            if (PopEvents.isEnabled())
+                PopEvents.spawning(getClass().getSimpleName(),id,time,fecundity,output.size());
+            if (metrics!=null) metrics.spawning();
+            if (journal!=null) journal.spawn(id,time,fecundity,output.size(),lon,lat);
             
             //reset elapsed time to spawn for next spawning
             if (isBatchSpawner) {
@@ -650,18 +810,19 @@ public class AdultStage extends AbstractLHS {
             logger.info("\n---------------Setting initial position------------");
             logger.info(hType+cc+vType+cc+startTime+cc+xPos+cc+yPos+cc+zPos);
         }
-        if (i3d!=null) {
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
+        if (ocean!=null) {
             double[] IJ = new double[] {xPos,yPos};
             if (debug) wts.roms.model.Grid2DUtilities.debug = true;
             if (hType==Types.HORIZ_XY) {
-                IJ = i3d.getGrid().computeIJfromXY(xPos,yPos);
+                IJ = ocean.computeIJfromXY(xPos,yPos);
             } else if (hType==Types.HORIZ_LL) {
 //                if (xPos<0) xPos=xPos+360;
-                IJ = i3d.getGrid().computeIJfromLL(yPos,xPos);
+                IJ = GridLocator.getInstance(ocean).locate(yPos,xPos);
             }
             if (debug) wts.roms.model.Grid2DUtilities.debug = false;
             double K = 0;  //benthic adult starts out on bottom
-            double z = i3d.interpolateBathymetricDepth(IJ);
+            double z = StaticFieldTable.getInstance(ocean).interpolateBathymetricDepth(IJ);
             if (debug) logger.info("Bathymetric depth = "+z);
             lp.setIJK(IJ[0],IJ[1],K);
             //reset track array
@@ -677,6 +838,7 @@ public class AdultStage extends AbstractLHS {
                 logger.info("depth = "+depth);
                 logger.info("-------Finished setting initial position------------");
             }
+            envSampleTime = Double.NaN;//force sampling at initial position
             interpolateEnvVars(pos);
             updateAttributes(); 
             initializeTimedependentVariables();
@@ -707,6 +869,9 @@ public class AdultStage extends AbstractLHS {
     
     @Override
     public void step(double dt) throws ArrayIndexOutOfBoundsException {
+        timing = (phaseTimer!=null) ? phaseTimer.begin(StepPhaseTimer.ENTRY_STEP) : null;
+        if ((plan==null)||!plan.isValidFor(dt)) plan = compileStepPlan(dt);
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
         //determine daytime/nighttime for vertical migration & calc indiv. W
         dayOfYear = GlobalInfo.getInstance().getCalendar().getYearDay();
 //        isDaytime = DateTimeFunctions.isDaylight(lon,lat,dayOfYear);
@@ -722,33 +887,72 @@ public class AdultStage extends AbstractLHS {
         //TODO: implement movement here
         double[] pos;
             double[] uv = calcUV(dt);
-            lp.setU(uv[0],lp.getN());
-            lp.setV(uv[1],lp.getN());
-            lp.doPredictorStep();
-            //assume same daytime status, but recalc depth and revise W 
-//            pos = lp.getPredictedIJK();
-//            depth = -i3d.calcZfromK(pos[0],pos[1],pos[2]);
-//            if (debug) logger.info("Depth after predictor step = "+depth);
-            //w = calcW(dt,lp.getNP1())+r; //set swimming rate for predicted position
-            lp.setU(uv[0],lp.getNP1());
-            lp.setV(uv[1],lp.getNP1());
-            //now do corrector step
-            lp.doCorrectorStep();
-            pos = lp.getIJK();
+            if (timing!=null) timing.mark(StepPhaseTimer.PHASE_BEHAVIOR);
+            double[] uvw = uv;//{u,v}: the particle's vertical movement rate is left as it is
+            double[] pos0 = StepEventDetector.isEnabled() ? lp.getIJK().clone() : null;//start of path, for event detection
+            double[] next = (integrator!=null) ? integrator.integrate(ocean,lp.getIJK(),uvw,time,dt) : null;
+            if (next!=null){
+                //adaptive sub-steps (see AdaptiveIntegrator)
+                lp.setIJK(next[0],next[1],next[2]);
+                pos = lp.getIJK();
+            } else {
+                ocean.doPredictorStep(lp,uvw,dt);
+                //assume same daytime status, but recalc depth and revise W 
+//                pos = lp.getPredictedIJK();
+//                depth = -ocean.calcZfromK(pos[0],pos[1],pos[2]);
+//                if (debug) logger.info("Depth after predictor step = "+depth);
+                //w = calcW(dt,lp.getNP1())+r; //set swimming rate for predicted position
+                //now do corrector step
+                pos = ocean.doCorrectorStep(lp,uvw,dt);
+            }
+            if (pos0!=null){
+                //truncate the step at the first event on its path
+                double s = Math.min(StepEventDetector.findGridExit(ocean,tolGridEdge,pos0,pos),
+                                    StepEventDetector.findStranding(ocean,tolGridEdge,pos0,pos));
+                if (s<StepEventDetector.NO_EVENT){
+                    pos = StepEventDetector.pointAt(pos0,pos,s);
+                    lp.setIJK(pos[0],pos[1],pos[2]);
+                }
+            }
+            if (timing!=null) timing.mark(StepPhaseTimer.PHASE_INTEGRATION);
         time = time+dt;
         updateSize(dt);
         updateNum(dt);
+        if (!(number>0)) die(LifeEventJournal.CAUSE_MORTALITY);//no individuals left
         updateAge(dt);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_BIOLOGY);
         updatePosition(pos);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_POSITION);
         interpolateEnvVars(pos);
-        //check for exiting grid
-        if (i3d.isAtGridEdge(pos,tolGridEdge)){
+        if (exposure!=null) exposure.add(Math.abs(dt)/DAY_SECS,envFields.sampleTemperature ? temperature : Double.NaN,depth);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_ENVIRONMENT);
+        //check for exiting grid or stranding (the checks are skipped far from the edge and land)
+        BoundaryDistanceField bdf = BoundaryDistanceField.getInstance(ocean,tolGridEdge);
+        if (bdf.isAtGridEdgePossible(pos)&&ocean.isAtGridEdge(pos,tolGridEdge)){
             alive=false;
             active=false;
-            gridCellID=i3d.getGridCellID(pos, tolGridEdge);
-            logger.info("Indiv "+id+" exited grid at ["+pos[0]+","+pos[1]+"]: "+gridCellID);
+            gridCellID=ocean.getGridCellID(pos, tolGridEdge);
+            if (journal!=null) journal.gridExit(id,time,number,lon,lat);
+            else logger.info("Indiv "+id+" exited grid at ["+pos[0]+","+pos[1]+"]: "+gridCellID);
+            if (PopEvents.isEnabled()) PopEvents.gridExit(getClass().getSimpleName(),id,time,number,gridCellID);
+            if (metrics!=null) metrics.gridExit();
+        } else if (bdf.isStranded(pos)){
+            die(LifeEventJournal.CAUSE_STRANDING);
         }
+        updateCellIndex(pos);
+        if ((rasters!=null)&&alive) rasters.add(ocean,time,dt,pos,number,number*weight);
+        if ((summaries!=null)&&alive) 
+            summaries.add(time,dt,number,numTrans,size,weight,
+                          envFields.sampleTemperature ? temperature : Double.NaN,depth,ageInStage);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_OUTPUT);
         updateAttributes(); //update the attributes object w/ nmodified values
+        if (timing!=null) {
+            timing.mark(StepPhaseTimer.PHASE_ATTRIBUTES);
+            timing = null;
+        }
+        if (phaseTimer!=null) phaseTimer.checkOutput(time,dt);
+        if (PopEvents.isEnabled()) stepBatches.stepped(time);
+        if ((metrics!=null)&&alive) metrics.stepped(time,dt,number,track.size());
     }
     
     /**
@@ -759,30 +963,45 @@ public class AdultStage extends AbstractLHS {
      */
     public double[] calcUV(double dt) {
         double[] uv = {0.0,0.0};
-        if (horizRWP>0) {
-            double r = Math.sqrt(horizRWP/Math.abs(dt));
+        if (plan.hasRandomWalk) {
+            double r = plan.rwScale;
             uv[0] += r*rng.computeNormalVariate(); //stochastic swimming rate
             uv[1] += r*rng.computeNormalVariate(); //stochastic swimming rate
             if (debugOps) logger.info("uv: "+r+"; "+uv[0]+", "+uv[1]+"\n");
         }
-        uv[0] = Math.signum(dt)*uv[0];
-        uv[1] = Math.signum(dt)*uv[1];
+        uv[0] = plan.sgnDt*uv[0];
+        uv[1] = plan.sgnDt*uv[1];
         return uv;
     }
     
     private void updateAge(double dt) {
-        age        = age+dt/DAY_SECS;
-        ageInStage = ageInStage+dt/DAY_SECS;
-        if (ageInStage>maxStageDuration) {
-            alive = false;
-            active = false;
-        }
+        age        = age+plan.dtDays;
+        ageInStage = ageInStage+plan.dtDays;
+        if (ageInStage>maxStageDuration) die(LifeEventJournal.CAUSE_AGE);
+    }
+
+    /**
+     * Kills the individual (if it is alive), recording the death and its
+     * cause in the journal (if used).
+     *
+     * @param cause - cause of death (LifeEventJournal.CAUSE_...)
+     */
+    private void die(byte cause) {
+        if (!alive) return;
+        alive = false;
+        active = false;
+        if (journal!=null) journal.death(id,cause,time,number,lon,lat);
     }
 
     private void updateSize(double dt) {
         //The following works for
         //  wts.models.DisMELS.IBMFunctions.Growth.vonBertalanffyGrowthFunction
-        size = (Double) fcnGrowth.calculate(new double[]{dt/DAY_SECS,size});
+        if (fcnGrowth instanceof FormulaFunction){
+            //formula gives the growth rate [size units/day]
+            size += plan.dtDays*evaluateFormula(fcnGrowth,dt);
+        } else {
+            size = (Double) fcnGrowth.calculate(new double[]{plan.dtDays,size});
+        }
     }
 
     /**
@@ -790,10 +1009,25 @@ public class AdultStage extends AbstractLHS {
      * @param dt - time step in seconds
      */
     private void updateNum(double dt) {
+        if (plan.hasConstantMortality){
+            //survival factors are precomputed in the step plan
+            boolean inTrans = CohortBiology.inTransition(ageInStage,minStageDuration,size,minSizeAtTrans);
+            numTrans = CohortBiology.numTransAfter(plan,numTrans,number,inTrans);
+            number   = CohortBiology.numberAfter(plan,number,inTrans);
+            return;
+        }
         //The following works for
         //  wts.models.DisMELS.IBMFunctions.Miscellaneous.ConstantFunction
         //  wts.models.DisMELS.IBMFunctions.Miscellaneous.PowerLawFunction
-        double mortalityRate = (Double)fcnMortality.calculate(size);//in unis of [days]^-1
+        double mortalityRate;//in unis of [days]^-1
+        if (fcnMortality instanceof FormulaFunction){
+            mortalityRate = evaluateFormula(fcnMortality,dt);
+        } else
+        if (tabMortality!=null) {
+            mortalityRate = tabMortality.value(size);
+        } else {
+            mortalityRate = (Double)fcnMortality.calculate(size);
+        }
         double totRate = mortalityRate;
         if ((ageInStage>=minStageDuration)&&(size>=minSizeAtTrans)) {
             totRate += stageTransRate;
@@ -805,23 +1039,58 @@ public class AdultStage extends AbstractLHS {
         number = number*Math.exp(-dt*totRate/DAY_SECS);
     }
 
+    /**
+     * Evaluates a formula function (see FormulaFunction) for the individual's covariates.
+     * 
+     * @param fcn - the function (a FormulaFunction)
+     * @param dt  - time step in seconds
+     * @return    - the value of the formula
+     */
+    private double evaluateFormula(IBMFunctionInterface fcn, double dt) {
+        return ((FormulaFunction)fcn).evaluate(dt,size,temperature,salinity,depth,
+                                               romsvar1,romsvar2,romsvar3,romsvar4,romsvar5);
+    }
+    
     private void updatePosition(double[] pos) {
-        depth = -i3d.calcZfromK(pos[0],pos[1],pos[2]);
-        lat   = i3d.interpolateLat(pos);
-        lon   = i3d.interpolateLon(pos);
-        gridCellID = ""+Math.round(pos[0])+"_"+Math.round(pos[1]);
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
+        StaticFieldTable sft = StaticFieldTable.getInstance(ocean);
+        cursor.locate(sft,pos);//reuses the previous cell if pos is still in it
+        totalDepth = sft.interpolate(StaticFieldTable.FIELD_H,cursor,pos);
+        depth      = -VerticalGridCache.getInstance(ocean).calcZfromK(pos[0],pos[1],pos[2],time);
+        lat        = sft.interpolate(StaticFieldTable.FIELD_LAT,cursor,pos);
+        lon        = sft.interpolate(StaticFieldTable.FIELD_LON,cursor,pos);
+        gridCellID = cursor.getNodeID(pos);
         updateTrack();
     }
     
+    /**
+     * Updates the individual's entry in the spatial index (if maintained),
+     * removing it if the individual is dead.
+     * 
+     * @param pos - current position (not used if the individual is dead)
+     */
+    private void updateCellIndex(double[] pos) {
+        if (cellIndex==null) return;
+        if (alive) {
+            cellEntry = cellIndex.update(cellEntry,this,pos);
+        } else {
+            cellIndex.remove(cellEntry);
+            cellEntry = null;
+        }
+    }
+    
     private void interpolateEnvVars(double[] pos) {
-        temperature = i3d.interpolateTemperature(pos);
-        salinity    = i3d.interpolateSalinity(pos);
-        bathymetry = i3d.interpolateBathymetricDepth(pos);
-        romsvar1 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar1);
-        romsvar2 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar2);
-        romsvar3 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar3);
-        romsvar4 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar4);
-        romsvar5 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar5);
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
+        bathymetry = totalDepth;//interpolated at pos in updatePosition(pos)
+        if (!envFields.isSamplingDue(envSampleTime,time)) return;
+        envSampleTime = time;
+        if (envFields.sampleTemperature) temperature = ocean.interpolateTemperature(pos);
+        if (envFields.sampleSalinity)    salinity    = ocean.interpolateSalinity(pos);
+        if (envFields.sampleRomsvar1) romsvar1 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar1);
+        if (envFields.sampleRomsvar2) romsvar2 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar2);
+        if (envFields.sampleRomsvar3) romsvar3 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar3);
+        if (envFields.sampleRomsvar4) romsvar4 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar4);
+        if (envFields.sampleRomsvar5) romsvar5 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar5);
     }
 
     @Override
@@ -909,14 +1178,15 @@ public class AdultStage extends AbstractLHS {
         super.updateAttributes();
         atts.setValue(NewAttributes.PROP_size,size);
         atts.setValue(NewAttributes.PROP_weight,weight);
-        atts.setValue(NewAttributes.PROP_salinity,salinity);
-        atts.setValue(NewAttributes.PROP_temperature,temperature);
+        if (envFields.sampleSalinity) atts.setValue(NewAttributes.PROP_salinity,salinity);
+        if (envFields.sampleTemperature) atts.setValue(NewAttributes.PROP_temperature,temperature);
         atts.setValue(NewAttributes.PROP_bathymetry,bathymetry);
-        atts.setValue(NewAttributes.PROP_romsvar1,romsvar1);
-        atts.setValue(NewAttributes.PROP_romsvar2,romsvar2);
-        atts.setValue(NewAttributes.PROP_romsvar3,romsvar3);
-        atts.setValue(NewAttributes.PROP_romsvar4,romsvar4);
-        atts.setValue(NewAttributes.PROP_romsvar5,romsvar5);
+        if (envFields.sampleRomsvar1) atts.setValue(NewAttributes.PROP_romsvar1,romsvar1);
+        if (envFields.sampleRomsvar2) atts.setValue(NewAttributes.PROP_romsvar2,romsvar2);
+        if (envFields.sampleRomsvar3) atts.setValue(NewAttributes.PROP_romsvar3,romsvar3);
+        if (envFields.sampleRomsvar4) atts.setValue(NewAttributes.PROP_romsvar4,romsvar4);
+        if (envFields.sampleRomsvar5) atts.setValue(NewAttributes.PROP_romsvar5,romsvar5);
+        if (exposure!=null) exposure.writeTo(atts);
     }
 
     /**
@@ -927,13 +1197,15 @@ public class AdultStage extends AbstractLHS {
         super.updateVariables();
         size        = atts.getValue(NewAttributes.PROP_size,size);
         weight      = atts.getValue(NewAttributes.PROP_weight,weight);
-        salinity    = atts.getValue(NewAttributes.PROP_salinity,salinity);
-        temperature = atts.getValue(NewAttributes.PROP_temperature,temperature);
+        if (envFields.sampleSalinity) salinity = atts.getValue(NewAttributes.PROP_salinity,salinity);
+        if (envFields.sampleTemperature) temperature = atts.getValue(NewAttributes.PROP_temperature,temperature);
         bathymetry    = atts.getValue(NewAttributes.PROP_bathymetry,bathymetry);
-        romsvar1    = atts.getValue(NewAttributes.PROP_romsvar1,romsvar1);
-        romsvar2    = atts.getValue(NewAttributes.PROP_romsvar2,romsvar2);
-        romsvar3    = atts.getValue(NewAttributes.PROP_romsvar3,romsvar3);
-        romsvar4    = atts.getValue(NewAttributes.PROP_romsvar4,romsvar4);
-        romsvar5    = atts.getValue(NewAttributes.PROP_romsvar5,romsvar5);
+        totalDepth    = bathymetry;//at the position in the attributes
+        if (envFields.sampleRomsvar1) romsvar1 = atts.getValue(NewAttributes.PROP_romsvar1,romsvar1);
+        if (envFields.sampleRomsvar2) romsvar2 = atts.getValue(NewAttributes.PROP_romsvar2,romsvar2);
+        if (envFields.sampleRomsvar3) romsvar3 = atts.getValue(NewAttributes.PROP_romsvar3,romsvar3);
+        if (envFields.sampleRomsvar4) romsvar4 = atts.getValue(NewAttributes.PROP_romsvar4,romsvar4);
+        if (envFields.sampleRomsvar5) romsvar5 = atts.getValue(NewAttributes.PROP_romsvar5,romsvar5);
+        if (exposure!=null) exposure.readFrom(atts);
     }
 }
@@ -20,6 +20,7 @@ import wts.models.DisMELS.IBMFunctions.Growth.vonBertalanffyGrowthFunction;
 import wts.models.DisMELS.IBMFunctions.Miscellaneous.ConstantFunction;
 import wts.models.DisMELS.IBMFunctions.Miscellaneous.LogisticFunction;
 import wts.models.DisMELS.IBMFunctions.Miscellaneous.PowerLawFunction;
+import wts.models.DisMELS.IBMs.POP.IBMFunctions.FormulaFunction;
 import wts.models.DisMELS.framework.AbstractLHSParameters;
 import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
 import wts.models.DisMELS.framework.IBMFunctions.IBMParameter;
@@ -41,7 +42,7 @@ public class AdultStageParameters extends AbstractLHSParameters {
     public static final long serialVersionUID = 1L;
     
     /** the number of IBMParameter objects defined in the class */
-    public static final int numParams = 13;
+    public static final int numParams = 17;
     public static final String PARAM_isSuperIndividual     = "is a super-individual?";
     public static final String PARAM_horizRWP              = "horizontal random walk parameter [m^2]/[s]";
     public static final String PARAM_minStageDuration      = "min stage duration [d]";
@@ -55,6 +56,10 @@ public class AdultStageParameters extends AbstractLHSParameters {
     public static final String PARAM_recoveryPeriod        = "recovery period after spawning (d)";
     public static final String PARAM_meanTimeToSpawn       = "mean time to spawn after recory (d)?";
     public static final String PARAM_randomizeSpawning     = "randomize spawning?";
+    public static final String PARAM_tabulateFunctions     = "tabulate IBM functions?";
+    public static final String PARAM_tabMaxRelError        = "max relative error for tabulated functions";
+    public static final String PARAM_tabMinSize            = "min size for tabulated functions (cm)";
+    public static final String PARAM_tabMaxSize            = "max size for tabulated functions (cm)";
     
     /** the number of IBMFunction categories defined in the class */
     public static final int numFunctionCats = 4;
@@ -112,6 +117,10 @@ public class AdultStageParameters extends AbstractLHSParameters {
         key = PARAM_recoveryPeriod;       setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,0.0));
         key = PARAM_meanTimeToSpawn;      setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,0.0));
         key = PARAM_randomizeSpawning;    setOfParamKeys.add(key); mapParams.put(key,new IBMParameterBoolean(key,key,false));
+        key = PARAM_tabulateFunctions;    setOfParamKeys.add(key); mapParams.put(key,new IBMParameterBoolean(key,key,false));
+        key = PARAM_tabMaxRelError;       setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,1.0E-4));
+        key = PARAM_tabMinSize;           setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,10.0));
+        key = PARAM_tabMaxSize;           setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,70.0));
     }
 
     @Override
@@ -127,6 +136,11 @@ public class AdultStageParameters extends AbstractLHSParameters {
         cat = FCAT_Growth;  
         mapOfPotentialFunctions = new LinkedHashMap<>(2); mapOfPotentialFunctionsByCategory.put(cat,mapOfPotentialFunctions);
         ifi = new vonBertalanffyGrowthFunction(); mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
+        ifi = new FormulaFunction();  //generic function, so change defaults
+            ifi.setFunctionName("Growth rate formula"); 
+            ifi.setDescription("User-defined growth rate [cm/day]"); 
+            ifi.setParameterDescription(FormulaFunction.PARAM_formula,"User-defined growth rate [cm/day], as a formula over dt, size, temperature, salinity, depth, romsvar1-5");
+            mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
         
         cat = FCAT_Mortality;  
         mapOfPotentialFunctions = new LinkedHashMap<>(4); mapOfPotentialFunctionsByCategory.put(cat,mapOfPotentialFunctions);
@@ -142,6 +156,11 @@ public class AdultStageParameters extends AbstractLHSParameters {
             ifi.setParameterDescription(PowerLawFunction.PARAM_stdX,"standard size z0 [cm]");
             ifi.setParameterDescription(PowerLawFunction.PARAM_exponent,"exponent (<0 for decreasing function of size)");
             mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
+        ifi = new FormulaFunction();  //generic function, so change defaults
+            ifi.setFunctionName("Mortality rate formula"); 
+            ifi.setDescription("User-defined mortality rate [1/day]"); 
+            ifi.setParameterDescription(FormulaFunction.PARAM_formula,"User-defined mortality rate [1/day], as a formula over dt, size, temperature, salinity, depth, romsvar1-5");
+            mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
         
         cat = FCAT_Maturity;  
         mapOfPotentialFunctions = new LinkedHashMap<>(4); mapOfPotentialFunctionsByCategory.put(cat,mapOfPotentialFunctions);
@@ -255,7 +274,10 @@ public class AdultStageParameters extends AbstractLHSParameters {
     public AdultStageParameters createInstance(final String[] strv) {
         int c = 0;
         AdultStageParameters params = new AdultStageParameters(strv[c++]);
-        for (String key: setOfParamKeys) params.setValueFromString(key,strv[c++]);
+        for (String key: setOfParamKeys) {
+            if (c>=strv.length) break;//parameters added later keep their default values
+            params.setValueFromString(key,strv[c++]);
+        }
         return params;
     }
     
@@ -0,0 +1,61 @@
+/*
+ * CohortBiology.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Biology;
+
+/**
+ * Class with the number updates of the POP life stages' step() for a cohort
+ * (super-individual) when the mortality rate is constant for the stage (see
+ * StepPlan), so the survival factors come from the plan instead of exp(...)
+ * calls per individual.
+ *
+ * The stages are stepped one individual at a time by the framework, so the
+ * updates are per individual.
+ *
+ * @author William Stockhausen
+ */
+public final class CohortBiology {
+
+    private CohortBiology(){}
+
+    /**
+     * Tests whether an individual is in the stage transition window.
+     *
+     * @param ageInStage       - age in stage (d)
+     * @param minStageDuration - minimum stage duration (d)
+     * @param size             - size
+     * @param minSizeAtTrans   - minimum size at transition (Double.NEGATIVE_INFINITY for none)
+     * @return - true if the individual can transition
+     */
+    public static boolean inTransition(double ageInStage, double minStageDuration, double size, double minSizeAtTrans){
+        return (ageInStage>=minStageDuration)&&(size>=minSizeAtTrans);
+    }
+
+    /**
+     * Returns the number transitioning at the end of a time step, for a constant
+     * mortality rate: survivors of the previous number transitioning plus the new
+     * transitioners, if in the transition window.
+     *
+     * @param plan     - the step plan (with constant mortality)
+     * @param numTrans - number transitioning at the start of the step
+     * @param number   - number at the start of the step
+     * @param inTrans  - true if in the transition window
+     * @return - number transitioning at the end of the step
+     */
+    public static double numTransAfter(StepPlan plan, double numTrans, double number, boolean inTrans){
+        return inTrans ? numTrans*plan.survival+plan.transFraction*number*plan.totalLoss : numTrans;
+    }
+
+    /**
+     * Returns the number at the end of a time step, for a constant mortality rate.
+     *
+     * @param plan    - the step plan (with constant mortality)
+     * @param number  - number at the start of the step
+     * @param inTrans - true if in the transition window
+     * @return - number at the end of the step
+     */
+    public static double numberAfter(StepPlan plan, double number, boolean inTrans){
+        return number*(inTrans ? plan.totalSurvival : plan.survival);
+    }
+}
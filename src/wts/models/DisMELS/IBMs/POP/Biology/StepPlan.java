@@ -0,0 +1,207 @@
+/*
+ * StepPlan.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Biology;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class holding the coefficients used in a POP life stage's step() that depend
+ * only on the time step and on the stage parameters (and selected IBM functions),
+ * not on the state of the individual.
+ *
+ * A StepPlan is compiled once when the time step or the stage parameters change,
+ * so individuals only do the truly individual-dependent arithmetic each step.
+ * Instances are immutable, and getInstance(...) caches them by stage type, time
+ * step and inputs, so all individuals of a stage type stepping with the same dt
+ * share a single plan (across threads). The cache keeps the MAX_PLANS most
+ * recently used plans; an individual holding an evicted plan keeps using it.
+ *
+ * Rates that are not constant for the stage (e.g., temperature-dependent mortality)
+ * are passed to compile(...) as Double.NaN; the corresponding "has..." flag is then
+ * false and the stage must evaluate the associated IBM function per individual.
+ *
+ * @author William Stockhausen
+ */
+public final class StepPlan {
+
+    /** number of seconds in a day */
+    public static final double DAY_SECS = 86400.0;
+
+    /** time step (s) */
+    public final double dt;
+    /** time step (d) */
+    public final double dtDays;
+    /** sign of the time step (for backwards tracking) */
+    public final double sgnDt;
+
+    /** flag indicating a horizontal random walk is applied */
+    public final boolean hasRandomWalk;
+    /** scale for the horizontal random walk velocity: sqrt(horizRWP/|dt|) */
+    public final double rwScale;
+
+    /** flag indicating the mortality rate is constant */
+    public final boolean hasConstantMortality;
+    /** constant mortality rate (1/d) */
+    public final double mortalityRate;
+    /** stage transition rate (1/d) */
+    public final double stageTransRate;
+    /** survival over the time step from mortality only: exp(-dt*mortalityRate/DAY_SECS) */
+    public final double survival;
+    /** survival over the time step from mortality + stage transition: exp(-dt*(mortalityRate+stageTransRate)/DAY_SECS) */
+    public final double totalSurvival;
+    /** fraction of losses that are stage transitions: stageTransRate/(mortalityRate+stageTransRate) */
+    public final double transFraction;
+    /** fraction of the population lost over the time step: 1-totalSurvival */
+    public final double totalLoss;
+
+    /** flag indicating the growth rate is constant */
+    public final boolean hasConstantGrowth;
+    /** size increment over the time step for a constant growth rate */
+    public final double growthIncrement;
+
+    /** flag indicating the active (vertical or horizontal) swimming speed is constant */
+    public final boolean hasConstantSwimmingSpeed;
+    /** constant active swimming speed */
+    public final double swimmingSpeed;
+
+    /** max number of cached plans */
+    public static final int MAX_PLANS = 256;
+
+    /** shared plans, by stage type, time step and inputs (least recently used first) */
+    private static final Map<Key,StepPlan> plans = new LinkedHashMap<Key,StepPlan>(16,0.75f,true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,StepPlan> eldest){
+            return size()>MAX_PLANS;
+        }
+    };
+
+    /** cache key: stage type and the inputs of a plan */
+    private static final class Key {
+        private final String stageType;
+        private final double[] inputs;
+        private final int hash;
+
+        Key(String stageType, double... inputs){
+            this.stageType = stageType;
+            this.inputs    = inputs;
+            hash = 31*stageType.hashCode()+Arrays.hashCode(inputs);
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return stageType.equals(k.stageType)&&Arrays.equals(inputs,k.inputs);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+    }
+
+    /**
+     * Gets the shared step plan for a stage type, compiling it on first use.
+     * Individuals of the stage type with the same time step and inputs get the
+     * same instance.
+     *
+     * @param stageType      - name of the life stage type
+     * @param dt             - time step (s)
+     * @param horizRWP       - horizontal random walk parameter [m^2]/[s]
+     * @param mortalityRate  - constant mortality rate (1/d), or NaN if not constant
+     * @param stageTransRate - stage transition rate (1/d)
+     * @param growthRate     - constant growth rate (size units/d), or NaN if not constant
+     * @param swimmingSpeed  - constant active swimming speed, or NaN if not constant
+     *
+     * @return - the shared plan
+     */
+    public static StepPlan getInstance(String stageType,
+                                       double dt,
+                                       double horizRWP,
+                                       double mortalityRate,
+                                       double stageTransRate,
+                                       double growthRate,
+                                       double swimmingSpeed){
+        //the inputs are part of the key, so individuals of a stage type given different parameters get their own plans
+        Key key = new Key(stageType,dt,horizRWP,mortalityRate,stageTransRate,growthRate,swimmingSpeed);
+        synchronized(plans){
+            StepPlan p = plans.get(key);
+            if (p==null){
+                p = new StepPlan(dt,horizRWP,mortalityRate,stageTransRate,growthRate,swimmingSpeed);
+                plans.put(key,p);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Compiles a new (unshared) step plan. Stages use getInstance(...).
+     *
+     * @param dt             - time step (s)
+     * @param horizRWP       - horizontal random walk parameter [m^2]/[s]
+     * @param mortalityRate  - constant mortality rate (1/d), or NaN if not constant
+     * @param stageTransRate - stage transition rate (1/d)
+     * @param growthRate     - constant growth rate (size units/d), or NaN if not constant
+     * @param swimmingSpeed  - constant active swimming speed, or NaN if not constant
+     *
+     * @return - the compiled plan
+     */
+    public static StepPlan compile(double dt,
+                                   double horizRWP,
+                                   double mortalityRate,
+                                   double stageTransRate,
+                                   double growthRate,
+                                   double swimmingSpeed){
+        return new StepPlan(dt,horizRWP,mortalityRate,stageTransRate,growthRate,swimmingSpeed);
+    }
+
+    private StepPlan(double dt,
+                     double horizRWP,
+                     double mortalityRate,
+                     double stageTransRate,
+                     double growthRate,
+                     double swimmingSpeed){
+        this.dt     = dt;
+        this.dtDays = dt/DAY_SECS;
+        this.sgnDt  = Math.signum(dt);
+
+        this.hasRandomWalk = (horizRWP>0)&&(Math.abs(dt)>0);
+        this.rwScale       = hasRandomWalk ? Math.sqrt(horizRWP/Math.abs(dt)) : 0.0;
+
+        this.stageTransRate       = stageTransRate;
+        this.hasConstantMortality = !Double.isNaN(mortalityRate);
+        this.mortalityRate        = hasConstantMortality ? mortalityRate : 0.0;
+        if (hasConstantMortality){
+            double totRate = mortalityRate+stageTransRate;
+            survival      = Math.exp(-dt*mortalityRate/DAY_SECS);
+            totalSurvival = Math.exp(-dt*totRate/DAY_SECS);
+            transFraction = stageTransRate/totRate;
+            totalLoss     = 1-totalSurvival;
+        } else {
+            survival      = Double.NaN;
+            totalSurvival = Double.NaN;
+            transFraction = Double.NaN;
+            totalLoss     = Double.NaN;
+        }
+
+        this.hasConstantGrowth = !Double.isNaN(growthRate);
+        this.growthIncrement   = hasConstantGrowth ? growthRate*dt/DAY_SECS : 0.0;
+
+        this.hasConstantSwimmingSpeed = !Double.isNaN(swimmingSpeed);
+        this.swimmingSpeed            = hasConstantSwimmingSpeed ? swimmingSpeed : 0.0;
+    }
+
+    /**
+     * Tests whether the plan was compiled for the given time step.
+     *
+     * @param dt - time step (s)
+     * @return - true if the plan is valid for dt
+     */
+    public boolean isValidFor(double dt){
+        return this.dt==dt;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * ClassFileWriter.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files, used by FormulaCompiler to compile the
+ * formula IBM functions.
+ *
+ * Only what those classes need is supported: methods with straight-line
+ * code (no branches, so no stack map frames are needed), and the constant pool
+ * entries for them. The max stack depth of each method is tracked as the code
+ * is written. Classes are written as version 50 (Java 6) class files.
+ *
+ * Names are internal names (e.g., "java/lang/Double"), descriptors are JVM
+ * descriptors (e.g., "(D)D").
+ *
+ * @author William Stockhausen
+ */
+final class ClassFileWriter {
+
+    /** access flags */
+    public static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_PROTECTED = 0x0004,
+                            ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    /** opcodes */
+    public static final int ICONST_0 = 0x03, DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10, LDC2_W = 0x14,
+                            ALOAD = 0x19, DALOAD = 0x31, POP2 = 0x58,
+                            DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DREM = 0x73, DNEG = 0x77,
+                            DRETURN = 0xaf, RETURN = 0xb1,
+                            INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+    /** constant pool tags */
+    private static final int CP_UTF8 = 1, CP_DOUBLE = 6, CP_CLASS = 7, CP_METHOD = 10, CP_NAME_TYPE = 12;
+
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+
+    /** constant pool: entries (as bytes) and index by key */
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String,Integer> poolIndex = new HashMap<>(64);
+    private int poolCount = 1;
+
+    private final List<MethodWriter> methods = new ArrayList<>(8);
+
+    /**
+     * Creates a writer for a public class.
+     *
+     * @param name       - internal name of the class
+     * @param superName  - internal name of the superclass
+     * @param interfaces - internal names of the interfaces (may be empty)
+     */
+    public ClassFileWriter(String name, String superName, String... interfaces){
+        this.name       = name;
+        this.superName  = superName;
+        this.interfaces = interfaces;
+    }
+
+    /**
+     * @return - the internal name of the class
+     */
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * Adds a method. Its code is written with the returned MethodWriter.
+     *
+     * @param access    - access flags
+     * @param mname     - method name
+     * @param desc      - method descriptor
+     * @param maxLocals - number of local variable slots (including "this" and the arguments)
+     * @return - writer for the method's code
+     */
+    public MethodWriter addMethod(int access, String mname, String desc, int maxLocals){
+        MethodWriter mw = new MethodWriter(access,utf8(mname),utf8(desc),maxLocals);
+        methods.add(mw);
+        return mw;
+    }
+
+    /**
+     * Adds a public no-argument constructor calling the superclass's.
+     */
+    public void addDefaultConstructor(){
+        MethodWriter mw = addMethod(ACC_PUBLIC,"<init>","()V",1);
+        mw.aload(0);
+        mw.invoke(INVOKESPECIAL,superName,"<init>","()V");
+        mw.op(RETURN);
+    }
+
+    /**
+     * @return - the class file
+     */
+    public byte[] toByteArray(){
+        int thisIdx  = classRef(name);
+        int superIdx = classRef(superName);
+        int[] itfIdx = new int[interfaces.length];
+        for (int i=0;i<interfaces.length;i++) itfIdx[i] = classRef(interfaces[i]);
+        int codeIdx = utf8("Code");
+        ByteArrayOutputStream b = new ByteArrayOutputStream(1024);
+        DataOutputStream d = new DataOutputStream(b);
+        try {
+            d.writeInt(0xCAFEBABE);
+            d.writeShort(0);  //minor version
+            d.writeShort(50); //major version (Java 6)
+            d.writeShort(poolCount);
+            pool.writeTo(d);
+            d.writeShort(ACC_PUBLIC|ACC_FINAL|ACC_SUPER);
+            d.writeShort(thisIdx);
+            d.writeShort(superIdx);
+            d.writeShort(itfIdx.length);
+            for (int i: itfIdx) d.writeShort(i);
+            d.writeShort(0);//no fields
+            d.writeShort(methods.size());
+            for (MethodWriter mw: methods) mw.write(d,codeIdx);
+            d.writeShort(0);//no class attributes
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return b.toByteArray();
+    }
+
+    //constant pool entries
+
+    private int entry(String key){
+        Integer i = poolIndex.get(key);
+        return (i==null) ? 0 : i;
+    }
+
+    private int add(String key, int size){
+        int i = poolCount;
+        poolIndex.put(key,i);
+        poolCount += size;
+        return i;
+    }
+
+    private int utf8(String s){
+        String key = "U"+s;
+        int i = entry(key);
+        if (i>0) return i;
+        try {
+            poolOut.writeByte(CP_UTF8);
+            poolOut.writeUTF(s);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return add(key,1);
+    }
+
+    private int classRef(String cname){
+        String key = "C"+cname;
+        int i = entry(key);
+        if (i>0) return i;
+        int n = utf8(cname);
+        try {
+            poolOut.writeByte(CP_CLASS);
+            poolOut.writeShort(n);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return add(key,1);
+    }
+
+    private int nameAndType(String n, String desc){
+        String key = "N"+n+":"+desc;
+        int i = entry(key);
+        if (i>0) return i;
+        int ni = utf8(n), di = utf8(desc);
+        try {
+            poolOut.writeByte(CP_NAME_TYPE);
+            poolOut.writeShort(ni);
+            poolOut.writeShort(di);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return add(key,1);
+    }
+
+    private int memberRef(int tag, String owner, String n, String desc){
+        String key = tag+owner+"."+n+":"+desc;
+        int i = entry(key);
+        if (i>0) return i;
+        int ci = classRef(owner), nt = nameAndType(n,desc);
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(ci);
+            poolOut.writeShort(nt);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return add(key,1);
+    }
+
+    private int doubleConst(double v){
+        String key = "D"+Double.doubleToRawLongBits(v);
+        int i = entry(key);
+        if (i>0) return i;
+        try {
+            poolOut.writeByte(CP_DOUBLE);
+            poolOut.writeLong(Double.doubleToRawLongBits(v));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return add(key,2);//doubles take two entries
+    }
+
+    /** stack slots taken by a value of the type starting at desc[k] */
+    private static int slots(char c){
+        return ((c=='D')||(c=='J')) ? 2 : ((c=='V') ? 0 : 1);
+    }
+
+    /** stack slots taken by the arguments of a method descriptor */
+    private static int argSlots(String desc){
+        int n = 0;
+        int k = 1;
+        while (desc.charAt(k)!=')'){
+            char c = desc.charAt(k);
+            n += slots(c);
+            if (c=='L') k = desc.indexOf(';',k);
+            else if (c=='['){
+                while (desc.charAt(k)=='[') k++;
+                if (desc.charAt(k)=='L') k = desc.indexOf(';',k);
+            }
+            k++;
+        }
+        return n;
+    }
+
+    /**
+     * Writer for the (straight-line) code of a method.
+     */
+    public final class MethodWriter {
+
+        private final int access, nameIdx, descIdx, maxLocals;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream(64);
+        private int stack = 0, maxStack = 0;
+
+        private MethodWriter(int access, int nameIdx, int descIdx, int maxLocals){
+            this.access    = access;
+            this.nameIdx   = nameIdx;
+            this.descIdx   = descIdx;
+            this.maxLocals = maxLocals;
+        }
+
+        private void push(int n){
+            stack += n;
+            if (stack>maxStack) maxStack = stack;
+        }
+
+        private void u1(int b){
+            code.write(b);
+        }
+
+        private void u2(int s){
+            code.write((s>>>8)&0xff);
+            code.write(s&0xff);
+        }
+
+        /**
+         * Writes an instruction without operands, other than those for which
+         * there are specific methods below.
+         *
+         * @param opcode - the opcode
+         * @return - this writer
+         */
+        public MethodWriter op(int opcode){
+            switch (opcode){
+                case DCONST_0: case DCONST_1: push(2); break;
+                case DADD: case DSUB: case DMUL: case DDIV: case DREM: push(-2); break;
+                case DNEG: case RETURN: break;
+                case DALOAD: push(0); break;//arrayref,index -> double
+                case POP2: case DRETURN: push(-2); break;
+                default: throw new IllegalArgumentException("Unsupported opcode "+opcode);
+            }
+            u1(opcode);
+            return this;
+        }
+
+        /**
+         * Pushes an int constant (0-127).
+         */
+        public MethodWriter iconst(int v){
+            if ((v<0)||(v>127)) throw new IllegalArgumentException("Unsupported int constant "+v);
+            if (v<=5) {u1(ICONST_0+v);} else {u1(BIPUSH); u1(v);}
+            push(1);
+            return this;
+        }
+
+        /**
+         * Pushes a double constant.
+         */
+        public MethodWriter dconst(double v){
+            if (Double.doubleToRawLongBits(v)==0L) {u1(DCONST_0);}
+            else if (v==1.0) {u1(DCONST_1);}
+            else {u1(LDC2_W); u2(doubleConst(v));}
+            push(2);
+            return this;
+        }
+
+        /**
+         * Loads a reference from a local variable slot.
+         */
+        public MethodWriter aload(int slot){
+            if (slot<=3) u1(0x2a+slot); else {u1(ALOAD); u1(slot);}
+            push(1);
+            return this;
+        }
+
+        /**
+         * Invokes a method.
+         *
+         * @param opcode - INVOKEVIRTUAL, INVOKESPECIAL or INVOKESTATIC
+         * @param owner  - internal name of the owner class
+         * @param mname  - method name
+         * @param desc   - method descriptor
+         */
+        public MethodWriter invoke(int opcode, String owner, String mname, String desc){
+            int args = argSlots(desc);
+            int ret  = slots(desc.charAt(desc.indexOf(')')+1));
+            push(ret-args-((opcode==INVOKESTATIC) ? 0 : 1));
+            u1(opcode);
+            u2(memberRef(CP_METHOD,owner,mname,desc));
+            return this;
+        }
+
+        /**
+         * @return - the max stack depth (slots) of the code written so far
+         */
+        int getMaxStack(){
+            return maxStack;
+        }
+
+        private void write(DataOutputStream d, int codeIdx) throws IOException {
+            byte[] c = code.toByteArray();
+            d.writeShort(access);
+            d.writeShort(nameIdx);
+            d.writeShort(descIdx);
+            d.writeShort(1);//Code attribute
+            d.writeShort(codeIdx);
+            d.writeInt(12+c.length);
+            d.writeShort(maxStack);
+            d.writeShort(maxLocals);
+            d.writeInt(c.length);
+            d.write(c);
+            d.writeShort(0);//no exception table
+            d.writeShort(0);//no code attributes
+        }
+    }
+}
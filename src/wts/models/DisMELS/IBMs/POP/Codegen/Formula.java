@@ -0,0 +1,21 @@
+/*
+ * Formula.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Codegen;
+
+/**
+ * Interface for formulas compiled by FormulaCompiler.
+ *
+ * @author William Stockhausen
+ */
+public interface Formula {
+
+    /**
+     * Evaluates the formula.
+     *
+     * @param x - values of the variables, in the order given to FormulaCompiler.compile(...)
+     * @return - the value of the formula
+     */
+    public double evaluate(double[] x);
+}
@@ -0,0 +1,258 @@
+/*
+ * FormulaCompiler.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Codegen;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import wts.models.DisMELS.IBMs.POP.Codegen.ClassFileWriter.MethodWriter;
+
+/**
+ * Class compiling arithmetic formulas over named variables to JVM bytecode.
+ *
+ * A formula is parsed once and compiled to a class implementing Formula, whose
+ * evaluate(double[] x) does the arithmetic directly on the variable values (no
+ * interpretation), so it runs as fast as the same expression written in Java.
+ *
+ * Formulas are written in the usual infix notation:
+ * <ul>
+ *  <li> numbers (e.g., 2, 0.5, 1.2e-3) and the constants pi and e
+ *  <li> variables, by name
+ *  <li> operators + - * / ^ (power, right-associative), unary -, and parentheses
+ *  <li> functions exp, log (natural), log10, sqrt, abs, sin, cos, tan, atan, tanh,
+ *       floor, ceil, signum (one argument) and pow, min, max, atan2 (two arguments)
+ * </ul>
+ * For example, "0.0256*exp(0.1*temperature)" or "max(0, 0.1+0.02*(temperature-4))".
+ *
+ * Compiled formulas are thread-safe. The most recently used MAX_CACHED of them
+ * are cached by formula and variables, so functions with the same formula share
+ * one class. Each class is defined by its own class loader, so a formula's class
+ * is unloaded once it has left the cache and is no longer used.
+ *
+ * @author William Stockhausen
+ */
+public final class FormulaCompiler {
+
+    private static final String FORMULA = "wts/models/DisMELS/IBMs/POP/Codegen/Formula";
+    private static final String MATH    = "java/lang/Math";
+
+    /** functions of one argument (all in java.lang.Math) */
+    private static final String[] FUNCTIONS_1 = {"exp","log","log10","sqrt","abs","sin","cos","tan",
+                                                 "atan","tanh","floor","ceil","signum"};
+    /** functions of two arguments (all in java.lang.Math) */
+    private static final String[] FUNCTIONS_2 = {"pow","min","max","atan2"};
+
+    /** maximum number of compiled formulas cached */
+    static final int MAX_CACHED = 64;
+
+    /** compiled formulas, by formula and variables, least recently used first */
+    private static final Map<String,Formula> formulas = new LinkedHashMap<String,Formula>(16,0.75f,true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Formula> eldest){
+            return size()>MAX_CACHED;
+        }
+    };
+    /** number of formula classes compiled (for their names) */
+    private static long numCompiled = 0;
+
+    private FormulaCompiler(){}
+
+    /**
+     * Compiles a formula.
+     *
+     * @param formula   - the formula
+     * @param variables - names of the variables (their order is that of the values given to evaluate(...))
+     * @return - the compiled formula
+     * @throws IllegalArgumentException if the formula cannot be parsed
+     */
+    public static Formula compile(String formula, String... variables){
+        String key = formula.trim()+"|"+Arrays.toString(variables);
+        synchronized (formulas){
+            Formula f = formulas.get(key);
+            if (f==null){
+                ClassFileWriter cw = new ClassFileWriter("wts/models/DisMELS/IBMs/POP/Codegen/Generated/Formula"+numCompiled,
+                                                         "java/lang/Object",FORMULA);
+                cw.addDefaultConstructor();
+                writeEvaluate(cw,formula,variables);
+                numCompiled++;
+                try {
+                    GeneratedClassLoader loader = new GeneratedClassLoader(Formula.class.getClassLoader());
+                    f = (Formula) loader.define(cw).getConstructor().newInstance();
+                } catch (ReflectiveOperationException ex) {
+                    throw new IllegalStateException("Could not instantiate compiled formula '"+formula+"'",ex);
+                }
+                formulas.put(key,f);
+            }
+            return f;
+        }
+    }
+
+    /**
+     * Adds the evaluate(double[]) method computing a formula to a class.
+     *
+     * @param cw        - writer for the class
+     * @param formula   - the formula
+     * @param variables - names of the variables
+     * @return - writer for the method's code
+     * @throws IllegalArgumentException if the formula cannot be parsed
+     */
+    static MethodWriter writeEvaluate(ClassFileWriter cw, String formula, String... variables){
+        MethodWriter mw = cw.addMethod(ClassFileWriter.ACC_PUBLIC,"evaluate","([D)D",2);
+        new Parser(formula,variables,mw).parse();
+        mw.op(ClassFileWriter.DRETURN);
+        return mw;
+    }
+
+    /**
+     * Recursive descent parser emitting the code for the formula as it parses.
+     */
+    private static final class Parser {
+        private final String s;
+        private final String[] variables;
+        private final MethodWriter mw;
+        private int p = 0;
+
+        Parser(String s, String[] variables, MethodWriter mw){
+            this.s = s;
+            this.variables = variables;
+            this.mw = mw;
+        }
+
+        void parse(){
+            expression();
+            skipSpace();
+            if (p<s.length()) throw error("unexpected '"+s.charAt(p)+"'");
+        }
+
+        private IllegalArgumentException error(String msg){
+            return new IllegalArgumentException("Error in formula '"+s+"' at position "+(p+1)+": "+msg);
+        }
+
+        private void skipSpace(){
+            while ((p<s.length())&&Character.isWhitespace(s.charAt(p))) p++;
+        }
+
+        private boolean accept(char c){
+            skipSpace();
+            if ((p<s.length())&&(s.charAt(p)==c)) {p++; return true;}
+            return false;
+        }
+
+        private void expect(char c){
+            if (!accept(c)) throw error("expected '"+c+"'");
+        }
+
+        //expression := term (('+'|'-') term)*
+        private void expression(){
+            term();
+            while (true){
+                if (accept('+')) {term(); mw.op(ClassFileWriter.DADD);} else
+                if (accept('-')) {term(); mw.op(ClassFileWriter.DSUB);} else
+                return;
+            }
+        }
+
+        //term := unary (('*'|'/') unary)*
+        private void term(){
+            unary();
+            while (true){
+                if (accept('*')) {unary(); mw.op(ClassFileWriter.DMUL);} else
+                if (accept('/')) {unary(); mw.op(ClassFileWriter.DDIV);} else
+                return;
+            }
+        }
+
+        //unary := ('-'|'+') unary | power
+        private void unary(){
+            if (accept('-')) {unary(); mw.op(ClassFileWriter.DNEG);} else
+            if (accept('+')) {unary();} else
+            power();
+        }
+
+        //power := primary ('^' unary)?
+        private void power(){
+            primary();
+            if (accept('^')) {
+                unary();
+                mw.invoke(ClassFileWriter.INVOKESTATIC,MATH,"pow","(DD)D");
+            }
+        }
+
+        //primary := number | constant | variable | function '(' args ')' | '(' expression ')'
+        private void primary(){
+            skipSpace();
+            if (p>=s.length()) throw error("unexpected end of formula");
+            char c = s.charAt(p);
+            if (accept('(')) {
+                expression();
+                expect(')');
+            } else
+            if (Character.isDigit(c)||(c=='.')) {
+                number();
+            } else
+            if (Character.isLetter(c)||(c=='_')) {
+                int start = p;
+                while ((p<s.length())&&(Character.isLetterOrDigit(s.charAt(p))||(s.charAt(p)=='_'))) p++;
+                String name = s.substring(start,p);
+                if (accept('(')) {
+                    function(name,start);
+                } else {
+                    name(name,start);
+                }
+            } else {
+                throw error("unexpected '"+c+"'");
+            }
+        }
+
+        private void number(){
+            int start = p;
+            while ((p<s.length())&&(Character.isDigit(s.charAt(p))||(s.charAt(p)=='.'))) p++;
+            if ((p<s.length())&&((s.charAt(p)=='e')||(s.charAt(p)=='E'))){
+                int q = p+1;
+                if ((q<s.length())&&((s.charAt(q)=='+')||(s.charAt(q)=='-'))) q++;
+                if ((q<s.length())&&Character.isDigit(s.charAt(q))){
+                    p = q;
+                    while ((p<s.length())&&Character.isDigit(s.charAt(p))) p++;
+                }
+            }
+            try {
+                mw.dconst(Double.parseDouble(s.substring(start,p)));
+            } catch (NumberFormatException ex) {
+                p = start;
+                throw error("bad number");
+            }
+        }
+
+        private void name(String name, int start){
+            for (int i=0;i<variables.length;i++){
+                if (variables[i].equals(name)){
+                    //x[i]
+                    mw.aload(1).iconst(i).op(ClassFileWriter.DALOAD);
+                    return;
+                }
+            }
+            if (name.equals("pi")) {mw.dconst(Math.PI); return;}
+            if (name.equals("e"))  {mw.dconst(Math.E); return;}
+            p = start;
+            throw error("unknown variable '"+name+"' (variables are "+Arrays.toString(variables)+")");
+        }
+
+        private void function(String name, int start){
+            int nArgs = Arrays.asList(FUNCTIONS_1).contains(name) ? 1 :
+                        (Arrays.asList(FUNCTIONS_2).contains(name) ? 2 : 0);
+            if (nArgs==0) {
+                p = start;
+                throw error("unknown function '"+name+"'");
+            }
+            expression();
+            if (nArgs==2) {
+                expect(',');
+                expression();
+            }
+            expect(')');
+            mw.invoke(ClassFileWriter.INVOKESTATIC,MATH,name,(nArgs==1) ? "(D)D" : "(DD)D");
+        }
+    }
+}
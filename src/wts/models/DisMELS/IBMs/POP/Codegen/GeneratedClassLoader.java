@@ -0,0 +1,38 @@
+/*
+ * GeneratedClassLoader.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Codegen;
+
+/**
+ * Class loader for the formula classes generated by FormulaCompiler. Each
+ * class gets its own loader, so it can be unloaded when it is no longer used.
+ *
+ * The parent loader must be able to load the classes the generated ones refer
+ * to (their superclass, interfaces and the classes they call), so it is normally
+ * the loader of the class requesting the generated code.
+ *
+ * @author William Stockhausen
+ */
+final class GeneratedClassLoader extends ClassLoader {
+
+    /**
+     * Creates a loader.
+     *
+     * @param parent - parent class loader
+     */
+    public GeneratedClassLoader(ClassLoader parent){
+        super(parent);
+    }
+
+    /**
+     * Defines the class written by a ClassFileWriter.
+     *
+     * @param cw - the writer
+     * @return - the class
+     */
+    public synchronized Class<?> define(ClassFileWriter cw){
+        byte[] b = cw.toByteArray();
+        return defineClass(cw.getName().replace('/','.'),b,0,b.length);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * EnvironmentalFieldRegistry.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Environment;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.NewAttributes;
+
+/**
+ * Registry of the time-varying ROMS fields each POP life stage samples,
+ * and at what sampling interval.
+ *
+ * A run declares the fields for a stage using properties of the form
+ * <pre>
+ *   LarvaStage.envFields=temperature,romsvar1
+ *   LarvaStage.envSamplingInterval=3600
+ * </pre>
+ * where the prefix is the simple name of the stage class, the fields are
+ * chosen from temperature, salinity and romsvar1..romsvar5, and the sampling
+ * interval is the min model time (s) between samples (0 = every step).
+ * The properties are read from the file given by the system property
+ * "wts.models.DisMELS.IBMs.POP.envFieldsFile" (if any), and can be overridden
+ * by system properties with the prefix "wts.models.DisMELS.IBMs.POP." (e.g.,
+ * -Dwts.models.DisMELS.IBMs.POP.LarvaStage.envFields=temperature).
+ * Stages without a declaration sample all fields every step. Bathymetry is
+ * time-invariant and is always carried. Some IBM functions use the fields as
+ * covariates (e.g., temperature-dependent mortality, formulas): a stage refuses
+ * (IllegalStateException in setParameters) to use a function that reads a field
+ * it does not sample.
+ *
+ * The field set for a stage determines the attributes carried by the stage's
+ * attributes class, so it is fixed the first time it is requested. Use configure(...)
+ * before any instance of the stage (or its attributes) is created.
+ *
+ * @author William Stockhausen
+ */
+public class EnvironmentalFieldRegistry {
+
+    /** name for temperature field */
+    public static final String FIELD_temperature = "temperature";
+    /** name for salinity field */
+    public static final String FIELD_salinity    = "salinity";
+    /** name for generic ROMS field 1 */
+    public static final String FIELD_romsvar1    = "romsvar1";
+    /** name for generic ROMS field 2 */
+    public static final String FIELD_romsvar2    = "romsvar2";
+    /** name for generic ROMS field 3 */
+    public static final String FIELD_romsvar3    = "romsvar3";
+    /** name for generic ROMS field 4 */
+    public static final String FIELD_romsvar4    = "romsvar4";
+    /** name for generic ROMS field 5 */
+    public static final String FIELD_romsvar5    = "romsvar5";
+
+    /** all field names, in NewAttributes order */
+    public static final List<String> ALL_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            FIELD_temperature,FIELD_salinity,
+            FIELD_romsvar1,FIELD_romsvar2,FIELD_romsvar3,FIELD_romsvar4,FIELD_romsvar5));
+
+    /** prefix for system properties */
+    public static final String SYSPROP_PREFIX = "wts.models.DisMELS.IBMs.POP.";
+    /** system property giving the path to the properties file */
+    public static final String SYSPROP_FILE   = SYSPROP_PREFIX+"envFieldsFile";
+    /** suffix for property declaring the fields */
+    public static final String PROP_FIELDS    = ".envFields";
+    /** suffix for property declaring the sampling interval */
+    public static final String PROP_INTERVAL  = ".envSamplingInterval";
+
+    /** attribute keys for the time-varying fields */
+    private static final Set<String> envAttributeKeys = new LinkedHashSet<>(Arrays.asList(
+            NewAttributes.PROP_temperature,NewAttributes.PROP_salinity,
+            NewAttributes.PROP_romsvar1,NewAttributes.PROP_romsvar2,NewAttributes.PROP_romsvar3,
+            NewAttributes.PROP_romsvar4,NewAttributes.PROP_romsvar5));
+
+    /** field sets by stage class name */
+    private static final Map<String,EnvironmentalFieldSet> mapFieldSets = new HashMap<>(8);
+    /** declarations read from file/system properties */
+    private static Properties props = null;
+
+    private static final Logger logger = Logger.getLogger(EnvironmentalFieldRegistry.class.getName());
+
+    /**
+     * Declares the fields sampled by a stage. This must be called before the
+     * field set for the stage is first requested.
+     *
+     * @param stageClass       - the life stage class
+     * @param fields           - names of the fields to sample
+     * @param samplingInterval - min model time (s) between samples (0 = every step)
+     *
+     * @throws IllegalArgumentException - if a field name is not recognized
+     * @throws IllegalStateException    - if the field set for the stage is already in use
+     */
+    public static synchronized void configure(Class<?> stageClass, Collection<String> fields, double samplingInterval){
+        String name = stageClass.getName();
+        if (mapFieldSets.containsKey(name))
+            throw new IllegalStateException("Environmental fields for "+name+" are already in use.");
+        mapFieldSets.put(name,new EnvironmentalFieldSet(checkFields(fields),samplingInterval));
+    }
+
+    /**
+     * Gets the set of fields sampled by a stage.
+     *
+     * @param stageClass - the life stage class
+     * @return - the field set
+     */
+    public static synchronized EnvironmentalFieldSet getFieldSet(Class<?> stageClass){
+        String name = stageClass.getName();
+        EnvironmentalFieldSet fs = mapFieldSets.get(name);
+        if (fs==null){
+            fs = createFromProperties(stageClass.getSimpleName());
+            mapFieldSets.put(name,fs);
+            logger.info("Environmental fields for "+stageClass.getSimpleName()+": "+fs);
+        }
+        return fs;
+    }
+
+    /**
+     * Tests whether the attribute key identifies a time-varying ROMS field.
+     *
+     * @param key - attribute key
+     * @return - true if the key identifies a time-varying field
+     */
+    public static boolean isEnvironmentalAttribute(String key){
+        return envAttributeKeys.contains(key);
+    }
+
+    private static EnvironmentalFieldSet createFromProperties(String stageName){
+        if (props==null) props = loadProperties();
+        String strFields   = System.getProperty(SYSPROP_PREFIX+stageName+PROP_FIELDS,
+                                                props.getProperty(stageName+PROP_FIELDS));
+        String strInterval = System.getProperty(SYSPROP_PREFIX+stageName+PROP_INTERVAL,
+                                                props.getProperty(stageName+PROP_INTERVAL));
+        Set<String> fields = new LinkedHashSet<>(ALL_FIELDS);
+        if (strFields!=null){
+            fields.clear();
+            for (String f: strFields.split(",")) if (!f.trim().isEmpty()) fields.add(f.trim());
+        }
+        double interval = 0.0;
+        if (strInterval!=null) interval = Double.parseDouble(strInterval.trim());
+        return new EnvironmentalFieldSet(checkFields(fields),interval);
+    }
+
+    private static Set<String> checkFields(Collection<String> fields){
+        Set<String> s = new LinkedHashSet<>(fields);
+        for (String f: s){
+            if (!ALL_FIELDS.contains(f))
+                throw new IllegalArgumentException("Unrecognized environmental field '"+f+"'. "+
+                                                   "Valid fields are "+ALL_FIELDS+".");
+        }
+        return s;
+    }
+
+    private static Properties loadProperties(){
+        Properties p = new Properties();
+        String fn = System.getProperty(SYSPROP_FILE);
+        if (fn!=null){
+            try (InputStream is = new FileInputStream(fn)) {
+                p.load(is);
+            } catch (IOException ex) {
+                logger.warning("Could not read environmental field declarations from "+fn+": "+ex.getMessage());
+            }
+        }
+        return p;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * EnvironmentalFieldSet.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Environment;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import wts.models.DisMELS.IBMs.POP.NewAttributes;
+
+/**
+ * Class identifying the (time-varying) ROMS fields a POP life stage samples
+ * along an individual's track, and how often they are sampled.
+ *
+ * Fields that are not in the set are not interpolated in step(), and are not
+ * carried as attributes (so they are not stored, cloned or written to output).
+ * Instances are immutable and obtained from EnvironmentalFieldRegistry.
+ * A stage checks with require(...) that the fields read by its IBM functions
+ * are in its set, so that no function sees a stale value.
+ *
+ * @author William Stockhausen
+ */
+public final class EnvironmentalFieldSet {
+
+    /** flag to sample temperature */
+    public final boolean sampleTemperature;
+    /** flag to sample salinity */
+    public final boolean sampleSalinity;
+    /** flag to sample romsvar1 */
+    public final boolean sampleRomsvar1;
+    /** flag to sample romsvar2 */
+    public final boolean sampleRomsvar2;
+    /** flag to sample romsvar3 */
+    public final boolean sampleRomsvar3;
+    /** flag to sample romsvar4 */
+    public final boolean sampleRomsvar4;
+    /** flag to sample romsvar5 */
+    public final boolean sampleRomsvar5;
+    /** min model time (s) between samples (0 = every step) */
+    public final double samplingInterval;
+
+    /** names of the fields in the set */
+    private final Set<String> fields;
+    /** attribute keys for the fields in the set, in NewAttributes order */
+    private final Set<String> keys;
+
+    /**
+     * Creates a new field set.
+     *
+     * @param fields           - names of fields to sample (see EnvironmentalFieldRegistry.FIELD_...)
+     * @param samplingInterval - min model time (s) between samples (0 = every step)
+     */
+    EnvironmentalFieldSet(Set<String> fields, double samplingInterval){
+        sampleTemperature = fields.contains(EnvironmentalFieldRegistry.FIELD_temperature);
+        sampleSalinity    = fields.contains(EnvironmentalFieldRegistry.FIELD_salinity);
+        sampleRomsvar1    = fields.contains(EnvironmentalFieldRegistry.FIELD_romsvar1);
+        sampleRomsvar2    = fields.contains(EnvironmentalFieldRegistry.FIELD_romsvar2);
+        sampleRomsvar3    = fields.contains(EnvironmentalFieldRegistry.FIELD_romsvar3);
+        sampleRomsvar4    = fields.contains(EnvironmentalFieldRegistry.FIELD_romsvar4);
+        sampleRomsvar5    = fields.contains(EnvironmentalFieldRegistry.FIELD_romsvar5);
+        this.samplingInterval = Math.max(0.0,samplingInterval);
+        this.fields = Collections.unmodifiableSet(new LinkedHashSet<>(fields));
+
+        Set<String> k = new LinkedHashSet<>(16);
+        if (sampleTemperature) k.add(NewAttributes.PROP_temperature);
+        if (sampleSalinity)    k.add(NewAttributes.PROP_salinity);
+        if (sampleRomsvar1)    k.add(NewAttributes.PROP_romsvar1);
+        if (sampleRomsvar2)    k.add(NewAttributes.PROP_romsvar2);
+        if (sampleRomsvar3)    k.add(NewAttributes.PROP_romsvar3);
+        if (sampleRomsvar4)    k.add(NewAttributes.PROP_romsvar4);
+        if (sampleRomsvar5)    k.add(NewAttributes.PROP_romsvar5);
+        keys = Collections.unmodifiableSet(k);
+    }
+
+    /**
+     * Gets the attribute keys for the fields in the set.
+     *
+     * @return - unmodifiable set of attribute keys
+     */
+    public Set<String> getAttributeKeys(){
+        return keys;
+    }
+
+    /**
+     * Tests whether the attribute identified by the key is in the set.
+     * Keys that do not identify a time-varying ROMS field are always "in" the set.
+     *
+     * @param key - attribute key
+     * @return - true if the attribute should be carried
+     */
+    public boolean includesAttribute(String key){
+        if (!EnvironmentalFieldRegistry.isEnvironmentalAttribute(key)) return true;
+        return keys.contains(key);
+    }
+
+    /**
+     * Checks that the fields read by a consumer (e.g., an IBM function) are in
+     * the set. Names that do not identify a time-varying ROMS field (e.g., the
+     * formula covariates dt, size and depth) are ignored.
+     *
+     * @param fields   - names of the fields read (see EnvironmentalFieldRegistry.FIELD_...)
+     * @param consumer - description of the consumer, for the error message
+     * @throws IllegalStateException - if a field read by the consumer is not sampled
+     */
+    public void require(Collection<String> fields, String consumer){
+        for (String f: fields){
+            if (EnvironmentalFieldRegistry.ALL_FIELDS.contains(f)&&!this.fields.contains(f))
+                throw new IllegalStateException(consumer+" uses "+f+
+                        ", which is not sampled (fields sampled: "+this.fields+
+                        "). Add it to the stage's envFields (see EnvironmentalFieldRegistry).");
+        }
+    }
+
+    /**
+     * Tests whether the fields should be sampled at the given time.
+     *
+     * @param lastSampleTime - model time (s) fields were last sampled (NaN if never)
+     * @param time           - current model time (s)
+     * @return - true if the fields should be sampled
+     */
+    public boolean isSamplingDue(double lastSampleTime, double time){
+        return Double.isNaN(lastSampleTime)||
+               (samplingInterval<=0)||
+               (Math.abs(time-lastSampleTime)>=samplingInterval);
+    }
+
+    @Override
+    public String toString(){
+        return keys.toString()+" every "+samplingInterval+" s";
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * ExposureAccumulator.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Environment;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import wts.models.DisMELS.framework.LifeStageAttributesInterface;
+
+/**
+ * Class accumulating the environmental exposure of an individual along its
+ * track: time (d), degree-days above a base temperature, the min, max and
+ * time-weighted mean of its temperature and depth, and the time (d) spent in
+ * each depth and temperature bin.
+ *
+ * A life stage adds each step through add(...), so the exposure is known without
+ * writing the individual's temperature and depth at every step. The accumulated
+ * values are carried as attributes (see NewAttributes): the stage writes them
+ * with writeTo(...) and reads them back with readFrom(...), so they are output
+ * with the other attributes and carried across stage transitions (which copy
+ * the attributes through setInfoFromIndividual(...)).
+ *
+ * The accumulators are enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.exposure" to true. The degree-day base (deg C)
+ * and the bin boundaries (comma-separated, increasing) are given by the system
+ * properties
+ * <ul>
+ *  <li> "wts.models.DisMELS.IBMs.POP.exposure.degreeDayBase" (default 0)
+ *  <li> "wts.models.DisMELS.IBMs.POP.exposure.depthBins" (m, default "25,50,100,200,400")
+ *  <li> "wts.models.DisMELS.IBMs.POP.exposure.temperatureBins" (deg C, default "2,4,6,8,10")
+ * </ul>
+ * n boundaries define n+1 bins, the first and last open-ended. The properties
+ * are read once, when the accumulators are first used. The configuration can
+ * instead be set explicitly (e.g., in tests) with configure(...) before then.
+ * It fixes the attribute keys of the life stages, so it cannot be changed once
+ * it is in use.
+ *
+ * @author William Stockhausen
+ */
+public final class ExposureAccumulator {
+
+    /** system property enabling the accumulators */
+    public static final String SYSPROP_ENABLE = "wts.models.DisMELS.IBMs.POP.exposure";
+    /** system property giving the degree-day base temperature (deg C) */
+    public static final String SYSPROP_BASE = "wts.models.DisMELS.IBMs.POP.exposure.degreeDayBase";
+    /** system property giving the depth bin boundaries (m) */
+    public static final String SYSPROP_DEPTH_BINS = "wts.models.DisMELS.IBMs.POP.exposure.depthBins";
+    /** system property giving the temperature bin boundaries (deg C) */
+    public static final String SYSPROP_TEMPERATURE_BINS = "wts.models.DisMELS.IBMs.POP.exposure.temperatureBins";
+
+    /** attribute key for the exposure time (d) */
+    public static final String PROP_days        = "exposure days";
+    /** attribute key for the degree-days */
+    public static final String PROP_degreeDays  = "degree-days";
+    /** attribute key for the min temperature */
+    public static final String PROP_minTemperature  = "min temperature deg C";
+    /** attribute key for the max temperature */
+    public static final String PROP_maxTemperature  = "max temperature deg C";
+    /** attribute key for the mean temperature */
+    public static final String PROP_meanTemperature = "mean temperature deg C";
+    /** attribute key for the min depth */
+    public static final String PROP_minDepth    = "min depth (m)";
+    /** attribute key for the max depth */
+    public static final String PROP_maxDepth    = "max depth (m)";
+    /** attribute key for the mean depth */
+    public static final String PROP_meanDepth   = "mean depth (m)";
+
+    /** indices into the state */
+    private static final int DAYS = 0, DEGREE_DAYS = 1, T_MIN = 2, T_MAX = 3, T_SUM = 4,
+                             D_MIN = 5, D_MAX = 6, D_SUM = 7, BINS = 8;
+
+    private static final Logger logger = Logger.getLogger(ExposureAccumulator.class.getName());
+
+    /** flag indicating the configuration has been read */
+    private static boolean configured = false;
+    private static boolean enabled = false;
+    private static double base = 0.0;
+    private static double[] depthBins = new double[0];
+    private static double[] temperatureBins = new double[0];
+    /** attribute keys, in state order after the min/max/mean values */
+    private static String[] depthKeys = new String[0];
+    private static String[] temperatureKeys = new String[0];
+    private static Set<String> keys = Collections.emptySet();
+
+    /**
+     * The state: time, degree-days, min/max/time-weighted sum of temperature and
+     * of depth, then the times in the depth bins and in the temperature bins.
+     */
+    private final double[] s;
+
+    /**
+     * Returns whether the accumulators are enabled.
+     *
+     * @return - true if enabled
+     */
+    public static boolean isEnabled(){
+        configure();
+        return enabled;
+    }
+
+    /**
+     * Gets the attribute keys for the accumulated values (empty if the
+     * accumulators are not enabled).
+     *
+     * @return - unmodifiable set of attribute keys
+     */
+    public static Set<String> getAttributeKeys(){
+        configure();
+        return keys;
+    }
+
+    /**
+     * Gets the attribute values for an individual with no exposure.
+     *
+     * @return - map of attribute values (as Doubles), by key
+     */
+    public static Map<String,Object> getDefaultValues(){
+        configure();
+        Map<String,Object> values = new HashMap<>(2*keys.size());
+        new ExposureAccumulator().writeTo(values);
+        return values;
+    }
+
+    /**
+     * Sets the configuration explicitly, instead of reading it from the system
+     * properties. It must be called before the accumulators (or the life stage
+     * attributes) are first used; calling it again with the same configuration
+     * has no effect.
+     *
+     * @param enable            - true to enable the accumulators
+     * @param degreeDayBase     - degree-day base temperature (deg C)
+     * @param depthBounds       - depth bin boundaries (m, increasing)
+     * @param temperatureBounds - temperature bin boundaries (deg C, increasing)
+     * @throws IllegalArgumentException if the bin boundaries are not increasing
+     * @throws IllegalStateException if a different configuration is in use
+     */
+    public static synchronized void configure(boolean enable, double degreeDayBase,
+                                              double[] depthBounds, double[] temperatureBounds){
+        checkBins(depthBounds);
+        checkBins(temperatureBounds);
+        if (configured){
+            boolean same = enable ? (enabled&&(base==degreeDayBase)
+                                            &&Arrays.equals(depthBins,depthBounds)
+                                            &&Arrays.equals(temperatureBins,temperatureBounds))
+                                  : !enabled;
+            if (same) return;
+            throw new IllegalStateException("Exposure accumulators are already configured "+
+                    (enabled ? "(enabled, attributes "+keys+")" : "(disabled)")+
+                    "; the configuration cannot be changed once it is in use.");
+        }
+        if (enable) setConfiguration(degreeDayBase,depthBounds.clone(),temperatureBounds.clone());
+        configured = true;
+    }
+
+    private static synchronized void configure(){
+        if (configured) return;
+        if (Boolean.parseBoolean(System.getProperty(SYSPROP_ENABLE,"false"))){
+            try {
+                setConfiguration(Double.parseDouble(System.getProperty(SYSPROP_BASE,"0").trim()),
+                                 parseBins(System.getProperty(SYSPROP_DEPTH_BINS,"25,50,100,200,400")),
+                                 parseBins(System.getProperty(SYSPROP_TEMPERATURE_BINS,"2,4,6,8,10")));
+            } catch (IllegalArgumentException ex) {
+                logger.warning("Exposure accumulators disabled: "+ex.getMessage());
+            }
+        }
+        configured = true;
+    }
+
+    /** enables the accumulators with the given base and bins, and sets the attribute keys */
+    private static void setConfiguration(double degreeDayBase, double[] depthBounds, double[] temperatureBounds){
+        base            = degreeDayBase;
+        depthBins       = depthBounds;
+        temperatureBins = temperatureBounds;
+        enabled         = true;
+        depthKeys       = binKeys("days at depth",depthBins,"m");
+        temperatureKeys = binKeys("days at temperature",temperatureBins,"deg C");
+        Set<String> k = new LinkedHashSet<>(2*(BINS+depthKeys.length+temperatureKeys.length));
+        k.add(PROP_days);
+        k.add(PROP_degreeDays);
+        k.add(PROP_minTemperature);
+        k.add(PROP_maxTemperature);
+        k.add(PROP_meanTemperature);
+        k.add(PROP_minDepth);
+        k.add(PROP_maxDepth);
+        k.add(PROP_meanDepth);
+        Collections.addAll(k,depthKeys);
+        Collections.addAll(k,temperatureKeys);
+        keys = Collections.unmodifiableSet(k);
+        logger.info("Exposure accumulators enabled: "+keys);
+    }
+
+    private static double[] parseBins(String str){
+        String[] parts = str.trim().isEmpty() ? new String[0] : str.split(",");
+        double[] b = new double[parts.length];
+        for (int i=0;i<parts.length;i++){
+            b[i] = Double.parseDouble(parts[i].trim());
+        }
+        checkBins(b);
+        return b;
+    }
+
+    private static void checkBins(double[] b){
+        for (int i=1;i<b.length;i++){
+            if (!(b[i]>b[i-1])) throw new IllegalArgumentException("bin boundaries "+Arrays.toString(b)+" are not increasing");
+        }
+    }
+
+    private static String[] binKeys(String name, double[] bins, String units){
+        String[] k = new String[bins.length+1];
+        if (bins.length==0) {
+            k[0] = name+" (all)";
+            return k;
+        }
+        k[0] = name+" <"+format(bins[0])+" "+units;
+        for (int i=1;i<bins.length;i++) k[i] = name+" "+format(bins[i-1])+"-"+format(bins[i])+" "+units;
+        k[bins.length] = name+" >="+format(bins[bins.length-1])+" "+units;
+        return k;
+    }
+
+    private static String format(double d){
+        return (d==Math.rint(d)) ? Long.toString((long) d) : Double.toString(d);
+    }
+
+    /** index of the bin containing x */
+    private static int bin(double[] bins, double x){
+        int i = 0;
+        while ((i<bins.length)&&(x>=bins[i])) i++;
+        return i;
+    }
+
+    /**
+     * Creates an accumulator with no exposure.
+     */
+    public ExposureAccumulator(){
+        configure();
+        s = new double[BINS+(depthBins.length+1)+(temperatureBins.length+1)];
+        s[T_MIN] = Double.NaN;
+        s[T_MAX] = Double.NaN;
+        s[D_MIN] = Double.NaN;
+        s[D_MAX] = Double.NaN;
+    }
+
+    /**
+     * Adds the exposure over a time step.
+     *
+     * @param dtDays      - length of the step (d, positive)
+     * @param temperature - temperature (deg C) over the step (NaN if not sampled)
+     * @param depth       - depth (m, positive) over the step
+     */
+    public void add(double dtDays, double temperature, double depth){
+        s[DAYS] += dtDays;
+        if (!Double.isNaN(depth)){
+            if (!(depth>=s[D_MIN])) s[D_MIN] = depth;//also replaces NaN
+            if (!(depth<=s[D_MAX])) s[D_MAX] = depth;
+            s[D_SUM] += dtDays*depth;
+            s[BINS+bin(depthBins,depth)] += dtDays;
+        }
+        if (!Double.isNaN(temperature)){
+            if (temperature>base) s[DEGREE_DAYS] += dtDays*(temperature-base);
+            if (!(temperature>=s[T_MIN])) s[T_MIN] = temperature;
+            if (!(temperature<=s[T_MAX])) s[T_MAX] = temperature;
+            s[T_SUM] += dtDays*temperature;
+            s[BINS+depthBins.length+1+bin(temperatureBins,temperature)] += dtDays;
+        }
+    }
+
+    /**
+     * @return - exposure time (d)
+     */
+    public double getDays(){
+        return s[DAYS];
+    }
+
+    /**
+     * @return - degree-days above the base temperature
+     */
+    public double getDegreeDays(){
+        return s[DEGREE_DAYS];
+    }
+
+    /**
+     * @return - time-weighted mean temperature (NaN if none sampled)
+     */
+    public double getMeanTemperature(){
+        double t = temperatureDays();
+        return (t>0) ? s[T_SUM]/t : Double.NaN;
+    }
+
+    /**
+     * @return - time-weighted mean depth (NaN if none sampled)
+     */
+    public double getMeanDepth(){
+        double t = depthDays();
+        return (t>0) ? s[D_SUM]/t : Double.NaN;
+    }
+
+    /** time (d) with a temperature sample, i.e. the total over the temperature bins */
+    private double temperatureDays(){
+        double t = 0.0;
+        for (int i=BINS+depthBins.length+1;i<s.length;i++) t += s[i];
+        return t;
+    }
+
+    /** time (d) with a depth sample, i.e. the total over the depth bins */
+    private double depthDays(){
+        double t = 0.0;
+        for (int i=BINS;i<BINS+depthBins.length+1;i++) t += s[i];
+        return t;
+    }
+
+    /**
+     * Writes the accumulated values to the attributes.
+     *
+     * @param atts - the attributes
+     */
+    public void writeTo(LifeStageAttributesInterface atts){
+        atts.setValue(PROP_days,           s[DAYS]);
+        atts.setValue(PROP_degreeDays,     s[DEGREE_DAYS]);
+        atts.setValue(PROP_minTemperature, s[T_MIN]);
+        atts.setValue(PROP_maxTemperature, s[T_MAX]);
+        atts.setValue(PROP_meanTemperature,getMeanTemperature());
+        atts.setValue(PROP_minDepth,       s[D_MIN]);
+        atts.setValue(PROP_maxDepth,       s[D_MAX]);
+        atts.setValue(PROP_meanDepth,      getMeanDepth());
+        for (int i=0;i<depthKeys.length;i++)       atts.setValue(depthKeys[i],s[BINS+i]);
+        for (int i=0;i<temperatureKeys.length;i++) atts.setValue(temperatureKeys[i],s[BINS+depthKeys.length+i]);
+    }
+
+    private void writeTo(Map<String,Object> values){
+        values.put(PROP_days,           s[DAYS]);
+        values.put(PROP_degreeDays,     s[DEGREE_DAYS]);
+        values.put(PROP_minTemperature, s[T_MIN]);
+        values.put(PROP_maxTemperature, s[T_MAX]);
+        values.put(PROP_meanTemperature,getMeanTemperature());
+        values.put(PROP_minDepth,       s[D_MIN]);
+        values.put(PROP_maxDepth,       s[D_MAX]);
+        values.put(PROP_meanDepth,      getMeanDepth());
+        for (int i=0;i<depthKeys.length;i++)       values.put(depthKeys[i],s[BINS+i]);
+        for (int i=0;i<temperatureKeys.length;i++) values.put(temperatureKeys[i],s[BINS+depthKeys.length+i]);
+    }
+
+    /**
+     * Reads the accumulated values from the attributes (e.g., those copied from
+     * the individual's previous life stage). Missing values are left unchanged.
+     *
+     * @param atts - the attributes
+     */
+    public void readFrom(LifeStageAttributesInterface atts){
+        s[DAYS]        = atts.getValue(PROP_days,s[DAYS]);
+        s[DEGREE_DAYS] = atts.getValue(PROP_degreeDays,s[DEGREE_DAYS]);
+        s[T_MIN]       = atts.getValue(PROP_minTemperature,s[T_MIN]);
+        s[T_MAX]       = atts.getValue(PROP_maxTemperature,s[T_MAX]);
+        s[D_MIN]       = atts.getValue(PROP_minDepth,s[D_MIN]);
+        s[D_MAX]       = atts.getValue(PROP_maxDepth,s[D_MAX]);
+        for (int i=0;i<depthKeys.length;i++)       s[BINS+i] = atts.getValue(depthKeys[i],s[BINS+i]);
+        for (int i=0;i<temperatureKeys.length;i++) s[BINS+depthKeys.length+i] = atts.getValue(temperatureKeys[i],s[BINS+depthKeys.length+i]);
+        //the time-weighted sums are recovered from the means and the binned times
+        double mT = atts.getValue(PROP_meanTemperature,getMeanTemperature());
+        double mD = atts.getValue(PROP_meanDepth,getMeanDepth());
+        double tT = temperatureDays();
+        double tD = depthDays();
+        s[T_SUM] = (tT>0) ? mT*tT : 0.0;
+        s[D_SUM] = (tD>0) ? mD*tD : 0.0;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * OceanModel.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Environment;
+
+import wts.roms.model.LagrangianParticle;
+
+/**
+ * Interface for the ocean model (grid, static and time-dependent fields, and
+ * particle tracking) the POP life stages move through.
+ *
+ * The methods are those of the ROMS Interpolator3D/ModelGrid3D/LagrangianParticle
+ * classes the stages use, so the default implementation (RomsOceanModel) simply
+ * delegates to the interpolator. Other implementations (e.g., an in-memory stand-in
+ * for benchmarking and testing) are installed through OceanModels.setOceanModel(...).
+ *
+ * Positions are in grid (I,J,K) coordinates, as for the Interpolator3D.
+ *
+ * @author William Stockhausen
+ */
+public interface OceanModel {
+
+    /**
+     * @return - number of interior grid cells in the I direction
+     */
+    public int getL();
+
+    /**
+     * @return - number of interior grid cells in the J direction
+     */
+    public int getM();
+
+    /**
+     * @return - number of vertical layers
+     */
+    public int getN();
+
+    /**
+     * Converts projected (x,y) coordinates to grid (I,J) coordinates.
+     *
+     * @param x - x coordinate
+     * @param y - y coordinate
+     * @return - double[]{I,J}
+     */
+    public double[] computeIJfromXY(double x, double y);
+
+    /**
+     * Converts geographic coordinates to grid (I,J) coordinates.
+     *
+     * @param lat - latitude (deg N)
+     * @param lon - longitude (deg E)
+     * @return - double[]{I,J}
+     */
+    public double[] computeIJfromLL(double lat, double lon);
+
+    /**
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - bathymetric depth (positive, m)
+     */
+    public double interpolateBathymetricDepth(double[] pos);
+
+    /**
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - sea surface height (m)
+     */
+    public double interpolateSSH(double[] pos);
+
+    /**
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - latitude (deg N)
+     */
+    public double interpolateLat(double[] pos);
+
+    /**
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - longitude (deg E)
+     */
+    public double interpolateLon(double[] pos);
+
+    /**
+     * Converts a vertical grid coordinate to depth.
+     *
+     * @param I - I coordinate
+     * @param J - J coordinate
+     * @param K - K coordinate
+     * @return - z (m; negative below the surface)
+     */
+    public double calcZfromK(double I, double J, double K);
+
+    /**
+     * Converts depth to a vertical grid coordinate.
+     *
+     * @param I - I coordinate
+     * @param J - J coordinate
+     * @param z - z (m; negative below the surface)
+     * @return - K coordinate
+     */
+    public double calcKfromZ(double I, double J, double z);
+
+    /**
+     * Returns the model time of the time frame of the time-dependent fields (e.g.,
+     * SSH) the model currently interpolates, so values derived from them (e.g.,
+     * by the VerticalGridCache) can be kept for as long as the frame does not change.
+     *
+     * @return - model time (s) of the current frame (NEGATIVE_INFINITY if the
+     *           fields do not change, NaN if not known)
+     */
+    public double getFrameTime();
+
+    /**
+     * @param pos - position in grid (I,J,K) coordinates
+     * @return - temperature (deg C)
+     */
+    public double interpolateTemperature(double[] pos);
+
+    /**
+     * @param pos - position in grid (I,J,K) coordinates
+     * @return - salinity
+     */
+    public double interpolateSalinity(double[] pos);
+
+    /**
+     * @param pos  - position in grid (I,J,K) coordinates
+     * @param name - name of the field
+     * @return - value of the field
+     */
+    public double interpolateValue(double[] pos, String name);
+
+    /**
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @param tol - tolerance (grid units)
+     * @return - true if the position is within tol of the grid edge
+     */
+    public boolean isAtGridEdge(double[] pos, double tol);
+
+    /**
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @param tol - tolerance (grid units)
+     * @return - id of the grid cell at the position
+     */
+    public String getGridCellID(double[] pos, double tol);
+
+    /**
+     * Calculates the rates of change (1/s) of the grid coordinates at a position
+     * and time for the current plus the particle's movement rates, for particle
+     * tracking outside the LagrangianParticle (e.g., by the AdaptiveIntegrator).
+     *
+     * @param pos  - position in grid (I,J,K) coordinates
+     * @param uvw  - movement rates {u,v,w} (relative to the water, m/s; w is 0 if only {u,v} is given)
+     * @param time - model time (s)
+     * @return - double[]{dI/dt,dJ/dt,dK/dt}, or null if the model does not provide them
+     */
+    public double[] calcGridRates(double[] pos, double[] uvw, double time);
+
+    /**
+     * Sets the particle's movement rates (relative to the water, m/s) for the
+     * start of the step and does the predictor step of the particle tracking.
+     * If only {u,v} is given, the particle's vertical movement rate is left as
+     * it is (models that do not keep the rates in the particle take it as 0).
+     *
+     * @param lp  - the particle
+     * @param uvw - movement rates {u,v,w} or {u,v}
+     * @param dt  - time step (s)
+     * @return - predicted position in grid (I,J,K) coordinates
+     */
+    public double[] doPredictorStep(LagrangianParticle lp, double[] uvw, double dt);
+
+    /**
+     * Sets the particle's movement rates (relative to the water, m/s) for the
+     * predicted position and does the corrector step of the particle tracking,
+     * as for doPredictorStep.
+     *
+     * @param lp  - the particle
+     * @param uvw - movement rates {u,v,w} or {u,v}
+     * @param dt  - time step (s)
+     * @return - new position in grid (I,J,K) coordinates
+     */
+    public double[] doCorrectorStep(LagrangianParticle lp, double[] uvw, double dt);
+}
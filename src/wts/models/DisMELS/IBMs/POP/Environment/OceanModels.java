@@ -0,0 +1,79 @@
+/*
+ * OceanModels.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Environment;
+
+import wts.roms.model.Interpolator3D;
+
+/**
+ * Class providing the OceanModel used by the POP life stages.
+ *
+ * By default this is a RomsOceanModel wrapping the framework's Interpolator3D
+ * (one wrapper is shared for as long as the interpolator does not change).
+ * A different model (e.g., an in-memory stand-in for benchmarking or testing) can
+ * be installed with setOceanModel(...); it is then used by all stages in place
+ * of the interpolator until it is removed (setOceanModel(null)).
+ *
+ * @author William Stockhausen
+ */
+public final class OceanModels {
+
+    /** the installed model (null to use the interpolator) */
+    private static volatile OceanModel installed = null;
+    /** wrapper for the interpolator */
+    private static volatile RomsOceanModel roms = null;
+
+    private OceanModels(){}
+
+    /**
+     * Installs an ocean model for use by all stages in place of the interpolator.
+     *
+     * @param model - the model (null to use the interpolator)
+     */
+    public static void setOceanModel(OceanModel model){
+        installed = model;
+    }
+
+    /**
+     * @return - the installed ocean model (null if the interpolator is used)
+     */
+    public static OceanModel getInstalledOceanModel(){
+        return installed;
+    }
+
+    /**
+     * Returns the ocean model to use: the installed one, if any, otherwise
+     * a RomsOceanModel wrapping the interpolator.
+     *
+     * @param i3d - the framework's Interpolator3D (may be null)
+     * @return - the ocean model, or null if none is installed and i3d is null
+     */
+    public static OceanModel getOceanModel(Interpolator3D i3d){
+        OceanModel m = installed;
+        if (m!=null) return m;
+        if (i3d==null) return null;
+        RomsOceanModel r = roms;
+        if ((r==null)||(r.getInterpolator()!=i3d)){
+            r = new RomsOceanModel(i3d);
+            roms = r;
+        }
+        return r;
+    }
+
+    /**
+     * Sets the time of the current frame of the ROMS fields, for the VerticalGridCache,
+     * and the next time frame of the velocity fields, for the grid rates used by
+     * the AdaptiveIntegrator (see RomsOceanModel.setFrames). Has no effect if a
+     * different model is installed.
+     *
+     * @param i3d   - the framework's Interpolator3D (current frame)
+     * @param next  - interpolator for the next frame (null to use only the current frame)
+     * @param time0 - model time (s) of the current frame
+     * @param time1 - model time (s) of the next frame
+     */
+    public static void setRomsFrames(Interpolator3D i3d, Interpolator3D next, double time0, double time1){
+        OceanModel m = getOceanModel(i3d);
+        if (m instanceof RomsOceanModel) ((RomsOceanModel) m).setFrames(next,time0,time1);
+    }
+}
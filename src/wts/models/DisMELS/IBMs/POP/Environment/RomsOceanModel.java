@@ -0,0 +1,230 @@
+/*
+ * RomsOceanModel.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Environment;
+
+import wts.roms.model.Interpolator3D;
+import wts.roms.model.LagrangianParticle;
+
+/**
+ * OceanModel backed by the ROMS Interpolator3D (the default).
+ *
+ * All methods but calcGridRates delegate to the interpolator, its grid, or the
+ * particle, exactly as the life stages did before the OceanModel interface was
+ * introduced.
+ *
+ * @author William Stockhausen
+ */
+public final class RomsOceanModel implements OceanModel {
+
+    /** system property giving the names of the velocity fields (comma-separated u,v,w) */
+    public static final String SYSPROP_VELOCITY_FIELDS = "wts.models.DisMELS.IBMs.POP.romsVelocityFields";
+    /** system property giving the names of the grid metrics (comma-separated pm,pn) */
+    public static final String SYSPROP_METRIC_FIELDS = "wts.models.DisMELS.IBMs.POP.romsMetricFields";
+
+    /** the next time frame of the velocity fields */
+    private static final class Frames {
+        final Interpolator3D next;
+        final double time0, time1;
+        Frames(Interpolator3D next, double time0, double time1){
+            this.next = next; this.time0 = time0; this.time1 = time1;
+        }
+    }
+
+    /** the interpolator */
+    private final Interpolator3D i3d;
+    /** names of the u, v and w velocity fields */
+    private final String[] velocityFields;
+    /** names of the pm and pn grid metrics */
+    private final String[] metricFields;
+    /** next time frame (null to use only the current frame) */
+    private volatile Frames frames = null;
+    /** model time (s) of the current frame (NaN until set) */
+    private volatile double frameTime = Double.NaN;
+
+    /**
+     * Creates a model backed by an interpolator.
+     *
+     * @param i3d - the Interpolator3D
+     */
+    public RomsOceanModel(Interpolator3D i3d){
+        this.i3d = i3d;
+        velocityFields = getFieldNames(SYSPROP_VELOCITY_FIELDS,"u,v,w",3);
+        metricFields   = getFieldNames(SYSPROP_METRIC_FIELDS,"pm,pn",2);
+    }
+
+    private static String[] getFieldNames(String prop, String def, int n){
+        String[] names = System.getProperty(prop,def).split(",");
+        if (names.length!=n) throw new IllegalArgumentException(prop+" must give "+n+" field names ("+def+"): "+
+                                                                System.getProperty(prop));
+        for (int i=0;i<n;i++) names[i] = names[i].trim();
+        return names;
+    }
+
+    /**
+     * @return - the Interpolator3D
+     */
+    public Interpolator3D getInterpolator(){
+        return i3d;
+    }
+
+    @Override
+    public int getL(){return i3d.getGrid().getL();}
+
+    @Override
+    public int getM(){return i3d.getGrid().getM();}
+
+    @Override
+    public int getN(){return i3d.getGrid().getN();}
+
+    @Override
+    public double[] computeIJfromXY(double x, double y){
+        return i3d.getGrid().computeIJfromXY(x,y);
+    }
+
+    @Override
+    public double[] computeIJfromLL(double lat, double lon){
+        return i3d.getGrid().computeIJfromLL(lat,lon);
+    }
+
+    @Override
+    public double interpolateBathymetricDepth(double[] pos){
+        return i3d.interpolateBathymetricDepth(pos);
+    }
+
+    @Override
+    public double interpolateSSH(double[] pos){
+        return i3d.interpolateSSH(pos);
+    }
+
+    @Override
+    public double interpolateLat(double[] pos){
+        return i3d.interpolateLat(pos);
+    }
+
+    @Override
+    public double interpolateLon(double[] pos){
+        return i3d.interpolateLon(pos);
+    }
+
+    @Override
+    public double calcZfromK(double I, double J, double K){
+        return i3d.calcZfromK(I,J,K);
+    }
+
+    @Override
+    public double calcKfromZ(double I, double J, double z){
+        return i3d.calcKfromZ(I,J,z);
+    }
+
+    /**
+     * @return - model time (s) of the current frame, as given to setFrames (NaN until set)
+     */
+    @Override
+    public double getFrameTime(){
+        return frameTime;
+    }
+
+    @Override
+    public double interpolateTemperature(double[] pos){
+        return i3d.interpolateTemperature(pos);
+    }
+
+    @Override
+    public double interpolateSalinity(double[] pos){
+        return i3d.interpolateSalinity(pos);
+    }
+
+    @Override
+    public double interpolateValue(double[] pos, String name){
+        return i3d.interpolateValue(pos,name);
+    }
+
+    @Override
+    public boolean isAtGridEdge(double[] pos, double tol){
+        return i3d.isAtGridEdge(pos,tol);
+    }
+
+    @Override
+    public String getGridCellID(double[] pos, double tol){
+        return i3d.getGridCellID(pos,tol);
+    }
+
+    /**
+     * Sets the model time of the interpolator's current frame and the interpolator
+     * for the next time frame of the velocity fields, so calcGridRates interpolates
+     * linearly in time between the frames, as the LagrangianParticle does over a
+     * model time step. Without a next frame the rates are those of the current frame.
+     *
+     * @param next  - interpolator for the frame at time1 (null to use only the current frame)
+     * @param time0 - model time (s) of the current frame
+     * @param time1 - model time (s) of the next frame
+     */
+    public synchronized void setFrames(Interpolator3D next, double time0, double time1){
+        this.frames = (next==null)||(time1==time0) ? null : new Frames(next,time0,time1);
+        this.frameTime = time0;
+    }
+
+    /**
+     * Calculates the grid rates from the velocity fields of the interpolator(s).
+     *
+     * The current {u,v,w} is interpolated at the position (u and v are along the
+     * grid's I and J axes, w is positive up) in the current frame and, if set
+     * (see setFrames), the next frame, and interpolated linearly in time between
+     * the two. The particle's movement rates are added, and the sums are converted
+     * to grid units with the ROMS grid metrics pm and pn (1/m) and the layer
+     * thickness (from calcZfromK). Returns null (so the stage uses the
+     * predictor-corrector step) where a velocity or metric cannot be interpolated
+     * or is not positive (e.g., on land).
+     *
+     * The names of the velocity fields and of the metrics are given
+     * (comma-separated) by the system properties
+     * "wts.models.DisMELS.IBMs.POP.romsVelocityFields" (default "u,v,w") and
+     * "wts.models.DisMELS.IBMs.POP.romsMetricFields" (default "pm,pn").
+     */
+    @Override
+    public double[] calcGridRates(double[] pos, double[] uvw, double time){
+        double I = pos[0], J = pos[1], K = pos[2];
+        double u = i3d.interpolateValue(pos,velocityFields[0]);
+        double v = i3d.interpolateValue(pos,velocityFields[1]);
+        double w = i3d.interpolateValue(pos,velocityFields[2]);
+        Frames f = frames;
+        if (f!=null){
+            double a = Math.min(Math.max((time-f.time0)/(f.time1-f.time0),0.0),1.0);
+            if (a>0.0){
+                u += a*(f.next.interpolateValue(pos,velocityFields[0])-u);
+                v += a*(f.next.interpolateValue(pos,velocityFields[1])-v);
+                w += a*(f.next.interpolateValue(pos,velocityFields[2])-w);
+            }
+        }
+        if (Double.isNaN(u)||Double.isNaN(v)||Double.isNaN(w)) return null;
+        double pm = i3d.interpolateValue(pos,metricFields[0]);
+        double pn = i3d.interpolateValue(pos,metricFields[1]);
+        int N = getN();
+        double dz = i3d.calcZfromK(I,J,Math.min(K+0.5,N))-i3d.calcZfromK(I,J,Math.max(K-0.5,0.0));
+        double dK = Math.min(K+0.5,N)-Math.max(K-0.5,0.0);
+        if (!(pm>0)||!(pn>0)||!(dz>0)) return null;
+        return new double[]{(u+uvw[0])*pm,
+                            (v+uvw[1])*pn,
+                            (w+((uvw.length>2) ? uvw[2] : 0.0))*dK/dz};
+    }
+
+    @Override
+    public double[] doPredictorStep(LagrangianParticle lp, double[] uvw, double dt){
+        lp.setU(uvw[0],lp.getN());
+        lp.setV(uvw[1],lp.getN());
+        if (uvw.length>2) lp.setW(uvw[2],lp.getN());
+        lp.doPredictorStep();
+        return lp.getPredictedIJK();
+    }
+
+    @Override
+    public double[] doCorrectorStep(LagrangianParticle lp, double[] uvw, double dt){
+        lp.setU(uvw[0],lp.getNP1());
+        lp.setV(uvw[1],lp.getNP1());
+        if (uvw.length>2) lp.setW(uvw[2],lp.getNP1());
+        lp.doCorrectorStep();
+        return lp.getIJK();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * SyntheticOcean.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Environment;
+
+import wts.roms.model.LagrangianParticle;
+
+/**
+ * Analytic, in-memory OceanModel for running the POP life stages without
+ * ROMS files (e.g., for benchmarks and regression tests).
+ *
+ * The ocean is a rectangular L x M grid of square cells with N sigma layers:
+ * <ul>
+ *   <li>the coast is along J = 0, and the bottom slopes linearly offshore from
+ *       hCoast at J = 0 to hOffshore at J = M;
+ *   <li>latitude and longitude vary linearly with J and I from (lat0, lon0) at node (0,0);
+ *   <li>the current is an along-shelf (I direction) jet centred at mid-shelf,
+ *       decaying with depth, plus a uniform cross-shelf drift (positive offshore);
+ *   <li>temperature and salinity are horizontally uniform and stratified, relaxing
+ *       exponentially from surface to deep values;
+ *   <li>the sea surface is flat (SSH = 0).
+ * </ul>
+ * Because depth, latitude and longitude are linear in I and J, the
+ * StaticFieldTable tabulates every cell exactly.
+ *
+ * Particles are tracked with a second-order (Heun) predictor-corrector step using
+ * the analytic current plus the individual's movement rates. The model is
+ * immutable and deterministic, so it can be shared by all individuals and threads,
+ * and runs with the same random number seeds give the same results.
+ *
+ * Install it for all stages with OceanModels.setOceanModel(new SyntheticOcean(...)).
+ *
+ * @author William Stockhausen
+ */
+public final class SyntheticOcean implements OceanModel {
+
+    /** mean earth radius (m) */
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    /** number of cells in the I, J directions and number of layers */
+    private final int L, M, N;
+    /** cell size (m) */
+    private final double dx;
+    /** bottom depth at the coast (J = 0) and offshore edge (J = M) (m) */
+    private final double hCoast, hOffshore;
+    /** latitude, longitude of grid node (0,0) (deg) */
+    private final double lat0, lon0;
+    /** cell size in latitude and longitude (deg) */
+    private final double dLat, dLon;
+    /** along-shelf jet speed at the surface (m/s), half-width (cells) and e-folding depth (m) */
+    private final double jetSpeed, jetWidth, jetDepth;
+    /** cross-shelf drift (m/s, positive offshore) */
+    private final double crossShelfSpeed;
+    /** surface and deep temperature (deg C) and e-folding depth (m) */
+    private final double tSurface, tDeep, tDepth;
+    /** surface and deep salinity and e-folding depth (m) */
+    private final double sSurface, sDeep, sDepth;
+
+    /**
+     * Creates an L x M x N ocean with 2 km cells, a shelf sloping from 20 m to
+     * 300 m, a 0.2 m/s along-shelf jet, a 0.01 m/s offshore drift, and temperature
+     * (8 to 3 deg C) and salinity (31.5 to 33.5) stratified over 30 and 50 m.
+     *
+     * @param L - number of cells in the I (along-shelf) direction
+     * @param M - number of cells in the J (cross-shelf) direction
+     * @param N - number of layers
+     */
+    public SyntheticOcean(int L, int M, int N){
+        this(L,M,N,2000.0,20.0,300.0,57.0,-165.0,
+             0.2,0.25*M,50.0,0.01,
+             8.0,3.0,30.0,31.5,33.5,50.0);
+    }
+
+    /**
+     * Creates an ocean.
+     *
+     * @param L               - number of cells in the I (along-shelf) direction
+     * @param M               - number of cells in the J (cross-shelf) direction
+     * @param N               - number of layers
+     * @param dx              - cell size (m)
+     * @param hCoast          - bottom depth at J = 0 (m)
+     * @param hOffshore       - bottom depth at J = M (m)
+     * @param lat0            - latitude of grid node (0,0) (deg N)
+     * @param lon0            - longitude of grid node (0,0) (deg E)
+     * @param jetSpeed        - along-shelf jet speed at the surface (m/s)
+     * @param jetWidth        - half-width of the jet (cells)
+     * @param jetDepth        - e-folding depth of the jet (m)
+     * @param crossShelfSpeed - cross-shelf drift (m/s, positive offshore)
+     * @param tSurface        - surface temperature (deg C)
+     * @param tDeep           - deep temperature (deg C)
+     * @param tDepth          - e-folding depth of the temperature profile (m)
+     * @param sSurface        - surface salinity
+     * @param sDeep           - deep salinity
+     * @param sDepth          - e-folding depth of the salinity profile (m)
+     */
+    public SyntheticOcean(int L, int M, int N, double dx, double hCoast, double hOffshore,
+                          double lat0, double lon0,
+                          double jetSpeed, double jetWidth, double jetDepth, double crossShelfSpeed,
+                          double tSurface, double tDeep, double tDepth,
+                          double sSurface, double sDeep, double sDepth){
+        if ((L<2)||(M<2)||(N<1)) throw new IllegalArgumentException("Grid must be at least 2 x 2 x 1.");
+        if (!(hCoast>0)||!(hOffshore>0)) throw new IllegalArgumentException("Bottom depths must be positive.");
+        this.L = L; this.M = M; this.N = N;
+        this.dx = dx;
+        this.hCoast = hCoast; this.hOffshore = hOffshore;
+        this.lat0 = lat0; this.lon0 = lon0;
+        this.dLat = Math.toDegrees(dx/EARTH_RADIUS);
+        this.dLon = dLat/Math.cos(Math.toRadians(lat0));
+        this.jetSpeed = jetSpeed; this.jetWidth = jetWidth; this.jetDepth = jetDepth;
+        this.crossShelfSpeed = crossShelfSpeed;
+        this.tSurface = tSurface; this.tDeep = tDeep; this.tDepth = tDepth;
+        this.sSurface = sSurface; this.sDeep = sDeep; this.sDepth = sDepth;
+    }
+
+    @Override public int getL(){return L;}
+    @Override public int getM(){return M;}
+    @Override public int getN(){return N;}
+
+    /**
+     * @return - cell size (m)
+     */
+    public double getCellSize(){
+        return dx;
+    }
+
+    @Override
+    public double[] computeIJfromXY(double x, double y){
+        return new double[]{x/dx,y/dx};
+    }
+
+    @Override
+    public double[] computeIJfromLL(double lat, double lon){
+        return new double[]{(lon-lon0)/dLon,(lat-lat0)/dLat};
+    }
+
+    /** bottom depth (m) at J */
+    private double depthAt(double J){
+        return hCoast+(hOffshore-hCoast)*J/M;
+    }
+
+    @Override
+    public double interpolateBathymetricDepth(double[] pos){
+        return depthAt(pos[1]);
+    }
+
+    @Override
+    public double interpolateSSH(double[] pos){
+        return 0.0;
+    }
+
+    @Override
+    public double interpolateLat(double[] pos){
+        return lat0+pos[1]*dLat;
+    }
+
+    @Override
+    public double interpolateLon(double[] pos){
+        return lon0+pos[0]*dLon;
+    }
+
+    @Override
+    public double calcZfromK(double I, double J, double K){
+        return -depthAt(J)*(1.0-K/N);
+    }
+
+    @Override
+    public double calcKfromZ(double I, double J, double z){
+        return Math.min(Math.max(N*(1.0+z/depthAt(J)),0.0),N);
+    }
+
+    /**
+     * @return - NEGATIVE_INFINITY (the fields do not change)
+     */
+    @Override
+    public double getFrameTime(){
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public double interpolateTemperature(double[] pos){
+        double z = calcZfromK(pos[0],pos[1],pos[2]);
+        return tDeep+(tSurface-tDeep)*Math.exp(z/tDepth);
+    }
+
+    @Override
+    public double interpolateSalinity(double[] pos){
+        double z = calcZfromK(pos[0],pos[1],pos[2]);
+        return sDeep+(sSurface-sDeep)*Math.exp(z/sDepth);
+    }
+
+    /**
+     * Returns 0 for all fields other than temperature ("temp") and salinity ("salt").
+     */
+    @Override
+    public double interpolateValue(double[] pos, String name){
+        if ("temp".equals(name)) return interpolateTemperature(pos);
+        if ("salt".equals(name)) return interpolateSalinity(pos);
+        return 0.0;
+    }
+
+    @Override
+    public boolean isAtGridEdge(double[] pos, double tol){
+        return (pos[0]<tol)||(pos[1]<tol)||(pos[0]>L-tol)||(pos[1]>M-tol);
+    }
+
+    @Override
+    public String getGridCellID(double[] pos, double tol){
+        return ""+Math.round(pos[0])+"_"+Math.round(pos[1]);
+    }
+
+    /**
+     * Calculates the current (m/s) at a position.
+     *
+     * @param pos - position in grid (I,J,K) coordinates
+     * @return - double[]{u,v,w}
+     */
+    public double[] calcCurrent(double[] pos){
+        double z = calcZfromK(pos[0],pos[1],pos[2]);
+        double y = (pos[1]-0.5*M)/jetWidth;
+        double u = jetSpeed*Math.exp(-y*y)*Math.exp(z/jetDepth);
+        return new double[]{u,crossShelfSpeed,0.0};
+    }
+
+    /**
+     * Calculates the rates of change of the grid coordinates at a position for the
+     * current plus the movement rates uvw.
+     */
+    private double[] calcRates(double[] pos, double[] uvw){
+        double[] c = calcCurrent(pos);
+        return new double[]{(c[0]+uvw[0])/dx,
+                            (c[1]+uvw[1])/dx,
+                            (c[2]+((uvw.length>2) ? uvw[2] : 0.0))*N/depthAt(pos[1])};
+    }
+
+    /**
+     * The current is steady, so time is not used.
+     */
+    @Override
+    public double[] calcGridRates(double[] pos, double[] uvw, double time){
+        return calcRates(pos,uvw);
+    }
+
+    /** position p0+dt*r, with K kept within the water column */
+    private double[] advance(double[] p0, double[] r, double dt){
+        return new double[]{p0[0]+dt*r[0],p0[1]+dt*r[1],Math.min(Math.max(p0[2]+dt*r[2],0.0),N)};
+    }
+
+    @Override
+    public double[] doPredictorStep(LagrangianParticle lp, double[] uvw, double dt){
+        double[] p0 = lp.getIJK();
+        return advance(p0,calcRates(p0,uvw),dt);
+    }
+
+    @Override
+    public double[] doCorrectorStep(LagrangianParticle lp, double[] uvw, double dt){
+        double[] p0 = lp.getIJK();
+        double[] r0 = calcRates(p0,uvw);
+        double[] r1 = calcRates(advance(p0,r0,dt),uvw);
+        double[] r  = new double[]{0.5*(r0[0]+r1[0]),0.5*(r0[1]+r1[1]),0.5*(r0[2]+r1[2])};
+        double[] p  = advance(p0,r,dt);
+        lp.setIJK(p[0],p[1],p[2]);
+        return lp.getIJK();
+    }
+}
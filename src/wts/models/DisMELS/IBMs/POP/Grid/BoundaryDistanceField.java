@@ -0,0 +1,258 @@
+/*
+ * BoundaryDistanceField.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+
+/**
+ * Class providing precomputed distances (in grid units) from each grid cell
+ * to the grid edge and to land, so the POP life stages can skip the
+ * OceanModel's grid edge check, and the stranding check, for individuals far
+ * from the grid edge or land.
+ *
+ * The field is built by evaluating, on a lattice of points half a grid cell
+ * apart, whether the OceanModel reports the point as at the grid edge (with
+ * the stages' tolerance, so open boundaries and any masked points the model
+ * treats as edges are included) and whether the point is on land (bathymetric
+ * depth not positive, or undefined). A multi-source breadth-first search then
+ * gives, for each lattice point, the Chebyshev distance to the nearest edge
+ * and land point; the distances for a cell are lower bounds for any position
+ * in it. Chebyshev distance never exceeds Euclidean distance, so the bounds are
+ * conservative.
+ *
+ * Edge (or land) regions are assumed to be at least half a cell wide, so that
+ * they contain a lattice point; isAtGridEdgePossible(...) and isStranded(...)
+ * keep a margin of one cell in addition.
+ *
+ * Individuals that end a step on land (bathymetric depth not positive) are
+ * stranded, and die, if the system property
+ * "wts.models.DisMELS.IBMs.POP.strandOnLand" is set to true.
+ *
+ * The field is immutable once built, so it is shared by all individuals (and
+ * threads) through getInstance(ocean,tol), and is rebuilt if the OceanModel or
+ * tolerance changes. It can be disabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.useBoundaryDistance" to false.
+ *
+ * @author William Stockhausen
+ */
+public final class BoundaryDistanceField {
+
+    /** system property to disable the field */
+    public static final String SYSPROP_USE = "wts.models.DisMELS.IBMs.POP.useBoundaryDistance";
+
+    /** system property enabling stranding on land */
+    public static final String SYSPROP_STRANDING = "wts.models.DisMELS.IBMs.POP.strandOnLand";
+
+    /** margin (grid units) kept in addition to the lattice resolution */
+    private static final double MARGIN = 1.0;
+
+    /** the shared field */
+    private static volatile BoundaryDistanceField instance = null;
+    /** flag indicating stranding on land is enabled */
+    private static final boolean stranding = Boolean.getBoolean(SYSPROP_STRANDING);
+
+    private static final Logger logger = Logger.getLogger(BoundaryDistanceField.class.getName());
+
+    /** the ocean model the field was built for */
+    private final OceanModel ocean;
+    /** the table giving the bathymetric depth for the stranding check */
+    private final StaticFieldTable table;
+    /** edge tolerance the field was built for (grid units) */
+    private final double tol;
+    /** flag indicating the field is used */
+    private final boolean enabled;
+    /** number of cells in I, J */
+    private final int nI, nJ;
+    /** lower bounds on the distance (grid units) to the grid edge, by cell (j*nI+i) */
+    private final float[] distEdge;
+    /** lower bounds on the distance (grid units) to land, by cell (j*nI+i) */
+    private final float[] distLand;
+
+    /**
+     * Returns the shared field for the ocean model and edge tolerance, building
+     * it if necessary.
+     *
+     * @param ocean - the OceanModel
+     * @param tol   - tolerance (grid units) used for the grid edge check
+     * @return - the field
+     */
+    public static BoundaryDistanceField getInstance(OceanModel ocean, double tol){
+        BoundaryDistanceField bdf = instance;
+        if ((bdf==null)||(bdf.ocean!=ocean)||(bdf.tol!=tol)){
+            synchronized(BoundaryDistanceField.class){
+                bdf = instance;
+                if ((bdf==null)||(bdf.ocean!=ocean)||(bdf.tol!=tol)){
+                    bdf = new BoundaryDistanceField(ocean,tol);
+                    instance = bdf;
+                }
+            }
+        }
+        return bdf;
+    }
+
+    private BoundaryDistanceField(OceanModel ocean, double tol){
+        this.ocean = ocean;
+        this.tol   = tol;
+        table = (stranding&&(ocean!=null)) ? StaticFieldTable.getInstance(ocean) : null;
+        boolean use = Boolean.parseBoolean(System.getProperty(SYSPROP_USE,"true"));
+        enabled = use&&(ocean!=null)&&(ocean.getL()>0)&&(ocean.getM()>0);
+        nI = enabled ? ocean.getL() : 0;
+        nJ = enabled ? ocean.getM() : 0;
+        distEdge = new float[nI*nJ];
+        distLand = new float[nI*nJ];
+        if (enabled) buildField();
+    }
+
+    /**
+     * Evaluates the edge and land flags on the lattice and converts the
+     * lattice distances to bounds for each cell.
+     */
+    private void buildField(){
+        int sI = 2*nI+1, sJ = 2*nJ+1;
+        boolean[] edge = new boolean[sI*sJ];
+        boolean[] land = new boolean[sI*sJ];
+        double[] pos = new double[3];
+        int nEdge = 0, nLand = 0;
+        for (int b=0;b<sJ;b++){
+            for (int a=0;a<sI;a++){
+                pos[0] = 0.5*a; pos[1] = 0.5*b;
+                int n = b*sI+a;
+                edge[n] = ocean.isAtGridEdge(pos,tol);
+                double h = ocean.interpolateBathymetricDepth(pos);
+                land[n] = !(h>0);//also catches NaNs
+                if (edge[n]) nEdge++;
+                if (land[n]) nLand++;
+            }
+        }
+        int[] dE = chebyshev(edge,sI,sJ);
+        int[] dL = chebyshev(land,sI,sJ);
+        //the cell center is within one lattice step of any position in the cell, and a
+        //flagged region extends at most one lattice step beyond its lattice points
+        for (int j=0;j<nJ;j++){
+            for (int i=0;i<nI;i++){
+                int n = (2*j+1)*sI+(2*i+1);
+                distEdge[j*nI+i] = bound(dE[n]);
+                distLand[j*nI+i] = bound(dL[n]);
+            }
+        }
+        logger.info("Built boundary distance field for "+nI+" x "+nJ+" cells ("+
+                    nEdge+" edge and "+nLand+" land points of "+(sI*sJ)+").");
+    }
+
+    /** converts a lattice distance at a cell center to a bound (grid units) for the cell */
+    private static float bound(int d){
+        if (d==Integer.MAX_VALUE) return Float.POSITIVE_INFINITY;
+        return (float) Math.max(0.0,0.5*(d-2));
+    }
+
+    /**
+     * Computes the Chebyshev distance (in lattice steps) from each lattice point
+     * to the nearest flagged point by a multi-source breadth-first search.
+     */
+    private static int[] chebyshev(boolean[] flags, int sI, int sJ){
+        int[] d = new int[sI*sJ];
+        int[] queue = new int[sI*sJ];
+        int head = 0, tail = 0;
+        for (int n=0;n<d.length;n++){
+            if (flags[n]) {d[n] = 0; queue[tail++] = n;} else d[n] = Integer.MAX_VALUE;
+        }
+        while (head<tail){
+            int n = queue[head++];
+            int a = n%sI, b = n/sI;
+            for (int db=-1;db<=1;db++){
+                int bb = b+db;
+                if ((bb<0)||(bb>=sJ)) continue;
+                for (int da=-1;da<=1;da++){
+                    int aa = a+da;
+                    if ((aa<0)||(aa>=sI)) continue;
+                    int m = bb*sI+aa;
+                    if (d[m]==Integer.MAX_VALUE){
+                        d[m] = d[n]+1;
+                        queue[tail++] = m;
+                    }
+                }
+            }
+        }
+        return d;
+    }
+
+    /** cell index for a position (-1 if outside the grid) */
+    private int cell(double[] pos){
+        double I = pos[0], J = pos[1];
+        if (!((I>=0)&&(J>=0)&&(I<nI)&&(J<nJ))) return -1;//also catches NaNs
+        return ((int) J)*nI+(int) I;
+    }
+
+    /**
+     * Returns a lower bound on the distance (grid units) from a position to
+     * the grid edge (0 if not known).
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - the distance
+     */
+    public double getDistanceToEdge(double[] pos){
+        if (!enabled) return 0.0;
+        int c = cell(pos);
+        return (c<0) ? 0.0 : distEdge[c];
+    }
+
+    /**
+     * Returns a lower bound on the distance (grid units) from a position to
+     * land (0 if not known).
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - the distance
+     */
+    public double getDistanceToLand(double[] pos){
+        if (!enabled) return 0.0;
+        int c = cell(pos);
+        return (c<0) ? 0.0 : distLand[c];
+    }
+
+    /**
+     * Tests whether the OceanModel's grid edge check could be true at a position.
+     * If false, the check can be skipped.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - false if the position is known to be away from the grid edge
+     */
+    public boolean isAtGridEdgePossible(double[] pos){
+        return getDistanceToEdge(pos)<=MARGIN;
+    }
+
+    /**
+     * Tests whether an individual at a position is stranded on land. The
+     * bathymetric depth is only interpolated within the margin of land.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - true if stranding is enabled and the position is on land
+     */
+    public boolean isStranded(double[] pos){
+        if (!stranding||(getDistanceToLand(pos)>MARGIN)) return false;
+        return !(table.interpolateBathymetricDepth(pos)>0);//also catches NaNs
+    }
+
+    /**
+     * @return - true if stranding on land is enabled
+     */
+    public static boolean isStrandingEnabled(){
+        return stranding;
+    }
+
+    /**
+     * @return - the OceanModel the field was built for
+     */
+    public OceanModel getOceanModel(){
+        return ocean;
+    }
+
+    /**
+     * @return - true if the field (rather than the OceanModel alone) is used
+     */
+    public boolean isEnabled(){
+        return enabled;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * CellCursor.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+/**
+ * Class caching an individual's grid cell between time steps.
+ *
+ * Individuals usually move much less than a grid cell per time step, so the
+ * cell found for the previous position (its StaticFieldTable patch and the
+ * grid cell ID string) can usually be reused: locate(...) only looks up the
+ * table again when the position has moved to another cell, and getNodeID(...)
+ * only builds a new ID string when the nearest grid node changes. Each
+ * interpolation from the table then needs only the fractional position in
+ * the cell.
+ *
+ * A CellCursor belongs to one individual and is not thread-safe; clones of
+ * an individual need their own.
+ *
+ * @author William Stockhausen
+ */
+public final class CellCursor {
+
+    /** table the cell was looked up in */
+    StaticFieldTable table = null;
+    /** cell indices */
+    int i = Integer.MIN_VALUE, j = Integer.MIN_VALUE;
+    /** offset of the cell's coefficients in the table (-1 if not tabulated) */
+    int base = -1;
+    /** fractional position in the cell */
+    double x, y;
+    /** nearest grid node */
+    private long nodeI = Long.MIN_VALUE, nodeJ = Long.MIN_VALUE;
+    /** ID of the nearest grid node ("I_J") */
+    private String nodeID = null;
+    /** number of cell changes (for diagnostics) */
+    private int moves = 0;
+
+    /**
+     * Locates a position, reusing the previous cell if the position is still in it.
+     *
+     * @param table - the static field table
+     * @param pos   - position in grid (I,J[,K]) coordinates
+     * @return - true if the cell changed
+     */
+    public boolean locate(StaticFieldTable table, double[] pos){
+        double I = pos[0], J = pos[1];
+        int ci = (int) Math.floor(I);
+        int cj = (int) Math.floor(J);
+        boolean changed = (ci!=i)||(cj!=j)||(table!=this.table);
+        if (changed){
+            this.table = table;
+            i = ci;
+            j = cj;
+            base = table.getCellBase(ci,cj);
+            moves++;
+        }
+        x = I-ci;
+        y = J-cj;
+        return changed;
+    }
+
+    /**
+     * Returns the ID ("I_J") of the grid node nearest to a position, as used for
+     * the gridCellID attribute, reusing the previous ID if the node is the same.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - the node ID
+     */
+    public String getNodeID(double[] pos){
+        long ni = Math.round(pos[0]);
+        long nj = Math.round(pos[1]);
+        if ((ni!=nodeI)||(nj!=nodeJ)||(nodeID==null)){
+            nodeI  = ni;
+            nodeJ  = nj;
+            nodeID = ""+ni+"_"+nj;
+        }
+        return nodeID;
+    }
+
+    /**
+     * @return - true if the current cell is interpolated from the table
+     */
+    public boolean isTabulated(){
+        return base>=0;
+    }
+
+    /**
+     * @return - number of times the cell has changed
+     */
+    public int getMoves(){
+        return moves;
+    }
+}
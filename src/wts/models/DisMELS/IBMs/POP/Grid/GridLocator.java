@@ -0,0 +1,292 @@
+/*
+ * GridLocator.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+
+/**
+ * Class providing fast conversion of latitude/longitude to grid (I,J)
+ * coordinates, replacing the iterative search over the curvilinear grid
+ * done by OceanModel.computeIJfromLL(...) for each individual.
+ *
+ * The locator uses the bilinear lat/lon patches of the StaticFieldTable. Each
+ * tabulated cell is entered in the buckets of a uniform lat/lon bucket grid
+ * that its bounding box overlaps (buckets are about the size of a grid cell).
+ * A lookup inverts the patches of the few cells in the position's bucket
+ * (by Newton iteration) and returns the one containing the position; if a
+ * guess is given, its cell and the cells around it are tried first. Positions
+ * not in a tabulated cell are located by the OceanModel.
+ *
+ * locate(lat,lon) uses the last position located on the calling thread as the
+ * guess. Individuals read from an initial conditions file are usually released
+ * in clusters, so consecutive rows are mostly found in the guess cell or its
+ * neighbours without searching the buckets.
+ *
+ * Apart from the per-thread last position, the locator is immutable once
+ * built, so it is shared by all individuals (and threads) through
+ * getInstance(ocean), and is rebuilt if the OceanModel changes. It can be disabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.useGridLocator" to false.
+ *
+ * @author William Stockhausen
+ */
+public final class GridLocator {
+
+    /** system property to disable the locator */
+    public static final String SYSPROP_USE = "wts.models.DisMELS.IBMs.POP.useGridLocator";
+
+    /** max Newton iterations for inverting a cell's patch */
+    private static final int MAX_ITERATIONS = 10;
+    /** convergence tolerance (fraction of a cell) */
+    private static final double TOLERANCE = 1.0E-10;
+    /** tolerance for a position being inside a cell (fraction of a cell) */
+    private static final double INSIDE = 1.0E-9;
+
+    /** the shared locator */
+    private static volatile GridLocator instance = null;
+
+    private static final Logger logger = Logger.getLogger(GridLocator.class.getName());
+
+    /** the ocean model the locator was built for */
+    private final OceanModel ocean;
+    /** the table with the cells' patches */
+    private final StaticFieldTable table;
+    /** flag indicating the locator is used */
+    private final boolean enabled;
+    /** min latitude, longitude of the bucket grid (deg) */
+    private final double minLat, minLon;
+    /** bucket size (deg) */
+    private final double dLat, dLon;
+    /** number of buckets in latitude, longitude */
+    private final int nLat, nLon;
+    /** start of each bucket's cells in bucketCells (length nLat*nLon+1) */
+    private final int[] bucketStart;
+    /** cells (j*nCellsI+i), by bucket */
+    private final int[] bucketCells;
+    /** last position located by locate(lat,lon), by thread */
+    private final ThreadLocal<double[]> lastIJ = new ThreadLocal<double[]>();
+
+    /**
+     * Returns the shared locator for the ocean model, building it if necessary.
+     *
+     * @param ocean - the OceanModel
+     * @return - the locator
+     */
+    public static GridLocator getInstance(OceanModel ocean){
+        GridLocator gl = instance;
+        if ((gl==null)||(gl.ocean!=ocean)){
+            synchronized(GridLocator.class){
+                gl = instance;
+                if ((gl==null)||(gl.ocean!=ocean)){
+                    gl = new GridLocator(ocean);
+                    instance = gl;
+                }
+            }
+        }
+        return gl;
+    }
+
+    private GridLocator(OceanModel ocean){
+        this.ocean = ocean;
+        table = StaticFieldTable.getInstance(ocean);
+        boolean use = Boolean.parseBoolean(System.getProperty(SYSPROP_USE,"true"));
+        int nI = table.getNumCellsI(), nJ = table.getNumCellsJ();
+        //bounding box of the tabulated cells and mean cell extent
+        double laMin = Double.POSITIVE_INFINITY, laMax = Double.NEGATIVE_INFINITY;
+        double loMin = Double.POSITIVE_INFINITY, loMax = Double.NEGATIVE_INFINITY;
+        double sumLa = 0.0, sumLo = 0.0;
+        int nCells = 0;
+        double[] bb = new double[4];
+        if (use&&table.isEnabled()){
+            for (int j=0;j<nJ;j++){
+                for (int i=0;i<nI;i++){
+                    if (!cellBounds(i,j,bb)) continue;
+                    laMin = Math.min(laMin,bb[0]); laMax = Math.max(laMax,bb[1]);
+                    loMin = Math.min(loMin,bb[2]); loMax = Math.max(loMax,bb[3]);
+                    sumLa += bb[1]-bb[0];
+                    sumLo += bb[3]-bb[2];
+                    nCells++;
+                }
+            }
+        }
+        enabled = nCells>0;
+        if (!enabled){
+            minLat = minLon = 0.0; dLat = dLon = 1.0; nLat = nLon = 0;
+            bucketStart = new int[1];
+            bucketCells = new int[0];
+            return;
+        }
+        minLat = laMin; minLon = loMin;
+        double cLat = Math.max(sumLa/nCells,1.0E-9), cLon = Math.max(sumLo/nCells,1.0E-9);
+        nLat = Math.max(1,Math.min((int) Math.ceil((laMax-laMin)/cLat),4*nJ));
+        nLon = Math.max(1,Math.min((int) Math.ceil((loMax-loMin)/cLon),4*nI));
+        dLat = Math.max((laMax-laMin)/nLat,1.0E-9);
+        dLon = Math.max((loMax-loMin)/nLon,1.0E-9);
+        //count the cells in each bucket, then fill (compressed rows)
+        int[] start = new int[nLat*nLon+1];
+        int[] cells = null;
+        for (int pass=0;pass<2;pass++){
+            int[] fill = (pass==0) ? null : new int[nLat*nLon];
+            for (int j=0;j<nJ;j++){
+                for (int i=0;i<nI;i++){
+                    if (!cellBounds(i,j,bb)) continue;
+                    int la0 = bucketLat(bb[0]), la1 = bucketLat(bb[1]);
+                    int lo0 = bucketLon(bb[2]), lo1 = bucketLon(bb[3]);
+                    for (int la=la0;la<=la1;la++){
+                        for (int lo=lo0;lo<=lo1;lo++){
+                            int b = la*nLon+lo;
+                            if (pass==0) start[b+1]++;
+                            else cells[start[b]+fill[b]++] = j*nI+i;
+                        }
+                    }
+                }
+            }
+            if (pass==0){
+                for (int b=0;b<nLat*nLon;b++) start[b+1] += start[b];
+                cells = new int[start[nLat*nLon]];
+            }
+        }
+        bucketStart = start;
+        bucketCells = cells;
+        logger.info("Built grid locator for "+nCells+" cells in "+nLat+" x "+nLon+" buckets ("+
+                    bucketCells.length+" entries).");
+    }
+
+    /** lat/lon bounds {minLat,maxLat,minLon,maxLon} of a tabulated cell (the patch extremes are at the corners) */
+    private boolean cellBounds(int i, int j, double[] bb){
+        if (!table.isCellTabulated(i,j)) return false;
+        bb[0] = bb[2] = Double.POSITIVE_INFINITY;
+        bb[1] = bb[3] = Double.NEGATIVE_INFINITY;
+        for (int c=0;c<4;c++){
+            double x = c&1, y = c>>1;
+            double la = table.evaluate(StaticFieldTable.FIELD_LAT,i,j,x,y);
+            double lo = table.evaluate(StaticFieldTable.FIELD_LON,i,j,x,y);
+            bb[0] = Math.min(bb[0],la); bb[1] = Math.max(bb[1],la);
+            bb[2] = Math.min(bb[2],lo); bb[3] = Math.max(bb[3],lo);
+        }
+        return true;
+    }
+
+    private int bucketLat(double lat){
+        return Math.max(0,Math.min(nLat-1,(int) Math.floor((lat-minLat)/dLat)));
+    }
+
+    private int bucketLon(double lon){
+        return Math.max(0,Math.min(nLon-1,(int) Math.floor((lon-minLon)/dLon)));
+    }
+
+    /**
+     * Computes grid (I,J) coordinates from latitude and longitude.
+     *
+     * @param lat - latitude (deg N)
+     * @param lon - longitude (deg E)
+     * @return - double[]{I,J}
+     */
+    public double[] computeIJfromLL(double lat, double lon){
+        return computeIJfromLL(lat,lon,null);
+    }
+
+    /**
+     * Computes grid (I,J) coordinates from latitude and longitude, using the
+     * last position located by this method on the calling thread as the guess.
+     *
+     * @param lat - latitude (deg N)
+     * @param lon - longitude (deg E)
+     * @return - double[]{I,J}
+     */
+    public double[] locate(double lat, double lon){
+        double[] IJ = computeIJfromLL(lat,lon,lastIJ.get());
+        if ((IJ!=null)&&!Double.isNaN(IJ[0])&&!Double.isNaN(IJ[1])) lastIJ.set(IJ.clone());
+        return IJ;
+    }
+
+    /**
+     * Computes grid (I,J) coordinates from latitude and longitude, trying the
+     * cells at and around a guess first.
+     *
+     * @param lat   - latitude (deg N)
+     * @param lon   - longitude (deg E)
+     * @param guess - guess at the position in grid (I,J[,K]) coordinates (may be null)
+     * @return - double[]{I,J}
+     */
+    public double[] computeIJfromLL(double lat, double lon, double[] guess){
+        if (enabled){
+            double[] IJ = new double[2];
+            if (guess!=null){
+                int gi = (int) Math.floor(guess[0]), gj = (int) Math.floor(guess[1]);
+                if (invert(gi,gj,lat,lon,IJ)) return IJ;
+                for (int dj=-1;dj<=1;dj++){
+                    for (int di=-1;di<=1;di++){
+                        if (((di!=0)||(dj!=0))&&invert(gi+di,gj+dj,lat,lon,IJ)) return IJ;
+                    }
+                }
+            }
+            if (search(lat,lon,IJ)||search(lat,lon-360.0,IJ)||search(lat,lon+360.0,IJ)) return IJ;
+        }
+        return ocean.computeIJfromLL(lat,lon);
+    }
+
+    /** tries the cells in the position's bucket */
+    private boolean search(double lat, double lon, double[] IJ){
+        double fLa = (lat-minLat)/dLat, fLo = (lon-minLon)/dLon;
+        if ((fLa<0)||(fLo<0)||(fLa>nLat)||(fLo>nLon)) return false;
+        int b = bucketLat(lat)*nLon+bucketLon(lon);
+        int nI = table.getNumCellsI();
+        for (int k=bucketStart[b];k<bucketStart[b+1];k++){
+            int cell = bucketCells[k];
+            if (invert(cell%nI,cell/nI,lat,lon,IJ)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Inverts a cell's lat/lon patch by Newton iteration.
+     *
+     * @return - true if the position is in the cell (IJ is then set)
+     */
+    private boolean invert(int i, int j, double lat, double lon, double[] IJ){
+        if (!table.isCellTabulated(i,j)) return false;
+        final int fLa = StaticFieldTable.FIELD_LAT, fLo = StaticFieldTable.FIELD_LON;
+        //patch coefficients: v(x,y) = a+b*x+c*y+d*x*y
+        double aLa = table.evaluate(fLa,i,j,0,0), aLo = table.evaluate(fLo,i,j,0,0);
+        double bLa = table.evaluate(fLa,i,j,1,0)-aLa, bLo = table.evaluate(fLo,i,j,1,0)-aLo;
+        double cLa = table.evaluate(fLa,i,j,0,1)-aLa, cLo = table.evaluate(fLo,i,j,0,1)-aLo;
+        double dLa = table.evaluate(fLa,i,j,1,1)-aLa-bLa-cLa, dLo = table.evaluate(fLo,i,j,1,1)-aLo-bLo-cLo;
+        double x = 0.5, y = 0.5;
+        for (int it=0;it<MAX_ITERATIONS;it++){
+            double rLa = aLa+bLa*x+(cLa+dLa*x)*y-lat;
+            double rLo = aLo+bLo*x+(cLo+dLo*x)*y-lon;
+            double jLaX = bLa+dLa*y, jLaY = cLa+dLa*x;
+            double jLoX = bLo+dLo*y, jLoY = cLo+dLo*x;
+            double det = jLaX*jLoY-jLaY*jLoX;
+            if (det==0.0) return false;
+            double dx = (rLa*jLoY-rLo*jLaY)/det;
+            double dy = (rLo*jLaX-rLa*jLoX)/det;
+            x -= dx;
+            y -= dy;
+            if ((Math.abs(dx)<TOLERANCE)&&(Math.abs(dy)<TOLERANCE)) {
+                if ((x<-INSIDE)||(y<-INSIDE)||(x>1+INSIDE)||(y>1+INSIDE)) return false;
+                IJ[0] = i+Math.min(Math.max(x,0.0),1.0);
+                IJ[1] = j+Math.min(Math.max(y,0.0),1.0);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return - the OceanModel the locator was built for
+     */
+    public OceanModel getOceanModel(){
+        return ocean;
+    }
+
+    /**
+     * @return - true if the locator (rather than the OceanModel) is used
+     */
+    public boolean isEnabled(){
+        return enabled;
+    }
+}
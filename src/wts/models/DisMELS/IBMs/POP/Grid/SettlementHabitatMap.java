@@ -0,0 +1,433 @@
+/*
+ * SettlementHabitatMap.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureIterator;
+
+/**
+ * Class providing a precomputed raster of suitable settlement habitat on the
+ * model grid, so settlement eligibility can (usually) be resolved by a single
+ * bit test rather than by comparing interpolated depths against the
+ * settlement depth band.
+ *
+ * Suitable habitat is the part of the grid where the bathymetric depth is within
+ * [minDepth,maxDepth], optionally intersected with habitat polygons (in lon/lat)
+ * read from a shapefile. Each grid cell is classified (2 bits) as
+ * <ul>
+ *  <li> OUT     - no point in the cell is suitable,
+ *  <li> IN      - every point in the cell is suitable,
+ *  <li> PARTIAL - the cell straddles a habitat edge.
+ * </ul>
+ * Because the bathymetric depth is a bilinear patch in each cell (see StaticFieldTable),
+ * its extremes over a cell occur at the corners, so the depth classification is exact.
+ * PARTIAL cells are refined into SUB x SUB sub-cells classified the same way;
+ * only positions in PARTIAL sub-cells (or in cells the StaticFieldTable does not
+ * tabulate) are tested directly. Sub-cell polygons for the GIS test are the
+ * straight-sided quadrilaterals through the sub-cell corners.
+ *
+ * The distance to the nearest suitable habitat is obtained from a precomputed
+ * nearest-habitat-cell index (built on first use), so it costs a lookup and a
+ * flat-earth distance calculation.
+ *
+ * Maps are shared by all individuals (and threads) with the same table, depth
+ * band and habitat file through getInstance(...). The shared maps are held by
+ * table in a weak map, and a map refers to its table weakly, so the maps for a
+ * table that has been replaced (e.g., for a new OceanModel) can be collected
+ * once no individual uses them. The habitat shapefile is given by
+ * the system property "wts.models.DisMELS.IBMs.POP.settlementHabitatFile".
+ *
+ * @author William Stockhausen
+ */
+public final class SettlementHabitatMap {
+
+    /** system property giving the path to the habitat shapefile */
+    public static final String SYSPROP_FILE = "wts.models.DisMELS.IBMs.POP.settlementHabitatFile";
+
+    /** cell (or sub-cell) state: not suitable */
+    public static final int OUT     = 0;
+    /** cell (or sub-cell) state: suitable */
+    public static final int IN      = 1;
+    /** cell (or sub-cell) state: straddles a habitat edge */
+    public static final int PARTIAL = 2;
+
+    /** number of sub-cells (in each direction) for PARTIAL cells */
+    public static final int SUB = 8;
+
+    /** mean radius of the earth (km) */
+    private static final double EARTH_RADIUS = 6371.0;
+
+    /** shared maps, by table (weakly) and depth band and habitat file */
+    private static final Map<StaticFieldTable,Map<String,SettlementHabitatMap>> mapInstances = new WeakHashMap<>(4);
+
+    private static final Logger logger = Logger.getLogger(SettlementHabitatMap.class.getName());
+
+    /** table for static fields (weakly, so the shared maps do not keep it) */
+    private final WeakReference<StaticFieldTable> sftRef;
+    /** min suitable depth (m) */
+    private final double minDepth;
+    /** max suitable depth (m) */
+    private final double maxDepth;
+    /** habitat polygons (null if not used) */
+    private final PreparedGeometry[] habitat;
+    /** factory for test geometries */
+    private final GeometryFactory gf = new GeometryFactory();
+    /** number of cells in the I and J directions */
+    private final int nI, nJ;
+    /** cell states, 2 bits per cell */
+    private final long[] cellBits;
+    /** sorted indices of PARTIAL cells */
+    private final int[] partialCells;
+    /** sub-cell states for the PARTIAL cells, 2 bits per sub-cell (2 longs per cell) */
+    private final long[] subBits;
+    /** index of the nearest non-OUT cell for each cell (built on first use) */
+    private volatile int[] nearestHabitat = null;
+
+    /**
+     * Returns the shared map for the interpolator, depth band and habitat file
+     * (if any), building it if necessary.
+     *
+     * @param sft      - table for static fields
+     * @param minDepth - min suitable depth (m)
+     * @param maxDepth - max suitable depth (m)
+     * @return - the map
+     */
+    public static SettlementHabitatMap getInstance(StaticFieldTable sft, double minDepth, double maxDepth){
+        String file = System.getProperty(SYSPROP_FILE);
+        String key = minDepth+"|"+maxDepth+"|"+file;
+        synchronized(mapInstances){
+            Map<String,SettlementHabitatMap> maps = mapInstances.get(sft);
+            if (maps==null){
+                maps = new HashMap<>(4);
+                mapInstances.put(sft,maps);
+            }
+            SettlementHabitatMap shm = maps.get(key);
+            if (shm==null){
+                shm = new SettlementHabitatMap(sft,minDepth,maxDepth,readHabitat(file));
+                maps.put(key,shm);
+            }
+            return shm;
+        }
+    }
+
+    /**
+     * Creates a new map. Use getInstance(...) to share maps.
+     *
+     * @param sft      - table for static fields
+     * @param minDepth - min suitable depth (m)
+     * @param maxDepth - max suitable depth (m)
+     * @param habitat  - habitat polygons in lon/lat (null to use depth only)
+     */
+    public SettlementHabitatMap(StaticFieldTable sft, double minDepth, double maxDepth, List<Geometry> habitat){
+        this.sftRef   = new WeakReference<>(sft);
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        if (habitat!=null){
+            this.habitat = new PreparedGeometry[habitat.size()];
+            for (int n=0;n<this.habitat.length;n++)
+                this.habitat[n] = PreparedGeometryFactory.prepare(habitat.get(n));
+        } else {
+            this.habitat = null;
+        }
+        nI = sft.getNumCellsI();
+        nJ = sft.getNumCellsJ();
+        cellBits = new long[(nI*nJ+31)/32];
+        List<Integer> lstPartial = new ArrayList<>();
+        List<long[]>  lstSub     = new ArrayList<>();
+        for (int j=0;j<nJ;j++){
+            for (int i=0;i<nI;i++){
+                int cell = j*nI+i;
+                int state = PARTIAL;//cells not in the table are always tested directly
+                if (sft.isCellTabulated(i,j)) state = classify(i,j,0.0,1.0,0.0,1.0);
+                setState(cellBits,cell,state);
+                if (state==PARTIAL){
+                    long[] sub = new long[2];
+                    double d = 1.0/SUB;
+                    for (int sj=0;sj<SUB;sj++){
+                        for (int si=0;si<SUB;si++){
+                            int s = PARTIAL;
+                            if (sft.isCellTabulated(i,j)) s = classify(i,j,si*d,(si+1)*d,sj*d,(sj+1)*d);
+                            setState(sub,sj*SUB+si,s);
+                        }
+                    }
+                    lstPartial.add(cell);
+                    lstSub.add(sub);
+                }
+            }
+        }
+        partialCells = new int[lstPartial.size()];
+        subBits = new long[2*lstPartial.size()];
+        for (int n=0;n<partialCells.length;n++){
+            partialCells[n] = lstPartial.get(n);
+            subBits[2*n]   = lstSub.get(n)[0];
+            subBits[2*n+1] = lstSub.get(n)[1];
+        }
+        logger.info("Built settlement habitat map for depths ["+minDepth+","+maxDepth+"] m"+
+                    ((habitat!=null)?" and habitat polygons":"")+": "+
+                    partialCells.length+" of "+(nI*nJ)+" cells are partial.");
+    }
+
+    /**
+     * Reads habitat polygons from a shapefile.
+     *
+     * @param file - path to the shapefile (null for none)
+     * @return - the polygons, or null
+     */
+    private static List<Geometry> readHabitat(String file){
+        if (file==null) return null;
+        List<Geometry> geoms = new ArrayList<>();
+        try {
+            FileDataStore store = FileDataStoreFinder.getDataStore(new File(file));
+            SimpleFeatureIterator it = store.getFeatureSource().getFeatures().features();
+            try {
+                while (it.hasNext()) geoms.add((Geometry) it.next().getDefaultGeometry());
+            } finally {
+                it.close();
+                store.dispose();
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.warning("Could not read settlement habitat from "+file+": "+ex.getMessage()+
+                           ". Using settlement depths only.");
+            return null;
+        }
+        return geoms;
+    }
+
+    /**
+     * Classifies a (sub-)cell of cell (i,j) spanning [x0,x1]x[y0,y1] in fractional cell coordinates.
+     */
+    private int classify(int i, int j, double x0, double x1, double y0, double y1){
+        StaticFieldTable sft = table();
+        double h00 = sft.evaluate(StaticFieldTable.FIELD_H,i,j,x0,y0);
+        double h10 = sft.evaluate(StaticFieldTable.FIELD_H,i,j,x1,y0);
+        double h01 = sft.evaluate(StaticFieldTable.FIELD_H,i,j,x0,y1);
+        double h11 = sft.evaluate(StaticFieldTable.FIELD_H,i,j,x1,y1);
+        double hMin = Math.min(Math.min(h00,h10),Math.min(h01,h11));
+        double hMax = Math.max(Math.max(h00,h10),Math.max(h01,h11));
+        if ((hMax<minDepth)||(hMin>maxDepth)) return OUT;
+        int state = ((minDepth<=hMin)&&(hMax<=maxDepth)) ? IN : PARTIAL;
+        if (habitat!=null){
+            Coordinate[] c = new Coordinate[5];
+            c[0] = lonLat(i,j,x0,y0); c[1] = lonLat(i,j,x1,y0);
+            c[2] = lonLat(i,j,x1,y1); c[3] = lonLat(i,j,x0,y1); c[4] = c[0];
+            Geometry quad = gf.createPolygon(gf.createLinearRing(c),null);
+            boolean inside = false, touches = false;
+            for (PreparedGeometry pg: habitat){
+                if (pg.contains(quad)) {inside = true; break;}
+                if (pg.intersects(quad)) touches = true;
+            }
+            if (!inside&&!touches) return OUT;
+            if (!inside) state = PARTIAL;
+        }
+        return state;
+    }
+
+    private Coordinate lonLat(int i, int j, double x, double y){
+        StaticFieldTable sft = table();
+        return new Coordinate(sft.evaluate(StaticFieldTable.FIELD_LON,i,j,x,y),
+                              sft.evaluate(StaticFieldTable.FIELD_LAT,i,j,x,y));
+    }
+
+    private static void setState(long[] bits, int n, int state){
+        bits[n>>>5] |= ((long)state)<<((n&31)<<1);
+    }
+
+    private static int getState(long[] bits, int n){
+        return (int)((bits[n>>>5]>>>((n&31)<<1))&3L);
+    }
+
+    /**
+     * Tests whether a position is in suitable settlement habitat.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - true if the position is suitable
+     */
+    public boolean isSuitable(double[] pos){
+        double I = pos[0], J = pos[1];
+        if ((I>=0)&&(J>=0)&&(I<nI)&&(J<nJ)){
+            int i = (int) I;
+            int j = (int) J;
+            int cell = j*nI+i;
+            int state = getState(cellBits,cell);
+            if (state!=PARTIAL) return state==IN;
+            int n = Arrays.binarySearch(partialCells,cell);
+            int sub = ((int)((J-j)*SUB))*SUB+(int)((I-i)*SUB);
+            state = (int)((subBits[2*n+(sub>>>5)]>>>((sub&31)<<1))&3L);
+            if (state!=PARTIAL) return state==IN;
+        }
+        return isSuitableDirect(pos);
+    }
+
+    /**
+     * Tests whether a position is in suitable settlement habitat by
+     * interpolating the depth (and testing the polygons) at the position.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - true if the position is suitable
+     */
+    public boolean isSuitableDirect(double[] pos){
+        StaticFieldTable sft = table();
+        double h = sft.interpolateBathymetricDepth(pos);
+        if (!((minDepth<=h)&&(h<=maxDepth))) return false;
+        if (habitat==null) return true;
+        Geometry pt = gf.createPoint(new Coordinate(sft.interpolateLon(pos),sft.interpolateLat(pos)));
+        for (PreparedGeometry pg: habitat) if (pg.contains(pt)) return true;
+        return false;
+    }
+
+    /**
+     * Returns the approximate distance from a position to the nearest suitable
+     * habitat: 0 if the position is suitable, otherwise the distance to the center
+     * of the nearest cell containing suitable habitat (so it is accurate to about
+     * half a grid cell). Returns infinity if there is no suitable habitat on the grid.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - distance (km)
+     */
+    public double getDistanceToHabitat(double[] pos){
+        StaticFieldTable sft = table();
+        if (isSuitable(pos)) return 0.0;
+        double I = Math.min(Math.max(pos[0],0),nI-1.0e-9);
+        double J = Math.min(Math.max(pos[1],0),nJ-1.0e-9);
+        int[] nearest = getNearestHabitat();
+        if (nearest.length==0) return Double.POSITIVE_INFINITY;
+        int src = nearest[((int)J)*nI+(int)I];
+        if (src<0) return Double.POSITIVE_INFINITY;
+        double[] c = cellCenter(src);
+        return distance(sft.interpolateLat(pos),sft.interpolateLon(pos),c[0],c[1]);
+    }
+
+    /**
+     * Returns the grid cell (I,J) center of the nearest cell containing suitable
+     * habitat, or null if there is none.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - double[]{I,J} of the cell center, or null
+     */
+    public double[] getNearestHabitatCell(double[] pos){
+        double I = Math.min(Math.max(pos[0],0),nI-1.0e-9);
+        double J = Math.min(Math.max(pos[1],0),nJ-1.0e-9);
+        int[] nearest = getNearestHabitat();
+        if (nearest.length==0) return null;
+        int src = nearest[((int)J)*nI+(int)I];
+        if (src<0) return null;
+        return new double[]{(src%nI)+0.5,(src/nI)+0.5};
+    }
+
+    /**
+     * Builds (on first use) the index of the nearest non-OUT cell for each cell
+     * by propagating nearest sources outward from the habitat cells in order of
+     * distance (a Dijkstra-style sweep over the 8-connected cell graph in which
+     * each cell inherits its neighbour's source if that is closer).
+     */
+    private int[] getNearestHabitat(){
+        int[] nearest = nearestHabitat;
+        if (nearest!=null) return nearest;
+        synchronized(this){
+            if (nearestHabitat!=null) return nearestHabitat;
+            int n = nI*nJ;
+            nearest = new int[n];
+            final double[] dist = new double[n];
+            double[][] centers = new double[n][];
+            for (int c=0;c<n;c++) centers[c] = cellCenter(c);
+            Arrays.fill(nearest,-1);
+            Arrays.fill(dist,Double.POSITIVE_INFINITY);
+            PriorityQueue<double[]> queue = new PriorityQueue<>(Math.max(16,n/16),
+                    new java.util.Comparator<double[]>(){
+                        @Override
+                        public int compare(double[] a, double[] b){return Double.compare(a[0],b[0]);}
+                    });
+            for (int c=0;c<n;c++){
+                if (getState(cellBits,c)!=OUT){
+                    nearest[c] = c; dist[c] = 0.0;
+                    queue.add(new double[]{0.0,c});
+                }
+            }
+            while (!queue.isEmpty()){
+                double[] e = queue.poll();
+                int c = (int) e[1];
+                if (e[0]>dist[c]) continue;//stale entry
+                int ci = c%nI, cj = c/nI;
+                double[] s = centers[nearest[c]];
+                for (int dj=-1;dj<=1;dj++){
+                    for (int di=-1;di<=1;di++){
+                        int ni = ci+di, nj = cj+dj;
+                        if ((ni<0)||(nj<0)||(ni>=nI)||(nj>=nJ)) continue;
+                        int nc = nj*nI+ni;
+                        double d = distance(centers[nc][0],centers[nc][1],s[0],s[1]);
+                        if (d<dist[nc]){
+                            dist[nc] = d;
+                            nearest[nc] = nearest[c];
+                            queue.add(new double[]{d,nc});
+                        }
+                    }
+                }
+            }
+            nearestHabitat = nearest;
+            return nearest;
+        }
+    }
+
+    /** returns {lat,lon} of the center of a cell */
+    private double[] cellCenter(int cell){
+        StaticFieldTable sft = table();
+        int i = cell%nI, j = cell/nI;
+        if (sft.isCellTabulated(i,j))
+            return new double[]{sft.evaluate(StaticFieldTable.FIELD_LAT,i,j,0.5,0.5),
+                                sft.evaluate(StaticFieldTable.FIELD_LON,i,j,0.5,0.5)};
+        double[] pos = new double[]{i+0.5,j+0.5,0};
+        return new double[]{sft.interpolateLat(pos),sft.interpolateLon(pos)};
+    }
+
+    /** flat-earth (equirectangular) distance (km) between two lat/lon points */
+    private static double distance(double lat1, double lon1, double lat2, double lon2){
+        double dLon = lon2-lon1;
+        if (dLon>180) dLon -= 360; else if (dLon<-180) dLon += 360;
+        double x = Math.toRadians(dLon)*Math.cos(Math.toRadians(0.5*(lat1+lat2)));
+        double y = Math.toRadians(lat2-lat1);
+        return EARTH_RADIUS*Math.sqrt(x*x+y*y);
+    }
+
+    /** the table (still referenced by the individual using the map) */
+    private StaticFieldTable table(){
+        return sftRef.get();
+    }
+
+    /**
+     * @return - the table for static fields the map was built from (null if it
+     *           has been collected)
+     */
+    public StaticFieldTable getStaticFieldTable(){
+        return sftRef.get();
+    }
+
+    /**
+     * Returns the state (OUT, IN or PARTIAL) of a cell.
+     *
+     * @param i - cell index in the I direction
+     * @param j - cell index in the J direction
+     * @return - the state
+     */
+    public int getCellState(int i, int j){
+        return getState(cellBits,j*nI+i);
+    }
+}
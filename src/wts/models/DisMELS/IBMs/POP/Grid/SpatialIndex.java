@@ -0,0 +1,331 @@
+/*
+ * SpatialIndex.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import wts.models.DisMELS.framework.LifeStageInterface;
+
+/**
+ * Class maintaining an index of the live individuals of a POP life stage by
+ * grid cell, updated incrementally as individuals move.
+ *
+ * Grid cells are identified by the rounded (I,J) position, as in the gridCellID
+ * attribute. An individual's entry only moves between cells when its cell changes,
+ * so updating the index for an individual that stays in the same cell costs two
+ * integer comparisons (and takes no lock). Cell occupancy queries are O(1), and
+ * neighborhood queries visit only the cells in the neighborhood.
+ *
+ * Indices are kept per stage class and are only maintained if the system property
+ * "wts.models.DisMELS.IBMs.POP.spatialIndex" is true (getInstance(...) returns
+ * null otherwise). Cells are guarded by striped locks (by cell key), so individuals
+ * may be stepped in parallel and only contend when they move into or out of cells
+ * sharing a lock. Queries lock one cell at a time, so a query spanning several
+ * cells made while individuals are moving is not a consistent snapshot.
+ *
+ * The indices live as long as the stage classes, so they are cleared at the start
+ * of each model run (see PopModelRun), dropping the individuals of the previous run.
+ *
+ * @author William Stockhausen
+ */
+public final class SpatialIndex {
+
+    /** system property to enable the indices */
+    public static final String SYSPROP_ENABLE = "wts.models.DisMELS.IBMs.POP.spatialIndex";
+
+    /** stride used to form cell keys from the (I,J) indices */
+    private static final int STRIDE = 1<<15;
+    /** number of lock stripes (a power of 2) */
+    private static final int NUM_LOCKS = 64;
+
+    /**
+     * Interface for visiting the individuals in a neighborhood.
+     */
+    public static interface Visitor {
+        /**
+         * Visits an individual.
+         *
+         * @param lhs - the individual
+         * @param i   - I index of its cell
+         * @param j   - J index of its cell
+         * @return - false to stop the iteration
+         */
+        public boolean visit(LifeStageInterface lhs, int i, int j);
+    }
+
+    /**
+     * Class for an individual's entry in the index. Individuals hold on to their
+     * entry and pass it back to update(...) and remove(...).
+     */
+    public static final class Entry {
+        private final LifeStageInterface owner;
+        private int i = Integer.MIN_VALUE;
+        private int j = Integer.MIN_VALUE;
+        private Bucket bucket = null;
+        private int slot = -1;
+        private Entry(LifeStageInterface owner){this.owner = owner;}
+        /** @return - I index of the individual's cell */
+        public int getI(){return i;}
+        /** @return - J index of the individual's cell */
+        public int getJ(){return j;}
+        /**
+         * Tests whether the entry is indexed at the cell for a position, in which
+         * case update(...) does nothing. Only the owning individual's thread
+         * changes the entry, so it can call this without locking the index.
+         *
+         * @param pos - position in grid (I,J[,K]) coordinates
+         * @return - true if indexed at the position's cell
+         */
+        public boolean isAt(double[] pos){
+            return (bucket!=null)&&(i==(int) Math.round(pos[0]))&&(j==(int) Math.round(pos[1]));
+        }
+    }
+
+    /** entries in a cell */
+    private static final class Bucket {
+        private Entry[] entries = new Entry[4];
+        private int size = 0;
+        private void add(Entry e){
+            if (size==entries.length){
+                Entry[] a = new Entry[2*size];
+                System.arraycopy(entries,0,a,0,size);
+                entries = a;
+            }
+            e.bucket = this;
+            e.slot   = size;
+            entries[size++] = e;
+        }
+        private void remove(Entry e){
+            Entry last = entries[--size];
+            entries[e.slot] = last;
+            last.slot = e.slot;
+            entries[size] = null;
+            e.bucket = null;
+            e.slot   = -1;
+        }
+    }
+
+    /** indices by stage class name */
+    private static final Map<String,SpatialIndex> mapInstances = new HashMap<>(8);
+
+    /** buckets by cell key (a cell's bucket is added and removed under its lock) */
+    private final Map<Integer,Bucket> buckets = new ConcurrentHashMap<>(1024);
+    /** lock stripes, by cell key */
+    private final Object[] locks = new Object[NUM_LOCKS];
+    /** stage the index is for */
+    private final String stageName;
+    /** number of individuals in the index */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Returns the index for a life stage, or null if indices are not enabled.
+     *
+     * @param stageClass - the life stage class
+     * @return - the index, or null
+     */
+    public static synchronized SpatialIndex getInstance(Class<?> stageClass){
+        if (!Boolean.getBoolean(SYSPROP_ENABLE)) return null;
+        SpatialIndex si = mapInstances.get(stageClass.getName());
+        if (si==null){
+            si = new SpatialIndex(stageClass.getSimpleName());
+            mapInstances.put(stageClass.getName(),si);
+        }
+        return si;
+    }
+
+    /**
+     * Removes all individuals from the indices for all stages. Call when no
+     * individuals are being stepped (e.g., between model runs).
+     */
+    public static synchronized void clearAll(){
+        for (SpatialIndex si: mapInstances.values()) si.clear();
+    }
+
+    private SpatialIndex(String stageName){
+        this.stageName = stageName;
+        for (int n=0;n<NUM_LOCKS;n++) locks[n] = new Object();
+    }
+
+    private static int key(int i, int j){
+        return i*STRIDE+j;
+    }
+
+    /** index of the lock stripe for a cell key */
+    private static int stripe(int k){
+        k ^= (k>>>16);
+        k *= 0x45d9f3b;
+        return (k^(k>>>16))&(NUM_LOCKS-1);
+    }
+
+    /** removes an entry from its bucket; the caller holds the bucket's cell lock */
+    private void removeFromBucket(Entry e){
+        Bucket b = e.bucket;
+        b.remove(e);
+        if (b.size==0) buckets.remove(key(e.i,e.j));
+    }
+
+    /** adds an entry to the bucket for cell (i,j); the caller holds the cell's lock */
+    private void addToBucket(Entry e, int i, int j){
+        int k = key(i,j);
+        Bucket b = buckets.get(k);
+        if (b==null){
+            b = new Bucket();
+            buckets.put(k,b);
+        }
+        e.i = i;
+        e.j = j;
+        b.add(e);
+    }
+
+    /**
+     * Adds an individual to the index, or moves it to the cell at a new position.
+     *
+     * @param entry - the individual's current entry (null if not yet indexed)
+     * @param lhs   - the individual
+     * @param pos   - the individual's position in grid (I,J[,K]) coordinates
+     * @return - the individual's entry
+     */
+    public Entry update(Entry entry, LifeStageInterface lhs, double[] pos){
+        if ((entry!=null)&&entry.isAt(pos)) return entry;//same cell: no lock needed
+        int i = (int) Math.round(pos[0]);
+        int j = (int) Math.round(pos[1]);
+        int sNew = stripe(key(i,j));
+        if ((entry==null)||(entry.bucket==null)){
+            if (entry==null) entry = new Entry(lhs);
+            synchronized(locks[sNew]){
+                addToBucket(entry,i,j);
+            }
+            size.incrementAndGet();
+            return entry;
+        }
+        int sOld = stripe(key(entry.i,entry.j));
+        //take the two cells' locks in stripe order, so moves in opposite directions cannot deadlock
+        Object first  = locks[Math.min(sOld,sNew)];
+        Object second = locks[Math.max(sOld,sNew)];
+        synchronized(first){
+            synchronized(second){
+                removeFromBucket(entry);
+                addToBucket(entry,i,j);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Removes an individual from the index.
+     *
+     * @param entry - the individual's entry (may be null)
+     */
+    public void remove(Entry entry){
+        if ((entry==null)||(entry.bucket==null)) return;
+        synchronized(locks[stripe(key(entry.i,entry.j))]){
+            removeFromBucket(entry);
+        }
+        size.decrementAndGet();
+    }
+
+    /**
+     * Removes all individuals from the index. Their entries are detached, so
+     * removing them later does nothing, and updating them adds them again.
+     * Call when no individuals are being stepped.
+     */
+    public void clear(){
+        for (Map.Entry<Integer,Bucket> me: buckets.entrySet()){
+            synchronized(locks[stripe(me.getKey())]){
+                Bucket b = me.getValue();
+                for (int n=0;n<b.size;n++){
+                    b.entries[n].bucket = null;
+                    b.entries[n].slot   = -1;
+                    b.entries[n] = null;
+                }
+                b.size = 0;
+                buckets.remove(me.getKey());
+            }
+        }
+        size.set(0);
+    }
+
+    /**
+     * Returns the number of individuals in a cell.
+     *
+     * @param i - I index of the cell
+     * @param j - J index of the cell
+     * @return - number of individuals
+     */
+    public int getCount(int i, int j){
+        int k = key(i,j);
+        synchronized(locks[stripe(k)]){
+            Bucket b = buckets.get(k);
+            return (b==null) ? 0 : b.size;
+        }
+    }
+
+    /**
+     * Returns the number of individuals in the index.
+     *
+     * @return - number of individuals
+     */
+    public int size(){
+        return size.get();
+    }
+
+    /**
+     * Returns the number of occupied cells.
+     *
+     * @return - number of cells
+     */
+    public int getNumOccupiedCells(){
+        return buckets.size();
+    }
+
+    /**
+     * Visits the individuals in the cells within a (square) neighborhood
+     * of cell (i,j). The visitor must not update the index.
+     *
+     * @param i       - I index of the center cell
+     * @param j       - J index of the center cell
+     * @param radius  - neighborhood radius (in cells; 0 = the cell only)
+     * @param visitor - the visitor
+     */
+    public void visitNeighborhood(int i, int j, int radius, Visitor visitor){
+        for (int jj=j-radius;jj<=j+radius;jj++){
+            for (int ii=i-radius;ii<=i+radius;ii++){
+                int k = key(ii,jj);
+                synchronized(locks[stripe(k)]){
+                    Bucket b = buckets.get(k);
+                    if (b==null) continue;
+                    for (int n=0;n<b.size;n++){
+                        if (!visitor.visit(b.entries[n].owner,ii,jj)) return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits all individuals in the index, cell by cell. The visitor must not
+     * update the index.
+     *
+     * @param visitor - the visitor
+     */
+    public void visitAll(Visitor visitor){
+        for (Map.Entry<Integer,Bucket> me: buckets.entrySet()){
+            synchronized(locks[stripe(me.getKey())]){
+                Bucket b = me.getValue();
+                for (int n=0;n<b.size;n++){
+                    Entry e = b.entries[n];
+                    if (!visitor.visit(e.owner,e.i,e.j)) return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "SpatialIndex for "+stageName+": "+size()+" individuals in "+getNumOccupiedCells()+" cells";
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * StaticFieldTable.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+
+/**
+ * Class providing fast interpolation of the time-invariant 2D grid fields
+ * used by the POP life stages every time step: bathymetric depth (h),
+ * latitude and longitude.
+ *
+ * For each grid cell [i,i+1]x[j,j+1] the table holds the coefficients of the
+ * bilinear patch
+ * <pre>
+ *   v(x,y) = a + b*x + c*y + d*x*y,   x = I-i, y = J-j
+ * </pre>
+ * for each field, built once from the values the OceanModel returns at the
+ * grid nodes. An interpolation is then a cell lookup and a few multiply-adds.
+ * The coefficients for the 3 fields of a cell are stored together, so the fields
+ * at a position share the same cache lines.
+ *
+ * When the table is built, the patch for every cell is checked against the
+ * OceanModel at the cell center. Cells where the two disagree (e.g., because
+ * the interpolator masks land points, or longitude wraps across the dateline)
+ * are flagged, and positions in them (or outside the table) are interpolated
+ * directly by the OceanModel.
+ *
+ * The table is shared by all individuals (and threads) through getInstance(ocean),
+ * and is rebuilt if the OceanModel changes. It can be disabled by setting
+ * the system property "wts.models.DisMELS.IBMs.POP.useStaticFieldTable" to false.
+ *
+ * @author William Stockhausen
+ */
+public final class StaticFieldTable {
+
+    /** system property to disable the table */
+    public static final String SYSPROP_USE = "wts.models.DisMELS.IBMs.POP.useStaticFieldTable";
+
+    /** index of bathymetric depth in the table */
+    public static final int FIELD_H   = 0;
+    /** index of latitude in the table */
+    public static final int FIELD_LAT = 1;
+    /** index of longitude in the table */
+    public static final int FIELD_LON = 2;
+    /** number of fields in the table */
+    public static final int NUM_FIELDS = 3;
+
+    /** tolerances for the cell-center check, by field (m, deg, deg) */
+    private static final double[] TOLERANCE = new double[]{1.0E-3,1.0E-7,1.0E-7};
+
+    /** the shared table */
+    private static volatile StaticFieldTable instance = null;
+
+    private static final Logger logger = Logger.getLogger(StaticFieldTable.class.getName());
+
+    /** the ocean model the table was built from */
+    private final OceanModel ocean;
+    /** max node index in the I direction */
+    private final int maxI;
+    /** max node index in the J direction */
+    private final int maxJ;
+    /** coefficients, by cell (j*maxI+i), field and coefficient (a,b,c,d) */
+    private final double[] coeffs;
+    /** flags indicating the cell's patch agrees with the ocean model */
+    private final boolean[] valid;
+    /** flag indicating the table is used */
+    private final boolean enabled;
+
+    /**
+     * Returns the shared table for the ocean model, building it if necessary.
+     *
+     * @param ocean - the OceanModel
+     * @return - the table
+     */
+    public static StaticFieldTable getInstance(OceanModel ocean){
+        StaticFieldTable sft = instance;
+        if ((sft==null)||(sft.ocean!=ocean)){
+            synchronized(StaticFieldTable.class){
+                sft = instance;
+                if ((sft==null)||(sft.ocean!=ocean)){
+                    sft = new StaticFieldTable(ocean);
+                    instance = sft;
+                }
+            }
+        }
+        return sft;
+    }
+
+    private StaticFieldTable(OceanModel ocean){
+        this.ocean = ocean;
+        boolean use = Boolean.parseBoolean(System.getProperty(SYSPROP_USE,"true"));
+        int mI = 0, mJ = 0;
+        if (use&&(ocean!=null)){
+            mI = ocean.getL();
+            mJ = ocean.getM();
+        }
+        enabled = use&&(mI>0)&&(mJ>0);
+        maxI = enabled ? mI : 0;
+        maxJ = enabled ? mJ : 0;
+        coeffs = new double[maxI*maxJ*NUM_FIELDS*4];
+        valid  = new boolean[maxI*maxJ];
+        if (enabled) buildTable();
+    }
+
+    /**
+     * Builds the table from the node values and checks each cell's patch
+     * at the cell center.
+     */
+    private void buildTable(){
+        double[][] nodes = new double[NUM_FIELDS][(maxI+1)*(maxJ+1)];
+        double[] pos = new double[3];
+        for (int j=0;j<=maxJ;j++){
+            for (int i=0;i<=maxI;i++){
+                pos[0] = i; pos[1] = j;
+                int n = j*(maxI+1)+i;
+                for (int f=0;f<NUM_FIELDS;f++) nodes[f][n] = direct(f,pos);
+            }
+        }
+        int nInvalid = 0;
+        for (int j=0;j<maxJ;j++){
+            for (int i=0;i<maxI;i++){
+                int cell = j*maxI+i;
+                int n00 = j*(maxI+1)+i;
+                int n10 = n00+1;
+                int n01 = n00+maxI+1;
+                int n11 = n01+1;
+                boolean ok = true;
+                pos[0] = i+0.5; pos[1] = j+0.5;
+                for (int f=0;f<NUM_FIELDS;f++){
+                    double v00 = nodes[f][n00], v10 = nodes[f][n10];
+                    double v01 = nodes[f][n01], v11 = nodes[f][n11];
+                    int k = (cell*NUM_FIELDS+f)*4;
+                    coeffs[k]   = v00;
+                    coeffs[k+1] = v10-v00;
+                    coeffs[k+2] = v01-v00;
+                    coeffs[k+3] = v11-v10-v01+v00;
+                    double t = evaluate(k,0.5,0.5);
+                    double y = direct(f,pos);
+                    if (!(Math.abs(t-y)<=TOLERANCE[f])) ok = false;//also catches NaNs
+                }
+                valid[cell] = ok;
+                if (!ok) nInvalid++;
+            }
+        }
+        logger.info("Built static field table for "+maxI+" x "+maxJ+" cells ("+
+                    nInvalid+" cells use direct interpolation).");
+    }
+
+    private double direct(int field, double[] pos){
+        if (field==FIELD_H)   return ocean.interpolateBathymetricDepth(pos);
+        if (field==FIELD_LAT) return ocean.interpolateLat(pos);
+        return ocean.interpolateLon(pos);
+    }
+
+    private double evaluate(int k, double x, double y){
+        return coeffs[k]+coeffs[k+1]*x+(coeffs[k+2]+coeffs[k+3]*x)*y;
+    }
+
+    /**
+     * Interpolates a field at a position.
+     *
+     * @param field - field index (FIELD_H, FIELD_LAT or FIELD_LON)
+     * @param pos   - position in grid (I,J[,K]) coordinates
+     * @return - interpolated value
+     */
+    public double interpolate(int field, double[] pos){
+        double I = pos[0], J = pos[1];
+        if (enabled&&(I>=0)&&(J>=0)&&(I<maxI)&&(J<maxJ)){
+            int i = (int) I;
+            int j = (int) J;
+            int cell = j*maxI+i;
+            if (valid[cell]) return evaluate((cell*NUM_FIELDS+field)*4,I-i,J-j);
+        }
+        return direct(field,pos);
+    }
+
+    /**
+     * Interpolates a field at a position located by a CellCursor. This gives
+     * the same value as interpolate(field,pos), without looking up the cell.
+     *
+     * @param field  - field index (FIELD_H, FIELD_LAT or FIELD_LON)
+     * @param cursor - cursor located at pos (see CellCursor.locate(...))
+     * @param pos    - position in grid (I,J[,K]) coordinates
+     * @return - interpolated value
+     */
+    public double interpolate(int field, CellCursor cursor, double[] pos){
+        if ((cursor.base>=0)&&(cursor.table==this)) return evaluate(cursor.base+field*4,cursor.x,cursor.y);
+        return direct(field,pos);
+    }
+
+    /**
+     * Returns the offset of a cell's coefficients in the table, or -1 if
+     * positions in the cell are not interpolated from the table.
+     *
+     * @param i - cell index in the I direction
+     * @param j - cell index in the J direction
+     * @return - the offset, or -1
+     */
+    int getCellBase(int i, int j){
+        return isCellTabulated(i,j) ? (j*maxI+i)*NUM_FIELDS*4 : -1;
+    }
+
+    /**
+     * Interpolates bathymetric depth (positive, m) at a position.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - bathymetric depth
+     */
+    public double interpolateBathymetricDepth(double[] pos){
+        return interpolate(FIELD_H,pos);
+    }
+
+    /**
+     * Interpolates latitude at a position.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - latitude (deg N)
+     */
+    public double interpolateLat(double[] pos){
+        return interpolate(FIELD_LAT,pos);
+    }
+
+    /**
+     * Interpolates longitude at a position.
+     *
+     * @param pos - position in grid (I,J[,K]) coordinates
+     * @return - longitude (deg E)
+     */
+    public double interpolateLon(double[] pos){
+        return interpolate(FIELD_LON,pos);
+    }
+
+    /**
+     * Evaluates the bilinear patch for a field in a tabulated cell.
+     * The result is only meaningful if isCellTabulated(i,j) is true.
+     *
+     * @param field - field index (FIELD_H, FIELD_LAT or FIELD_LON)
+     * @param i     - cell index in the I direction
+     * @param j     - cell index in the J direction
+     * @param x     - fractional position in the cell in the I direction (0-1)
+     * @param y     - fractional position in the cell in the J direction (0-1)
+     * @return - value of the patch
+     */
+    public double evaluate(int field, int i, int j, double x, double y){
+        return evaluate(((j*maxI+i)*NUM_FIELDS+field)*4,x,y);
+    }
+
+    /**
+     * Tests whether positions in a cell are interpolated from the table.
+     *
+     * @param i - cell index in the I direction
+     * @param j - cell index in the J direction
+     * @return - true if the cell's patch is used
+     */
+    public boolean isCellTabulated(int i, int j){
+        return enabled&&(i>=0)&&(j>=0)&&(i<maxI)&&(j<maxJ)&&valid[j*maxI+i];
+    }
+
+    /**
+     * @return - number of cells in the table in the I direction
+     */
+    public int getNumCellsI(){
+        return maxI;
+    }
+
+    /**
+     * @return - number of cells in the table in the J direction
+     */
+    public int getNumCellsJ(){
+        return maxJ;
+    }
+
+    /**
+     * @return - the OceanModel the table was built from
+     */
+    public OceanModel getOceanModel(){
+        return ocean;
+    }
+
+    /**
+     * @return - true if the table (rather than the OceanModel) is used
+     */
+    public boolean isEnabled(){
+        return enabled;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * VerticalGridCache.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+
+/**
+ * Class caching the depths of the vertical (s-coordinate) levels at the grid
+ * nodes, for fast conversion between depth and vertical grid coordinate K.
+ *
+ * The first time a node is needed in a time frame of the OceanModel, the depths
+ * z(k) of its levels k = 0..N are computed by the OceanModel (which reconstructs
+ * the column from the bathymetry, SSH and stretching parameters) and stored.
+ * calcZfromK(...) then interpolates linearly between the cached levels and
+ * bilinearly between the 4 nodes around the position; calcKfromZ(...)
+ * interpolates the column at the position the same way and inverts it by
+ * binary search. The columns are keyed by the frame the OceanModel holds
+ * (OceanModel.getFrameTime()), so they are recomputed when the SSH advances to
+ * the next frame, and requests for model times outside that frame (later than
+ * the frame time plus the frame interval) are converted directly by the OceanModel.
+ *
+ * The s-coordinate depths are not bilinear in I and J where the bathymetry
+ * varies, so the interpolated columns are checked against the OceanModel: each
+ * node's column halfway between two levels (to TOLERANCE), and each grid cell's
+ * interpolated column at the cell centre, where the interpolation error is
+ * largest, halfway between all levels (to half the TOLERANCE, as a margin for
+ * the rest of the cell). Columns and cells that disagree (e.g., at masked land
+ * nodes, or over steep bathymetry) are flagged for the frame, and positions in
+ * them are converted directly by the OceanModel.
+ *
+ * The cache is enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.zCacheInterval" to the length (s) of the
+ * ocean model's time frames (e.g., 3600 for hourly ROMS output; "Infinity"
+ * for an ocean with constant SSH). For ROMS runs, the time of the current frame
+ * is given through OceanModels.setRomsFrames(...); until it is, the OceanModel
+ * is used directly. The frame must only change between time steps. The cache is
+ * shared by all individuals (and threads) through getInstance(ocean), and is
+ * rebuilt if the OceanModel changes.
+ *
+ * @author William Stockhausen
+ */
+public final class VerticalGridCache {
+
+    /** system property giving the time frame interval (s) */
+    public static final String SYSPROP_INTERVAL = "wts.models.DisMELS.IBMs.POP.zCacheInterval";
+
+    /** tolerance (m) for the column and cell checks */
+    public static final double TOLERANCE = 1.0E-2;
+
+    /** the shared cache */
+    private static volatile VerticalGridCache instance = null;
+
+    private static final Logger logger = Logger.getLogger(VerticalGridCache.class.getName());
+
+    /** the ocean model */
+    private final OceanModel ocean;
+    /** time frame interval (s; NaN if the cache is not used) */
+    private final double interval;
+    /** flag indicating the cache is used */
+    private final boolean enabled;
+    /** number of nodes in I, J and number of layers */
+    private final int nI, nJ, N;
+    /** level depths (m, negative down) by node (j*nI+i) and level */
+    private final double[] z;
+    /**
+     * node states: 2*f+1 if the column was computed for frame f, 2*f+2 if it
+     * failed its check (0 until computed). A state is set after the depths are
+     * written, so a thread reading it also sees the depths.
+     */
+    private final AtomicIntegerArray nodeStates;
+    /** cell (j*(nI-1)+i) states, as for the nodes */
+    private final AtomicIntegerArray cellStates;
+    /** the current frame */
+    private volatile Frame frame = new Frame(Double.NaN,0);
+    /** flag indicating the unknown frame time has been reported */
+    private volatile boolean warned = false;
+
+    /**
+     * A time frame of the OceanModel and its index (counting from 1).
+     */
+    private static final class Frame {
+        private final double time;
+        private final int index;
+        private Frame(double time, int index){
+            this.time  = time;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Returns the shared cache for the ocean model, creating it if necessary.
+     *
+     * @param ocean - the OceanModel
+     * @return - the cache
+     */
+    public static VerticalGridCache getInstance(OceanModel ocean){
+        VerticalGridCache vgc = instance;
+        if ((vgc==null)||(vgc.ocean!=ocean)){
+            synchronized(VerticalGridCache.class){
+                vgc = instance;
+                if ((vgc==null)||(vgc.ocean!=ocean)){
+                    vgc = new VerticalGridCache(ocean);
+                    instance = vgc;
+                }
+            }
+        }
+        return vgc;
+    }
+
+    private VerticalGridCache(OceanModel ocean){
+        this.ocean = ocean;
+        String str = System.getProperty(SYSPROP_INTERVAL);
+        double dt = (str==null) ? Double.NaN : Double.parseDouble(str.trim());
+        enabled  = (ocean!=null)&&(dt>0)&&(ocean.getL()>0)&&(ocean.getM()>0)&&(ocean.getN()>0);
+        interval = enabled ? dt : Double.NaN;
+        nI = enabled ? ocean.getL()+1 : 0;
+        nJ = enabled ? ocean.getM()+1 : 0;
+        N  = enabled ? ocean.getN() : 0;
+        z = new double[enabled ? nI*nJ*(N+1) : 0];
+        nodeStates = new AtomicIntegerArray(nI*nJ);
+        cellStates = new AtomicIntegerArray(enabled ? (nI-1)*(nJ-1) : 0);
+        if (enabled) logger.info("Caching vertical grid for "+nI+" x "+nJ+" nodes, "+
+                                 (N+1)+" levels, time frames of "+interval+" s.");
+    }
+
+    /**
+     * Returns the index of the OceanModel's current frame, or 0 if the frame
+     * time is not known or the model time is not in the frame.
+     */
+    private int frame(double time){
+        double ft = ocean.getFrameTime();
+        if (Double.isNaN(ft)){
+            if (!warned){
+                warned = true;
+                logger.warning("Time frame of the ocean model not known: vertical grid not cached.");
+            }
+            return 0;
+        }
+        if (!(time>=ft)||!(time-ft<=interval)) return 0;
+        Frame f = frame;
+        if (f.time!=ft) f = nextFrame(ft);
+        return f.index;
+    }
+
+    private synchronized Frame nextFrame(double ft){
+        Frame f = frame;
+        if (f.time!=ft){
+            f = new Frame(ft,f.index+1);
+            frame = f;
+        }
+        return f;
+    }
+
+    /** computes the column at a node for frame f, if necessary; returns true if it can be used */
+    private boolean node(int i, int j, int f){
+        int n = j*nI+i;
+        int state = nodeStates.get(n);
+        if (state==2*f+1) return true;
+        if (state==2*f+2) return false;
+        int o = n*(N+1);
+        boolean ok = true;
+        for (int k=0;k<=N;k++) z[o+k] = ocean.calcZfromK(i,j,k);
+        //check halfway between the middle levels
+        int k = (N>1) ? N/2 : 0;
+        double zc = ocean.calcZfromK(i,j,k+0.5);
+        if (!(Math.abs(zc-0.5*(z[o+k]+z[o+k+1]))<=TOLERANCE)) ok = false;//also catches NaNs
+        for (int m=0;ok&&(m<N);m++) if (!(z[o+m+1]>z[o+m])) ok = false;//levels must increase
+        nodeStates.set(n,ok ? 2*f+1 : 2*f+2);
+        return ok;
+    }
+
+    /** checks the cell for frame f, if necessary; returns true if its nodes' columns can be used */
+    private boolean cell(int i, int j, int f){
+        if ((i<0)||(j<0)||(i>=nI-1)||(j>=nJ-1)) return false;
+        int c = j*(nI-1)+i;
+        int state = cellStates.get(c);
+        if (state==2*f+1) return true;
+        if (state==2*f+2) return false;
+        boolean ok = node(i,j,f)&node(i+1,j,f)&node(i,j+1,f)&node(i+1,j+1,f);
+        //check the interpolated column at the cell centre halfway between the levels
+        int o00 = (j*nI+i)*(N+1), o10 = o00+(N+1), o01 = o00+nI*(N+1), o11 = o01+(N+1);
+        for (int k=0;ok&&(k<N);k++){
+            double zt = 0.125*(z[o00+k]+z[o00+k+1]+z[o10+k]+z[o10+k+1]+
+                               z[o01+k]+z[o01+k+1]+z[o11+k]+z[o11+k+1]);
+            if (!(Math.abs(ocean.calcZfromK(i+0.5,j+0.5,k+0.5)-zt)<=0.5*TOLERANCE)) ok = false;
+        }
+        cellStates.set(c,ok ? 2*f+1 : 2*f+2);
+        return ok;
+    }
+
+    /**
+     * Calculates the depth (z, m, negative down) at a position.
+     *
+     * @param I    - grid I coordinate
+     * @param J    - grid J coordinate
+     * @param K    - vertical grid coordinate (0 = bottom, N = surface)
+     * @param time - model time (s)
+     * @return - z
+     */
+    public double calcZfromK(double I, double J, double K, double time){
+        if (enabled&&(K>=0)&&(K<=N)){
+            int i = (int) Math.floor(I), j = (int) Math.floor(J);
+            int f = frame(time);
+            if ((f>0)&&cell(i,j,f)){
+                double x = I-i, y = J-j;
+                int k = Math.min((int) K,N-1);
+                double a = K-k;
+                int o00 = (j*nI+i)*(N+1)+k, o10 = o00+(N+1), o01 = o00+nI*(N+1), o11 = o01+(N+1);
+                double v00 = z[o00]+a*(z[o00+1]-z[o00]), v10 = z[o10]+a*(z[o10+1]-z[o10]);
+                double v01 = z[o01]+a*(z[o01+1]-z[o01]), v11 = z[o11]+a*(z[o11+1]-z[o11]);
+                return (1-y)*((1-x)*v00+x*v10)+y*((1-x)*v01+x*v11);
+            }
+        }
+        return ocean.calcZfromK(I,J,K);
+    }
+
+    /**
+     * Calculates the vertical grid coordinate K at a position, limited to [0,N].
+     *
+     * @param I    - grid I coordinate
+     * @param J    - grid J coordinate
+     * @param zp   - depth (m, negative down)
+     * @param time - model time (s)
+     * @return - K
+     */
+    public double calcKfromZ(double I, double J, double zp, double time){
+        if (enabled){
+            int i = (int) Math.floor(I), j = (int) Math.floor(J);
+            int f = frame(time);
+            if ((f>0)&&cell(i,j,f)){
+                double x = I-i, y = J-j;
+                double w00 = (1-y)*(1-x), w10 = (1-y)*x, w01 = y*(1-x), w11 = y*x;
+                int o00 = (j*nI+i)*(N+1), o10 = o00+(N+1), o01 = o00+nI*(N+1), o11 = o01+(N+1);
+                //binary search for the level interval containing zp
+                int lo = 0, hi = N;
+                double zlo = w00*z[o00]+w10*z[o10]+w01*z[o01]+w11*z[o11];
+                double zhi = w00*z[o00+N]+w10*z[o10+N]+w01*z[o01+N]+w11*z[o11+N];
+                if (zp<=zlo) return 0.0;
+                if (zp>=zhi) return N;
+                while (hi-lo>1){
+                    int mid = (lo+hi)>>>1;
+                    double zm = w00*z[o00+mid]+w10*z[o10+mid]+w01*z[o01+mid]+w11*z[o11+mid];
+                    if (zm<=zp) {lo = mid; zlo = zm;} else {hi = mid; zhi = zm;}
+                }
+                return lo+(zp-zlo)/(zhi-zlo);
+            }
+        }
+        return ocean.calcKfromZ(I,J,zp);
+    }
+
+    /**
+     * @return - the OceanModel the cache is for
+     */
+    public OceanModel getOceanModel(){
+        return ocean;
+    }
+
+    /**
+     * @return - true if the cache (rather than the OceanModel) is used
+     */
+    public boolean isEnabled(){
+        return enabled;
+    }
+}
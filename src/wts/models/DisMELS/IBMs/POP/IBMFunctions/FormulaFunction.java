@@ -0,0 +1,245 @@
+/*
+ * FormulaFunction.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.IBMFunctions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.Logger;
+import org.openide.util.lookup.ServiceProvider;
+import wts.models.DisMELS.IBMs.POP.Codegen.Formula;
+import wts.models.DisMELS.IBMs.POP.Codegen.FormulaCompiler;
+import wts.models.DisMELS.framework.IBMFunctions.AbstractIBMFunction;
+import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
+
+/**
+ * IBM function given by a user-defined formula over an individual's covariates.
+ *
+ * The formula (see FormulaCompiler for the syntax) may use the covariates
+ * <ul>
+ *  <li> dt          - time step (s)
+ *  <li> size        - size of the individual
+ *  <li> temperature - in situ temperature (deg C)
+ *  <li> salinity    - in situ salinity
+ *  <li> depth       - depth of the individual (m, positive)
+ *  <li> romsvar1 ... romsvar5 - the additional ROMS fields
+ * </ul>
+ * The formula is compiled to bytecode when it is set, so evaluating it costs
+ * about the same as a hand-written function. The meaning of its value depends
+ * on the category the function is selected for (e.g., growth rate in size
+ * units/d, mortality rate in 1/d, swimming speed in m/s); the life stages
+ * describe it in their function categories.
+ *
+ * calculate(...) takes the covariates as a double[] in the order of the
+ * COV_... indices and returns the value as a Double. The life stages call
+ * evaluate(dt,size,...), which passes the covariates to the formula in a buffer
+ * the function keeps for each thread, so no array is allocated per evaluation.
+ *
+ * @author William Stockhausen
+ */
+@ServiceProvider(service=IBMFunctionInterface.class)
+public class FormulaFunction extends AbstractIBMFunction implements IBMFunctionInterface {
+
+    /** the function type */
+    public static final String DEFAULT_type = "Generic";
+    /** the default function name */
+    public static final String DEFAULT_name = "Formula";
+    /** the default function description */
+    public static final String DEFAULT_descr = "user-defined formula over the individual's covariates";
+    /** the default full description */
+    public static final String DEFAULT_fullDescr =
+            "\n\t**************************************************************************"+
+            "\n\t* This function evaluates a user-defined formula over the covariates"+
+            "\n\t*     dt, size, temperature, salinity, depth, romsvar1, ..., romsvar5."+
+            "\n\t* Formulas use + - * / ^, parentheses, the constants pi and e, and the"+
+            "\n\t* functions exp, log, log10, sqrt, abs, sin, cos, tan, atan, tanh,"+
+            "\n\t* floor, ceil, signum, pow, min, max and atan2,"+
+            "\n\t* e.g. '0.0256*exp(0.1*temperature)'."+
+            "\n\t* The formula is compiled to bytecode when it is set."+
+            "\n\t**************************************************************************";
+
+    /** number of settable parameters */
+    public static final int numParams = 1;
+    /** number of sub-functions */
+    public static final int numSubFuncs = 0;
+
+    /** key for the formula parameter */
+    public static final String PARAM_formula = "formula";
+
+    /** indices of the covariates */
+    public static final int COV_dt = 0, COV_size = 1, COV_temperature = 2, COV_salinity = 3, COV_depth = 4,
+                            COV_romsvar1 = 5, COV_romsvar2 = 6, COV_romsvar3 = 7, COV_romsvar4 = 8, COV_romsvar5 = 9;
+    /** names of the covariates, by index */
+    public static final String[] COVARIATES = {"dt","size","temperature","salinity","depth",
+                                               "romsvar1","romsvar2","romsvar3","romsvar4","romsvar5"};
+
+    private static final Logger logger = Logger.getLogger(FormulaFunction.class.getName());
+    /** pattern for the names in a formula */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z_0-9]*");
+
+    /** the formula */
+    private String formula = "0";
+    /** the compiled formula */
+    private Formula compiled = FormulaCompiler.compile(formula,COVARIATES);
+    /** names of the covariates the formula uses */
+    private Set<String> covariatesUsed = Collections.emptySet();
+    /** parameter descriptions set by the user (e.g., with units), by parameter key */
+    private final Map<String,String> mapParamDescrs = new LinkedHashMap<>(2);
+    /** covariates buffer for each thread evaluating the function */
+    private final ThreadLocal<double[]> buffer = new ThreadLocal<double[]>(){
+        @Override
+        protected double[] initialValue(){
+            return new double[COVARIATES.length];
+        }
+    };
+
+    /**
+     * Creates a new function with formula "0".
+     */
+    public FormulaFunction(){
+        super(numParams,numSubFuncs,DEFAULT_type,DEFAULT_name,DEFAULT_descr,DEFAULT_fullDescr);
+        addParameter(PARAM_formula,String.class,"formula over dt, size, temperature, salinity, depth, romsvar1-5");
+    }
+
+    @Override
+    public FormulaFunction clone(){
+        FormulaFunction clone = new FormulaFunction();
+        clone.setFunctionName(getFunctionName());
+        clone.setDescription(getDescription());
+        clone.setParameterValue(PARAM_formula,(Object) formula);
+        for (Map.Entry<String,String> e: mapParamDescrs.entrySet())
+            clone.setParameterDescription(e.getKey(),e.getValue());
+        return clone;
+    }
+
+    /**
+     * Sets the description of a parameter. The description is kept so that
+     * clones carry it too.
+     *
+     * @param param - the parameter key
+     * @param descr - the description
+     */
+    @Override
+    public void setParameterDescription(String param, String descr){
+        super.setParameterDescription(param,descr);
+        mapParamDescrs.put(param,descr);
+    }
+
+    /**
+     * Sets a parameter value. The formula is compiled when it is set; a formula
+     * that cannot be parsed is rejected (with a warning) and the previous one kept.
+     *
+     * @param param - the parameter key
+     * @param value - the value
+     * @return - true if the value was set
+     */
+    @Override
+    public boolean setParameterValue(String param, Object value){
+        if (PARAM_formula.equals(param)&&(value!=null)){
+            String f = value.toString();
+            Formula c;
+            try {
+                c = FormulaCompiler.compile(f,COVARIATES);
+            } catch (IllegalArgumentException ex) {
+                logger.warning(ex.getMessage());
+                return false;
+            }
+            if (super.setParameterValue(param,(Object) f)){
+                formula  = f;
+                compiled = c;
+                covariatesUsed = findCovariates(f);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return - the formula
+     */
+    public String getFormula(){
+        return formula;
+    }
+
+    /**
+     * Gets the names of the covariates the formula uses (e.g., so a stage can
+     * check that it samples the environmental fields among them).
+     *
+     * @return - unmodifiable set of covariate names
+     */
+    public Set<String> getCovariatesUsed(){
+        return covariatesUsed;
+    }
+
+    /**
+     * Finds the covariates used in a formula (that has compiled, so every name
+     * in it is a covariate, a constant or a function).
+     */
+    private static Set<String> findCovariates(String f){
+        Set<String> used = new LinkedHashSet<>(4);
+        Matcher m = NAME.matcher(f);
+        while (m.find()){
+            if (Arrays.asList(COVARIATES).contains(m.group())) used.add(m.group());
+        }
+        return Collections.unmodifiableSet(used);
+    }
+
+    /**
+     * Evaluates the formula.
+     *
+     * @param covariates - the covariates, in the order of the COV_... indices
+     * @return - the value of the formula
+     */
+    public double evaluate(double[] covariates){
+        return compiled.evaluate(covariates);
+    }
+
+    /**
+     * Calculates the value of the formula.
+     *
+     * @param vars - the covariates as a double[], in the order of the COV_... indices
+     * @return - the value as a Double
+     */
+    @Override
+    public Object calculate(Object vars){
+        return compiled.evaluate((double[]) vars);
+    }
+
+    /**
+     * Evaluates the formula for the given covariates.
+     *
+     * @param dt          - time step (s)
+     * @param size        - size
+     * @param temperature - temperature (deg C)
+     * @param salinity    - salinity
+     * @param depth       - depth (m, positive)
+     * @param romsvar1    - additional ROMS field 1
+     * @param romsvar2    - additional ROMS field 2
+     * @param romsvar3    - additional ROMS field 3
+     * @param romsvar4    - additional ROMS field 4
+     * @param romsvar5    - additional ROMS field 5
+     * @return - the value of the formula
+     */
+    public double evaluate(double dt, double size, double temperature, double salinity, double depth,
+                           double romsvar1, double romsvar2, double romsvar3, double romsvar4, double romsvar5){
+        double[] x = buffer.get();
+        x[COV_dt]          = dt;
+        x[COV_size]        = size;
+        x[COV_temperature] = temperature;
+        x[COV_salinity]    = salinity;
+        x[COV_depth]       = depth;
+        x[COV_romsvar1]    = romsvar1;
+        x[COV_romsvar2]    = romsvar2;
+        x[COV_romsvar3]    = romsvar3;
+        x[COV_romsvar4]    = romsvar4;
+        x[COV_romsvar5]    = romsvar5;
+        return compiled.evaluate(x);
+    }
+}
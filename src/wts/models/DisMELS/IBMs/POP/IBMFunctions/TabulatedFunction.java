@@ -0,0 +1,337 @@
+/*
+ * TabulatedFunction.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.IBMFunctions;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
+
+/**
+ * Class providing a lookup table (with linear interpolation) for a smooth
+ * function of one covariate, such as a temperature-dependent mortality rate
+ * or a size-dependent swimming speed.
+ *
+ * The table is built over a configured covariate range [xMin,xMax] by doubling
+ * the number of (equally-spaced) nodes until the error of the interpolated values,
+ * checked against direct evaluation on a grid CHECK_POINTS times denser than the
+ * nodes, is within the requested maximum. The error is relative, except where the
+ * function is small compared with its largest magnitude over the range (below
+ * ABS_FRACTION of it), where it is taken relative to that fraction of the largest
+ * magnitude, so functions with zeros in the range can be tabulated. If the error
+ * requirement cannot be met with MAX_NODES nodes (or the function is not finite
+ * over the range), the table is not used and all values are obtained by direct
+ * evaluation.
+ *
+ * Values for covariates outside the range are always obtained by direct evaluation.
+ * The numbers of table hits and misses are counted so the hit rate can be reported.
+ * The counts are kept by the table in padded stripes selected by thread id, so
+ * workers sharing a table do not contend; counts by threads whose ids share a
+ * stripe (more than STRIPES threads) may occasionally be lost. The report for all
+ * tables (see getReport()) is written by writeReport(File), and at the end of the
+ * run to the file given by the system property
+ * "wts.models.DisMELS.IBMs.POP.tabulatedFunctionsReport" (if set).
+ *
+ * Tables are shared among all individuals using the same function (with the same
+ * parameter values) through getInstance(...).
+ *
+ * @author William Stockhausen
+ */
+public class TabulatedFunction {
+
+    /**
+     * Interface for the direct evaluation of the tabulated function.
+     */
+    public static interface Evaluator {
+        /**
+         * Evaluates the function directly.
+         * @param x - covariate value
+         * @return  - function value
+         */
+        public double evaluate(double x);
+    }
+
+    /** initial number of table nodes */
+    public static final int MIN_NODES = 65;
+    /** maximum number of table nodes */
+    public static final int MAX_NODES = 65537;
+    /** number of check points per node interval when validating the table */
+    public static final int CHECK_POINTS = 8;
+    /** fraction of the function's largest magnitude below which errors are absolute */
+    public static final double ABS_FRACTION = 1.0E-3;
+    /** number of counter stripes (a power of 2) */
+    public static final int STRIPES = 64;
+    /** system property giving the file the report is written to at the end of the run */
+    public static final String SYSPROP_REPORT = "wts.models.DisMELS.IBMs.POP.tabulatedFunctionsReport";
+
+    /** tables shared by key */
+    private static final Map<String,TabulatedFunction> mapTables = new ConcurrentHashMap<>();
+    /** flag indicating the shutdown hook writing the report has been registered */
+    private static boolean hookRegistered = false;
+
+    private static final Logger logger = Logger.getLogger(TabulatedFunction.class.getName());
+
+    /** key identifying the table */
+    private final String key;
+    /** function used for direct evaluation */
+    private final Evaluator evaluator;
+    /** min covariate value in table */
+    private final double xMin;
+    /** max covariate value in table */
+    private final double xMax;
+    /** requested max relative error */
+    private final double maxRelError;
+    /** inverse of the node spacing */
+    private double rdx;
+    /** function values at nodes */
+    private double[] values;
+    /** slopes (per unit index) between nodes */
+    private double[] slopes;
+    /** max (mixed relative/absolute) error achieved by the table */
+    private double achievedRelError = Double.NaN;
+    /** flag indicating the table meets the error requirement */
+    private boolean isTabulated = false;
+
+    /** counter stripes, by thread id */
+    private final Counters[] counters = new Counters[STRIPES];
+
+    /**
+     * Hit and miss counts of a stripe, padded so the counts of different
+     * stripes do not share a cache line.
+     */
+    private static final class Counters {
+        long p0, p1, p2, p3, p4, p5, p6;
+        /** number of evaluations by table lookup */
+        long hits;
+        /** number of evaluations by direct evaluation */
+        long misses;
+        long q0, q1, q2, q3, q4, q5, q6;
+    }
+
+    /**
+     * Returns the shared table identified by the key, creating it if necessary.
+     *
+     * @param key         - key identifying the function (see createKey(...))
+     * @param evaluator   - function used for direct evaluation
+     * @param xMin        - min covariate value for the table
+     * @param xMax        - max covariate value for the table
+     * @param maxRelError - max relative error for interpolated values
+     *
+     * @return - the tabulated function
+     */
+    public static TabulatedFunction getInstance(String key, Evaluator evaluator,
+                                                double xMin, double xMax, double maxRelError){
+        String fullKey = key+"|"+xMin+"|"+xMax+"|"+maxRelError;
+        TabulatedFunction tf = mapTables.get(fullKey);
+        if (tf==null){
+            synchronized(mapTables){
+                tf = mapTables.get(fullKey);
+                if (tf==null){
+                    tf = new TabulatedFunction(fullKey,evaluator,xMin,xMax,maxRelError);
+                    mapTables.put(fullKey,tf);
+                    if (!hookRegistered&&(System.getProperty(SYSPROP_REPORT)!=null)){
+                        final File file = new File(System.getProperty(SYSPROP_REPORT));
+                        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                            @Override
+                            public void run(){writeReport(file);}
+                        }));
+                        hookRegistered = true;
+                    }
+                }
+            }
+        }
+        return tf;
+    }
+
+    /**
+     * Creates a key identifying an IBM function by its class, name and
+     * current parameter values, so that functions with identical parameters
+     * in different parameters objects share the same table.
+     *
+     * @param ifi    - the IBM function
+     * @param extras - any additional (fixed) inputs to the function (e.g., dt)
+     * @return       - the key
+     */
+    public static String createKey(IBMFunctionInterface ifi, Object... extras){
+        StringBuilder b = new StringBuilder(ifi.getClass().getName());
+        b.append("|").append(ifi.getFunctionName());
+        for (String p: ifi.getParameterNames()) b.append("|").append(p).append("=").append(ifi.getParameter(p).getValue());
+        for (Object o: extras) b.append("|").append(o);
+        return b.toString();
+    }
+
+    /**
+     * Returns a report of the hit rates for all the shared tables.
+     *
+     * @return - report as a String
+     */
+    public static String getReport(){
+        StringBuilder b = new StringBuilder("Tabulated IBM functions (key: nodes, max error, hit rate)");
+        Map<String,TabulatedFunction> sorted = new TreeMap<>(mapTables);
+        for (TabulatedFunction tf: sorted.values()){
+            b.append("\n\t").append(tf.key).append(": ");
+            if (tf.isTabulated) {
+                b.append(tf.values.length).append(", ").append(tf.achievedRelError).append(", ");
+            } else {
+                b.append("not tabulated, -, ");
+            }
+            b.append(tf.getHitRate());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Writes the report for all the shared tables (see getReport()) to a file
+     * (the logging system may already be shut down when this is called at the
+     * end of the run).
+     *
+     * @param file - the report file
+     */
+    public static void writeReport(File file){
+        if (mapTables.isEmpty()) return;
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
+            pw.println(getReport());
+        } catch (IOException ex) {
+            logger.warning("Could not write tabulated function report to "+file+": "+ex.getMessage());
+        }
+    }
+
+    /**
+     * Creates a new table. Use getInstance(...) to share tables.
+     *
+     * @param key         - key identifying the table
+     * @param evaluator   - function used for direct evaluation
+     * @param xMin        - min covariate value for the table
+     * @param xMax        - max covariate value for the table
+     * @param maxRelError - max relative error for interpolated values
+     */
+    public TabulatedFunction(String key, Evaluator evaluator,
+                             double xMin, double xMax, double maxRelError){
+        this.key         = key;
+        this.evaluator   = evaluator;
+        this.xMin        = xMin;
+        this.xMax        = xMax;
+        this.maxRelError = maxRelError;
+        for (int i=0;i<STRIPES;i++) counters[i] = new Counters();
+        buildTable();
+    }
+
+    /**
+     * Builds the table by doubling the number of nodes until the error
+     * requirement is met.
+     */
+    private void buildTable(){
+        if (!(xMax>xMin)||!(maxRelError>0)) {
+            logger.warning("Invalid range or error for tabulated function "+key+": using direct evaluation.");
+            return;
+        }
+        int n = MIN_NODES;
+        while (n<=MAX_NODES){
+            double dx = (xMax-xMin)/(n-1);
+            double[] v = new double[n];
+            for (int i=0;i<n;i++) v[i] = evaluator.evaluate(xMin+i*dx);
+            double err = checkError(v,dx);
+            if (err<=maxRelError){
+                rdx    = 1.0/dx;
+                values = v;
+                slopes = new double[n];
+                for (int i=0;i<n-1;i++) slopes[i] = v[i+1]-v[i];
+                slopes[n-1] = 0.0;
+                achievedRelError = err;
+                isTabulated = true;
+                return;
+            }
+            if (Double.isNaN(err)) break;
+            n = 2*n-1;//halve the node spacing
+        }
+        logger.warning("Could not tabulate function "+key+" to within relative error "+maxRelError+
+                       " over ["+xMin+","+xMax+"]: using direct evaluation.");
+    }
+
+    /**
+     * Computes the max error of linear interpolation in the candidate table
+     * at CHECK_POINTS-1 points inside each interval, relative to the larger of
+     * the function value and ABS_FRACTION of the largest magnitude at the nodes.
+     *
+     * @return - max error (NaN if the function is not finite)
+     */
+    private double checkError(double[] v, double dx){
+        double maxErr = 0.0, maxAbs = 0.0;
+        for (int i=0;i<v.length;i++) {
+            if (Double.isNaN(v[i])||Double.isInfinite(v[i])) return Double.NaN;
+            maxAbs = Math.max(maxAbs,Math.abs(v[i]));
+        }
+        double floor = ABS_FRACTION*maxAbs;
+        for (int i=0;i<v.length-1;i++){
+            for (int q=1;q<CHECK_POINTS;q++){
+                double f = ((double)q)/CHECK_POINTS;
+                double y = evaluator.evaluate(xMin+(i+f)*dx);
+                if (Double.isNaN(y)||Double.isInfinite(y)) return Double.NaN;
+                double t = v[i]+f*(v[i+1]-v[i]);
+                double d = Math.abs(t-y);
+                if (d>0) {
+                    double err = d/Math.max(Math.abs(y),floor);//infinite if the function is 0 at all nodes
+                    if (err>maxErr) maxErr = err;
+                }
+            }
+        }
+        return maxErr;
+    }
+
+    /**
+     * Returns the function value, by table lookup if x is within the
+     * tabulated range, otherwise by direct evaluation.
+     *
+     * @param x - covariate value
+     * @return  - function value
+     */
+    public double value(double x){
+        Counters c = counters[(int) Thread.currentThread().getId()&(STRIPES-1)];
+        if (isTabulated&&(x>=xMin)&&(x<=xMax)){
+            c.hits++;
+            double u = (x-xMin)*rdx;
+            int i = (int) u;
+            return values[i]+slopes[i]*(u-i);
+        }
+        c.misses++;
+        return evaluator.evaluate(x);
+    }
+
+    /**
+     * @return - true if values within the range are obtained from the table
+     */
+    public boolean isTabulated(){
+        return isTabulated;
+    }
+
+    /**
+     * @return - the max error (relative, or absolute near zero) achieved by the table (NaN if not tabulated)
+     */
+    public double getAchievedRelativeError(){
+        return achievedRelError;
+    }
+
+    /**
+     * @return - fraction of evaluations obtained from the table (NaN if none yet)
+     */
+    public double getHitRate(){
+        long h = 0; long m = 0;
+        for (Counters c: counters) {h += c.hits; m += c.misses;}
+        return ((double)h)/(h+m);
+    }
+
+    /**
+     * Resets the hit and miss counters (counts made by other threads while
+     * resetting may be lost).
+     */
+    public void resetCounters(){
+        for (Counters c: counters) {c.hits = 0; c.misses = 0;}
+    }
+}
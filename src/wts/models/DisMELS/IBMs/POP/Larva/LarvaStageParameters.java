@@ -24,6 +24,7 @@ import wts.models.DisMELS.IBMFunctions.Mortality.TemperatureDependentMortalityRa
 import wts.models.DisMELS.IBMFunctions.Movement.DielVerticalMigration_FixedDepthRanges;
 import wts.models.DisMELS.IBMFunctions.SwimmingBehavior.ConstantMovementRateFunction;
 import wts.models.DisMELS.IBMFunctions.SwimmingBehavior.PowerLawSwimmingSpeedFunction;
+import wts.models.DisMELS.IBMs.POP.IBMFunctions.FormulaFunction;
 import wts.models.DisMELS.framework.AbstractLHSParameters;
 import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
 import wts.models.DisMELS.framework.IBMFunctions.IBMParameter;
@@ -45,7 +46,7 @@ public class LarvaStageParameters extends AbstractLHSParameters {
     public static final long serialVersionUID = 1L;
     
     /** the number of IBMParameter objects defined in the class */
-    public static final int numParams = 9;
+    public static final int numParams = 15;
     public static final String PARAM_isSuperIndividual      = "is a super-individual?";
     public static final String PARAM_horizRWP               = "horizontal random walk parameter [m^2]/[s]";
     public static final String PARAM_minStageDuration       = "min stage duration [d]";
@@ -55,6 +56,12 @@ public class LarvaStageParameters extends AbstractLHSParameters {
     public static final String PARAM_randomizeTransitions   = "randomize transitions?";
     public static final String PARAM_initialSize            = "initial size in stage (mm)";
     public static final String PARAM_initialWeight          = "initial weight in stage (g)";
+    public static final String PARAM_tabulateFunctions      = "tabulate IBM functions?";
+    public static final String PARAM_tabMaxRelError         = "max relative error for tabulated functions";
+    public static final String PARAM_tabMinTemperature      = "min temperature for tabulated functions (deg C)";
+    public static final String PARAM_tabMaxTemperature      = "max temperature for tabulated functions (deg C)";
+    public static final String PARAM_tabMinSize             = "min size for tabulated functions (mm)";
+    public static final String PARAM_tabMaxSize             = "max size for tabulated functions (mm)";
     
     
     /** the number of IBMFunction categories defined in the class */
@@ -109,6 +116,12 @@ public class LarvaStageParameters extends AbstractLHSParameters {
         key = PARAM_minSize;              setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,0.0));
         key = PARAM_minWeight;            setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,0.0));
         key = PARAM_randomizeTransitions; setOfParamKeys.add(key); mapParams.put(key,new IBMParameterBoolean(key,key,false));
+        key = PARAM_tabulateFunctions;    setOfParamKeys.add(key); mapParams.put(key,new IBMParameterBoolean(key,key,false));
+        key = PARAM_tabMaxRelError;       setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,1.0E-4));
+        key = PARAM_tabMinTemperature;    setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,-2.0));
+        key = PARAM_tabMaxTemperature;    setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,30.0));
+        key = PARAM_tabMinSize;           setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,1.0));
+        key = PARAM_tabMaxSize;           setOfParamKeys.add(key); mapParams.put(key,new IBMParameterDouble(key,key,100.0));
     }
 
     @Override
@@ -132,6 +145,11 @@ public class LarvaStageParameters extends AbstractLHSParameters {
             ifi.setDescription("Constant growth rate [mm/day]"); 
             ifi.setParameterDescription(ConstantFunction.PARAM_constant,"Constant growth rate [mm/day]");
             mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
+        ifi = new FormulaFunction();  //generic function, so change defaults
+            ifi.setFunctionName("Growth rate formula"); 
+            ifi.setDescription("User-defined growth rate [mm/day]"); 
+            ifi.setParameterDescription(FormulaFunction.PARAM_formula,"User-defined growth rate [mm/day], as a formula over dt, size, temperature, salinity, depth, romsvar1-5");
+            mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
         
         cat = FCAT_Mortality;  
         mapOfPotentialFunctions = new LinkedHashMap<>(4); mapOfPotentialFunctionsByCategory.put(cat,mapOfPotentialFunctions);
@@ -139,6 +157,11 @@ public class LarvaStageParameters extends AbstractLHSParameters {
             mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
         ifi = new TemperatureDependentMortalityRate_Houde1989(); 
             mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
+        ifi = new FormulaFunction();  //generic function, so change defaults
+            ifi.setFunctionName("Mortality rate formula"); 
+            ifi.setDescription("User-defined mortality rate [1/day]"); 
+            ifi.setParameterDescription(FormulaFunction.PARAM_formula,"User-defined mortality rate [1/day], as a formula over dt, size, temperature, salinity, depth, romsvar1-5");
+            mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
         
         cat = FCAT_VerticalMovement;  
         mapOfPotentialFunctions = new LinkedHashMap<>(4); mapOfPotentialFunctionsByCategory.put(cat,mapOfPotentialFunctions);
@@ -151,6 +174,11 @@ public class LarvaStageParameters extends AbstractLHSParameters {
             mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
         ifi = new ConstantMovementRateFunction(); 
             mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
+        ifi = new FormulaFunction();  //generic function, so change defaults
+            ifi.setFunctionName("Vertical swimming speed formula"); 
+            ifi.setDescription("User-defined vertical swimming speed [m/s]"); 
+            ifi.setParameterDescription(FormulaFunction.PARAM_formula,"User-defined vertical swimming speed [m/s], as a formula over dt, size, temperature, salinity, depth, romsvar1-5");
+            mapOfPotentialFunctions.put(ifi.getFunctionName(),ifi);
     }
     
     /**
@@ -231,7 +259,10 @@ public class LarvaStageParameters extends AbstractLHSParameters {
     public LarvaStageParameters createInstance(final String[] strv) {
         int c = 0;
         LarvaStageParameters params = new LarvaStageParameters(strv[c++]);
-        for (String key: setOfParamKeys) params.setValueFromString(key,strv[c++]);
+        for (String key: setOfParamKeys) {
+            if (c>=strv.length) break;//parameters added later keep their default values
+            params.setValueFromString(key,strv[c++]);
+        }
         return params;
     }
     
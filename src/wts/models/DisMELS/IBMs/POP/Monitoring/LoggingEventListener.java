@@ -0,0 +1,68 @@
+/*
+ * LoggingEventListener.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Monitoring;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PopEventListener writing the events emitted by the POP life stages to the
+ * java.util.logging logger named after this class.
+ *
+ * Attribute parse failures are logged at WARNING and the other events at FINE
+ * (step batches with the stepping rate), so the events only cost a level check
+ * unless the logger is configured to show them. Register it with
+ * PopEvents.addListener(...) or, for a production run, with
+ * <pre>
+ *   -Dwts.models.DisMELS.IBMs.POP.eventListeners=wts.models.DisMELS.IBMs.POP.Monitoring.LoggingEventListener
+ * </pre>
+ *
+ * @author William Stockhausen
+ */
+public class LoggingEventListener implements PopEventListener {
+
+    private static final Logger logger = Logger.getLogger(LoggingEventListener.class.getName());
+
+    /**
+     * Creates a new listener.
+     */
+    public LoggingEventListener(){
+    }
+
+    @Override
+    public void stepBatch(String stage, double time, int count, long nanos){
+        if (!logger.isLoggable(Level.FINE)) return;
+        double rate = (nanos>0) ? 1.0E9*count/nanos : Double.NaN;
+        logger.fine(stage+": stepped "+count+" individuals to time "+time+" s in "+
+                    (nanos/1.0E6)+" ms ("+Math.round(rate)+" individuals/s)");
+    }
+
+    @Override
+    public void transition(String stage, long id, double time, double number, int nCreated){
+        if (!logger.isLoggable(Level.FINE)) return;
+        logger.fine(stage+": individual "+id+" transitioned at time "+time+" s (number "+number+
+                    ", "+nCreated+" individuals created)");
+    }
+
+    @Override
+    public void spawning(String stage, long id, double time, double fecundity, int nSpawned){
+        if (!logger.isLoggable(Level.FINE)) return;
+        logger.fine(stage+": individual "+id+" spawned at time "+time+" s (fecundity "+fecundity+
+                    ", "+nSpawned+" individuals created)");
+    }
+
+    @Override
+    public void gridExit(String stage, long id, double time, double number, String gridCellID){
+        if (!logger.isLoggable(Level.FINE)) return;
+        logger.fine(stage+": individual "+id+" exited the grid at time "+time+" s in cell "+gridCellID+
+                    " (number "+number+")");
+    }
+
+    @Override
+    public void parseFailure(String attributes, String key, String value, String message){
+        logger.warning(attributes+": could not set "+((key==null) ? "attribute values" : "'"+key+"'")+
+                       ((value==null) ? "" : " from '"+value+"'")+": "+message);
+    }
+}
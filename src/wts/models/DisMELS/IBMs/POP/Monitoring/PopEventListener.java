@@ -0,0 +1,73 @@
+/*
+ * PopEventListener.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Monitoring;
+
+/**
+ * Interface for listeners to the events emitted by the POP life stages
+ * (see PopEvents).
+ *
+ * Methods are called on the thread that steps the individual, so implementations
+ * must be thread-safe and should return quickly (e.g., by committing a flight
+ * recorder event or adding to a counter).
+ *
+ * @author William Stockhausen
+ */
+public interface PopEventListener {
+
+    /**
+     * Called when a thread finishes stepping a batch of individuals of a stage
+     * over one time step.
+     *
+     * @param stage - stage class name (e.g., "LarvaStage")
+     * @param time  - model time (s) at the end of the time step
+     * @param count - number of individuals stepped
+     * @param nanos - elapsed time (ns) between the first and last steps in the batch
+     */
+    public void stepBatch(String stage, double time, int count, long nanos);
+
+    /**
+     * Called when an individual (or part of a super-individual) transitions to
+     * the next life stage.
+     *
+     * @param stage    - stage class name of the individual
+     * @param id       - id of the individual
+     * @param time     - model time (s)
+     * @param number   - number of individuals transitioning
+     * @param nCreated - number of next-stage individuals created
+     */
+    public void transition(String stage, long id, double time, double number, int nCreated);
+
+    /**
+     * Called when an adult spawns.
+     *
+     * @param stage     - stage class name of the adult
+     * @param id        - id of the adult
+     * @param time      - model time (s)
+     * @param fecundity - fecundity of the adult
+     * @param nSpawned  - number of individuals created
+     */
+    public void spawning(String stage, long id, double time, double fecundity, int nSpawned);
+
+    /**
+     * Called when an individual exits the model grid (and dies).
+     *
+     * @param stage      - stage class name of the individual
+     * @param id         - id of the individual
+     * @param time       - model time (s)
+     * @param number     - number of individuals represented
+     * @param gridCellID - id of the grid cell where the individual exited
+     */
+    public void gridExit(String stage, long id, double time, double number, String gridCellID);
+
+    /**
+     * Called when setValues(...) fails to parse an attribute value.
+     *
+     * @param attributes - class name of the attributes
+     * @param key        - attribute key (null if the row does not match the attributes)
+     * @param value      - value that could not be parsed (null if missing)
+     * @param message    - description of the failure
+     */
+    public void parseFailure(String attributes, String key, String value, String message);
+}
@@ -0,0 +1,260 @@
+/*
+ * PopEvents.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Monitoring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Class dispatching the events emitted by the POP life stages (step batches,
+ * transitions, spawning, grid exits and attribute parse failures) to the
+ * registered PopEventListeners.
+ *
+ * The stages check isEnabled() before building an event, so the cost when no
+ * listener is registered is a read of a volatile field. Listeners are
+ * registered with addListener(...), or by giving a comma-separated list of
+ * PopEventListener class names (with public no-argument constructors) in the
+ * system property "wts.models.DisMELS.IBMs.POP.eventListeners". This allows,
+ * e.g., a listener committing Java Flight Recorder events to be supplied on
+ * the classpath of a production run without changing the module. The module
+ * ships LoggingEventListener, which writes the events to a java.util.logging
+ * logger.
+ *
+ * Step batches are counted per stage and thread, and reported when the thread
+ * steps an individual of the stage in a later time step (or at JVM shutdown).
+ *
+ * @author William Stockhausen
+ */
+public final class PopEvents {
+
+    /** system property giving listener class names */
+    public static final String SYSPROP_LISTENERS = "wts.models.DisMELS.IBMs.POP.eventListeners";
+
+    /** the listeners (replaced, not modified, when listeners are added or removed) */
+    private static volatile PopEventListener[] listeners = new PopEventListener[0];
+
+    /** step batch counters by stage class name */
+    private static final Map<String,StepBatches> mapBatches = new HashMap<>(8);
+    /** all step batch counters, for flushing at shutdown */
+    private static final List<StepBatches> lstBatches = new ArrayList<>(8);
+    /** flag indicating the shutdown hook has been registered */
+    private static boolean hookRegistered = false;
+
+    private static final Logger logger = Logger.getLogger(PopEvents.class.getName());
+
+    static {
+        for (PopEventListener l: createListeners(System.getProperty(SYSPROP_LISTENERS))) addListener(l);
+    }
+
+    private PopEvents(){}
+
+    /**
+     * Creates listeners from a comma-separated list of PopEventListener class
+     * names, as given in the system property. Classes that cannot be loaded or
+     * instantiated are skipped with a warning.
+     *
+     * @param classNames - the class names (may be null)
+     * @return - the listeners
+     */
+    static List<PopEventListener> createListeners(String classNames){
+        List<PopEventListener> lst = new ArrayList<>(2);
+        if (classNames==null) return lst;
+        for (String cn: classNames.split(",")){
+            if (cn.trim().isEmpty()) continue;
+            try {
+                lst.add((PopEventListener) Class.forName(cn.trim()).newInstance());
+            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException ex) {
+                logger.warning("Could not create event listener "+cn.trim()+": "+ex.toString());
+            }
+        }
+        return lst;
+    }
+
+    /**
+     * Registers a listener.
+     *
+     * @param l - the listener
+     */
+    public static synchronized void addListener(PopEventListener l){
+        PopEventListener[] a = Arrays.copyOf(listeners,listeners.length+1);
+        a[a.length-1] = l;
+        listeners = a;
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param l - the listener
+     */
+    public static synchronized void removeListener(PopEventListener l){
+        List<PopEventListener> lst = new ArrayList<>(Arrays.asList(listeners));
+        if (lst.remove(l)) listeners = lst.toArray(new PopEventListener[lst.size()]);
+    }
+
+    /**
+     * @return - true if any listeners are registered
+     */
+    public static boolean isEnabled(){
+        return listeners.length>0;
+    }
+
+    /**
+     * Returns the step batch counters for a life stage.
+     *
+     * @param stageClass - the life stage class
+     * @return - the counters
+     */
+    public static synchronized StepBatches getStepBatches(Class<?> stageClass){
+        StepBatches sb = mapBatches.get(stageClass.getName());
+        if (sb==null){
+            sb = new StepBatches(stageClass.getSimpleName());
+            mapBatches.put(stageClass.getName(),sb);
+            lstBatches.add(sb);
+            if (!hookRegistered){
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                    @Override
+                    public void run(){flushAll();}
+                }));
+                hookRegistered = true;
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Reports the open step batches for all stages.
+     */
+    public static synchronized void flushAll(){
+        for (StepBatches sb: lstBatches) sb.flush();
+    }
+
+    /**
+     * Per-thread step batch counters for a life stage.
+     */
+    public static final class StepBatches {
+        /** stage class name */
+        private final String stage;
+        /** all per-thread batches, for flushing */
+        private final List<Batch> batches = new ArrayList<>();
+        /** batch for the calling thread */
+        private final ThreadLocal<Batch> localBatch = new ThreadLocal<Batch>(){
+            @Override
+            protected Batch initialValue(){
+                Batch b = new Batch();
+                synchronized(batches){batches.add(b);}
+                return b;
+            }
+        };
+
+        private StepBatches(String stage){
+            this.stage = stage;
+        }
+
+        /**
+         * Counts an individual stepped by the calling thread, reporting the
+         * thread's previous batch if it was for a different time step.
+         *
+         * @param time - model time (s) at the end of the step
+         */
+        public void stepped(double time){
+            long t = System.nanoTime();
+            Batch b = localBatch.get();
+            synchronized(b){
+                if ((b.count>0)&&(time!=b.time)) b.report(stage);
+                if (b.count==0){
+                    b.time  = time;
+                    b.first = t;
+                }
+                b.count++;
+                b.last = t;
+            }
+        }
+
+        /**
+         * Reports the open batches for all threads.
+         */
+        public void flush(){
+            synchronized(batches){
+                for (Batch b: batches){
+                    synchronized(b){
+                        if (b.count>0) b.report(stage);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Step batch for one stage and thread.
+     */
+    private static final class Batch {
+        /** model time (s) at the end of the time step */
+        private double time;
+        /** number of individuals stepped */
+        private int count = 0;
+        /** times (ns) of the first and last steps */
+        private long first, last;
+
+        private void report(String stage){
+            for (PopEventListener l: listeners) l.stepBatch(stage,time,count,last-first);
+            count = 0;
+        }
+    }
+
+    /**
+     * Reports a stage transition.
+     *
+     * @param stage    - stage class name of the individual
+     * @param id       - id of the individual
+     * @param time     - model time (s)
+     * @param number   - number of individuals transitioning
+     * @param nCreated - number of next-stage individuals created
+     */
+    public static void transition(String stage, long id, double time, double number, int nCreated){
+        for (PopEventListener l: listeners) l.transition(stage,id,time,number,nCreated);
+    }
+
+    /**
+     * Reports a spawning event.
+     *
+     * @param stage     - stage class name of the adult
+     * @param id        - id of the adult
+     * @param time      - model time (s)
+     * @param fecundity - fecundity of the adult
+     * @param nSpawned  - number of individuals created
+     */
+    public static void spawning(String stage, long id, double time, double fecundity, int nSpawned){
+        for (PopEventListener l: listeners) l.spawning(stage,id,time,fecundity,nSpawned);
+    }
+
+    /**
+     * Reports an individual exiting the grid.
+     *
+     * @param stage      - stage class name of the individual
+     * @param id         - id of the individual
+     * @param time       - model time (s)
+     * @param number     - number of individuals represented
+     * @param gridCellID - id of the grid cell where the individual exited
+     */
+    public static void gridExit(String stage, long id, double time, double number, String gridCellID){
+        for (PopEventListener l: listeners) l.gridExit(stage,id,time,number,gridCellID);
+    }
+
+    /**
+     * Reports a failure to parse an attribute value.
+     *
+     * @param attributes - class name of the attributes
+     * @param key        - attribute key (null if the row does not match the attributes)
+     * @param value      - value that could not be parsed (null if missing)
+     * @param message    - description of the failure
+     */
+    public static void parseFailure(String attributes, String key, String value, String message){
+        for (PopEventListener l: listeners) l.parseFailure(attributes,key,value,message);
+    }
+}
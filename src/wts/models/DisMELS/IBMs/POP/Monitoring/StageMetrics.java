@@ -0,0 +1,242 @@
+/*
+ * StageMetrics.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class providing live metrics for a POP life stage through JMX, so a run can be
+ * monitored with jconsole (or any JMX client) while it is in progress.
+ *
+ * Each stage's metrics are registered with the platform MBean server as
+ * "wts.models.DisMELS.IBMs.POP:type=StageMetrics,stage=[stage class name]".
+ * Live counts, super-individual totals and track points are accumulated by the
+ * stages' step() methods (in per-thread stripes, merged once per thread and time
+ * step); transitions, spawns and grid exits are counted by the stages when they
+ * occur. A time step is taken to be complete when individuals are stepped in a
+ * later time step (earlier, for a backwards run with dt<0), so the values
+ * reported are for the previous time step.
+ *
+ * The metrics are enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.jmx" to "true".
+ *
+ * @author William Stockhausen
+ */
+public final class StageMetrics implements StageMetricsMXBean {
+
+    /** system property enabling the metrics */
+    public static final String SYSPROP_JMX = "wts.models.DisMELS.IBMs.POP.jmx";
+    /** JMX domain for the metrics */
+    public static final String DOMAIN = "wts.models.DisMELS.IBMs.POP";
+
+    /**
+     * rough heap use (bytes) of an individual without its track: the stage object,
+     * its attributes and parameters (and their maps) and its Lagrangian particle
+     */
+    public static final long BYTES_PER_INDIVIDUAL  = 4096;
+    /** heap use (bytes) of a track point: a Coordinate and reference in each of track and trackLL */
+    public static final long BYTES_PER_TRACK_POINT = 2*(40+8);
+
+    /** metrics by stage class simple name */
+    private static final Map<String,StageMetrics> mapInstances = new HashMap<>(8);
+
+    private static final Logger logger = Logger.getLogger(StageMetrics.class.getName());
+
+    /** stage class name */
+    private final String stage;
+    /** per-thread stripes */
+    private final ThreadLocal<Totals> localStripe = new ThreadLocal<Totals>(){
+        @Override
+        protected Totals initialValue(){
+            return new Totals(Double.NaN);
+        }
+    };
+    /** totals for the current and last completed time steps */
+    private Totals curr = new Totals(Double.NaN), last = new Totals(Double.NaN);
+    /** time (ns) the current time step was started */
+    private long currNanos = System.nanoTime();
+    /** individuals stepped per second in the last completed time step */
+    private double steppedPerSecond = 0.0;
+    /** event totals */
+    private final AtomicLong transitions = new AtomicLong(), spawns = new AtomicLong(), gridExits = new AtomicLong();
+    /** event totals at the start of the current time step */
+    private long currTransitions = 0, currSpawns = 0;
+    /** events in the last completed time step */
+    private long lastTransitions = 0, lastSpawns = 0;
+
+    /**
+     * Totals for a time step.
+     */
+    private static final class Totals {
+        /** model time (s) at the end of the time step */
+        private double time;
+        /** number of individuals stepped */
+        private long count = 0;
+        /** sum of individuals represented */
+        private double number = 0.0;
+        /** sum of track points */
+        private long points = 0;
+
+        private Totals(double time){
+            this.time = time;
+        }
+    }
+
+    /**
+     * Returns the metrics for a life stage, or null if the metrics are not enabled.
+     *
+     * @param stageClass - the life stage class
+     * @return - the metrics, or null
+     */
+    public static synchronized StageMetrics getInstance(Class<?> stageClass){
+        if (!Boolean.getBoolean(SYSPROP_JMX)) return null;
+        StageMetrics sm = mapInstances.get(stageClass.getSimpleName());
+        if (sm==null){
+            sm = new StageMetrics(stageClass.getSimpleName());
+            mapInstances.put(stageClass.getSimpleName(),sm);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(sm,
+                        new ObjectName(DOMAIN+":type=StageMetrics,stage="+sm.stage));
+            } catch (JMException ex) {
+                logger.warning("Could not register metrics for "+sm.stage+": "+ex.toString());
+            }
+        }
+        return sm;
+    }
+
+    private StageMetrics(String stage){
+        this.stage = stage;
+    }
+
+    /**
+     * Adds a live individual at the end of a step.
+     *
+     * @param time        - model time (s) at the end of the step
+     * @param dt          - time step (s; negative for a backwards run)
+     * @param number      - number of individuals represented
+     * @param trackPoints - number of points in the individual's track
+     */
+    public void stepped(double time, double dt, double number, int trackPoints){
+        Totals s = localStripe.get();
+        if (time!=s.time){
+            if (s.count>0) merge(s,dt);
+            s.time = time;
+        }
+        s.count++;
+        s.number += number;
+        s.points += trackPoints;
+    }
+
+    /**
+     * Merges (and resets) a stripe, starting a new time step if the stripe's
+     * is later than the current one in the direction of the run.
+     */
+    private synchronized void merge(Totals s, double dt){
+        if (Double.isNaN(curr.time)||((s.time-curr.time)*dt>0)){
+            long t = System.nanoTime();
+            last = curr;
+            curr = new Totals(s.time);
+            steppedPerSecond = (t>currNanos) ? last.count*1.0E9/(t-currNanos) : 0.0;
+            currNanos = t;
+            long nT = transitions.get(), nS = spawns.get();
+            lastTransitions = nT-currTransitions; currTransitions = nT;
+            lastSpawns      = nS-currSpawns;      currSpawns      = nS;
+        }
+        Totals tgt = (s.time==curr.time) ? curr : ((s.time==last.time) ? last : null);
+        if (tgt!=null){
+            tgt.count  += s.count;
+            tgt.number += s.number;
+            tgt.points += s.points;
+        }
+        s.count = 0; s.number = 0.0; s.points = 0;
+    }
+
+    /**
+     * Counts a stage transition.
+     */
+    public void transition(){
+        transitions.incrementAndGet();
+    }
+
+    /**
+     * Counts a spawning event.
+     */
+    public void spawning(){
+        spawns.incrementAndGet();
+    }
+
+    /**
+     * Counts an individual exiting the grid.
+     */
+    public void gridExit(){
+        gridExits.incrementAndGet();
+    }
+
+    @Override
+    public String getStage(){
+        return stage;
+    }
+
+    @Override
+    public synchronized double getModelTime(){
+        return last.time;
+    }
+
+    @Override
+    public synchronized long getLiveCount(){
+        return last.count;
+    }
+
+    @Override
+    public synchronized double getSuperIndividualTotal(){
+        return last.number;
+    }
+
+    @Override
+    public synchronized double getSteppedPerSecond(){
+        return steppedPerSecond;
+    }
+
+    @Override
+    public synchronized long getTransitionsPerStep(){
+        return lastTransitions;
+    }
+
+    @Override
+    public synchronized long getSpawnsPerStep(){
+        return lastSpawns;
+    }
+
+    @Override
+    public long getTransitions(){
+        return transitions.get();
+    }
+
+    @Override
+    public long getSpawns(){
+        return spawns.get();
+    }
+
+    @Override
+    public long getGridExits(){
+        return gridExits.get();
+    }
+
+    @Override
+    public synchronized long getTrackPoints(){
+        return last.points;
+    }
+
+    @Override
+    public synchronized long getEstimatedHeapBytes(){
+        return last.count*BYTES_PER_INDIVIDUAL+last.points*BYTES_PER_TRACK_POINT;
+    }
+}
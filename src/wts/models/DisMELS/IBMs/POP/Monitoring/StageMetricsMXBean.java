@@ -0,0 +1,75 @@
+/*
+ * StageMetricsMXBean.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Monitoring;
+
+/**
+ * Management interface for the live metrics of a POP life stage (see StageMetrics).
+ *
+ * Values other than the totals are for the last completed time step.
+ *
+ * @author William Stockhausen
+ */
+public interface StageMetricsMXBean {
+
+    /**
+     * @return - stage class name
+     */
+    public String getStage();
+
+    /**
+     * @return - model time (s) at the end of the last completed time step
+     */
+    public double getModelTime();
+
+    /**
+     * @return - number of live individuals (model instances)
+     */
+    public long getLiveCount();
+
+    /**
+     * @return - total number of individuals represented by the live (super-)individuals
+     */
+    public double getSuperIndividualTotal();
+
+    /**
+     * @return - individuals stepped per second of wall-clock time
+     */
+    public double getSteppedPerSecond();
+
+    /**
+     * @return - transitions to the next stage in the time step
+     */
+    public long getTransitionsPerStep();
+
+    /**
+     * @return - spawning events in the time step
+     */
+    public long getSpawnsPerStep();
+
+    /**
+     * @return - total transitions to the next stage
+     */
+    public long getTransitions();
+
+    /**
+     * @return - total spawning events
+     */
+    public long getSpawns();
+
+    /**
+     * @return - total individuals that exited the grid
+     */
+    public long getGridExits();
+
+    /**
+     * @return - number of track points held by the live individuals
+     */
+    public long getTrackPoints();
+
+    /**
+     * @return - estimated heap use (bytes) of the live individuals
+     */
+    public long getEstimatedHeapBytes();
+}
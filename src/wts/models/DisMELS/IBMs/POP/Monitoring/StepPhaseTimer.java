@@ -0,0 +1,335 @@
+/*
+ * StepPhaseTimer.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Monitoring;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Output.GriddedRasterAccumulator;
+import wts.models.DisMELS.IBMs.POP.Output.OutputTimes;
+
+/**
+ * Class timing the phases of the POP life stage step() (and transition/spawning)
+ * methods, aggregated by stage type.
+ *
+ * To keep the overhead low, only one call in every "period" calls (per thread
+ * and entry point: step, getMetamorphosedIndividuals, getSpawnedIndividuals) is
+ * timed: for a sampled call, begin() returns a Sample, and the stage calls
+ * Sample.mark(phase) at the end of each phase, which adds the System.nanoTime()
+ * interval since the previous mark to that phase; for all other calls begin()
+ * returns null and the stage skips the marks. Each thread accumulates into its
+ * own stripe of counters, so threads do not contend; the stripes are summed when
+ * a table is produced. Estimated total times are the sampled times multiplied by
+ * the sampling period.
+ *
+ * A table of the time spent in each phase is written for each stage type at JVM
+ * shutdown (the end of the run) to "POP_phaseTimes.txt" in the output directory
+ * (see GriddedRasterAccumulator) and, if an interval is set, logged for the period
+ * since the previous table whenever a step crosses an output time.
+ *
+ * The timers are enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.phaseTimers" to the sampling period (e.g., 64);
+ * the output interval (s) is given by "wts.models.DisMELS.IBMs.POP.phaseTimerInterval".
+ *
+ * @author William Stockhausen
+ */
+public final class StepPhaseTimer {
+
+    /** system property giving the sampling period (calls) */
+    public static final String SYSPROP_PERIOD   = "wts.models.DisMELS.IBMs.POP.phaseTimers";
+    /** system property giving the output interval (s) */
+    public static final String SYSPROP_INTERVAL = "wts.models.DisMELS.IBMs.POP.phaseTimerInterval";
+
+    /** phase: movement rates (calcUVW/calcUV), excluding sunrise/sunset */
+    public static final int PHASE_BEHAVIOR    = 0;
+    /** phase: computeSunriseSunset */
+    public static final int PHASE_SUN         = 1;
+    /** phase: particle integration */
+    public static final int PHASE_INTEGRATION = 2;
+    /** phase: number, age and size updates */
+    public static final int PHASE_BIOLOGY     = 3;
+    /** phase: updatePosition (including updateTrack) */
+    public static final int PHASE_POSITION    = 4;
+    /** phase: interpolateEnvVars */
+    public static final int PHASE_ENVIRONMENT = 5;
+    /** phase: grid exit check, spatial index and accumulators */
+    public static final int PHASE_OUTPUT      = 6;
+    /** phase: updateAttributes */
+    public static final int PHASE_ATTRIBUTES  = 7;
+    /** phase: transitions (getMetamorphosedIndividuals) */
+    public static final int PHASE_TRANSITIONS = 8;
+    /** phase: spawning (getSpawnedIndividuals) */
+    public static final int PHASE_SPAWNING    = 9;
+    /** phase names */
+    public static final String[] PHASES = new String[]{"behavior","sunrise/sunset","integration",
+                                                       "biology","position/track","environment",
+                                                       "output","attributes","transitions","spawning"};
+    /** number of phases */
+    public static final int NUM_PHASES = PHASES.length;
+
+    /** entry point: step() */
+    public static final int ENTRY_STEP        = 0;
+    /** entry point: getMetamorphosedIndividuals() */
+    public static final int ENTRY_TRANSITIONS = 1;
+    /** entry point: getSpawnedIndividuals() */
+    public static final int ENTRY_SPAWNING    = 2;
+    /** number of entry points */
+    private static final int NUM_ENTRIES = 3;
+
+    /** timers by stage class name */
+    private static final Map<String,StepPhaseTimer> mapInstances = new HashMap<>(8);
+    /** all timers, for writeAll() */
+    private static final List<StepPhaseTimer> lstInstances = new ArrayList<>(8);
+    /** flag indicating the shutdown hook has been registered */
+    private static boolean hookRegistered = false;
+
+    private static final Logger logger = Logger.getLogger(StepPhaseTimer.class.getName());
+
+    /** stage the timer is for */
+    private final String stageName;
+    /** sampling period (calls) */
+    private final int period;
+    /** output interval (s; NaN for none) */
+    private final double interval;
+    /** per-thread stripes */
+    private final List<Sample> stripes = new ArrayList<>();
+    /** sample (and stripe) for the calling thread */
+    private final ThreadLocal<Sample> localSample = new ThreadLocal<Sample>(){
+        @Override
+        protected Sample initialValue(){
+            Sample s = new Sample();
+            synchronized(stripes){stripes.add(s);}
+            return s;
+        }
+    };
+    /** totals at the last interval table, by phase {nanos, marks} */
+    private final long[][] lastTotals = new long[2][NUM_PHASES];
+    /** output time of the last interval table */
+    private volatile double lastOutputTime = Double.NaN;
+
+    /**
+     * Timing state and counters for one thread. A Sample returned by begin() must
+     * be used only by the calling thread, and only until the timed call returns.
+     */
+    public static final class Sample {
+        /** calls until the next sampled call, by entry point */
+        private final int[] countdown = new int[NUM_ENTRIES];
+        /** time of the last mark (ns) */
+        private long last;
+        /** total calls (sampled or not; written only by the owning thread) */
+        private long calls = 0;
+        /** sampled time (ns), by phase */
+        private final long[] nanos = new long[NUM_PHASES];
+        /** number of sampled marks, by phase */
+        private final long[] marks = new long[NUM_PHASES];
+
+        private Sample(){
+            Arrays.fill(countdown,1);//sample the first call
+        }
+
+        /**
+         * Adds the time since the previous mark (or begin()) to a phase.
+         *
+         * @param phase - the phase (PHASE_...)
+         */
+        public void mark(int phase){
+            long t = System.nanoTime();
+            synchronized(this){
+                nanos[phase] += t-last;
+                marks[phase]++;
+            }
+            last = t;
+        }
+
+        /**
+         * Adds the time since the previous mark to a phase already marked in
+         * the timed call, without counting another sample for it (for a phase
+         * done in more than one part).
+         *
+         * @param phase - the phase (PHASE_...)
+         */
+        public void add(int phase){
+            long t = System.nanoTime();
+            synchronized(this){
+                nanos[phase] += t-last;
+            }
+            last = t;
+        }
+
+        /**
+         * Restarts the clock without attributing the elapsed time to a phase.
+         */
+        public void skip(){
+            last = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns the timer for a life stage, or null if the timers are not enabled.
+     *
+     * @param stageClass - the life stage class
+     * @return - the timer, or null
+     */
+    public static synchronized StepPhaseTimer getInstance(Class<?> stageClass){
+        String str = System.getProperty(SYSPROP_PERIOD);
+        if (str==null) return null;
+        int period = Integer.parseInt(str.trim());
+        if (period<1) return null;
+        StepPhaseTimer spt = mapInstances.get(stageClass.getName());
+        if (spt==null){
+            String strI = System.getProperty(SYSPROP_INTERVAL);
+            double interval = (strI==null) ? Double.NaN : Double.parseDouble(strI.trim());
+            spt = new StepPhaseTimer(stageClass.getSimpleName(),period,interval);
+            mapInstances.put(stageClass.getName(),spt);
+            lstInstances.add(spt);
+            if (!hookRegistered){
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                    @Override
+                    public void run(){writeAll();}
+                }));
+                hookRegistered = true;
+            }
+        }
+        return spt;
+    }
+
+    /**
+     * Writes the tables of total times for all stages to "POP_phaseTimes.txt"
+     * in the output directory (the logging system may already be shut down
+     * when this is called at the end of the run).
+     */
+    public static synchronized void writeAll(){
+        if (lstInstances.isEmpty()) return;
+        File dir  = new File(System.getProperty(GriddedRasterAccumulator.SYSPROP_DIR,"."));
+        File file = new File(dir,"POP_phaseTimes.txt");
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
+            for (StepPhaseTimer spt: lstInstances) pw.println(spt.getTable(false));
+        } catch (IOException ex) {
+            logger.warning("Could not write phase times to "+file+": "+ex.getMessage());
+        }
+    }
+
+    private StepPhaseTimer(String stageName, int period, double interval){
+        this.stageName = stageName;
+        this.period    = period;
+        this.interval  = (interval>0) ? interval : Double.NaN;
+    }
+
+    /**
+     * Starts timing a call, if it is sampled. Calls to each entry point are
+     * sampled separately.
+     *
+     * @param entry - the entry point (ENTRY_...)
+     * @return - the calling thread's Sample if the call is sampled, otherwise null
+     */
+    public Sample begin(int entry){
+        Sample s = localSample.get();
+        s.calls++;
+        if (--s.countdown[entry]>0) return null;
+        s.countdown[entry] = period;
+        s.last = System.nanoTime();
+        return s;
+    }
+
+    /**
+     * Logs the table for the period since the previous one if a step ending at
+     * time crosses an output time.
+     *
+     * @param time - model time (s) at the end of the step
+     * @param dt   - time step (s)
+     */
+    public void checkOutput(double time, double dt){
+        if (Double.isNaN(interval)) return;
+        double tOut = OutputTimes.getCrossedTime(time,dt,interval);
+        if (Double.isNaN(tOut)||(tOut==lastOutputTime)) return;
+        synchronized(this){
+            if (tOut==lastOutputTime) return;
+            lastOutputTime = tOut;
+            logger.info("Phase times to model time "+tOut+" s:\n"+getTable(true));
+        }
+    }
+
+    /**
+     * Sums the stripes.
+     *
+     * @return - totals by phase {nanos, marks}
+     */
+    private long[][] getTotals(){
+        long[][] tot = new long[2][NUM_PHASES];
+        synchronized(stripes){
+            for (Sample s: stripes){
+                synchronized(s){
+                    for (int p=0;p<NUM_PHASES;p++){
+                        tot[0][p] += s.nanos[p];
+                        tot[1][p] += s.marks[p];
+                    }
+                }
+            }
+        }
+        return tot;
+    }
+
+    /**
+     * @return - total number of calls to begin() (sampled or not)
+     */
+    public long getCalls(){
+        long n = 0;
+        synchronized(stripes){
+            for (Sample s: stripes) n += s.calls;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the estimated total time (s) spent in a phase.
+     *
+     * @param phase - the phase (PHASE_...)
+     * @return - estimated time (s)
+     */
+    public double getEstimatedTime(int phase){
+        return getTotals()[0][phase]*((double)period)*1.0E-9;
+    }
+
+    /**
+     * Returns a table of the time spent in each phase.
+     *
+     * @param sinceLast - true for the period since the previous interval table
+     *                    (and reset the reference point), false for the whole run
+     * @return - the table
+     */
+    public synchronized String getTable(boolean sinceLast){
+        long[][] tot = getTotals();
+        long[][] t = tot;
+        if (sinceLast){
+            t = new long[2][NUM_PHASES];
+            for (int p=0;p<NUM_PHASES;p++){
+                t[0][p] = tot[0][p]-lastTotals[0][p];
+                t[1][p] = tot[1][p]-lastTotals[1][p];
+                lastTotals[0][p] = tot[0][p];
+                lastTotals[1][p] = tot[1][p];
+            }
+        }
+        long sum = 0;
+        for (int p=0;p<NUM_PHASES;p++) sum += t[0][p];
+        StringBuilder b = new StringBuilder();
+        b.append(String.format("Step phase times for %s (1 in %d calls sampled)%n",stageName,period));
+        b.append(String.format("%-16s %12s %12s %14s %8s%n","phase","samples","mean (ns)","est. total (s)","%"));
+        for (int p=0;p<NUM_PHASES;p++){
+            if (t[1][p]==0) continue;
+            b.append(String.format("%-16s %12d %12.1f %14.3f %8.2f%n",PHASES[p],t[1][p],
+                                   ((double)t[0][p])/t[1][p],t[0][p]*((double)period)*1.0E-9,
+                                   (sum>0) ? 100.0*t[0][p]/sum : 0.0));
+        }
+        b.append(String.format("%-16s %12s %12s %14.3f %8.2f%n","total","","",sum*((double)period)*1.0E-9,100.0));
+        return b.toString();
+    }
+}
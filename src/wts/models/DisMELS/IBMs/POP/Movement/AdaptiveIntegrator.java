@@ -0,0 +1,209 @@
+/*
+ * AdaptiveIntegrator.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Movement;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+
+/**
+ * Class tracking a particle over a model time step with an embedded
+ * Runge-Kutta method with error control, as an alternative to the fixed-step
+ * predictor-corrector step of the LagrangianParticle.
+ *
+ * The method is the Bogacki-Shampine 3(2) pair: each sub-step takes 3 new
+ * evaluations of the grid rates (the 4th is reused as the 1st of the next
+ * sub-step) and gives a 3rd order position plus a 2nd order one, whose
+ * difference estimates the sub-step's error. Sub-steps with errors larger than
+ * the tolerance (in grid units: fractions of a cell horizontally, of a layer
+ * vertically) are repeated with shorter sub-steps, and the length of the next
+ * sub-step is set from the error. An integrator belongs to one individual and
+ * keeps its last sub-step length between model time steps, so individuals in
+ * smooth flow take long sub-steps (often one per model step) while those in
+ * strong velocity gradients take short ones; the model time step is unchanged.
+ *
+ * The integrator needs the rates from OceanModel.calcGridRates(...); where the
+ * OceanModel does not provide them, integrate(...) returns null and the stage
+ * uses the predictor-corrector step. A warning is logged the first time this
+ * happens for an OceanModel class, so a run that selected the integrator does
+ * not silently fall back to the fixed-step scheme.
+ *
+ * The integrator is selected for a life stage by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.integrator.[stage class name]" (e.g.,
+ * "wts.models.DisMELS.IBMs.POP.integrator.LarvaStage") to "adaptive". The
+ * tolerance (default 0.001 grid units) is set by the system property
+ * "wts.models.DisMELS.IBMs.POP.integratorTolerance".
+ *
+ * An AdaptiveIntegrator is not thread-safe; clones of an individual need their own.
+ *
+ * @author William Stockhausen
+ */
+public final class AdaptiveIntegrator {
+
+    /** prefix of the system properties selecting the integrator for a stage */
+    public static final String SYSPROP_PREFIX = "wts.models.DisMELS.IBMs.POP.integrator.";
+    /** system property giving the tolerance (grid units) */
+    public static final String SYSPROP_TOLERANCE = "wts.models.DisMELS.IBMs.POP.integratorTolerance";
+    /** value of the stage's system property selecting the integrator */
+    public static final String ADAPTIVE = "adaptive";
+
+    /** default tolerance (grid units) */
+    private static final double DEFAULT_TOLERANCE = 1.0E-3;
+    /** min sub-step (s) */
+    private static final double MIN_STEP = 1.0;
+    /** safety factor and limits for the change in sub-step length */
+    private static final double SAFETY = 0.9, MIN_FACTOR = 0.2, MAX_FACTOR = 5.0;
+
+    private static final Logger logger = Logger.getLogger(AdaptiveIntegrator.class.getName());
+    /** names of the OceanModel classes already warned about */
+    private static final Set<String> warned = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    /** tolerance (grid units) */
+    private final double tol;
+    /** max K (the number of layers) */
+    private int maxK = 0;
+    /** length of the last accepted sub-step (s; NaN before the first) */
+    private double h = Double.NaN;
+    /** numbers of accepted sub-steps and rate evaluations (over all steps) */
+    private long nSubsteps = 0, nEvaluations = 0;
+
+    /**
+     * Tests whether the adaptive integrator is selected for a life stage.
+     *
+     * @param stage - the life stage class
+     * @return - true if selected
+     */
+    public static boolean isSelectedFor(Class<?> stage){
+        return ADAPTIVE.equalsIgnoreCase(System.getProperty(SYSPROP_PREFIX+stage.getSimpleName(),"").trim());
+    }
+
+    /**
+     * Creates an integrator with the tolerance given by SYSPROP_TOLERANCE
+     * (or the default).
+     */
+    public AdaptiveIntegrator(){
+        this(Double.parseDouble(System.getProperty(SYSPROP_TOLERANCE,String.valueOf(DEFAULT_TOLERANCE))));
+    }
+
+    /**
+     * Creates an integrator.
+     *
+     * @param tol - tolerance (grid units) for the error of a sub-step
+     */
+    public AdaptiveIntegrator(double tol){
+        if (!(tol>0)) throw new IllegalArgumentException("Integrator tolerance must be positive: "+tol);
+        this.tol = tol;
+    }
+
+    /**
+     * Tracks a particle over a model time step.
+     *
+     * @param ocean - the OceanModel
+     * @param pos   - position at the start of the step in grid (I,J,K) coordinates
+     * @param uvw   - movement rates {u,v,w} or {u,v} (relative to the water, m/s)
+     * @param time  - model time (s) at the start of the step
+     * @param dt    - model time step (s)
+     * @return - position at the end of the step, or null if the OceanModel does
+     *           not provide the grid rates anywhere along the step (e.g., the
+     *           particle reaches land); the step is then not taken
+     */
+    public double[] integrate(OceanModel ocean, double[] pos, double[] uvw, double time, double dt){
+        double[] k1 = ocean.calcGridRates(pos,uvw,time);
+        if (k1==null) return missingRates(ocean,pos);
+        nEvaluations++;
+        maxK = ocean.getN();
+        double dir = Math.signum(dt), end = Math.abs(dt);
+        double[] y = new double[]{pos[0],pos[1],pos[2]};
+        double[] tmp = new double[3], y1 = new double[3];
+        double t = 0.0;//time into the step (s, absolute)
+        double hh = Double.isNaN(h) ? end : Math.min(h,end);
+        while (t<end){
+            double planned = hh;
+            boolean truncated = (t+hh>end);
+            if (truncated) hh = end-t;
+            double s = dir*hh;
+            //Bogacki-Shampine stages
+            double[] k2 = ocean.calcGridRates(advance(y,k1,0.5*s,tmp),uvw,time+dir*t+0.5*s);
+            if (k2==null) return missingRates(ocean,tmp);
+            double[] k3 = ocean.calcGridRates(advance(y,k2,0.75*s,tmp),uvw,time+dir*t+0.75*s);
+            if (k3==null) return missingRates(ocean,tmp);
+            for (int c=0;c<3;c++) y1[c] = y[c]+s*(2.0/9.0*k1[c]+1.0/3.0*k2[c]+4.0/9.0*k3[c]);
+            clampK(y1);
+            double[] k4 = ocean.calcGridRates(y1,uvw,time+dir*t+s);
+            if (k4==null) return missingRates(ocean,y1);
+            nEvaluations += 3;
+            double err = 0.0;
+            for (int c=0;c<3;c++){
+                double e = s*(-5.0/72.0*k1[c]+1.0/12.0*k2[c]+1.0/9.0*k3[c]-1.0/8.0*k4[c]);
+                err = Math.max(err,Math.abs(e));
+            }
+            double factor = (err==0.0) ? MAX_FACTOR :
+                            Math.min(MAX_FACTOR,Math.max(MIN_FACTOR,SAFETY*Math.cbrt(tol/err)));
+            if ((err<=tol)||(hh<=MIN_STEP)){
+                //accept the sub-step
+                t = truncated ? end : t+hh;
+                double[] sw = y; y = y1; y1 = sw;
+                k1 = k4;
+                nSubsteps++;
+                //a sub-step shortened to end the model step doesn't shorten the next one
+                h = (truncated&&(factor>=1.0)) ? planned : Math.max(MIN_STEP,hh*factor);
+                hh = h;
+            } else {
+                hh = Math.max(MIN_STEP,hh*factor);
+            }
+        }
+        return y;
+    }
+
+    /**
+     * Logs (once per OceanModel class) that the rates are missing at a position
+     * and returns null, so the stage takes the whole model step with the
+     * predictor-corrector step instead.
+     */
+    private static double[] missingRates(OceanModel ocean, double[] pos){
+        String name = ocean.getClass().getName();
+        if (warned.add(name))
+            logger.warning("Adaptive integrator selected, but "+name+" does not provide grid rates"+
+                           " (at I,J,K = "+pos[0]+","+pos[1]+","+pos[2]+"): using the predictor-corrector"+
+                           " step where the rates are missing.");
+        return null;
+    }
+
+    /** position p+s*r (into tmp), with K kept within the water column */
+    private double[] advance(double[] p, double[] r, double s, double[] tmp){
+        tmp[0] = p[0]+s*r[0];
+        tmp[1] = p[1]+s*r[1];
+        tmp[2] = p[2]+s*r[2];
+        return clampK(tmp);
+    }
+
+    private double[] clampK(double[] p){
+        p[2] = Math.min(Math.max(p[2],0.0),maxK);
+        return p;
+    }
+
+    /**
+     * @return - the tolerance (grid units)
+     */
+    public double getTolerance(){
+        return tol;
+    }
+
+    /**
+     * @return - the number of accepted sub-steps taken (over all steps)
+     */
+    public long getNumSubsteps(){
+        return nSubsteps;
+    }
+
+    /**
+     * @return - the number of grid rate evaluations (over all steps)
+     */
+    public long getNumEvaluations(){
+        return nEvaluations;
+    }
+}
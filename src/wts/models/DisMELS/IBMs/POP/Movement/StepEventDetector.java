@@ -0,0 +1,214 @@
+/*
+ * StepEventDetector.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Movement;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+import wts.models.DisMELS.IBMs.POP.Grid.BoundaryDistanceField;
+import wts.models.DisMELS.IBMs.POP.Grid.SettlementHabitatMap;
+import wts.models.DisMELS.IBMs.POP.Grid.StaticFieldTable;
+import wts.models.DisMELS.IBMs.POP.Grid.VerticalGridCache;
+
+/**
+ * Class detecting events (leaving the grid, stranding on land, reaching
+ * settlement habitat near the bottom) inside a particle tracking step, so they
+ * are not missed when the time step is long.
+ *
+ * The life stages only test these conditions at the end of each step, so a
+ * particle can cross a narrow edge band or dip to the bottom and back within
+ * a step without the event being seen. With event detection, the path of the
+ * step (taken as the straight line in grid coordinates from the start to the
+ * end of the predictor-corrector step) is sampled every quarter of a grid cell
+ * horizontally and half a layer vertically, however long the step (a path
+ * needing more than MAX_SAMPLES samples, e.g. from a velocity blow-up, is
+ * sampled at MAX_SAMPLES points and a warning is logged); the first sample at
+ * which the condition holds is refined by bisection, and the stage truncates the step
+ * there (pointAt(...)), so the usual end-of-step tests then find the event at
+ * the place it happened. The model time of the step is not changed.
+ *
+ * The grid exit and stranding tests are skipped for steps shorter than the
+ * distance to the grid edge or land given by the BoundaryDistanceField. The
+ * stranding test is only done if stranding is enabled (see
+ * BoundaryDistanceField).
+ *
+ * Event detection is enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.detectStepEvents" to true.
+ *
+ * @author William Stockhausen
+ */
+public final class StepEventDetector {
+
+    /** system property to enable event detection */
+    public static final String SYSPROP_ENABLE = "wts.models.DisMELS.IBMs.POP.detectStepEvents";
+
+    /** value returned when no event occurs before the end of the step */
+    public static final double NO_EVENT = 1.0;
+
+    /** sample spacing along the path (grid units) horizontally */
+    private static final double SPACING_IJ = 0.25;
+    /** sample spacing along the path (layers) vertically */
+    private static final double SPACING_K = 0.5;
+    /** max number of samples along a path (more than a path across any grid needs) */
+    public static final int MAX_SAMPLES = 1<<16;
+    /** number of bisections refining an event */
+    private static final int BISECTIONS = 30;
+
+    /** flag indicating event detection is enabled */
+    private static final boolean enabled = Boolean.getBoolean(SYSPROP_ENABLE);
+    /** flag indicating a path was sampled at fewer points than its length needs */
+    private static final AtomicBoolean warned = new AtomicBoolean(false);
+
+    private static final Logger logger = Logger.getLogger(StepEventDetector.class.getName());
+
+    /**
+     * Interface for a condition tested along a path.
+     */
+    public interface Condition {
+        /**
+         * @param pos - position in grid (I,J,K) coordinates
+         * @return - true if the event condition holds at pos
+         */
+        public boolean isMet(double[] pos);
+    }
+
+    private StepEventDetector(){}
+
+    /**
+     * @return - true if event detection is enabled
+     */
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Finds the first point on the path from p0 to p1 (excluding p0) at which
+     * a condition holds.
+     *
+     * @param p0   - start of the path in grid (I,J,K) coordinates
+     * @param p1   - end of the path in grid (I,J,K) coordinates
+     * @param cond - the condition
+     * @return - fraction s (0-1) of the path at which the condition first holds,
+     *           or NO_EVENT if it does not hold before p1
+     */
+    public static double findFirst(double[] p0, double[] p1, Condition cond){
+        double dI = p1[0]-p0[0], dJ = p1[1]-p0[1], dK = p1[2]-p0[2];
+        double len = Math.max(Math.max(Math.abs(dI),Math.abs(dJ))/SPACING_IJ,Math.abs(dK)/SPACING_K);
+        int n = (int) Math.min(Math.max(Math.ceil(len),1.0),MAX_SAMPLES);
+        if ((len>MAX_SAMPLES)&&!warned.getAndSet(true))
+            logger.warning("Step path from ["+p0[0]+","+p0[1]+","+p0[2]+"] to ["+p1[0]+","+p1[1]+","+p1[2]+
+                           "] needs "+len+" samples; sampled at "+MAX_SAMPLES+", so events may be missed "+
+                           "(reported once).");
+        double[] p = new double[3];
+        double sPrev = 0.0;
+        for (int k=1;k<=n;k++){
+            double s = (double) k/n;
+            if (cond.isMet(pointAt(p0,p1,s,p))){
+                //bisect between the last sample without and the first with the event
+                double lo = sPrev, hi = s;
+                for (int b=0;b<BISECTIONS;b++){
+                    double mid = 0.5*(lo+hi);
+                    if (cond.isMet(pointAt(p0,p1,mid,p))) hi = mid; else lo = mid;
+                }
+                return hi;
+            }
+            sPrev = s;
+        }
+        return NO_EVENT;
+    }
+
+    /**
+     * Finds the first point on the path from p0 to p1 at which the OceanModel
+     * reports the particle as at the grid edge.
+     *
+     * @param ocean - the OceanModel
+     * @param tol   - tolerance (grid units) for the grid edge check
+     * @param p0    - start of the path in grid (I,J,K) coordinates
+     * @param p1    - end of the path in grid (I,J,K) coordinates
+     * @return - fraction s (0-1) of the path at which the particle first reaches
+     *           the grid edge, or NO_EVENT
+     */
+    public static double findGridExit(final OceanModel ocean, final double tol, double[] p0, double[] p1){
+        double move = Math.max(Math.abs(p1[0]-p0[0]),Math.abs(p1[1]-p0[1]));
+        if (move<BoundaryDistanceField.getInstance(ocean,tol).getDistanceToEdge(p0)) return NO_EVENT;
+        return findFirst(p0,p1,new Condition(){
+            @Override
+            public boolean isMet(double[] pos){
+                return ocean.isAtGridEdge(pos,tol);
+            }
+        });
+    }
+
+    /**
+     * Finds the first point on the path from p0 to p1 at which the particle is
+     * stranded on land (if stranding is enabled).
+     *
+     * @param ocean - the OceanModel
+     * @param tol   - tolerance (grid units) for the grid edge check
+     * @param p0    - start of the path in grid (I,J,K) coordinates
+     * @param p1    - end of the path in grid (I,J,K) coordinates
+     * @return - fraction s (0-1) of the path at which the particle first reaches
+     *           land, or NO_EVENT
+     */
+    public static double findStranding(OceanModel ocean, double tol, double[] p0, double[] p1){
+        final BoundaryDistanceField bdf = BoundaryDistanceField.getInstance(ocean,tol);
+        if (!BoundaryDistanceField.isStrandingEnabled()) return NO_EVENT;
+        double move = Math.max(Math.abs(p1[0]-p0[0]),Math.abs(p1[1]-p0[1]));
+        if (move<bdf.getDistanceToLand(p0)) return NO_EVENT;
+        return findFirst(p0,p1,new Condition(){
+            @Override
+            public boolean isMet(double[] pos){
+                return bdf.isStranded(pos);
+            }
+        });
+    }
+
+    /**
+     * Finds the first point on the path from p0 to p1 at which the particle is
+     * in settlement habitat and within a given height of the bottom.
+     *
+     * @param ocean   - the OceanModel
+     * @param habitat - the settlement habitat map
+     * @param height  - max height (m) above the bottom for settlement
+     * @param time    - model time (s) for the depth calculation
+     * @param p0      - start of the path in grid (I,J,K) coordinates
+     * @param p1      - end of the path in grid (I,J,K) coordinates
+     * @return - fraction s (0-1) of the path at which the particle can first
+     *           settle, or NO_EVENT
+     */
+    public static double findSettlement(OceanModel ocean, final SettlementHabitatMap habitat,
+                                        final double height, final double time,
+                                        double[] p0, double[] p1){
+        if (habitat==null) return NO_EVENT;
+        final StaticFieldTable sft = StaticFieldTable.getInstance(ocean);
+        final VerticalGridCache vgc = VerticalGridCache.getInstance(ocean);
+        return findFirst(p0,p1,new Condition(){
+            @Override
+            public boolean isMet(double[] pos){
+                double depth = -vgc.calcZfromK(pos[0],pos[1],pos[2],time);
+                return (depth>(sft.interpolateBathymetricDepth(pos)-height))&&habitat.isSuitable(pos);
+            }
+        });
+    }
+
+    /**
+     * Returns the point a fraction s along the path from p0 to p1.
+     *
+     * @param p0 - start of the path in grid (I,J,K) coordinates
+     * @param p1 - end of the path in grid (I,J,K) coordinates
+     * @param s  - fraction of the path (0-1)
+     * @return - the point (a new array)
+     */
+    public static double[] pointAt(double[] p0, double[] p1, double s){
+        return pointAt(p0,p1,s,new double[3]);
+    }
+
+    private static double[] pointAt(double[] p0, double[] p1, double s, double[] p){
+        p[0] = p0[0]+s*(p1[0]-p0[0]);
+        p[1] = p0[1]+s*(p1[1]-p0[1]);
+        p[2] = p0[2]+s*(p1[2]-p0[2]);
+        return p;
+    }
+}
@@ -6,9 +6,14 @@
 package wts.models.DisMELS.IBMs.POP;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import wts.models.DisMELS.IBMs.POP.Environment.EnvironmentalFieldRegistry;
+import wts.models.DisMELS.IBMs.POP.Environment.EnvironmentalFieldSet;
+import wts.models.DisMELS.IBMs.POP.Environment.ExposureAccumulator;
+import wts.models.DisMELS.framework.AbstractLHSAttributes;
 
 /**
  *
@@ -35,6 +40,8 @@ public class NewAttributes {
     
     /**
      * Get the set of keys for the new "global" attributes for this species.
+     * If the exposure accumulators are enabled, their keys follow the keys above
+     * (see ExposureAccumulator).
      * 
      * @return Set<String> with the new keys
      */
@@ -53,6 +60,7 @@ public class NewAttributes {
             key = NewAttributes.PROP_romsvar3;   newKeys.add(key); 
             key = NewAttributes.PROP_romsvar4;   newKeys.add(key); 
             key = NewAttributes.PROP_romsvar5;   newKeys.add(key); 
+            newKeys.addAll(ExposureAccumulator.getAttributeKeys());
         }
         return newKeys;
     }
@@ -70,7 +78,83 @@ public class NewAttributes {
             newMapValues.put(NewAttributes.PROP_romsvar3,   new Double(-1));
             newMapValues.put(NewAttributes.PROP_romsvar4,   new Double(-1));
             newMapValues.put(NewAttributes.PROP_romsvar5,   new Double(-1));
+            if (ExposureAccumulator.isEnabled()) newMapValues.putAll(ExposureAccumulator.getDefaultValues());
         }
         return newMapValues;
     }
+    
+    /**
+     * Get the set of keys for the new attributes carried by a life stage, 
+     * i.e. excluding the environmental fields the stage does not sample 
+     * (see EnvironmentalFieldRegistry).
+     * 
+     * @param stageClass - the life stage class
+     * @return Set<String> with the new keys for the stage
+     */
+    public static final Set<String> getNewKeys(Class<?> stageClass){
+        EnvironmentalFieldSet fs = EnvironmentalFieldRegistry.getFieldSet(stageClass);
+        Set<String> keys = new LinkedHashSet<>((int)(2*numNewAttributes));
+        for (String key: getNewKeys()) if (fs.includesAttribute(key)) keys.add(key);
+        return keys;
+    }
+    
+    /**
+     * Get the default values for the new attributes carried by a life stage.
+     * 
+     * @param stageClass - the life stage class
+     * @return Map<String,Object> with the default values
+     */
+    public static final Map<String,Object> getNewMapValues(Class<?> stageClass){
+        Map<String,Object> values = new HashMap<>((int)(2*numNewAttributes));
+        for (String key: getNewKeys(stageClass)) values.put(key,getNewMapValues().get(key));
+        return values;
+    }
+    
+    /**
+     * Checks a row of attribute values (as read from an initial conditions
+     * file or a previous run's output) against the attributes carried by a 
+     * life stage, since the new attributes depend on the environmental fields
+     * configured for the stage (see EnvironmentalFieldRegistry). A row written 
+     * under a different configuration would otherwise be read with its values
+     * shifted to the wrong attributes.
+     * 
+     * A row without the (trailing) exposure accumulator values, e.g. from an
+     * initial conditions file written before the accumulators were enabled, is
+     * accepted: the accumulators then start from zero (see getMissingValues).
+     * 
+     * @param stageClass - the life stage class
+     * @param strv       - the row of values (the first value is the type name)
+     * @return - the number of new attribute values in the row
+     * @throws IllegalArgumentException if the number of values does not match
+     */
+    public static final int checkNumValues(Class<?> stageClass, String[] strv){
+        Set<String> keys = getNewKeys(stageClass);
+        int n = strv.length-AbstractLHSAttributes.numAttributes;
+        if (n==keys.size()) return n;
+        if (ExposureAccumulator.isEnabled()&&(n==keys.size()-ExposureAccumulator.getAttributeKeys().size())) return n;
+        throw new IllegalArgumentException(
+                "Attribute row for "+stageClass.getSimpleName()+" ("+strv[0]+") has "+strv.length+
+                " values, but the stage carries "+(AbstractLHSAttributes.numAttributes+keys.size())+
+                " with the environmental fields "+EnvironmentalFieldRegistry.getFieldSet(stageClass)+
+                " (new attributes "+keys+"). The row was probably written with a different "+
+                "environmental field configuration.");
+    }
+    
+    /**
+     * Gets the default values of the new attributes missing from a row of
+     * attribute values accepted by checkNumValues (the trailing exposure
+     * accumulators of a row written without them).
+     * 
+     * @param stageClass - the life stage class
+     * @param n          - the number of new attribute values in the row
+     * @return - map of default values by key (empty if the row is complete)
+     */
+    public static final Map<String,Object> getMissingValues(Class<?> stageClass, int n){
+        Map<String,Object> values = new LinkedHashMap<>(32);
+        int i = 0;
+        for (String key: getNewKeys(stageClass)) {
+            if (i++>=n) values.put(key,getNewMapValues().get(key));
+        }
+        return values;
+    }
 }
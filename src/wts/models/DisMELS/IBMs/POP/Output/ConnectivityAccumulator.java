@@ -0,0 +1,252 @@
+/*
+ * ConnectivityAccumulator.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Class accumulating the origin-to-settlement connectivity matrix of a POP run
+ * as individuals settle, so it does not have to be reconstructed afterwards by
+ * joining the per-stage output on origID.
+ *
+ * The origin region of each individual (identified by its origID) is recorded
+ * when it is released (the first time a pre-settlement stage with that origID
+ * is initialized) or spawned (by the spawning adult, whose id is the origID of
+ * its offspring). At most "wts.models.DisMELS.IBMs.POP.connectivityMaxOrigins"
+ * origins (default 1048576) are kept; the least recently used are dropped
+ * beyond that (with a warning), and their settlers count under origin -1. When settlers transition, the number settling is
+ * added to the (origin region, settlement region) element of a sparse matrix,
+ * along with a count of settlement events.
+ *
+ * Regions are looked up from the rounded (I,J) grid cell of the position. By
+ * default each grid cell is its own region (id = J*100000+I). Region lookup tables
+ * can be given as CSV files with lines "I,J,region" (other cells are region -1)
+ * through the system properties "wts.models.DisMELS.IBMs.POP.connectivityOriginRegions"
+ * and "wts.models.DisMELS.IBMs.POP.connectivitySettlementRegions".
+ *
+ * The accumulator is enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.connectivityInterval" to the emission interval (s;
+ * 0 to emit only at the end of the run). The cumulative matrix is appended to
+ * "POP_connectivity.csv" in the output directory ("wts.models.DisMELS.IBMs.POP.outputDir")
+ * at the first settlement after each emission time, on emit(), and at JVM shutdown,
+ * as lines "time,origin,settlement,number,events".
+ *
+ * @author William Stockhausen
+ */
+public final class ConnectivityAccumulator {
+
+    /** system property giving the emission interval (s) */
+    public static final String SYSPROP_INTERVAL = "wts.models.DisMELS.IBMs.POP.connectivityInterval";
+    /** system property giving the origin region lookup table */
+    public static final String SYSPROP_ORIGIN_REGIONS = "wts.models.DisMELS.IBMs.POP.connectivityOriginRegions";
+    /** system property giving the settlement region lookup table */
+    public static final String SYSPROP_SETTLE_REGIONS = "wts.models.DisMELS.IBMs.POP.connectivitySettlementRegions";
+
+    /** system property giving the max number of origins kept */
+    public static final String SYSPROP_MAX_ORIGINS = "wts.models.DisMELS.IBMs.POP.connectivityMaxOrigins";
+
+    /** multiplier for J in default region ids */
+    private static final int CELL_STRIDE = 100000;
+
+    /** the shared accumulator */
+    private static ConnectivityAccumulator instance = null;
+    /** flag indicating the accumulator has been configured */
+    private static boolean configured = false;
+
+    private static final Logger logger = Logger.getLogger(ConnectivityAccumulator.class.getName());
+
+    /** emission interval (s) */
+    private final double interval;
+    /** output file */
+    private final File file;
+    /** origin region lookup (null = grid cells) */
+    private final Map<Long,Integer> originRegions;
+    /** settlement region lookup (null = grid cells) */
+    private final Map<Long,Integer> settleRegions;
+    /** max number of origins kept */
+    private final int maxOrigins = Integer.getInteger(SYSPROP_MAX_ORIGINS,1<<20);
+    /** number of origins dropped */
+    private long numDropped = 0;
+    /** origin region by origID (least recently used first) */
+    private final Map<Long,Integer> mapOrigins = new LinkedHashMap<Long,Integer>(1<<14,0.75f,true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long,Integer> eldest){
+            if (size()<=maxOrigins) return false;
+            if (numDropped++==0) logger.warning("More than "+maxOrigins+" connectivity origins: dropping the least"+
+                                                " recently used (set "+SYSPROP_MAX_ORIGINS+" to keep more).");
+            return true;
+        }
+    };
+    /** matrix elements {number, events} by (origin,settlement) key */
+    private final Map<Long,double[]> matrix = new HashMap<>(1<<10);
+    /** time of the last settlement (s) */
+    private double lastTime = Double.NaN;
+    /** index of the last emission interval */
+    private double lastEmission = Double.NaN;
+    /** flag indicating the matrix changed since the last emission */
+    private boolean changed = false;
+
+    /**
+     * Returns the shared accumulator, or null if it is not enabled.
+     *
+     * @return - the accumulator, or null
+     */
+    public static synchronized ConnectivityAccumulator getInstance(){
+        if (!configured){
+            configured = true;
+            String str = System.getProperty(SYSPROP_INTERVAL);
+            if (str!=null){
+                File dir = new File(System.getProperty(GriddedRasterAccumulator.SYSPROP_DIR,"."));
+                instance = new ConnectivityAccumulator(Double.parseDouble(str.trim()),
+                                                       new File(dir,"POP_connectivity.csv"),
+                                                       readRegions(System.getProperty(SYSPROP_ORIGIN_REGIONS)),
+                                                       readRegions(System.getProperty(SYSPROP_SETTLE_REGIONS)));
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                    @Override
+                    public void run(){instance.emit();}
+                }));
+            }
+        }
+        return instance;
+    }
+
+    private ConnectivityAccumulator(double interval, File file,
+                                    Map<Long,Integer> originRegions, Map<Long,Integer> settleRegions){
+        this.interval      = interval;
+        this.file          = file;
+        this.originRegions = originRegions;
+        this.settleRegions = settleRegions;
+        if (file.exists()&&!file.delete()) logger.warning("Could not delete old connectivity file "+file);
+    }
+
+    /**
+     * Reads a region lookup table (lines "I,J,region").
+     *
+     * @param fn - path to the table (null for none)
+     * @return - the lookup, or null
+     */
+    private static Map<Long,Integer> readRegions(String fn){
+        if (fn==null) return null;
+        Map<Long,Integer> map = new HashMap<>(1<<14);
+        try (BufferedReader r = new BufferedReader(new FileReader(fn))) {
+            String line;
+            while ((line=r.readLine())!=null){
+                String[] strv = line.trim().split(",");
+                if (strv.length<3) continue;
+                try {
+                    map.put(cellKey(Integer.parseInt(strv[0].trim()),Integer.parseInt(strv[1].trim())),
+                            Integer.parseInt(strv[2].trim()));
+                } catch (NumberFormatException ex) {
+                    //skip header or comment lines
+                }
+            }
+        } catch (IOException ex) {
+            logger.warning("Could not read connectivity regions from "+fn+": "+ex.getMessage()+
+                           ". Using grid cells as regions.");
+            return null;
+        }
+        return map;
+    }
+
+    private static long cellKey(long i, long j){
+        return (i<<32)|(j&0xFFFFFFFFL);
+    }
+
+    private static int lookup(Map<Long,Integer> regions, double[] pos){
+        int i = (int) Math.round(pos[0]);
+        int j = (int) Math.round(pos[1]);
+        if (regions==null) return j*CELL_STRIDE+i;
+        Integer r = regions.get(cellKey(i,j));
+        return (r==null) ? -1 : r;
+    }
+
+    /**
+     * Records the origin region of an individual, unless it has already been recorded.
+     *
+     * @param origID - the individual's origID
+     * @param pos    - release/spawning position in grid (I,J[,K]) coordinates
+     */
+    public synchronized void recordOrigin(long origID, double[] pos){
+        if (!mapOrigins.containsKey(origID)) mapOrigins.put(origID,lookup(originRegions,pos));
+    }
+
+    /**
+     * Records a settlement event.
+     *
+     * @param origID - the settling individual's origID
+     * @param pos    - settlement position in grid (I,J[,K]) coordinates
+     * @param number - number settling
+     * @param time   - model time (s)
+     */
+    public synchronized void recordSettlement(long origID, double[] pos, double number, double time){
+        if (interval>0){
+            double k = Math.floor(time/interval);
+            if (Double.isNaN(lastEmission)) {
+                lastEmission = k;
+            } else if (k!=lastEmission) {
+                emit(Math.max(k,lastEmission)*interval);//emission time crossed
+                lastEmission = k;
+            }
+        }
+        Integer orig = mapOrigins.get(origID);
+        int o = (orig==null) ? -1 : orig;
+        int d = lookup(settleRegions,pos);
+        long key = (((long)o)<<32)|(d&0xFFFFFFFFL);
+        double[] e = matrix.get(key);
+        if (e==null){
+            e = new double[2];
+            matrix.put(key,e);
+        }
+        e[0] += number;
+        e[1] += 1;
+        lastTime = time;
+        changed  = true;
+    }
+
+    /**
+     * Appends the cumulative matrix, as of the last settlement, to the output
+     * file (if it changed since the last emission).
+     */
+    public synchronized void emit(){
+        emit(lastTime);
+    }
+
+    private void emit(double time){
+        if (!changed) return;
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file,true))) {
+            if (file.length()==0) pw.println("time,origin,settlement,number,events");
+            Map<Long,double[]> sorted = new TreeMap<>(matrix);
+            for (Map.Entry<Long,double[]> e: sorted.entrySet()){
+                long key = e.getKey();
+                pw.println(time+","+((int)(key>>32))+","+((int)key)+","+e.getValue()[0]+","+((long)e.getValue()[1]));
+            }
+        } catch (IOException ex) {
+            logger.warning("Could not write connectivity matrix to "+file+": "+ex.getMessage());
+        }
+        changed = false;
+    }
+
+    /**
+     * Returns the cumulative number settling in a settlement region from an origin region.
+     *
+     * @param origin     - origin region
+     * @param settlement - settlement region
+     * @return - number settled
+     */
+    public synchronized double getNumber(int origin, int settlement){
+        double[] e = matrix.get((((long)origin)<<32)|(settlement&0xFFFFFFFFL));
+        return (e==null) ? 0.0 : e[0];
+    }
+}
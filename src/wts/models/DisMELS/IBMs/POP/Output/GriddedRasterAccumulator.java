@@ -0,0 +1,216 @@
+/*
+ * GriddedRasterAccumulator.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+
+/**
+ * Class that rasterizes the abundance (number) and biomass (number*weight)
+ * of the individuals of a POP life stage onto the model grid at regular
+ * output times, during the run.
+ *
+ * Individuals report their grid position, number and biomass at the end of each
+ * step through add(...). Only reports from steps that cross an output time
+ * (a multiple of the output interval) are accumulated, so each raster is a
+ * snapshot of the stage at that output time. A raster is written when the first
+ * report for the next output time arrives, or when flush() is called. finish()
+ * also writes the open raster, and closes the file; it is called at the end of
+ * the model run (see PopModelRun), and at JVM shutdown for a run that was not
+ * finished. The next run's rasters then overwrite the file.
+ *
+ * Grid cells are identified by the rounded (I,J) position, as in the gridCellID
+ * attribute, so the rasters are (L+2) x (M+2) arrays. Each stage's rasters are
+ * appended to the binary file "POP_[stage]_rasters.bin" (big-endian) in the output
+ * directory, laid out as
+ * <pre>
+ *   header:    int magic (0x504F5052), int nI, int nJ
+ *   per time:  double time (s), float[nJ][nI] number, float[nJ][nI] biomass
+ * </pre>
+ * with I varying fastest.
+ *
+ * The accumulators are enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.rasterInterval" to the output interval (s);
+ * the output directory is given by "wts.models.DisMELS.IBMs.POP.outputDir" (default ".").
+ *
+ * @author William Stockhausen
+ */
+public final class GriddedRasterAccumulator {
+
+    /** system property giving the output interval (s) */
+    public static final String SYSPROP_INTERVAL = "wts.models.DisMELS.IBMs.POP.rasterInterval";
+    /** system property giving the output directory */
+    public static final String SYSPROP_DIR      = "wts.models.DisMELS.IBMs.POP.outputDir";
+    /** magic number identifying the file format ("POPR") */
+    public static final int MAGIC = 0x504F5052;
+
+    /** accumulators by stage class name */
+    private static final Map<String,GriddedRasterAccumulator> mapInstances = new HashMap<>(8);
+    /** all accumulators, for flushAll() and finishAll() */
+    private static final List<GriddedRasterAccumulator> lstInstances = new ArrayList<>(8);
+    /** flag indicating the shutdown hook has been registered */
+    private static boolean hookRegistered = false;
+
+    private static final Logger logger = Logger.getLogger(GriddedRasterAccumulator.class.getName());
+
+    /** stage the rasters are for */
+    private final String stageName;
+    /** output interval (s) */
+    private final double interval;
+    /** output file */
+    private final File file;
+    /** number of cells in the I and J directions */
+    private int nI = 0, nJ = 0;
+    /** abundance raster */
+    private double[] number;
+    /** biomass raster */
+    private double[] biomass;
+    /** output time of the open raster (NaN if none) */
+    private double openTime = Double.NaN;
+    /** output stream (opened with the first raster) */
+    private DataOutputStream out = null;
+
+    /**
+     * Returns the accumulator for a life stage, or null if rasters are not enabled.
+     *
+     * @param stageClass - the life stage class
+     * @return - the accumulator, or null
+     */
+    public static synchronized GriddedRasterAccumulator getInstance(Class<?> stageClass){
+        String str = System.getProperty(SYSPROP_INTERVAL);
+        if (str==null) return null;
+        double interval = Double.parseDouble(str.trim());
+        if (!(interval>0)) return null;
+        GriddedRasterAccumulator gra = mapInstances.get(stageClass.getName());
+        if (gra==null){
+            File dir = new File(System.getProperty(SYSPROP_DIR,"."));
+            gra = new GriddedRasterAccumulator(stageClass.getSimpleName(),interval,
+                                               new File(dir,"POP_"+stageClass.getSimpleName()+"_rasters.bin"));
+            mapInstances.put(stageClass.getName(),gra);
+            lstInstances.add(gra);
+            if (!hookRegistered){
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                    @Override
+                    public void run(){finishAll();}
+                }));
+                hookRegistered = true;
+            }
+        }
+        return gra;
+    }
+
+    /**
+     * Writes the open rasters for all stages.
+     */
+    public static synchronized void flushAll(){
+        for (GriddedRasterAccumulator gra: lstInstances) gra.flush();
+    }
+
+    /**
+     * Writes the open rasters and closes the raster files for all stages.
+     */
+    public static synchronized void finishAll(){
+        for (GriddedRasterAccumulator gra: lstInstances) gra.finish();
+    }
+
+    private GriddedRasterAccumulator(String stageName, double interval, File file){
+        this.stageName = stageName;
+        this.interval  = interval;
+        this.file      = file;
+    }
+
+    /**
+     * Returns the output time crossed by a step ending at time, or NaN if the
+     * step does not cross an output time.
+     *
+     * @param time - model time (s) at the end of the step
+     * @param dt   - time step (s; negative for backward tracking)
+     * @return - the output time, or NaN
+     */
+    public double getOutputTime(double time, double dt){
+        return OutputTimes.getCrossedTime(time,dt,interval);
+    }
+
+    /**
+     * Adds an individual to the raster for the output time crossed by the step
+     * ending at time (if any).
+     *
+     * @param ocean   - the ocean model (used to size the rasters)
+     * @param time    - model time (s) at the end of the step
+     * @param dt      - time step (s)
+     * @param pos     - individual's position in grid (I,J[,K]) coordinates
+     * @param number  - individual's abundance
+     * @param biomass - individual's biomass (number*weight)
+     */
+    public void add(OceanModel ocean, double time, double dt, double[] pos, double number, double biomass){
+        double tOut = getOutputTime(time,dt);
+        if (Double.isNaN(tOut)) return;
+        synchronized(this){
+            if (this.number==null){
+                nI = ocean.getL()+2;
+                nJ = ocean.getM()+2;
+                this.number  = new double[nI*nJ];
+                this.biomass = new double[nI*nJ];
+            }
+            if (tOut!=openTime){
+                flush();
+                openTime = tOut;
+            }
+            int i = (int) Math.min(Math.max(Math.round(pos[0]),0),nI-1);
+            int j = (int) Math.min(Math.max(Math.round(pos[1]),0),nJ-1);
+            this.number[j*nI+i]  += number;
+            this.biomass[j*nI+i] += biomass;
+        }
+    }
+
+    /**
+     * Writes the open raster (if any) and resets the accumulators.
+     */
+    public synchronized void flush(){
+        if (Double.isNaN(openTime)) return;
+        try {
+            if (out==null){
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),1<<16));
+                out.writeInt(MAGIC);
+                out.writeInt(nI);
+                out.writeInt(nJ);
+            }
+            out.writeDouble(openTime);
+            for (int n=0;n<number.length;n++)  out.writeFloat((float)number[n]);
+            for (int n=0;n<biomass.length;n++) out.writeFloat((float)biomass[n]);
+            out.flush();
+        } catch (IOException ex) {
+            logger.warning("Could not write "+stageName+" rasters for time "+openTime+" to "+file+": "+ex.getMessage());
+        }
+        Arrays.fill(number,0.0);
+        Arrays.fill(biomass,0.0);
+        openTime = Double.NaN;
+    }
+
+    /**
+     * Writes the open raster (if any) and closes the file. A later raster
+     * (e.g., from the next model run) starts a new file.
+     */
+    public synchronized void finish(){
+        flush();
+        if (out==null) return;
+        try {
+            out.close();
+        } catch (IOException ex) {
+            logger.warning("Could not close "+stageName+" raster file "+file+": "+ex.getMessage());
+        }
+        out = null;
+    }
+}
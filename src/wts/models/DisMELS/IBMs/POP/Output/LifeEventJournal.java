@@ -0,0 +1,391 @@
+/*
+ * LifeEventJournal.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ * Class recording life events (births, transitions, deaths, grid exits and
+ * spawning) for the POP life stages in a compact binary journal, written
+ * asynchronously.
+ *
+ * Each thread adds fixed-size records to its own buffer; full buffers are
+ * handed to a background thread that writes them to "POP_lifeEvents.bin" in
+ * the output directory (see GriddedRasterAccumulator). At most QUEUE_CHUNKS
+ * buffers wait to be written: a thread handing a buffer to a full queue waits
+ * for the writer, so a slow disk slows the run rather than filling the heap.
+ * Records from different threads are not in time order.
+ *
+ * finish() writes the remaining buffers and closes the file; it is called at
+ * the end of the model run (see PopModelRun), and at JVM shutdown for a run that
+ * was not finished. The next event recorded (e.g., in the next model run) starts
+ * a new file. finish() must be called when no individuals are being stepped:
+ * records made while it runs may be lost.
+ *
+ * The file starts with MAGIC and VERSION (ints). Each stage is defined by a
+ * TYPE_STAGE record (byte type, byte stage code, UTF stage class name) before
+ * the first event record for it. Event records are RECORD_SIZE bytes:
+ * <pre>
+ *   byte   type     TYPE_...
+ *   byte   stage    stage code
+ *   byte   cause    CAUSE_... (deaths), else CAUSE_NONE
+ *   long   id       id of the individual
+ *   long   otherID  births: parent id; transitions: id of the (first) new individual;
+ *                   spawning: number of individuals created; else -1
+ *   double time     model time (s)
+ *   double number   number of individuals represented (spawning: fecundity)
+ *   float  lon      longitude (deg)
+ *   float  lat      latitude (deg)
+ * </pre>
+ * Use LifeEventJournalReader to read the journal.
+ *
+ * The journal is enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.journal" to "true".
+ *
+ * @author William Stockhausen
+ */
+public final class LifeEventJournal {
+
+    /** system property enabling the journal */
+    public static final String SYSPROP_JOURNAL = "wts.models.DisMELS.IBMs.POP.journal";
+    /** journal file name */
+    public static final String FILE_NAME = "POP_lifeEvents.bin";
+    /** file identifier ("POPJ") */
+    public static final int MAGIC   = 0x504F504A;
+    /** file format version */
+    public static final int VERSION = 1;
+
+    /** record type: stage definition */
+    public static final byte TYPE_STAGE      = 0;
+    /** record type: birth (by spawning) */
+    public static final byte TYPE_BIRTH      = 1;
+    /** record type: transition to the next stage */
+    public static final byte TYPE_TRANSITION = 2;
+    /** record type: death */
+    public static final byte TYPE_DEATH      = 3;
+    /** record type: grid exit (also a death) */
+    public static final byte TYPE_GRID_EXIT  = 4;
+    /** record type: spawning */
+    public static final byte TYPE_SPAWN      = 5;
+    /** record type names, by type */
+    public static final String[] TYPES = new String[]{"stage","birth","transition","death","gridExit","spawn"};
+
+    /** cause of death: none (not a death) */
+    public static final byte CAUSE_NONE = 0;
+    /** cause of death: exceeded the maximum stage duration */
+    public static final byte CAUSE_AGE  = 1;
+    /** cause of death: stranded on land */
+    public static final byte CAUSE_STRANDING = 2;
+    /** cause of death: mortality removed all the individuals represented */
+    public static final byte CAUSE_MORTALITY = 3;
+    /** cause names, by cause */
+    public static final String[] CAUSES = new String[]{"","age","stranding","mortality"};
+
+    /** size (bytes) of an event record */
+    public static final int RECORD_SIZE = 3+8+8+8+8+4+4;
+    /** records per thread buffer */
+    private static final int BUFFER_RECORDS = 4096;
+    /** max number of buffers waiting to be written */
+    public static final int QUEUE_CHUNKS = 64;
+
+    /** journals by stage class name */
+    private static final Map<String,LifeEventJournal> mapInstances = new HashMap<>(8);
+    /** stage class simple names, by stage code */
+    private static final List<String> stageNames = new ArrayList<>(8);
+    /** the writer shared by all stages (null if no file is open) */
+    private static volatile Writer writer = null;
+    /** flag indicating the shutdown hook has been registered */
+    private static boolean hookRegistered = false;
+
+    private static final Logger logger = Logger.getLogger(LifeEventJournal.class.getName());
+
+    /** stage code */
+    private final byte stage;
+
+    /**
+     * Returns the journal for a life stage, or null if the journal is not enabled
+     * (or cannot be created).
+     *
+     * @param stageClass - the life stage class
+     * @return - the journal, or null
+     */
+    public static synchronized LifeEventJournal getInstance(Class<?> stageClass){
+        if (!Boolean.getBoolean(SYSPROP_JOURNAL)) return null;
+        LifeEventJournal j = mapInstances.get(stageClass.getName());
+        if (j==null){
+            if (openWriter()==null) return null;
+            j = new LifeEventJournal((byte)mapInstances.size());
+            mapInstances.put(stageClass.getName(),j);
+            stageNames.add(stageClass.getSimpleName());
+            writer.defineStage(j.stage,stageClass.getSimpleName());
+            if (!hookRegistered){
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                    @Override
+                    public void run(){finish();}
+                }));
+                hookRegistered = true;
+            }
+        }
+        return j;
+    }
+
+    /**
+     * Returns the open writer, opening a new file (with the stages defined so
+     * far) if none is open.
+     *
+     * @return - the writer, or null if the file cannot be created
+     */
+    private static synchronized Writer openWriter(){
+        if (writer!=null) return writer;
+        File dir  = new File(System.getProperty(GriddedRasterAccumulator.SYSPROP_DIR,"."));
+        File file = new File(dir,FILE_NAME);
+        try {
+            Writer w = new Writer(file);
+            for (int s=0;s<stageNames.size();s++) w.defineStage((byte)s,stageNames.get(s));
+            writer = w;
+        } catch (IOException ex) {
+            logger.warning("Could not create life event journal "+file+": "+ex.getMessage());
+        }
+        return writer;
+    }
+
+    /** returns the writer for a record (null if the file cannot be created) */
+    private static Writer writer(){
+        Writer w = writer;
+        return (w!=null) ? w : openWriter();
+    }
+
+    /**
+     * Writes the remaining records (by all threads) and closes the file. The next
+     * record starts a new file.
+     */
+    public static synchronized void finish(){
+        if (writer==null) return;
+        writer.close();
+        writer = null;
+    }
+
+    private LifeEventJournal(byte stage){
+        this.stage = stage;
+    }
+
+    /**
+     * Records the birth of an individual by spawning.
+     *
+     * @param id       - id of the new individual
+     * @param parentID - id of the parent
+     * @param time     - model time (s)
+     * @param number   - number of individuals represented
+     * @param lon      - longitude (deg)
+     * @param lat      - latitude (deg)
+     */
+    public void birth(long id, long parentID, double time, double number, double lon, double lat){
+        Writer w = writer();
+        if (w!=null) w.record(TYPE_BIRTH,stage,CAUSE_NONE,id,parentID,time,number,lon,lat);
+    }
+
+    /**
+     * Records a transition to the next stage.
+     *
+     * @param id     - id of the individual
+     * @param newID  - id of the (first) next-stage individual created
+     * @param time   - model time (s)
+     * @param number - number of individuals transitioning
+     * @param lon    - longitude (deg)
+     * @param lat    - latitude (deg)
+     */
+    public void transition(long id, long newID, double time, double number, double lon, double lat){
+        Writer w = writer();
+        if (w!=null) w.record(TYPE_TRANSITION,stage,CAUSE_NONE,id,newID,time,number,lon,lat);
+    }
+
+    /**
+     * Records a death.
+     *
+     * @param id     - id of the individual
+     * @param cause  - cause of death (CAUSE_...)
+     * @param time   - model time (s)
+     * @param number - number of individuals represented
+     * @param lon    - longitude (deg)
+     * @param lat    - latitude (deg)
+     */
+    public void death(long id, byte cause, double time, double number, double lon, double lat){
+        Writer w = writer();
+        if (w!=null) w.record(TYPE_DEATH,stage,cause,id,-1L,time,number,lon,lat);
+    }
+
+    /**
+     * Records an individual exiting the grid.
+     *
+     * @param id     - id of the individual
+     * @param time   - model time (s)
+     * @param number - number of individuals represented
+     * @param lon    - longitude (deg)
+     * @param lat    - latitude (deg)
+     */
+    public void gridExit(long id, double time, double number, double lon, double lat){
+        Writer w = writer();
+        if (w!=null) w.record(TYPE_GRID_EXIT,stage,CAUSE_NONE,id,-1L,time,number,lon,lat);
+    }
+
+    /**
+     * Records a spawning event.
+     *
+     * @param id        - id of the adult
+     * @param time      - model time (s)
+     * @param fecundity - fecundity
+     * @param nSpawned  - number of individuals created
+     * @param lon       - longitude (deg)
+     * @param lat       - latitude (deg)
+     */
+    public void spawn(long id, double time, double fecundity, int nSpawned, double lon, double lat){
+        Writer w = writer();
+        if (w!=null) w.record(TYPE_SPAWN,stage,CAUSE_NONE,id,nSpawned,time,fecundity,lon,lat);
+    }
+
+    /**
+     * Writes the records buffered so far (by all threads) to the file.
+     */
+    public static synchronized void flush(){
+        if (writer!=null) writer.flushBuffers();
+    }
+
+    /**
+     * Per-thread record buffers and the background thread writing them.
+     */
+    private static final class Writer implements Runnable {
+        /** marks the end of the queue */
+        private static final byte[] EOF = new byte[0];
+
+        private final File file;
+        private final DataOutputStream out;
+        /** filled buffers (or stage definitions) waiting to be written */
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CHUNKS);
+        private final Thread thread;
+        /** all thread buffers, for flushing */
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        /** buffer for the calling thread */
+        private final ThreadLocal<ByteBuffer> localBuffer = new ThreadLocal<ByteBuffer>(){
+            @Override
+            protected ByteBuffer initialValue(){
+                ByteBuffer b = ByteBuffer.allocate(BUFFER_RECORDS*RECORD_SIZE);
+                synchronized(buffers){buffers.add(b);}
+                return b;
+            }
+        };
+        private volatile boolean closed = false;
+
+        private Writer(File file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),1<<16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            thread = new Thread(this,"POP life event journal");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void defineStage(byte code, String name){
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bos);
+                dos.writeByte(TYPE_STAGE);
+                dos.writeByte(code);
+                dos.writeUTF(name);
+                put(bos.toByteArray());
+            } catch (IOException ex) {
+                //not thrown by a ByteArrayOutputStream
+            }
+        }
+
+        private void record(byte type, byte stage, byte cause, long id, long otherID,
+                            double time, double number, double lon, double lat){
+            ByteBuffer b = localBuffer.get();
+            synchronized(b){
+                b.put(type).put(stage).put(cause).putLong(id).putLong(otherID)
+                 .putDouble(time).putDouble(number).putFloat((float)lon).putFloat((float)lat);
+                if (b.remaining()<RECORD_SIZE) hand(b);
+            }
+        }
+
+        /** hands the contents of a buffer to the writer thread (call synchronized on b) */
+        private void hand(ByteBuffer b){
+            if (b.position()==0) return;
+            if (!closed) put(Arrays.copyOf(b.array(),b.position()));//else the writer has stopped
+            b.clear();
+        }
+
+        /** queues a chunk, waiting while the queue is full */
+        private void put(byte[] chunk){
+            try {
+                queue.put(chunk);
+            } catch (InterruptedException ex) {
+                logger.warning("Interrupted while queueing life events for "+file+": records lost");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void flushBuffers(){
+            synchronized(buffers){
+                for (ByteBuffer b: buffers){
+                    synchronized(b){hand(b);}
+                }
+            }
+        }
+
+        @Override
+        public void run(){
+            boolean ok = true;//false after a write error: chunks are then discarded
+            List<byte[]> chunks = new ArrayList<>();
+            try {
+                while (true){
+                    chunks.add(queue.take());
+                    queue.drainTo(chunks);
+                    for (byte[] c: chunks){
+                        try {
+                            if (c==EOF) {
+                                if (ok) out.flush();
+                                return;
+                            }
+                            if (ok) out.write(c);
+                        } catch (IOException ex) {
+                            logger.warning("Could not write life event journal "+file+": "+ex.getMessage());
+                            ok = false;
+                        }
+                    }
+                    chunks.clear();
+                }
+            } catch (InterruptedException ex) {
+                //stop writing
+            }
+        }
+
+        private synchronized void close(){
+            if (closed) return;
+            flushBuffers();
+            closed = true;
+            put(EOF);
+            try {
+                thread.join();
+                out.close();
+            } catch (InterruptedException | IOException ex) {
+                logger.warning("Could not close life event journal "+file+": "+ex.getMessage());
+            }
+        }
+    }
+}
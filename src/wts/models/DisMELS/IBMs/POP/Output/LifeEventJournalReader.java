@@ -0,0 +1,150 @@
+/*
+ * LifeEventJournalReader.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class reading a life event journal written by LifeEventJournal.
+ *
+ * Run as an application to convert a journal to csv:
+ * <pre>
+ *   java wts.models.DisMELS.IBMs.POP.Output.LifeEventJournalReader POP_lifeEvents.bin [out.csv]
+ * </pre>
+ *
+ * @author William Stockhausen
+ */
+public final class LifeEventJournalReader implements Closeable {
+
+    /**
+     * A life event.
+     */
+    public static final class Record {
+        /** record type (LifeEventJournal.TYPE_...) */
+        public byte type;
+        /** stage class name */
+        public String stage;
+        /** cause of death (LifeEventJournal.CAUSE_...) */
+        public byte cause;
+        /** id of the individual */
+        public long id;
+        /** related id or count (see LifeEventJournal) */
+        public long otherID;
+        /** model time (s) */
+        public double time;
+        /** number of individuals (spawning: fecundity) */
+        public double number;
+        /** longitude, latitude (deg) */
+        public float lon, lat;
+
+        /**
+         * @return - the header for getCSV()
+         */
+        public static String getCSVHeader(){
+            return "type,stage,cause,id,otherID,time,number,lon,lat";
+        }
+
+        /**
+         * @return - the record as a line of csv
+         */
+        public String getCSV(){
+            return LifeEventJournal.TYPES[type]+","+stage+","+LifeEventJournal.CAUSES[cause]+","+
+                   id+","+otherID+","+time+","+number+","+lon+","+lat;
+        }
+    }
+
+    private final DataInputStream in;
+    /** stage class names by code */
+    private final Map<Byte,String> mapStages = new HashMap<>(8);
+
+    /**
+     * Opens a journal.
+     *
+     * @param file - the journal file
+     * @throws IOException - if the file cannot be read or is not a journal
+     */
+    public LifeEventJournalReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),1<<16));
+        if (in.readInt()!=LifeEventJournal.MAGIC) {
+            in.close();
+            throw new IOException(file+" is not a life event journal.");
+        }
+        int v = in.readInt();
+        if (v!=LifeEventJournal.VERSION) {
+            in.close();
+            throw new IOException(file+" has unsupported version "+v+".");
+        }
+    }
+
+    /**
+     * Reads the next event record (reading any stage definitions before it).
+     *
+     * @param r - record to fill
+     * @return - true if a record was read, false at the end of the journal
+     * @throws IOException - if the journal cannot be read
+     */
+    public boolean next(Record r) throws IOException {
+        while (true){
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException ex) {
+                return false;
+            }
+            if (type==LifeEventJournal.TYPE_STAGE){
+                byte code = in.readByte();
+                mapStages.put(code,in.readUTF());
+                continue;
+            }
+            r.type    = type;
+            r.stage   = mapStages.get(in.readByte());
+            r.cause   = in.readByte();
+            r.id      = in.readLong();
+            r.otherID = in.readLong();
+            r.time    = in.readDouble();
+            r.number  = in.readDouble();
+            r.lon     = in.readFloat();
+            r.lat     = in.readFloat();
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Converts a journal to csv.
+     *
+     * @param args - journal file name and (optional) csv file name (default: standard output)
+     * @throws IOException - if the files cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length<1) {
+            System.err.println("Usage: LifeEventJournalReader journalFile [csvFile]");
+            return;
+        }
+        PrintWriter pw = (args.length>1) ? new PrintWriter(new FileWriter(args[1])) : new PrintWriter(System.out);
+        try (LifeEventJournalReader rdr = new LifeEventJournalReader(new File(args[0]))) {
+            pw.println(Record.getCSVHeader());
+            Record r = new Record();
+            while (rdr.next(r)) pw.println(r.getCSV());
+        } finally {
+            pw.flush();
+            if (args.length>1) pw.close();
+        }
+    }
+}
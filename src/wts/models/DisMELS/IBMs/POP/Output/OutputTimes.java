@@ -0,0 +1,35 @@
+/*
+ * OutputTimes.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+/**
+ * Utility class for the regular output times used by the in-run accumulators.
+ *
+ * Output times are the multiples of the output interval. Individuals report at
+ * the end of each step, and only the reports from the step that crosses an output
+ * time are used, so all individuals contribute the state they have at that time.
+ *
+ * @author William Stockhausen
+ */
+public final class OutputTimes {
+
+    private OutputTimes(){}
+
+    /**
+     * Returns the output time crossed by a step ending at time, or NaN if the
+     * step does not cross an output time.
+     *
+     * @param time     - model time (s) at the end of the step
+     * @param dt       - time step (s; negative for backward tracking)
+     * @param interval - output interval (s)
+     * @return - the output time, or NaN
+     */
+    public static double getCrossedTime(double time, double dt, double interval){
+        double kNow  = Math.floor(time/interval);
+        double kPrev = Math.floor((time-dt)/interval);
+        if (kNow==kPrev) return Double.NaN;
+        return Math.max(kNow,kPrev)*interval;
+    }
+}
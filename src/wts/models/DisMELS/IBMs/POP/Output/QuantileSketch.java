@@ -0,0 +1,209 @@
+/*
+ * QuantileSketch.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+/**
+ * Mergeable sketch for approximate quantiles of a stream of (weighted) values,
+ * with a guaranteed relative accuracy.
+ *
+ * Values are counted, by weight, in logarithmically-spaced bins (bin k of positive values
+ * covers (gamma^(k-1), gamma^k] with gamma = (1+alpha)/(1-alpha)), with separate
+ * bins for negative values and a count of (near) zeros, as in DDSketch
+ * (Masson et al. 2019). The q-quantile is the smallest value such that the values
+ * up to it make up a fraction q of the total weight; its estimate is within a
+ * relative error alpha of it. Because sketches with the same alpha have the same
+ * bins, merging adds the counts, so sketches built by parallel workers can be
+ * merged in any order with the same result (up to rounding of the weights).
+ *
+ * The memory used grows with the log of the range of the values (e.g., about 700
+ * bins for values spanning 1e-3 to 1e3 with alpha = 0.01).
+ *
+ * @author William Stockhausen
+ */
+public final class QuantileSketch {
+
+    /** default relative accuracy */
+    public static final double DEFAULT_ALPHA = 0.01;
+    /** values with magnitudes below this are counted as zero */
+    public static final double MIN_MAGNITUDE = 1.0E-9;
+
+    /** relative accuracy */
+    private final double alpha;
+    /** bin growth factor */
+    private final double gamma;
+    /** 1/log(gamma) */
+    private final double rLogGamma;
+    /** bins for positive values */
+    private final Bins positive = new Bins();
+    /** bins for negative values (by magnitude) */
+    private final Bins negative = new Bins();
+    /** weight of zeros */
+    private double zeros = 0;
+    /** total weight */
+    private double weight = 0;
+    /** number of values */
+    private long count = 0;
+
+    /** dense, growable array of weights for a range of bin indices */
+    private static final class Bins {
+        private double[] counts = null;
+        private int offset = 0;//bin index of counts[0]
+        private void add(int k, double w){
+            if (counts==null){
+                counts = new double[64];
+                offset = k-32;
+            }
+            if (k<offset){
+                int shift = Math.max(offset-k,counts.length/2);
+                double[] a = new double[counts.length+shift];
+                System.arraycopy(counts,0,a,shift,counts.length);
+                counts = a;
+                offset -= shift;
+            } else if (k>=offset+counts.length){
+                int grow = Math.max(k-offset-counts.length+1,counts.length/2);
+                double[] a = new double[counts.length+grow];
+                System.arraycopy(counts,0,a,0,counts.length);
+                counts = a;
+            }
+            counts[k-offset] += w;
+        }
+        private void merge(Bins o){
+            if (o.counts==null) return;
+            for (int n=0;n<o.counts.length;n++) if (o.counts[n]>0) add(o.offset+n,o.counts[n]);
+        }
+        private void clear(){
+            counts = null;
+        }
+    }
+
+    /**
+     * Creates a sketch with the default relative accuracy.
+     */
+    public QuantileSketch(){
+        this(DEFAULT_ALPHA);
+    }
+
+    /**
+     * Creates a sketch.
+     *
+     * @param alpha - relative accuracy (0-1)
+     */
+    public QuantileSketch(double alpha){
+        this.alpha     = alpha;
+        this.gamma     = (1+alpha)/(1-alpha);
+        this.rLogGamma = 1.0/Math.log(gamma);
+    }
+
+    private int index(double magnitude){
+        return (int) Math.ceil(Math.log(magnitude)*rLogGamma);
+    }
+
+    /**
+     * Adds a value with unit weight to the sketch. NaNs are ignored.
+     *
+     * @param x - the value
+     */
+    public void add(double x){
+        add(x,1.0);
+    }
+
+    /**
+     * Adds a weighted value (e.g., an individual's size with its number) to the
+     * sketch. NaNs, and values with weights that are not positive, are ignored.
+     *
+     * @param x - the value
+     * @param w - its weight
+     */
+    public void add(double x, double w){
+        if (Double.isNaN(x)||!(w>0)) return;
+        if (x>MIN_MAGNITUDE) positive.add(index(x),w); else
+        if (x<-MIN_MAGNITUDE) negative.add(index(-x),w); else
+        zeros += w;
+        weight += w;
+        count++;
+    }
+
+    /**
+     * Merges another sketch into this one.
+     *
+     * @param o - sketch with the same relative accuracy
+     * @throws IllegalArgumentException - if the accuracies differ
+     */
+    public void merge(QuantileSketch o){
+        if (o.alpha!=alpha) throw new IllegalArgumentException("Cannot merge sketches with different accuracies.");
+        positive.merge(o.positive);
+        negative.merge(o.negative);
+        zeros  += o.zeros;
+        weight += o.weight;
+        count  += o.count;
+    }
+
+    /**
+     * Removes all values from the sketch.
+     */
+    public void clear(){
+        positive.clear();
+        negative.clear();
+        zeros  = 0;
+        weight = 0;
+        count  = 0;
+    }
+
+    /**
+     * @return - number of values in the sketch
+     */
+    public long getCount(){
+        return count;
+    }
+
+    /**
+     * @return - total weight of the values in the sketch
+     */
+    public double getWeight(){
+        return weight;
+    }
+
+    /**
+     * Returns the approximate q-quantile of the values: the estimate of the
+     * smallest value such that the values up to it have at least a fraction q of
+     * the total weight.
+     *
+     * @param q - quantile (0-1)
+     * @return - the estimate (NaN if the sketch is empty)
+     */
+    public double getQuantile(double q){
+        if (count==0) return Double.NaN;
+        double target = Math.min(Math.max(q,0.0),1.0)*weight;
+        double seen = 0, last = Double.NaN;
+        //negative values, from most to least negative
+        if (negative.counts!=null){
+            for (int n=negative.counts.length-1;n>=0;n--){
+                if (negative.counts[n]==0) continue;
+                seen += negative.counts[n];
+                last = -value(negative.offset+n);
+                if (seen>=target) return last;
+            }
+        }
+        if (zeros>0){
+            seen += zeros;
+            last = 0.0;
+            if (seen>=target) return last;
+        }
+        if (positive.counts!=null){
+            for (int n=0;n<positive.counts.length;n++){
+                if (positive.counts[n]==0) continue;
+                seen += positive.counts[n];
+                last = value(positive.offset+n);
+                if (seen>=target) return last;
+            }
+        }
+        return last;//q near 1, with the summed weights rounded below the total
+    }
+
+    /** representative value of bin k, within relative error alpha of every value in the bin */
+    private double value(int k){
+        return 2*Math.pow(gamma,k)/(gamma+1);
+    }
+}
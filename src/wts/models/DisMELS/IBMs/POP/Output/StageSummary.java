@@ -0,0 +1,196 @@
+/*
+ * StageSummary.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+/**
+ * Class holding mergeable summary statistics for the individuals of a POP
+ * life stage at one output time: the number of live individuals, the totals of
+ * number and numTrans, and the mean, variance, range and approximate quantiles
+ * of size, weight, temperature, depth and ageInStage.
+ *
+ * The statistics are over the fish, not the individuals: each individual's values
+ * are weighted by its number, so a super-individual counts for the fish it
+ * represents. Individuals whose number is not positive count in the number of
+ * individuals only. Weighted means and variances are accumulated with West's
+ * (1979) form of Welford's algorithm and merged with Chan et al.'s pairwise
+ * formula; quantiles come from QuantileSketch. Both merge correctly in any order,
+ * so summaries accumulated by parallel workers can be combined. Instances are
+ * not thread-safe.
+ *
+ * @author William Stockhausen
+ */
+public final class StageSummary {
+
+    /** names of the summarized variables */
+    public static final String[] VARIABLES = new String[]{"size","weight","temperature","depth","ageInStage"};
+    /** quantiles reported by getCSV() */
+    public static final double[] QUANTILES = new double[]{0.05,0.25,0.5,0.75,0.95};
+
+    /** number of summarized variables */
+    private static final int NV = VARIABLES.length;
+
+    /** number of individuals */
+    private long count = 0;
+    /** total number (abundance) */
+    private double totNumber = 0;
+    /** total numTrans */
+    private double totNumTrans = 0;
+    /** total weights of the (non-NaN) values, by variable */
+    private final double[] w = new double[NV];
+    /** means, by variable */
+    private final double[] mean = new double[NV];
+    /** sums of squared deviations, by variable */
+    private final double[] m2 = new double[NV];
+    /** minimums, by variable */
+    private final double[] min = new double[NV];
+    /** maximums, by variable */
+    private final double[] max = new double[NV];
+    /** quantile sketches, by variable */
+    private final QuantileSketch[] sketches = new QuantileSketch[NV];
+
+    /**
+     * Creates an empty summary.
+     */
+    public StageSummary(){
+        for (int v=0;v<NV;v++) sketches[v] = new QuantileSketch();
+        clear();
+    }
+
+    /**
+     * Adds an individual to the summary.
+     *
+     * @param number      - individual's number (the weight of its values)
+     * @param numTrans    - individual's numTrans
+     * @param size        - individual's size
+     * @param weight      - individual's weight
+     * @param temperature - in situ temperature
+     * @param depth       - individual's depth
+     * @param ageInStage  - individual's age in stage
+     */
+    public void add(double number, double numTrans,
+                    double size, double weight, double temperature, double depth, double ageInStage){
+        count++;
+        totNumber   += number;
+        totNumTrans += numTrans;
+        if (!(number>0)) return;
+        addValue(0,size,number);
+        addValue(1,weight,number);
+        addValue(2,temperature,number);
+        addValue(3,depth,number);
+        addValue(4,ageInStage,number);
+    }
+
+    private void addValue(int v, double x, double wx){
+        if (Double.isNaN(x)) return;
+        w[v] += wx;
+        double d = x-mean[v];
+        mean[v] += d*wx/w[v];
+        m2[v]   += wx*d*(x-mean[v]);
+        if (x<min[v]) min[v] = x;
+        if (x>max[v]) max[v] = x;
+        sketches[v].add(x,wx);
+    }
+
+    /**
+     * Merges another summary into this one.
+     *
+     * @param o - the other summary
+     */
+    public void merge(StageSummary o){
+        count       += o.count;
+        totNumber   += o.totNumber;
+        totNumTrans += o.totNumTrans;
+        for (int v=0;v<NV;v++){
+            if (o.w[v]==0) continue;
+            double wt = w[v]+o.w[v];
+            double d = o.mean[v]-mean[v];
+            mean[v] += d*o.w[v]/wt;
+            m2[v]   += o.m2[v]+d*d*w[v]*o.w[v]/wt;
+            w[v] = wt;
+            min[v] = Math.min(min[v],o.min[v]);
+            max[v] = Math.max(max[v],o.max[v]);
+            sketches[v].merge(o.sketches[v]);
+        }
+    }
+
+    /**
+     * Resets the summary to empty.
+     */
+    public void clear(){
+        count = 0;
+        totNumber = 0;
+        totNumTrans = 0;
+        for (int v=0;v<NV;v++){
+            w[v] = 0; mean[v] = 0; m2[v] = 0;
+            min[v] = Double.POSITIVE_INFINITY;
+            max[v] = Double.NEGATIVE_INFINITY;
+            sketches[v].clear();
+        }
+    }
+
+    /** @return - number of individuals */
+    public long getCount(){return count;}
+    /** @return - total number */
+    public double getTotalNumber(){return totNumber;}
+    /** @return - total numTrans */
+    public double getTotalNumTrans(){return totNumTrans;}
+
+    /**
+     * @param v - variable index (see VARIABLES)
+     * @return - mean of the variable, weighted by number (NaN if no values)
+     */
+    public double getMean(int v){return (w[v]>0) ? mean[v] : Double.NaN;}
+
+    /**
+     * @param v - variable index (see VARIABLES)
+     * @return - sample variance of the variable, with the numbers as frequency
+     *           weights (NaN if the total number is not above 1)
+     */
+    public double getVariance(int v){return (w[v]>1) ? m2[v]/(w[v]-1) : Double.NaN;}
+
+    /**
+     * @param v - variable index (see VARIABLES)
+     * @param q - quantile (0-1)
+     * @return - approximate quantile of the variable, weighted by number (NaN if no values)
+     */
+    public double getQuantile(int v, double q){return sketches[v].getQuantile(q);}
+
+    /**
+     * Returns the CSV header matching getCSV().
+     *
+     * @return - the header
+     */
+    public static String getCSVHeader(){
+        StringBuilder b = new StringBuilder("time,count,number,numTrans");
+        for (String var: VARIABLES){
+            b.append(",").append(var).append("_mean");
+            b.append(",").append(var).append("_sd");
+            b.append(",").append(var).append("_min");
+            for (double q: QUANTILES) b.append(",").append(var).append("_q").append(Math.round(100*q));
+            b.append(",").append(var).append("_max");
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the summary as a CSV line.
+     *
+     * @param time - output time (s)
+     * @return - the CSV line
+     */
+    public String getCSV(double time){
+        StringBuilder b = new StringBuilder();
+        b.append(time).append(",").append(count).append(",").append(totNumber).append(",").append(totNumTrans);
+        for (int v=0;v<NV;v++){
+            boolean has = w[v]>0;
+            b.append(",").append(getMean(v));
+            b.append(",").append(Math.sqrt(getVariance(v)));
+            b.append(",").append(has ? min[v] : Double.NaN);
+            for (double q: QUANTILES) b.append(",").append(getQuantile(v,q));
+            b.append(",").append(has ? max[v] : Double.NaN);
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * StageSummaryAccumulator.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Class accumulating per-output-time summaries (see StageSummary) of the
+ * individuals of a POP life stage during the run.
+ *
+ * Individuals report at the end of each step through add(...); only reports from
+ * steps crossing an output time are used (see OutputTimes). Each thread adds to
+ * its own StageSummary, so workers stepping individuals in parallel do not contend;
+ * the per-thread summaries are merged when the first report for a later output
+ * time arrives (all individuals are assumed to have finished the previous step by
+ * then), on flush(), and at JVM shutdown. Reports for an output time that has
+ * already been merged (e.g., from a worker still finishing the previous step)
+ * are dropped, with a warning, rather than being counted in the next summary.
+ * finish() merges and writes the open summary and ends the run's file: it is
+ * called at the end of the model run (see PopModelRun), so the next run's summaries
+ * (which may be for earlier output times) start a new file. The merged summary is appended to
+ * "POP_[stage]_summary.csv" in the output directory, and is available from
+ * getLastSummary().
+ *
+ * The accumulators are enabled by setting the system property
+ * "wts.models.DisMELS.IBMs.POP.summaryInterval" to the output interval (s).
+ *
+ * @author William Stockhausen
+ */
+public final class StageSummaryAccumulator {
+
+    /** system property giving the output interval (s) */
+    public static final String SYSPROP_INTERVAL = "wts.models.DisMELS.IBMs.POP.summaryInterval";
+
+    /** accumulators by stage class name */
+    private static final Map<String,StageSummaryAccumulator> mapInstances = new HashMap<>(8);
+    /** all accumulators, for flushAll() and finishAll() */
+    private static final List<StageSummaryAccumulator> lstInstances = new ArrayList<>(8);
+    /** flag indicating the shutdown hook has been registered */
+    private static boolean hookRegistered = false;
+
+    private static final Logger logger = Logger.getLogger(StageSummaryAccumulator.class.getName());
+
+    /** stage the summaries are for */
+    private final String stageName;
+    /** output interval (s) */
+    private final double interval;
+    /** output file */
+    private final File file;
+    /** per-thread summaries */
+    private final List<StageSummary> parts = new ArrayList<>();
+    /** summary for the calling thread */
+    private final ThreadLocal<StageSummary> localPart = new ThreadLocal<StageSummary>(){
+        @Override
+        protected StageSummary initialValue(){
+            StageSummary s = new StageSummary();
+            synchronized(parts){parts.add(s);}
+            return s;
+        }
+    };
+    /** output time being accumulated (NaN if none) */
+    private volatile double openTime = Double.NaN;
+    /** the last merged summary */
+    private StageSummary lastSummary = null;
+    /** output time of the last merged summary */
+    private double lastTime = Double.NaN;
+    /** flag to start a new file with the next summary */
+    private boolean newFile = false;
+    /** number of reports dropped because their output time had been merged */
+    private final AtomicLong numLate = new AtomicLong();
+
+    /**
+     * Returns the accumulator for a life stage, or null if summaries are not enabled.
+     *
+     * @param stageClass - the life stage class
+     * @return - the accumulator, or null
+     */
+    public static synchronized StageSummaryAccumulator getInstance(Class<?> stageClass){
+        String str = System.getProperty(SYSPROP_INTERVAL);
+        if (str==null) return null;
+        double interval = Double.parseDouble(str.trim());
+        if (!(interval>0)) return null;
+        StageSummaryAccumulator ssa = mapInstances.get(stageClass.getName());
+        if (ssa==null){
+            File dir = new File(System.getProperty(GriddedRasterAccumulator.SYSPROP_DIR,"."));
+            ssa = new StageSummaryAccumulator(stageClass.getSimpleName(),interval,
+                                              new File(dir,"POP_"+stageClass.getSimpleName()+"_summary.csv"));
+            mapInstances.put(stageClass.getName(),ssa);
+            lstInstances.add(ssa);
+            if (!hookRegistered){
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                    @Override
+                    public void run(){flushAll();}
+                }));
+                hookRegistered = true;
+            }
+        }
+        return ssa;
+    }
+
+    /**
+     * Merges and writes the open summaries for all stages.
+     */
+    public static synchronized void flushAll(){
+        for (StageSummaryAccumulator ssa: lstInstances) ssa.flush();
+    }
+
+    /**
+     * Merges and writes the open summaries and ends the files for all stages.
+     */
+    public static synchronized void finishAll(){
+        for (StageSummaryAccumulator ssa: lstInstances) ssa.finish();
+    }
+
+    private StageSummaryAccumulator(String stageName, double interval, File file){
+        this.stageName = stageName;
+        this.interval  = interval;
+        this.file      = file;
+        if (file.exists()&&!file.delete()) logger.warning("Could not delete old summary file "+file);
+    }
+
+    /**
+     * Adds an individual to the summary for the output time crossed by the step
+     * ending at time (if any).
+     *
+     * @param time        - model time (s) at the end of the step
+     * @param dt          - time step (s)
+     * @param number      - individual's number
+     * @param numTrans    - individual's numTrans
+     * @param size        - individual's size
+     * @param weight      - individual's weight
+     * @param temperature - in situ temperature
+     * @param depth       - individual's depth
+     * @param ageInStage  - individual's age in stage
+     */
+    public void add(double time, double dt, double number, double numTrans,
+                    double size, double weight, double temperature, double depth, double ageInStage){
+        double tOut = OutputTimes.getCrossedTime(time,dt,interval);
+        if (Double.isNaN(tOut)) return;
+        if (tOut!=openTime){
+            synchronized(this){
+                if (tOut!=openTime){
+                    //roll over only to a later output time (in the direction of dt)
+                    double open = Double.isNaN(openTime) ? lastTime : openTime;
+                    if (!Double.isNaN(open)&&((tOut-open)*dt<=0)){
+                        late(tOut);
+                        return;
+                    }
+                    flush();
+                    openTime = tOut;
+                }
+            }
+        }
+        StageSummary s = localPart.get();
+        synchronized(s){
+            //flush() closes the output time before merging the per-thread summaries
+            if (tOut!=openTime){
+                late(tOut);
+                return;
+            }
+            s.add(number,numTrans,size,weight,temperature,depth,ageInStage);
+        }
+    }
+
+    /** counts a dropped report, warning on the first one */
+    private void late(double tOut){
+        if (numLate.getAndIncrement()==0) logger.warning("Dropped "+stageName+" summary report for output time "+tOut+
+                                         ", which had already been written (further drops are counted only).");
+    }
+
+    /**
+     * Merges the per-thread summaries for the open output time (if any),
+     * appends the result to the output file and resets the per-thread summaries.
+     */
+    public synchronized void flush(){
+        double time = openTime;
+        if (Double.isNaN(time)) return;
+        openTime = Double.NaN;//reports for time arriving from now on are late
+        StageSummary merged = new StageSummary();
+        synchronized(parts){
+            for (StageSummary s: parts){
+                synchronized(s){
+                    merged.merge(s);
+                    s.clear();
+                }
+            }
+        }
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file,!newFile))) {
+            if (newFile||(file.length()==0)) pw.println(StageSummary.getCSVHeader());
+            pw.println(merged.getCSV(time));
+        } catch (IOException ex) {
+            logger.warning("Could not write "+stageName+" summary for time "+time+" to "+file+": "+ex.getMessage());
+        }
+        newFile     = false;
+        lastSummary = merged;
+        lastTime    = time;
+    }
+
+    /**
+     * Merges and writes the open summary (if any), and ends the file: the next
+     * summary (e.g., from the next model run, whose output times may be earlier)
+     * starts a new one.
+     */
+    public synchronized void finish(){
+        flush();
+        lastTime = Double.NaN;
+        newFile  = true;
+    }
+
+    /**
+     * @return - the last merged summary (null if none yet)
+     */
+    public synchronized StageSummary getLastSummary(){
+        return lastSummary;
+    }
+
+    /**
+     * @return - output time (s) of the last merged summary (NaN if none yet)
+     */
+    public synchronized double getLastTime(){
+        return lastTime;
+    }
+
+    /**
+     * @return - number of reports dropped because their output time had already been written
+     */
+    public long getNumLateReports(){
+        return numLate.get();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * PopModelRun.java
+ */
+
+package wts.models.DisMELS.IBMs.POP;
+
+import wts.models.DisMELS.IBMs.POP.Grid.SpatialIndex;
+import wts.models.DisMELS.IBMs.POP.Output.GriddedRasterAccumulator;
+import wts.models.DisMELS.IBMs.POP.Output.LifeEventJournal;
+import wts.models.DisMELS.IBMs.POP.Output.StageSummaryAccumulator;
+
+/**
+ * Class marking the start and end of a model run for the run-scoped state of
+ * the POP life stages: the spatial indices (SpatialIndex), the gridded rasters
+ * (GriddedRasterAccumulator), the stage summaries (StageSummaryAccumulator) and
+ * the life event journal (LifeEventJournal).
+ *
+ * This state is held per stage class, so it outlives a run. The code driving
+ * the run calls start() before the individuals are initialized and finish()
+ * after the last step, so the outputs are complete and closed when the run ends,
+ * and a later run in the same JVM (e.g., from the GUI, or in tests and benchmarks)
+ * starts from empty indices and new output files. The JVM shutdown hooks of the
+ * outputs only finish a run that was not finished explicitly.
+ *
+ * Both methods must be called when no individuals are being stepped.
+ *
+ * @author William Stockhausen
+ */
+public final class PopModelRun {
+
+    private PopModelRun(){}
+
+    /**
+     * Starts a model run: finishes the previous run (if it was not finished)
+     * and removes its individuals from the spatial indices.
+     */
+    public static synchronized void start(){
+        finish();
+        SpatialIndex.clearAll();
+    }
+
+    /**
+     * Finishes a model run: writes the open rasters and summaries, and closes
+     * the raster files and the life event journal.
+     */
+    public static synchronized void finish(){
+        GriddedRasterAccumulator.finishAll();
+        StageSummaryAccumulator.finishAll();
+        LifeEventJournal.finish();
+    }
+}
@@ -6,6 +6,7 @@ package wts.models.DisMELS.IBMs.POP.Settler;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import org.openide.util.lookup.ServiceProvider;
@@ -14,8 +15,33 @@ import wts.models.DisMELS.IBMFunctions.Growth.LinearGrowthFunction;
 import wts.models.DisMELS.IBMFunctions.Miscellaneous.ConstantFunction;
 import wts.models.DisMELS.IBMFunctions.Mortality.ConstantMortalityRate;
 import wts.models.DisMELS.IBMFunctions.Mortality.TemperatureDependentMortalityRate_Houde1989;
+import wts.models.DisMELS.IBMs.POP.Biology.CohortBiology;
+import wts.models.DisMELS.IBMs.POP.Biology.StepPlan;
+import wts.models.DisMELS.IBMs.POP.Environment.EnvironmentalFieldRegistry;
+import wts.models.DisMELS.IBMs.POP.Environment.EnvironmentalFieldSet;
+import wts.models.DisMELS.IBMs.POP.Environment.ExposureAccumulator;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModels;
+import wts.models.DisMELS.IBMs.POP.Grid.BoundaryDistanceField;
+import wts.models.DisMELS.IBMs.POP.Grid.CellCursor;
+import wts.models.DisMELS.IBMs.POP.Grid.GridLocator;
+import wts.models.DisMELS.IBMs.POP.Grid.SettlementHabitatMap;
+import wts.models.DisMELS.IBMs.POP.Grid.SpatialIndex;
+import wts.models.DisMELS.IBMs.POP.Grid.StaticFieldTable;
+import wts.models.DisMELS.IBMs.POP.Grid.VerticalGridCache;
+import wts.models.DisMELS.IBMs.POP.IBMFunctions.FormulaFunction;
+import wts.models.DisMELS.IBMs.POP.IBMFunctions.TabulatedFunction;
+import wts.models.DisMELS.IBMs.POP.Movement.AdaptiveIntegrator;
+import wts.models.DisMELS.IBMs.POP.Movement.StepEventDetector;
+import wts.models.DisMELS.IBMs.POP.Monitoring.PopEvents;
+import wts.models.DisMELS.IBMs.POP.Monitoring.StageMetrics;
+import wts.models.DisMELS.IBMs.POP.Monitoring.StepPhaseTimer;
 import wts.models.DisMELS.IBMs.POP.BenthicJuvenile.BenthicJuvenileStage;
 import wts.models.DisMELS.IBMs.POP.NewAttributes;
+import wts.models.DisMELS.IBMs.POP.Output.ConnectivityAccumulator;
+import wts.models.DisMELS.IBMs.POP.Output.GriddedRasterAccumulator;
+import wts.models.DisMELS.IBMs.POP.Output.LifeEventJournal;
+import wts.models.DisMELS.IBMs.POP.Output.StageSummaryAccumulator;
 import wts.models.DisMELS.framework.*;
 import wts.models.DisMELS.framework.IBMFunctions.IBMFunctionInterface;
 import wts.models.utilities.DateTimeFunctions;
@@ -79,6 +105,18 @@ public class SettlerStage extends AbstractLHS {
     protected boolean randomizeTransitions;
     /** stage transition rate */
     protected double stageTransRate;
+    /** flag to use tabulated IBM functions */
+    protected boolean tabulateFunctions;
+    /** max relative error for tabulated IBM functions */
+    protected double tabMaxRelError;
+    /** min temperature for tabulated IBM functions */
+    protected double tabMinTemperature;
+    /** max temperature for tabulated IBM functions */
+    protected double tabMaxTemperature;
+    /** min size for tabulated IBM functions */
+    protected double tabMinSize;
+    /** max size for tabulated IBM functions */
+    protected double tabMaxSize;
     
         //fields that reflect (new) attribute values
     /** size (mm) */
@@ -107,6 +145,52 @@ public class SettlerStage extends AbstractLHS {
     private double numTrans;  
     /** total depth (m) at individual's position */
     private double totalDepth;
+    /** step plan shared by the stage type (looked up again when dt or the parameters change) */
+    private StepPlan plan = null;
+    /** spatial index of live individuals by grid cell (null if not maintained) */
+    private static final SpatialIndex cellIndex = SpatialIndex.getInstance(SettlerStage.class);
+    /** individual's entry in the spatial index */
+    private SpatialIndex.Entry cellEntry = null;
+    /** accumulator for gridded abundance/biomass rasters (null if not used) */
+    private static final GriddedRasterAccumulator rasters = GriddedRasterAccumulator.getInstance(SettlerStage.class);
+    /** accumulator for per-output-time stage summaries (null if not used) */
+    private static final StageSummaryAccumulator summaries = StageSummaryAccumulator.getInstance(SettlerStage.class);
+    /** timer for the step phases (null if not used) */
+    private static final StepPhaseTimer phaseTimer = StepPhaseTimer.getInstance(SettlerStage.class);
+    /** grid cell of the last position (reused while the individual stays in it) */
+    private CellCursor cursor = new CellCursor();
+    /** environmental exposure accumulated along the track (null if not enabled) */
+    private ExposureAccumulator exposure = ExposureAccumulator.isEnabled() ? new ExposureAccumulator() : null;
+    /** flag indicating the adaptive integrator is selected for the stage */
+    private static final boolean useAdaptiveIntegrator = AdaptiveIntegrator.isSelectedFor(SettlerStage.class);
+    /** adaptive particle integrator (null if not selected) */
+    private AdaptiveIntegrator integrator = useAdaptiveIntegrator ? new AdaptiveIntegrator() : null;
+    /** timing sample for the step in progress (null if not sampled) */
+    private StepPhaseTimer.Sample timing = null;
+    /** step batch counters for PopEvents */
+    private static final PopEvents.StepBatches stepBatches = PopEvents.getStepBatches(SettlerStage.class);
+    /** live metrics published through JMX (null if not used) */
+    private static final StageMetrics metrics = StageMetrics.getInstance(SettlerStage.class);
+    /** journal of life events (null if not used) */
+    private static final LifeEventJournal journal = LifeEventJournal.getInstance(SettlerStage.class);
+    /** accumulator for the connectivity matrix (null if not used) */
+    private static final ConnectivityAccumulator connectivity = ConnectivityAccumulator.getInstance();
+    /** max height (m) above the bottom at which individuals settle */
+    private static final double SETTLEMENT_HEIGHT = 5.0;
+    /** settlement habitat map for the settlement depths (reset when the parameters change) */
+    private SettlementHabitatMap habitatMap = null;
+    /** flag indicating individual's position is in suitable settlement habitat */
+    private boolean inSettlementHabitat = false;
+    /** environmental fields sampled by this stage */
+    private static final EnvironmentalFieldSet envFields = EnvironmentalFieldRegistry.getFieldSet(SettlerStage.class);
+    /** model time (s) the environmental fields were last sampled (NaN = never) */
+    private double envSampleTime = Double.NaN;
+    /** tabulated mortality function (null if not used) */
+    private TabulatedFunction tabMort = null;
+    /** tabulated swimming speed function (null if not used) */
+    private TabulatedFunction tabVV = null;
+    /** time step the swimming speed table was set up for (NaN to force set-up) */
+    private double tabDt = Double.NaN;
     
     /** IBM function selected for development */
     private IBMFunctionInterface fcnGrowth = null; 
@@ -381,6 +465,9 @@ public class SettlerStage extends AbstractLHS {
             setParametersFromSubClass(params);
             setParameterValues();
             setIBMFunctions();
+            plan = null;//force look-up of the step plan
+            tabDt = Double.NaN;//force set-up of the swimming speed table
+            habitatMap = null;//settlement depths may have changed (looked up again on use)
         } else {
             //TODO: throw some error
         }
@@ -394,6 +481,34 @@ public class SettlerStage extends AbstractLHS {
         fcnMort    = params.getSelectedIBMFunctionForCategory(SettlerStageParameters.FCAT_Mortality);
         fcnVM      = params.getSelectedIBMFunctionForCategory(SettlerStageParameters.FCAT_VerticalMovement);
         fcnVV      = params.getSelectedIBMFunctionForCategory(SettlerStageParameters.FCAT_VerticalVelocity);
+        //set up table for the mortality function, if requested
+        tabMort = null;
+        if (tabulateFunctions&&(fcnMort instanceof TemperatureDependentMortalityRate_Houde1989)){
+            final IBMFunctionInterface f = fcnMort;
+            tabMort = TabulatedFunction.getInstance(TabulatedFunction.createKey(f),
+                    new TabulatedFunction.Evaluator() {
+                        @Override
+                        public double evaluate(double x) {return (Double) f.calculate(x);}
+                    },tabMinTemperature,tabMaxTemperature,tabMaxRelError);
+        }
+        checkEnvironmentalCovariates();
+    }
+    
+    /**
+     * Checks that the stage samples the environmental fields the selected IBM
+     * functions read (see EnvironmentalFieldRegistry), so none sees a stale value.
+     * 
+     * @throws IllegalStateException - if a function reads a field that is not sampled
+     */
+    private void checkEnvironmentalCovariates(){
+        if (fcnMort instanceof TemperatureDependentMortalityRate_Houde1989)
+            envFields.require(Collections.singleton(EnvironmentalFieldRegistry.FIELD_temperature),
+                              "SettlerStage mortality function "+fcnMort.getFunctionName());
+        for (IBMFunctionInterface f: new IBMFunctionInterface[]{fcnGrowth,fcnMort,fcnVM,fcnVV}){
+            if (f instanceof FormulaFunction)
+                envFields.require(((FormulaFunction)f).getCovariatesUsed(),
+                                  "SettlerStage formula '"+((FormulaFunction)f).getFormula()+"'");
+        }
     }
     
     /*
@@ -418,6 +533,56 @@ public class SettlerStage extends AbstractLHS {
                 params.getValue(SettlerStageParameters.PARAM_maxSettlementDepth,maxSettlementDepth);
         randomizeTransitions = 
                 params.getValue(SettlerStageParameters.PARAM_randomizeTransitions,true);
+        tabulateFunctions = 
+                params.getValue(SettlerStageParameters.PARAM_tabulateFunctions,false);
+        tabMaxRelError = 
+                params.getValue(SettlerStageParameters.PARAM_tabMaxRelError,tabMaxRelError);
+        tabMinTemperature = 
+                params.getValue(SettlerStageParameters.PARAM_tabMinTemperature,tabMinTemperature);
+        tabMaxTemperature = 
+                params.getValue(SettlerStageParameters.PARAM_tabMaxTemperature,tabMaxTemperature);
+        tabMinSize = 
+                params.getValue(SettlerStageParameters.PARAM_tabMinSize,tabMinSize);
+        tabMaxSize = 
+                params.getValue(SettlerStageParameters.PARAM_tabMaxSize,tabMaxSize);
+    }
+    
+    /**
+     * Gets the (shared) step plan for the given time step from the current
+     * parameter values and selected IBM functions.
+     * 
+     * @param dt - time step in seconds
+     * @return   - the step plan
+     */
+    private StepPlan compileStepPlan(double dt) {
+        double mortalityRate = Double.NaN;
+        if (fcnMort instanceof ConstantMortalityRate) mortalityRate = (Double)fcnMort.calculate(null);
+        double growthRate = Double.NaN;
+        if (fcnGrowth instanceof ConstantFunction) growthRate = (Double)fcnGrowth.calculate(null);
+        double swimmingSpeed = Double.NaN;
+        if (fcnVV instanceof wts.models.DisMELS.IBMFunctions.SwimmingBehavior.ConstantMovementRateFunction) 
+            swimmingSpeed = (Double)fcnVV.calculate(new double[]{dt});
+        return StepPlan.getInstance(typeName,dt,horizRWP,mortalityRate,stageTransRate,growthRate,swimmingSpeed);
+    }
+    
+    /**
+     * Sets up the table for the (dt-dependent) swimming speed function for the
+     * given time step, if requested.
+     * 
+     * @param dt - time step in seconds
+     */
+    private void tabulateSwimmingSpeed(double dt) {
+        tabVV = null;
+        tabDt = dt;
+        if (tabulateFunctions&&(fcnVV instanceof wts.models.DisMELS.IBMFunctions.SwimmingBehavior.PowerLawSwimmingSpeedFunction)){
+            final IBMFunctionInterface f = fcnVV;
+            final double dtf = dt;
+            tabVV = TabulatedFunction.getInstance(TabulatedFunction.createKey(f,dt),
+                    new TabulatedFunction.Evaluator() {
+                        @Override
+                        public double evaluate(double x) {return (Double) f.calculate(new double[]{dtf,x});}
+                    },tabMinSize,tabMaxSize,tabMaxRelError);
+        }
     }
     
     /**
@@ -430,6 +595,11 @@ public class SettlerStage extends AbstractLHS {
         SettlerStage clone = null;
         try {
             clone = (SettlerStage) super.clone();
+            clone.cellEntry = null;//clone is indexed separately
+            clone.timing    = null;
+            clone.cursor    = new CellCursor();
+            clone.integrator = (integrator!=null) ? new AdaptiveIntegrator(integrator.getTolerance()) : null;
+            clone.exposure = (exposure!=null) ? new ExposureAccumulator() : null;//filled from atts
             clone.setAttributes(atts);//this clones atts
             clone.setParameters(params);//this clones params
             clone.lp      = (LagrangianParticle) lp.clone();
@@ -449,21 +619,23 @@ public class SettlerStage extends AbstractLHS {
      */
     @Override
     public List<LifeStageInterface> getMetamorphosedIndividuals(double dt) {
+        StepPhaseTimer.Sample s = (phaseTimer!=null) ? phaseTimer.begin(StepPhaseTimer.ENTRY_TRANSITIONS) : null;
         output.clear();
         List<LifeStageInterface> nLHSs = null;
         //if total depth is appropriate for settlement and 
         //indiv is near the bottom, then settle and transform to next stage.
         if (debugOps) logger.info("minDepth,totDepth,maxDepth,depth = "+minSettlementDepth+","+totalDepth+","+maxSettlementDepth+","+depth);
-        if ((minSettlementDepth<=totalDepth)&&(totalDepth<=maxSettlementDepth)&&
-                (depth>(totalDepth-5))) {
+        if (inSettlementHabitat&&(depth>(totalDepth-SETTLEMENT_HEIGHT))) {
             nLHSs = createMetamorphosedIndividuals();
             if (nLHSs!=null) output.addAll(nLHSs);
         }
+        if (s!=null) s.mark(StepPhaseTimer.PHASE_TRANSITIONS);
         return output;
     }
 
     private List<LifeStageInterface> createMetamorphosedIndividuals() {
         List<LifeStageInterface> nLHSs = null;
+        double numSettling = isSuperIndividual ? numTrans : number;
         try {
             //create LHS with "next" stage
             if (isSuperIndividual) {
@@ -494,7 +666,16 @@ public class SettlerStage extends AbstractLHS {
                 nLHSs = LHS_Factory.createNextLHSsFromIndividual(typeName,this);
                 alive  = false; //allow only 1 transition, so kill this stage
                 active = false; //set stage inactive, also
+                updateCellIndex(null);//remove from spatial index
             }
+            if ((connectivity!=null)&&(nLHSs!=null))
+                connectivity.recordSettlement(atts.getValue(LifeStageAttributesInterface.PROP_origID,id),
+                                              lp.getIJK(),numSettling,time);
+            if ((nLHSs!=null)&&PopEvents.isEnabled())
+                PopEvents.transition(getClass().getSimpleName(),id,time,numSettling,nLHSs.size());
+            if ((nLHSs!=null)&&(metrics!=null)) metrics.transition();
+            if ((nLHSs!=null)&&!nLHSs.isEmpty()&&(journal!=null))
+                journal.transition(id,nLHSs.get(0).getID(),time,numSettling,lon,lat);
         } catch (IllegalAccessException | InstantiationException ex) {
             ex.printStackTrace();
         }
@@ -526,37 +707,39 @@ public class SettlerStage extends AbstractLHS {
             logger.info("\n---------------Setting initial position------------");
             logger.info(hType+cc+vType+cc+startTime+cc+xPos+cc+yPos+cc+zPos);
         }
-        if (i3d!=null) {
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
+        if (ocean!=null) {
             double[] IJ = new double[] {xPos,yPos};
             if (debug) wts.roms.model.Grid2DUtilities.debug = true;
             if (hType==Types.HORIZ_XY) {
-                IJ = i3d.getGrid().computeIJfromXY(xPos,yPos);
+                IJ = ocean.computeIJfromXY(xPos,yPos);
             } else if (hType==Types.HORIZ_LL) {
 //                if (xPos<0) xPos=xPos+360;
-                IJ = i3d.getGrid().computeIJfromLL(yPos,xPos);
+                IJ = GridLocator.getInstance(ocean).locate(yPos,xPos);
             }
             if (debug) wts.roms.model.Grid2DUtilities.debug = false;
-            double z = i3d.interpolateBathymetricDepth(IJ);
+            double z = StaticFieldTable.getInstance(ocean).interpolateBathymetricDepth(IJ);
             if (debug) logger.info("Bathymetric depth = "+z);
-            double ssh = i3d.interpolateSSH(IJ);
+            double ssh = ocean.interpolateSSH(IJ);
 
+            VerticalGridCache vgc = VerticalGridCache.getInstance(ocean);
             double K = 0;  //set K = 0 (at bottom) as default
             if (vType==Types.VERT_K) {
                 if (zPos<0) {K = 0;} else
-                if (zPos>i3d.getGrid().getN()) {K = i3d.getGrid().getN();} else
+                if (zPos>ocean.getN()) {K = ocean.getN();} else
                 K = zPos;
             } else if (vType==Types.VERT_Z) {//depths negative
                 if (zPos<-z) {K = 0;} else                     //at bottom
-                if (zPos>ssh) {K = i3d.getGrid().getN();} else //at surface
-                K = i3d.calcKfromZ(IJ[0],IJ[1],zPos);          //at requested depth
+                if (zPos>ssh) {K = ocean.getN();} else         //at surface
+                K = vgc.calcKfromZ(IJ[0],IJ[1],zPos,time);     //at requested depth
             } else if (vType==Types.VERT_H) {//depths positive
                 if (zPos>z) {K = 0;} else                       //at bottom
-                if (zPos<-ssh) {K = i3d.getGrid().getN();} else //at surface
-                K = i3d.calcKfromZ(IJ[0],IJ[1],-zPos);          //at requested depth
+                if (zPos<-ssh) {K = ocean.getN();} else         //at surface
+                K = vgc.calcKfromZ(IJ[0],IJ[1],-zPos,time);     //at requested depth
             } else if (vType==Types.VERT_DH) {//distance off bottom
                 if (zPos<0) {K = 0;} else                        //at bottom
-                if (zPos>z+ssh) {K = i3d.getGrid().getN();} else //at surface
-                K = i3d.calcKfromZ(IJ[0],IJ[1],-(z-zPos));       //at requested distance off bottom
+                if (zPos>z+ssh) {K = ocean.getN();} else         //at surface
+                K = vgc.calcKfromZ(IJ[0],IJ[1],-(z-zPos),time);  //at requested distance off bottom
             }
             lp.setIJK(IJ[0],IJ[1],K);
             //reset track array
@@ -574,6 +757,9 @@ public class SettlerStage extends AbstractLHS {
                 logger.info("depth = "+depth);
                 logger.info("-------Finished setting initial position------------");
             }
+            if (connectivity!=null) //record origin region at release/spawning
+                connectivity.recordOrigin(atts.getValue(LifeStageAttributesInterface.PROP_origID,id),pos);
+            envSampleTime = Double.NaN;//force sampling at initial position
             interpolateEnvVars(pos);
             updateAttributes(); 
         }
@@ -581,44 +767,86 @@ public class SettlerStage extends AbstractLHS {
     
     @Override
     public void step(double dt) throws ArrayIndexOutOfBoundsException {
+        timing = (phaseTimer!=null) ? phaseTimer.begin(StepPhaseTimer.ENTRY_STEP) : null;
+        if ((plan==null)||!plan.isValidFor(dt)) plan = compileStepPlan(dt);
+        if (tabDt!=dt) tabulateSwimmingSpeed(dt);
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
         double[] pos = lp.getIJK();
         double[] uvw = calcUVW(pos,dt);//this also sets "attached" and may change pos[2] to 0
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_BEHAVIOR);
         if (attached){
             lp.setIJK(pos[0], pos[1], pos[2]);
         } else {
             //do lagrangian particle tracking
-            lp.setU(uvw[0],lp.getN());
-            lp.setV(uvw[1],lp.getN());
-            lp.setW(uvw[2],lp.getN());
-            //now do predictor step
-            lp.doPredictorStep();
-            //assume same daytime status, but recalc depth and revise W 
-            pos = lp.getPredictedIJK();
-            depth = -i3d.calcZfromK(pos[0],pos[1],pos[2]);
-            if (debugOps) logger.info("Depth after predictor step = "+depth);
-            //w = calcW(dt,lp.getNP1())+r; //set swimming rate for predicted position
-            lp.setU(uvw[0],lp.getNP1());
-            lp.setV(uvw[1],lp.getNP1());
-            lp.setW(uvw[2],lp.getNP1());
-            //now do corrector step
-            lp.doCorrectorStep();
-            pos = lp.getIJK();
-            if (debugOps) logger.info("Depth after corrector step = "+(-i3d.calcZfromK(pos[0],pos[1],pos[2])));
+            double[] pos0 = StepEventDetector.isEnabled() ? pos.clone() : null;//start of path, for event detection
+            double[] next = (integrator!=null) ? integrator.integrate(ocean,pos,uvw,time,dt) : null;
+            if (next!=null){
+                //adaptive sub-steps (see AdaptiveIntegrator)
+                lp.setIJK(next[0],next[1],next[2]);
+                pos = lp.getIJK();
+            } else {
+                //now do predictor step
+                pos = ocean.doPredictorStep(lp,uvw,dt);
+                //assume same daytime status, but recalc depth and revise W 
+                depth = -VerticalGridCache.getInstance(ocean).calcZfromK(pos[0],pos[1],pos[2],time+dt);
+                if (debugOps) logger.info("Depth after predictor step = "+depth);
+                //w = calcW(dt,lp.getNP1())+r; //set swimming rate for predicted position
+                //now do corrector step
+                pos = ocean.doCorrectorStep(lp,uvw,dt);
+                if (debugOps) logger.info("Depth after corrector step = "+(-ocean.calcZfromK(pos[0],pos[1],pos[2])));
+            }
+            if (pos0!=null){
+                //truncate the step at the first event on its path
+                double s = Math.min(StepEventDetector.findGridExit(ocean,tolGridEdge,pos0,pos),
+                                    StepEventDetector.findStranding(ocean,tolGridEdge,pos0,pos));
+                s = Math.min(s,StepEventDetector.findSettlement(ocean,getHabitatMap(StaticFieldTable.getInstance(ocean)),
+                                                                SETTLEMENT_HEIGHT,time+dt,pos0,pos));
+                if (s<StepEventDetector.NO_EVENT){
+                    pos = StepEventDetector.pointAt(pos0,pos,s);
+                    lp.setIJK(pos[0],pos[1],pos[2]);
+                }
+            }
         }
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_INTEGRATION);
         time = time+dt;
         updateNum(dt);
+        if (!(number>0)) die(LifeEventJournal.CAUSE_MORTALITY);//no individuals left
         updateAge(dt);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_BIOLOGY);
         updatePosition(pos);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_POSITION);
         updateSize(dt);
+        if (timing!=null) timing.add(StepPhaseTimer.PHASE_BIOLOGY);
         interpolateEnvVars(pos);
-        //check for exiting grid
-        if (i3d.isAtGridEdge(pos,tolGridEdge)){
+        if (exposure!=null) exposure.add(Math.abs(dt)/DAY_SECS,envFields.sampleTemperature ? temperature : Double.NaN,depth);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_ENVIRONMENT);
+        //check for exiting grid or stranding (the checks are skipped far from the edge and land)
+        BoundaryDistanceField bdf = BoundaryDistanceField.getInstance(ocean,tolGridEdge);
+        if (bdf.isAtGridEdgePossible(pos)&&ocean.isAtGridEdge(pos,tolGridEdge)){
             alive=false;
             active=false;
-            gridCellID=i3d.getGridCellID(pos, tolGridEdge);
-            logger.info("Indiv "+id+" exited grid at ["+pos[0]+","+pos[1]+"]: "+gridCellID);
+            gridCellID=ocean.getGridCellID(pos, tolGridEdge);
+            if (journal!=null) journal.gridExit(id,time,number,lon,lat);
+            else logger.info("Indiv "+id+" exited grid at ["+pos[0]+","+pos[1]+"]: "+gridCellID);
+            if (PopEvents.isEnabled()) PopEvents.gridExit(getClass().getSimpleName(),id,time,number,gridCellID);
+            if (metrics!=null) metrics.gridExit();
+        } else if (bdf.isStranded(pos)){
+            die(LifeEventJournal.CAUSE_STRANDING);
         }
+        updateCellIndex(pos);
+        if ((rasters!=null)&&alive) rasters.add(ocean,time,dt,pos,number,number*weight);
+        if ((summaries!=null)&&alive) 
+            summaries.add(time,dt,number,numTrans,size,weight,
+                          envFields.sampleTemperature ? temperature : Double.NaN,depth,ageInStage);
+        if (timing!=null) timing.mark(StepPhaseTimer.PHASE_OUTPUT);
         updateAttributes(); //update the attributes object w/ nmodified values
+        if (timing!=null) {
+            timing.mark(StepPhaseTimer.PHASE_ATTRIBUTES);
+            timing = null;
+        }
+        if (phaseTimer!=null) phaseTimer.checkOutput(time,dt);
+        if (PopEvents.isEnabled()) stepBatches.stepped(time);
+        if ((metrics!=null)&&alive) metrics.stepped(time,dt,number,track.size());
     }
     
     /**
@@ -631,23 +859,27 @@ public class SettlerStage extends AbstractLHS {
         //compute vertical velocity
         double w = 0;
         //calculate the vertical movement rate
+        if (fcnVV instanceof FormulaFunction) {
+            w = evaluateFormula(fcnVV,dt);
+        } else
         if (fcnVV instanceof wts.models.DisMELS.IBMFunctions.SwimmingBehavior.PowerLawSwimmingSpeedFunction) {
             /**
             * @param vars - the inputs variables as a double[]{dt,z}.
             *      dt - [0] - integration time step
             *      z  - [1] - size of individual
             */
-            w = (Double) fcnVV.calculate(new double[]{dt,size});
+            if (tabVV!=null) {
+                w = tabVV.value(size);
+            } else {
+                w = (Double) fcnVV.calculate(new double[]{dt,size});
+            }
         } else
-        if (fcnVV instanceof wts.models.DisMELS.IBMFunctions.SwimmingBehavior.ConstantMovementRateFunction) {
-            /**
-            * @param vars - double[]{dt}.
-            * @return     - movement rate as a Double 
-            */
-            w = (Double) fcnVV.calculate(new double[]{dt});
+        if (plan.hasConstantSwimmingSpeed) {
+            //constant rate, evaluated once per time step in the step plan
+            w = plan.swimmingSpeed;
         }
         
-        if ((minSettlementDepth<=totalDepth)&&(totalDepth<=maxSettlementDepth)){
+        if (inSettlementHabitat){
             //individual will swim down to bottom to settle
             w = -Math.abs(w);
             attached = false;
@@ -668,7 +900,9 @@ public class SettlerStage extends AbstractLHS {
             * (if lat*declination>0, it's summer in the hemisphere, hence daytime). 
             * Alternatively, if the solar zenith angle > 90.833 deg, then it is night.
             */
+            if (timing!=null) timing.mark(StepPhaseTimer.PHASE_BEHAVIOR);
             double[] ss = DateTimeFunctions.computeSunriseSunset(lon,lat,GlobalInfo.getInstance().getCalendar().getYearDay());
+            if (timing!=null) timing.mark(StepPhaseTimer.PHASE_SUN);
             /**
             * @param vars - the inputs variables as a double[] array with elements
             *                  dt          - [0] - integration time step
@@ -689,8 +923,8 @@ public class SettlerStage extends AbstractLHS {
         //calculate horizontal movement
         double[] uv = {0.0,0.0};
         if (!attached){
-            if ((horizRWP>0)&&(Math.abs(dt)>0)) {
-                double r = Math.sqrt(horizRWP/Math.abs(dt));
+            if (plan.hasRandomWalk) {
+                double r = plan.rwScale;
                 uv[0] += r*rng.computeNormalVariate(); //stochastic swimming rate
                 uv[1] += r*rng.computeNormalVariate(); //stochastic swimming rate
                 if (debugOps) logger.info("id: "+id+"; r, uv: "+r+", {"+uv[0]+", "+uv[1]+"}\n");
@@ -698,7 +932,7 @@ public class SettlerStage extends AbstractLHS {
         }
         
         //return the result
-        return new double[]{Math.signum(dt)*uv[0],Math.signum(dt)*uv[1],Math.signum(dt)*w};
+        return new double[]{plan.sgnDt*uv[0],plan.sgnDt*uv[1],plan.sgnDt*w};
     }
 
     /**
@@ -706,12 +940,22 @@ public class SettlerStage extends AbstractLHS {
      * @param dt - time step in seconds
      */
     private void updateAge(double dt) {
-        age        = age+dt/DAY_SECS;
-        ageInStage = ageInStage+dt/DAY_SECS;
-        if (ageInStage>maxStageDuration) {
-            alive = false;
-            active = false;
-        }
+        age        = age+plan.dtDays;
+        ageInStage = ageInStage+plan.dtDays;
+        if (ageInStage>maxStageDuration) die(LifeEventJournal.CAUSE_AGE);
+    }
+
+    /**
+     * Kills the individual (if it is alive), recording the death and its
+     * cause in the journal (if used).
+     *
+     * @param cause - cause of death (LifeEventJournal.CAUSE_...)
+     */
+    private void die(byte cause) {
+        if (!alive) return;
+        alive = false;
+        active = false;
+        if (journal!=null) journal.death(id,cause,time,number,lon,lat);
     }
 
     /**
@@ -719,23 +963,26 @@ public class SettlerStage extends AbstractLHS {
      * @param dt - time step in seconds
      */
     private void updateSize(double dt) {
+        if (fcnGrowth instanceof FormulaFunction){
+            //formula gives the growth rate [size units/day]
+            size += plan.dtDays*evaluateFormula(fcnGrowth,dt);
+        } else
         if (fcnGrowth instanceof ExponentialGrowthFunction){
             /**
              * @param vars - the inputs variables, dt (in days) and z0, as a double[].
              * @return     - the function value (z[dt]) as a Double 
              */
-            size = (Double)fcnGrowth.calculate(new double[]{dt/DAY_SECS,size});
+            size = (Double)fcnGrowth.calculate(new double[]{plan.dtDays,size});
         } else
         if (fcnGrowth instanceof LinearGrowthFunction){
             /**
              * @param vars - the inputs variables, z0 and dt, as a double[].
              * @return     - the function value (z[dt]) as a Double 
              */
-            size = (Double)fcnGrowth.calculate(new double[]{dt/DAY_SECS,size});
+            size = (Double)fcnGrowth.calculate(new double[]{plan.dtDays,size});
         } else
-        if (fcnGrowth instanceof ConstantFunction){
-            double rate = (Double)fcnGrowth.calculate(null);
-            size += rate*dt/DAY_SECS;
+        if (plan.hasConstantGrowth){
+            size += plan.growthIncrement;
         }
     }
 
@@ -744,20 +991,27 @@ public class SettlerStage extends AbstractLHS {
      * @param dt - time step in seconds
      */
     private void updateNum(double dt) {
+        if (plan.hasConstantMortality){
+            //survival factors are precomputed in the step plan
+            boolean inTrans = (ageInStage>=minStageDuration);
+            numTrans = CohortBiology.numTransAfter(plan,numTrans,number,inTrans);
+            number   = CohortBiology.numberAfter(plan,number,inTrans);
+            return;
+        }
         double mortalityRate = 0.0D;//in unis of [days]^-1
-        if (fcnMort instanceof ConstantMortalityRate){
-            /**
-             * @param vars - null
-             * @return     - Double - the corresponding mortality rate (per day) 
-             */
-            mortalityRate = (Double)fcnMort.calculate(null);
-        } else 
+        if (fcnMort instanceof FormulaFunction){
+            mortalityRate = evaluateFormula(fcnMort,dt);
+        } else
         if (fcnMort instanceof TemperatureDependentMortalityRate_Houde1989){
             /**
              * @param vars - Double - temperature (deg C)
              * @return     - Double - the corresponding mortality rate (per day) 
              */
-            mortalityRate = (Double)fcnMort.calculate(temperature);//using temperature as covariate for mortality
+            if (tabMort!=null) {
+                mortalityRate = tabMort.value(temperature);
+            } else {
+                mortalityRate = (Double)fcnMort.calculate(temperature);//using temperature as covariate for mortality
+            }
         }
         double totRate = mortalityRate;
         if ((ageInStage>=minStageDuration)) {
@@ -770,24 +1024,85 @@ public class SettlerStage extends AbstractLHS {
         number = number*Math.exp(-dt*totRate/DAY_SECS);
     }
     
+    /**
+     * Evaluates a formula function (see FormulaFunction) for the individual's covariates.
+     * 
+     * @param fcn - the function (a FormulaFunction)
+     * @param dt  - time step in seconds
+     * @return    - the value of the formula
+     */
+    private double evaluateFormula(IBMFunctionInterface fcn, double dt) {
+        return ((FormulaFunction)fcn).evaluate(dt,size,temperature,salinity,depth,
+                                               romsvar1,romsvar2,romsvar3,romsvar4,romsvar5);
+    }
+    
     private void updatePosition(double[] pos) {
-        totalDepth = i3d.interpolateBathymetricDepth(pos);
-        depth      = -i3d.calcZfromK(pos[0],pos[1],pos[2]);
-        lat        = i3d.interpolateLat(pos);
-        lon        = i3d.interpolateLon(pos);
-        gridCellID = ""+Math.round(pos[0])+"_"+Math.round(pos[1]);
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
+        StaticFieldTable sft = StaticFieldTable.getInstance(ocean);
+        cursor.locate(sft,pos);//reuses the previous cell if pos is still in it
+        totalDepth = sft.interpolate(StaticFieldTable.FIELD_H,cursor,pos);
+        depth      = -VerticalGridCache.getInstance(ocean).calcZfromK(pos[0],pos[1],pos[2],time);
+        lat        = sft.interpolate(StaticFieldTable.FIELD_LAT,cursor,pos);
+        lon        = sft.interpolate(StaticFieldTable.FIELD_LON,cursor,pos);
+        gridCellID = cursor.getNodeID(pos);
+        inSettlementHabitat = getHabitatMap(sft).isSuitable(pos);
         updateTrack();
     }
     
+    /**
+     * Updates the individual's entry in the spatial index (if maintained),
+     * removing it if the individual is dead.
+     * 
+     * @param pos - current position (not used if the individual is dead)
+     */
+    private void updateCellIndex(double[] pos) {
+        if (cellIndex==null) return;
+        if (alive) {
+            cellEntry = cellIndex.update(cellEntry,this,pos);
+        } else {
+            cellIndex.remove(cellEntry);
+            cellEntry = null;
+        }
+    }
+    
     private void interpolateEnvVars(double[] pos) {
-        temperature = i3d.interpolateTemperature(pos);
-        salinity    = i3d.interpolateSalinity(pos);
-        bathymetry = i3d.interpolateBathymetricDepth(pos);
-        romsvar1 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar1);
-        romsvar2 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar2);
-        romsvar3 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar3);
-        romsvar4 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar4);
-        romsvar5 = i3d.interpolateValue(pos, NewAttributes.PROP_romsvar5);
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
+        bathymetry = totalDepth;//interpolated at pos in updatePosition(pos)
+        if (!envFields.isSamplingDue(envSampleTime,time)) return;
+        envSampleTime = time;
+        if (envFields.sampleTemperature) temperature = ocean.interpolateTemperature(pos);
+        if (envFields.sampleSalinity)    salinity    = ocean.interpolateSalinity(pos);
+        if (envFields.sampleRomsvar1) romsvar1 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar1);
+        if (envFields.sampleRomsvar2) romsvar2 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar2);
+        if (envFields.sampleRomsvar3) romsvar3 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar3);
+        if (envFields.sampleRomsvar4) romsvar4 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar4);
+        if (envFields.sampleRomsvar5) romsvar5 = ocean.interpolateValue(pos, NewAttributes.PROP_romsvar5);
+    }
+
+    /**
+     * Returns the approximate distance (km) from the individual's current position
+     * to the nearest suitable settlement habitat (0 if it is in suitable habitat).
+     * 
+     * @return - distance (km)
+     */
+    public double getDistanceToSettlementHabitat() {
+        OceanModel ocean = OceanModels.getOceanModel(i3d);
+        if (ocean==null) return Double.NaN;
+        return getHabitatMap(StaticFieldTable.getInstance(ocean)).getDistanceToHabitat(lp.getIJK());
+    }
+
+    /**
+     * Gets the (shared) settlement habitat map for the table and the current
+     * settlement depths, looking it up again after the parameters or the
+     * table have changed.
+     * 
+     * @param sft - the table for static fields
+     * @return    - the map
+     */
+    private SettlementHabitatMap getHabitatMap(StaticFieldTable sft) {
+        if ((habitatMap==null)||(habitatMap.getStaticFieldTable()!=sft))
+            habitatMap = SettlementHabitatMap.getInstance(sft,minSettlementDepth,maxSettlementDepth);
+        return habitatMap;
     }
 
     @Override
@@ -881,14 +1196,15 @@ public class SettlerStage extends AbstractLHS {
         super.updateAttributes();
         atts.setValue(NewAttributes.PROP_size,size);
         atts.setValue(NewAttributes.PROP_weight,weight);
-        atts.setValue(NewAttributes.PROP_salinity,salinity);
-        atts.setValue(NewAttributes.PROP_temperature,temperature);
+        if (envFields.sampleSalinity) atts.setValue(NewAttributes.PROP_salinity,salinity);
+        if (envFields.sampleTemperature) atts.setValue(NewAttributes.PROP_temperature,temperature);
         atts.setValue(NewAttributes.PROP_bathymetry,bathymetry);
-        atts.setValue(NewAttributes.PROP_romsvar1,romsvar1);
-        atts.setValue(NewAttributes.PROP_romsvar2,romsvar2);
-        atts.setValue(NewAttributes.PROP_romsvar3,romsvar3);
-        atts.setValue(NewAttributes.PROP_romsvar4,romsvar4);
-        atts.setValue(NewAttributes.PROP_romsvar5,romsvar5);
+        if (envFields.sampleRomsvar1) atts.setValue(NewAttributes.PROP_romsvar1,romsvar1);
+        if (envFields.sampleRomsvar2) atts.setValue(NewAttributes.PROP_romsvar2,romsvar2);
+        if (envFields.sampleRomsvar3) atts.setValue(NewAttributes.PROP_romsvar3,romsvar3);
+        if (envFields.sampleRomsvar4) atts.setValue(NewAttributes.PROP_romsvar4,romsvar4);
+        if (envFields.sampleRomsvar5) atts.setValue(NewAttributes.PROP_romsvar5,romsvar5);
+        if (exposure!=null) exposure.writeTo(atts);
     }
 
     /**
@@ -899,14 +1215,16 @@ public class SettlerStage extends AbstractLHS {
         super.updateVariables();
         size        = atts.getValue(NewAttributes.PROP_size,size);
         weight      = atts.getValue(NewAttributes.PROP_weight,weight);
-        salinity    = atts.getValue(NewAttributes.PROP_salinity,salinity);
-        temperature = atts.getValue(NewAttributes.PROP_temperature,temperature);
+        if (envFields.sampleSalinity) salinity = atts.getValue(NewAttributes.PROP_salinity,salinity);
+        if (envFields.sampleTemperature) temperature = atts.getValue(NewAttributes.PROP_temperature,temperature);
         bathymetry    = atts.getValue(NewAttributes.PROP_bathymetry,bathymetry);
-        romsvar1    = atts.getValue(NewAttributes.PROP_romsvar1,romsvar1);
-        romsvar2    = atts.getValue(NewAttributes.PROP_romsvar2,romsvar2);
-        romsvar3    = atts.getValue(NewAttributes.PROP_romsvar3,romsvar3);
-        romsvar4    = atts.getValue(NewAttributes.PROP_romsvar4,romsvar4);
-        romsvar5    = atts.getValue(NewAttributes.PROP_romsvar5,romsvar5);
+        totalDepth    = bathymetry;//at the position in the attributes
+        if (envFields.sampleRomsvar1) romsvar1 = atts.getValue(NewAttributes.PROP_romsvar1,romsvar1);
+        if (envFields.sampleRomsvar2) romsvar2 = atts.getValue(NewAttributes.PROP_romsvar2,romsvar2);
+        if (envFields.sampleRomsvar3) romsvar3 = atts.getValue(NewAttributes.PROP_romsvar3,romsvar3);
+        if (envFields.sampleRomsvar4) romsvar4 = atts.getValue(NewAttributes.PROP_romsvar4,romsvar4);
+        if (envFields.sampleRomsvar5) romsvar5 = atts.getValue(NewAttributes.PROP_romsvar5,romsvar5);
+        if (exposure!=null) exposure.readFrom(atts);
     }
 
 }
@@ -12,6 +12,7 @@ package wts.models.DisMELS.IBMs.POP.Settler;
 import java.util.*;
 import java.util.logging.Logger;
 import org.openide.util.lookup.ServiceProvider;
+import wts.models.DisMELS.IBMs.POP.Monitoring.PopEvents;
 import wts.models.DisMELS.IBMs.POP.NewAttributes;
 import wts.models.DisMELS.framework.AbstractLHSAttributes;
 import wts.models.DisMELS.framework.IBMAttributes.IBMAttribute;
@@ -26,11 +27,16 @@ import wts.models.DisMELS.framework.IBMAttributes.IBMAttributeDouble;
 @ServiceProvider(service=wts.models.DisMELS.framework.LifeStageAttributesInterface.class)
 public class SettlerStageAttributes extends AbstractLHSAttributes {
     
-    protected static final Set<String> allKeys = new LinkedHashSet<>((int)(2*(numAttributes+NewAttributes.numNewAttributes)));
-    protected static final Map<String,IBMAttribute> mapAllAttributes = new HashMap<>((int)(2*(numAttributes+NewAttributes.numNewAttributes)));
-    protected static final String[] aKeys      = new String[numAttributes+NewAttributes.numNewAttributes-1];//does not include typeName
-    protected static final Class[]  classes    = new Class[numAttributes+NewAttributes.numNewAttributes];
-    protected static final String[] shortNames = new String[numAttributes+NewAttributes.numNewAttributes];
+    /** keys for the new attributes carried by this stage (see EnvironmentalFieldRegistry) */
+    protected static final Set<String> newKeys = NewAttributes.getNewKeys(SettlerStage.class);
+    /** number of new attributes carried by this stage */
+    protected static final int numNewAttributes = newKeys.size();
+
+    protected static final Set<String> allKeys = new LinkedHashSet<>((int)(2*(numAttributes+numNewAttributes)));
+    protected static final Map<String,IBMAttribute> mapAllAttributes = new HashMap<>((int)(2*(numAttributes+numNewAttributes)));
+    protected static final String[] aKeys      = new String[numAttributes+numNewAttributes-1];//does not include typeName
+    protected static final Class[]  classes    = new Class[numAttributes+numNewAttributes];
+    protected static final String[] shortNames = new String[numAttributes+numNewAttributes];
    
     private static final Logger logger = Logger.getLogger(SettlerStageAttributes.class.getName());
     
@@ -78,7 +84,6 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
     }
     
     private void finishInstantiation(){
-        Set<String> newKeys = NewAttributes.getNewKeys();
         if (mapAllAttributes.isEmpty()){
             //set static field information
             mapAllAttributes.putAll(AbstractLHSAttributes.mapAttributes);//add from superclass
@@ -96,7 +101,7 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
             while (it.hasNext()) aKeys[j++] = it.next();
         }
         //set instance information
-        mapValues.putAll(NewAttributes.getNewMapValues());
+        mapValues.putAll(NewAttributes.getNewMapValues(SettlerStage.class));
     }
 
     /**
@@ -107,7 +112,7 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
     @Override
     public ArrayList getArrayList() {
         ArrayList a = super.getArrayList();
-        for (String key: NewAttributes.getNewKeys()) a.add(getValue(key));
+        for (String key: newKeys) a.add(getValue(key));
         return a;
     }
 
@@ -118,7 +123,7 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
      */
     @Override
     public Object[] getAttributes() {
-        Object[] atts = new Object[NewAttributes.numNewAttributes+AbstractLHSAttributes.numAttributes-1];
+        Object[] atts = new Object[numNewAttributes+AbstractLHSAttributes.numAttributes-1];
         int j = 0;
         Iterator<String> it = allKeys.iterator();
         it.next();//skip PROP_typeName
@@ -134,7 +139,7 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
     @Override
     public String getCSV() {
         String str = super.getCSV();
-        Iterator<String> it = NewAttributes.getNewKeys().iterator();
+        Iterator<String> it = newKeys.iterator();
         while (it.hasNext()) str = str+cc+getValueAsString(it.next());
         return str;
     }
@@ -219,11 +224,26 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
      */
     @Override
     public void setValues(final String[] strv) {
+        int n;
+        try {
+            n = NewAttributes.checkNumValues(SettlerStage.class,strv);
+        } catch (IllegalArgumentException ex) {
+            //row written with a different environmental field configuration
+            PopEvents.parseFailure(getClass().getSimpleName(),null,null,ex.getMessage());
+            logger.warning("Error setting attribute values: "+ex.getMessage());
+            throw ex;
+        }
         super.setValues(strv);//set the standard attribute values
         //set the values of the new attributes
         int j = AbstractLHSAttributes.numAttributes;
         try {
-            for (String key: NewAttributes.getNewKeys()) setValueFromString(key,strv[j++]);
+            for (String key: newKeys) {
+                if (j>=strv.length) break;//exposure accumulators missing from older rows
+                setValueFromString(key,strv[j++]);
+            }
+            //missing exposure accumulators start from zero
+            for (Map.Entry<String,Object> e: NewAttributes.getMissingValues(SettlerStage.class,n).entrySet())
+                setValue(e.getKey(),e.getValue());
         } catch (java.lang.IndexOutOfBoundsException ex) {
             //@TODO: should throw an exception here that identifies the problem
             String[] aKeys = new String[SettlerStageAttributes.allKeys.size()];
@@ -231,6 +251,7 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
                 String str = "Missing attribute value for "+aKeys[j-1]+".\n"+
                              "Prior values are ";
                 for (int i=0;i<(j);i++) str = str+strv[i]+" ";
+                PopEvents.parseFailure(getClass().getSimpleName(),aKeys[j-1],null,"missing value");
                 javax.swing.JOptionPane.showMessageDialog(
                         null,
                         str,
@@ -259,6 +280,7 @@ public class SettlerStageAttributes extends AbstractLHSAttributes {
             }  catch (java.lang.IndexOutOfBoundsException ex1) {
                 //do nothing
             }
+            PopEvents.parseFailure(getClass().getSimpleName(),aKeys[j-2],strv[j-1],ex.getMessage());
             javax.swing.JOptionPane.showMessageDialog(
                     null,
                     str,
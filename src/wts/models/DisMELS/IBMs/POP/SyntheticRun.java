@@ -0,0 +1,153 @@
+/*
+ * SyntheticRun.java
+ */
+
+package wts.models.DisMELS.IBMs.POP;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModels;
+import wts.models.DisMELS.framework.AbstractLHS;
+import wts.models.DisMELS.framework.AbstractLHSParameters;
+import wts.models.DisMELS.framework.GlobalInfo;
+import wts.models.DisMELS.framework.LHS_Types;
+import wts.models.DisMELS.framework.LifeStageAttributesInterface;
+import wts.models.DisMELS.framework.Types;
+import wts.models.utilities.CalendarIF;
+
+/**
+ * Class setting up the DisMELS framework for an offline run of the POP life
+ * stages on an in-memory OceanModel (e.g., a SyntheticOcean), without ROMS files
+ * or the DisMELS GUI. It is shared by the regression tests and the benchmarks.
+ *
+ * start(...) reads the life stage types, sets a calendar fixed at a day of the
+ * year, installs the ocean for all stages and starts the model run (PopModelRun);
+ * finish() ends the run and removes the ocean. The life stage types are read from
+ * a given LHS types file or from the minimal types file bundled with the module
+ * (POP_LHS_Types.xml: the four stages, "Larva", "Settler", "BenthicJuvenile" and
+ * "Adult", with their classes, next stages, and Larva spawned by Adult).
+ *
+ * createIndividual(...) creates an individual of a stage at a grid position.
+ *
+ * @author William Stockhausen
+ */
+public final class SyntheticRun {
+
+    /** bundled LHS types file (resource) */
+    public static final String RES_LHS_TYPES = "POP_LHS_Types.xml";
+
+    private SyntheticRun(){}
+
+    /**
+     * Starts an offline model run.
+     *
+     * @param ocean    - the ocean model, installed for all stages
+     * @param lhsTypes - LHS types file (null for the bundled types file)
+     * @param yearDay  - day of the year returned by the calendar
+     * @throws Exception - if the LHS types cannot be read
+     */
+    public static synchronized void start(OceanModel ocean, File lhsTypes, double yearDay) throws Exception {
+        File f = (lhsTypes==null) ? extractBundledTypes() : lhsTypes;
+        LHS_Types.getInstance().readXML(f);
+        GlobalInfo.getInstance().setCalendar(createCalendar(yearDay));
+        OceanModels.setOceanModel(ocean);
+        PopModelRun.start();
+    }
+
+    /**
+     * Finishes the offline model run and removes the ocean model.
+     */
+    public static synchronized void finish(){
+        PopModelRun.finish();
+        OceanModels.setOceanModel(null);
+    }
+
+    /**
+     * Copies the bundled LHS types file to a temporary file (readXML needs a file).
+     */
+    private static File extractBundledTypes() throws IOException {
+        File f = File.createTempFile("POP_LHS_Types",".xml");
+        f.deleteOnExit();
+        try (InputStream in = SyntheticRun.class.getResourceAsStream(RES_LHS_TYPES)){
+            if (in==null) throw new IOException("Bundled LHS types file "+RES_LHS_TYPES+" not found.");
+            Files.copy(in,f.toPath(),StandardCopyOption.REPLACE_EXISTING);
+        }
+        return f;
+    }
+
+    /**
+     * Creates a calendar that is always at the given day of the year. Methods
+     * other than getYearDay() return default values.
+     *
+     * @param yearDay - the day of the year
+     * @return - the calendar
+     */
+    public static CalendarIF createCalendar(final double yearDay){
+        return (CalendarIF) Proxy.newProxyInstance(CalendarIF.class.getClassLoader(),
+                new Class<?>[]{CalendarIF.class},
+                new InvocationHandler(){
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args){
+                        if (m.getName().equals("getYearDay")) return yearDay;
+                        Class<?> r = m.getReturnType();
+                        if (r==boolean.class) return false;
+                        if (r==int.class)     return 0;
+                        if (r==long.class)    return 0L;
+                        if (r==double.class)  return 0.0;
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Creates an individual at a grid position, at time 0. Its position is
+     * given in its attributes by longitude, latitude and depth.
+     *
+     * @param proto      - an individual of the stage (e.g., created with the stage type name)
+     * @param params     - the stage parameters for the individual
+     * @param ocean      - the ocean model
+     * @param IJ         - grid (I,J) position
+     * @param depth      - depth (m, positive)
+     * @param age        - age (d)
+     * @param ageInStage - age in stage (d)
+     * @param number     - number of individuals represented
+     * @param size       - size
+     * @param weight     - weight
+     * @return - the individual
+     * @throws InstantiationException - if the individual cannot be created
+     * @throws IllegalAccessException - if the individual cannot be created
+     */
+    public static AbstractLHS createIndividual(AbstractLHS proto, AbstractLHSParameters params, OceanModel ocean,
+                                               double[] IJ, double depth, double age, double ageInStage,
+                                               double number, double size, double weight)
+                                               throws InstantiationException, IllegalAccessException {
+        LifeStageAttributesInterface atts = (LifeStageAttributesInterface) proto.getAttributes().clone();
+        atts.setValue(LifeStageAttributesInterface.PROP_id,-1L);
+        atts.setValue(LifeStageAttributesInterface.PROP_parentID,-1L);
+        atts.setValue(LifeStageAttributesInterface.PROP_origID,-1L);
+        atts.setValue(LifeStageAttributesInterface.PROP_startTime,0.0);
+        atts.setValue(LifeStageAttributesInterface.PROP_time,0.0);
+        atts.setValue(LifeStageAttributesInterface.PROP_horizType,Types.HORIZ_LL);
+        atts.setValue(LifeStageAttributesInterface.PROP_vertType,Types.VERT_H);
+        atts.setValue(LifeStageAttributesInterface.PROP_horizPos1,ocean.interpolateLon(IJ));
+        atts.setValue(LifeStageAttributesInterface.PROP_horizPos2,ocean.interpolateLat(IJ));
+        atts.setValue(LifeStageAttributesInterface.PROP_vertPos,depth);
+        atts.setValue(LifeStageAttributesInterface.PROP_number,number);
+        atts.setValue(LifeStageAttributesInterface.PROP_age,age);
+        atts.setValue(LifeStageAttributesInterface.PROP_ageInStage,ageInStage);
+        atts.setValue(LifeStageAttributesInterface.PROP_active,true);
+        atts.setValue(LifeStageAttributesInterface.PROP_alive,true);
+        atts.setValue(NewAttributes.PROP_size,size);
+        atts.setValue(NewAttributes.PROP_weight,weight);
+        AbstractLHS lhs = (AbstractLHS) proto.createInstance(atts);
+        lhs.setParameters(params);
+        return lhs;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * FormulaCompilerTest.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Codegen;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests parsing formulas (precedence, associativity, unary minus, function
+ * calls, numbers and errors), the max stack depth of the bytecode, and the
+ * cache of compiled formulas.
+ *
+ * @author William Stockhausen
+ */
+public class FormulaCompilerTest {
+
+    private static final String[] VARS = {"x","y"};
+
+    /** evaluates a formula with x = 3 and y = 0.5 */
+    private static double eval(String formula){
+        return FormulaCompiler.compile(formula,VARS).evaluate(new double[]{3.0,0.5});
+    }
+
+    /** returns the max stack depth (slots) of the code for a formula */
+    private static int maxStack(String formula){
+        ClassFileWriter cw = new ClassFileWriter("wts/models/DisMELS/IBMs/POP/Codegen/Generated/StackTest",
+                                                 "java/lang/Object","wts/models/DisMELS/IBMs/POP/Codegen/Formula");
+        return FormulaCompiler.writeEvaluate(cw,formula,VARS).getMaxStack();
+    }
+
+    @Test
+    public void testPrecedence(){
+        assertEquals(7.0,eval("1+2*3"),0.0);
+        assertEquals(9.0,eval("(1+2)*3"),0.0);
+        assertEquals(19.0,eval("1+2*3^2"),0.0);
+        assertEquals(1.5,eval("x/2*1"),0.0);
+        assertEquals(5.0,eval("x*y*2+2"),0.0);
+    }
+
+    @Test
+    public void testAssociativity(){
+        assertEquals(3.0,eval("10-4-3"),0.0);
+        assertEquals(1.0,eval("8/4/2"),0.0);
+        assertEquals(512.0,eval("2^3^2"),0.0);//right-associative
+    }
+
+    @Test
+    public void testUnaryMinus(){
+        assertEquals(-3.0,eval("-x"),0.0);
+        assertEquals(3.0,eval("--x"),0.0);
+        assertEquals(-9.0,eval("-x^2"),0.0);//power binds tighter
+        assertEquals(-6.0,eval("2*-x"),0.0);
+        assertEquals(0.5,eval("2^-1"),0.0);
+        assertEquals(-1.0,eval("-x+2"),0.0);
+        assertEquals(4.0,eval("+x+1"),0.0);
+    }
+
+    @Test
+    public void testFunctionCalls(){
+        assertEquals(Math.exp(0.1*3.0),eval("exp(0.1*x)"),0.0);
+        assertEquals(5.0,eval("exp(log(5))"),1.0E-12);
+        assertEquals(0.12,eval("max(0, 0.1+0.02*(x-2))"),1.0E-15);
+        assertEquals(0.5,eval("min(x,min(y,1))"),0.0);
+        assertEquals(9.0,eval("pow(x,2)"),0.0);
+        assertEquals(Math.atan2(0.5,3.0),eval("atan2(y,x)"),0.0);
+        assertEquals(-1.0,eval("signum(-x)"),0.0);
+        assertEquals(Math.PI*Math.E,eval("pi*e"),0.0);
+    }
+
+    @Test
+    public void testNumbers(){
+        assertEquals(1.2e-3,eval("1.2e-3"),0.0);
+        assertEquals(200.0,eval("2E+2"),0.0);
+        assertEquals(0.25,eval(".25"),0.0);
+        assertEquals(0.0,eval("0"),0.0);
+        assertEquals(1.0,eval(" 1 "),0.0);
+    }
+
+    @Test
+    public void testErrors(){
+        for (String f: new String[]{"","1+","(1+2","1+2)","z+1","foo(1)","max(1)","1 2","2*#","1..2"}){
+            try {
+                FormulaCompiler.compile(f,VARS);
+                fail("parsed '"+f+"'");
+            } catch (IllegalArgumentException ex) {
+                assertTrue(ex.getMessage(),ex.getMessage().startsWith("Error in formula"));
+            }
+        }
+    }
+
+    @Test
+    public void testMaxStack(){
+        assertEquals(2,maxStack("x"));
+        assertEquals(4,maxStack("x+y"));
+        assertEquals(6,maxStack("1+2*3"));
+        assertEquals(4,maxStack("1*2+3"));
+        assertEquals(6,maxStack("x^(y^2)"));
+        assertEquals(6,maxStack("max(x,min(y,1))"));
+    }
+
+    @Test
+    public void testDeepNesting(){
+        //right-nested sums keep every operand on the stack: the verifier rejects a wrong max stack
+        StringBuilder sb = new StringBuilder("x");
+        for (int i=0;i<100;i++) sb.insert(0,"1+(").append(")");
+        assertEquals(202,maxStack(sb.toString()));
+        assertEquals(103.0,eval(sb.toString()),0.0);
+    }
+
+    @Test
+    public void testCache(){
+        Formula f = FormulaCompiler.compile("x*y+7",VARS);
+        assertSame(f,FormulaCompiler.compile(" x*y+7 ",VARS));
+        assertNotSame(f,FormulaCompiler.compile("x*y+7","x","y","z"));
+        //the least recently used formulas are evicted
+        for (int i=0;i<FormulaCompiler.MAX_CACHED;i++) FormulaCompiler.compile("x+"+i,VARS);
+        Formula g = FormulaCompiler.compile("x*y+7",VARS);
+        assertNotSame(f,g);
+        assertEquals(f.evaluate(new double[]{3.0,0.5}),g.evaluate(new double[]{3.0,0.5}),0.0);
+    }
+}
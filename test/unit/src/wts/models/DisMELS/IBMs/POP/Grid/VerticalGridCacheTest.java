@@ -0,0 +1,207 @@
+/*
+ * VerticalGridCacheTest.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Grid;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import wts.models.DisMELS.IBMs.POP.Environment.OceanModel;
+import wts.roms.model.LagrangianParticle;
+
+/**
+ * Tests that VerticalGridCache reproduces the depths and vertical grid
+ * coordinates of the OceanModel, over ROMS-like s-coordinate grids and as the
+ * model's time frame advances.
+ *
+ * @author William Stockhausen
+ */
+public class VerticalGridCacheTest {
+
+    /** length (s) of the time frames */
+    private static final double INTERVAL = 3600.0;
+
+    @BeforeClass
+    public static void setUpClass(){
+        System.setProperty(VerticalGridCache.SYSPROP_INTERVAL,String.valueOf(INTERVAL));
+    }
+
+    @AfterClass
+    public static void tearDownClass(){
+        System.clearProperty(VerticalGridCache.SYSPROP_INTERVAL);
+    }
+
+    /**
+     * Ocean with ROMS s-coordinates (Vtransform = 2): bathymetry and SSH are
+     * given at the nodes and interpolated bilinearly, and the depths of the
+     * levels at (I,J) are computed from them with the stretching function, as by
+     * ROMS, and interpolated linearly in K.
+     * The SSH changes with the frame.
+     */
+    private static final class RomsLikeOcean implements OceanModel {
+        private static final int L = 16, M = 12, N = 20;
+        /** critical depth (m) */
+        private static final double HC = 10.0;
+        /** surface stretching parameter (0 for linear stretching) */
+        private final double theta;
+        /** bathymetry (m) by node */
+        private final double[][] h = new double[L+1][M+1];
+        /** frame time (s) */
+        private volatile double frameTime = 0.0;
+        /** number of depth calculations */
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private RomsLikeOcean(double theta, double hSlope){
+            this.theta = theta;
+            for (int i=0;i<=L;i++)
+                for (int j=0;j<=M;j++) h[i][j] = 20.0+hSlope*j*j/M+5.0*Math.sin(0.7*i);
+        }
+
+        /** SSH (m) at a node in the current frame */
+        private double zeta(int i, int j){
+            return 0.5*Math.cos(0.3*i+0.2*j+frameTime/INTERVAL);
+        }
+
+        /** interpolates a node value bilinearly */
+        private double bilinear(double I, double J, boolean ssh){
+            int i = Math.min((int) Math.floor(I),L-1), j = Math.min((int) Math.floor(J),M-1);
+            double x = I-i, y = J-j;
+            double v00 = ssh ? zeta(i,j)   : h[i][j],   v10 = ssh ? zeta(i+1,j)   : h[i+1][j];
+            double v01 = ssh ? zeta(i,j+1) : h[i][j+1], v11 = ssh ? zeta(i+1,j+1) : h[i+1][j+1];
+            return (1-y)*((1-x)*v00+x*v10)+y*((1-x)*v01+x*v11);
+        }
+
+        /** stretching function at s (-1 to 0) */
+        private double cs(double s){
+            return (theta>0) ? (1.0-Math.cosh(theta*s))/(Math.cosh(theta)-1.0) : s;
+        }
+
+        @Override public int getL(){return L;}
+        @Override public int getM(){return M;}
+        @Override public int getN(){return N;}
+        @Override public double getFrameTime(){return frameTime;}
+
+        /** depth (m) of level k for bathymetry hp and SSH zp */
+        private double level(int k, double hp, double zp){
+            double s = ((double) k)/N-1.0;
+            return zp+(zp+hp)*(HC*s+hp*cs(s))/(HC+hp);
+        }
+
+        @Override
+        public double calcZfromK(double I, double J, double K){
+            calls.incrementAndGet();
+            double hp = bilinear(I,J,false), zp = bilinear(I,J,true);
+            int k = Math.min((int) K,N-1);
+            double z0 = level(k,hp,zp);
+            return z0+(K-k)*(level(k+1,hp,zp)-z0);
+        }
+
+        @Override
+        public double calcKfromZ(double I, double J, double z){
+            double lo = 0.0, hi = N;
+            if (z<=calcZfromK(I,J,lo)) return lo;
+            if (z>=calcZfromK(I,J,hi)) return hi;
+            for (int n=0;n<60;n++){
+                double mid = 0.5*(lo+hi);
+                if (calcZfromK(I,J,mid)<=z) lo = mid; else hi = mid;
+            }
+            return 0.5*(lo+hi);
+        }
+
+        @Override public double[] computeIJfromXY(double x, double y){return null;}
+        @Override public double[] computeIJfromLL(double lat, double lon){return null;}
+        @Override public double interpolateBathymetricDepth(double[] pos){return bilinear(pos[0],pos[1],false);}
+        @Override public double interpolateSSH(double[] pos){return bilinear(pos[0],pos[1],true);}
+        @Override public double interpolateLat(double[] pos){return Double.NaN;}
+        @Override public double interpolateLon(double[] pos){return Double.NaN;}
+        @Override public double interpolateTemperature(double[] pos){return Double.NaN;}
+        @Override public double interpolateSalinity(double[] pos){return Double.NaN;}
+        @Override public double interpolateValue(double[] pos, String name){return Double.NaN;}
+        @Override public boolean isAtGridEdge(double[] pos, double tol){return false;}
+        @Override public String getGridCellID(double[] pos, double tol){return "";}
+        @Override public double[] calcGridRates(double[] pos, double[] uvw, double time){return null;}
+        @Override public double[] doPredictorStep(LagrangianParticle lp, double[] uvw, double dt){return null;}
+        @Override public double[] doCorrectorStep(LagrangianParticle lp, double[] uvw, double dt){return null;}
+    }
+
+    /** returns the maximum difference in z between the cache and the ocean at random positions */
+    private static double maxError(RomsLikeOcean ocean, VerticalGridCache vgc, double time, long seed){
+        Random rnd = new Random(seed);
+        double err = 0.0;
+        for (int n=0;n<20000;n++){
+            double I = rnd.nextDouble()*RomsLikeOcean.L, J = rnd.nextDouble()*RomsLikeOcean.M;
+            double K = rnd.nextDouble()*RomsLikeOcean.N;
+            err = Math.max(err,Math.abs(vgc.calcZfromK(I,J,K,time)-ocean.calcZfromK(I,J,K)));
+        }
+        return err;
+    }
+
+    @Test
+    public void testLinearStretchingIsCached(){
+        RomsLikeOcean ocean = new RomsLikeOcean(0.0,40.0);
+        VerticalGridCache vgc = VerticalGridCache.getInstance(ocean);
+        assertTrue(vgc.isEnabled());
+        Random rnd = new Random(3L);
+        for (int n=0;n<20000;n++){
+            double I = rnd.nextDouble()*RomsLikeOcean.L, J = rnd.nextDouble()*RomsLikeOcean.M;
+            double K = rnd.nextDouble()*RomsLikeOcean.N;
+            double z = vgc.calcZfromK(I,J,K,0.0);
+            assertEquals(ocean.calcZfromK(I,J,K),z,1.0E-9);
+            assertEquals(K,vgc.calcKfromZ(I,J,z,0.0),1.0E-9);
+        }
+        //each node's column and each cell's check were computed once
+        int nodes = (RomsLikeOcean.L+1)*(RomsLikeOcean.M+1), cells = RomsLikeOcean.L*RomsLikeOcean.M;
+        assertTrue(ocean.calls.get()<=nodes*(RomsLikeOcean.N+2)+cells*RomsLikeOcean.N+3*20000);
+    }
+
+    @Test
+    public void testNonlinearStretchingMatchesOcean(){
+        RomsLikeOcean ocean = new RomsLikeOcean(3.0,150.0);
+        VerticalGridCache vgc = VerticalGridCache.getInstance(ocean);
+        //blending the node columns bilinearly does not reproduce the ocean everywhere
+        double blendError = 0.0;
+        for (int i=0;i<RomsLikeOcean.L;i++){
+            for (int j=0;j<RomsLikeOcean.M;j++){
+                double zb = 0.25*(ocean.calcZfromK(i,j,1)+ocean.calcZfromK(i+1,j,1)+
+                                  ocean.calcZfromK(i,j+1,1)+ocean.calcZfromK(i+1,j+1,1));
+                blendError = Math.max(blendError,Math.abs(zb-ocean.calcZfromK(i+0.5,j+0.5,1)));
+            }
+        }
+        assertTrue(blendError>VerticalGridCache.TOLERANCE);
+        //but the cache does
+        assertTrue(maxError(ocean,vgc,0.0,5L)<=VerticalGridCache.TOLERANCE);
+        Random rnd = new Random(11L);
+        for (int n=0;n<2000;n++){
+            double I = rnd.nextDouble()*RomsLikeOcean.L, J = rnd.nextDouble()*RomsLikeOcean.M;
+            double[] pos = new double[]{I,J};
+            double zeta = ocean.interpolateSSH(pos), h = ocean.interpolateBathymetricDepth(pos);
+            double z = zeta-rnd.nextDouble()*(zeta+h);//between the bottom and the surface
+            double K = vgc.calcKfromZ(I,J,z,0.0);
+            assertEquals(z,ocean.calcZfromK(I,J,K),VerticalGridCache.TOLERANCE);
+        }
+    }
+
+    @Test
+    public void testColumnsFollowFrame(){
+        RomsLikeOcean ocean = new RomsLikeOcean(3.0,40.0);
+        VerticalGridCache vgc = VerticalGridCache.getInstance(ocean);
+        double I = 5.3, J = 7.6, K = 12.5;
+        double z0 = vgc.calcZfromK(I,J,K,1800.0);
+        assertEquals(ocean.calcZfromK(I,J,K),z0,VerticalGridCache.TOLERANCE);
+        //a request for the next frame's time is converted by the ocean, which holds the current frame
+        assertEquals(ocean.calcZfromK(I,J,K),vgc.calcZfromK(I,J,K,2.5*INTERVAL),0.0);
+        //the ocean advances to the next frame: the columns are recomputed
+        ocean.frameTime = INTERVAL;
+        double z1 = vgc.calcZfromK(I,J,K,INTERVAL+1800.0);
+        assertEquals(ocean.calcZfromK(I,J,K),z1,VerticalGridCache.TOLERANCE);
+        assertTrue(Math.abs(z1-z0)>10*VerticalGridCache.TOLERANCE);
+        assertTrue(maxError(ocean,vgc,INTERVAL,7L)<=VerticalGridCache.TOLERANCE);
+        //a frame time that is not known is not cached
+        ocean.frameTime = Double.NaN;
+        assertEquals(ocean.calcZfromK(I,J,K),vgc.calcZfromK(I,J,K,INTERVAL),0.0);
+    }
+}
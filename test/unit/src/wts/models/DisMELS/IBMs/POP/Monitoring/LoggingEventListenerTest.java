@@ -0,0 +1,96 @@
+/*
+ * LoggingEventListenerTest.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Monitoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the events dispatched by PopEvents reach a LoggingEventListener,
+ * created as from the listeners system property, and are logged at the
+ * expected levels.
+ *
+ * @author William Stockhausen
+ */
+public class LoggingEventListenerTest {
+
+    /** the listener's logger (held so its configuration is not lost) */
+    private static final Logger logger = Logger.getLogger(LoggingEventListener.class.getName());
+
+    private final List<LogRecord> records = new ArrayList<>();
+    private final Handler handler = new Handler(){
+        @Override
+        public void publish(LogRecord r){
+            synchronized(records){records.add(r);}
+        }
+        @Override public void flush(){}
+        @Override public void close(){}
+    };
+    private Level oldLevel;
+    private PopEventListener listener;
+
+    @Before
+    public void setUp(){
+        oldLevel = logger.getLevel();
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        List<PopEventListener> lst = PopEvents.createListeners(" "+LoggingEventListener.class.getName()+", ,no.such.Listener");
+        assertEquals(1,lst.size());
+        listener = lst.get(0);
+        assertTrue(listener instanceof LoggingEventListener);
+        PopEvents.addListener(listener);
+    }
+
+    @After
+    public void tearDown(){
+        PopEvents.removeListener(listener);
+        logger.removeHandler(handler);
+        logger.setUseParentHandlers(true);
+        logger.setLevel(oldLevel);
+    }
+
+    @Test
+    public void testEventsLogged(){
+        logger.setLevel(Level.FINE);
+        assertTrue(PopEvents.isEnabled());
+        PopEvents.transition("LarvaStage",5L,3600.0,100.0,1);
+        PopEvents.spawning("AdultStage",6L,7200.0,2.0E5,4);
+        PopEvents.gridExit("EggStage",7L,10800.0,50.0,"12_34");
+        PopEvents.parseFailure("LarvaStageAttributes","age","x","not a number");
+        PopEvents.StepBatches sb = PopEvents.getStepBatches(LoggingEventListenerTest.class);
+        sb.stepped(3600.0);
+        sb.stepped(3600.0);
+        sb.stepped(7200.0);//reports the batch for the first step
+        sb.flush();//reports the batch for the second step
+
+        assertEquals(6,records.size());
+        assertEquals(Level.FINE,records.get(0).getLevel());
+        assertTrue(records.get(0).getMessage().startsWith("LarvaStage: individual 5 transitioned"));
+        assertTrue(records.get(1).getMessage().startsWith("AdultStage: individual 6 spawned"));
+        assertTrue(records.get(2).getMessage().contains("cell 12_34"));
+        assertEquals(Level.WARNING,records.get(3).getLevel());
+        assertEquals("LarvaStageAttributes: could not set 'age' from 'x': not a number",records.get(3).getMessage());
+        assertTrue(records.get(4).getMessage().startsWith("LoggingEventListenerTest: stepped 2 individuals to time 3600.0 s"));
+        assertTrue(records.get(5).getMessage().startsWith("LoggingEventListenerTest: stepped 1 individuals to time 7200.0 s"));
+    }
+
+    @Test
+    public void testOnlyWarningsByDefault(){
+        logger.setLevel(Level.INFO);
+        PopEvents.transition("LarvaStage",5L,3600.0,100.0,1);
+        PopEvents.parseFailure("LarvaStageAttributes",null,null,"wrong number of values");
+        assertEquals(1,records.size());
+        assertEquals("LarvaStageAttributes: could not set attribute values: wrong number of values",
+                     records.get(0).getMessage());
+    }
+}
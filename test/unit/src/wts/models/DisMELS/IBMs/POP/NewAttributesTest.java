@@ -0,0 +1,101 @@
+/*
+ * NewAttributesTest.java
+ */
+
+package wts.models.DisMELS.IBMs.POP;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import wts.models.DisMELS.IBMs.POP.Environment.ExposureAccumulator;
+import wts.models.DisMELS.IBMs.POP.Larva.LarvaStage;
+import wts.models.DisMELS.IBMs.POP.Larva.LarvaStageAttributes;
+import wts.models.DisMELS.framework.AbstractLHSAttributes;
+
+/**
+ * Tests reading attribute rows with the exposure accumulators enabled, in
+ * particular rows written before they were enabled (without the trailing
+ * accumulator values).
+ *
+ * @author William Stockhausen
+ */
+public class NewAttributesTest {
+
+    private static final double[] DEPTH_BINS       = {25,50,100,200,400};
+    private static final double[] TEMPERATURE_BINS = {2,4,6,8,10};
+
+    @BeforeClass
+    public static void enableExposure(){
+        //before the stage attributes are first used, since they fix their keys
+        ExposureAccumulator.configure(true,0.0,DEPTH_BINS,TEMPERATURE_BINS);
+    }
+
+    @Test
+    public void testConfigurationInUse(){
+        ExposureAccumulator.configure(true,0.0,DEPTH_BINS,TEMPERATURE_BINS);//same: no effect
+        assertTrue(ExposureAccumulator.isEnabled());
+        try {
+            ExposureAccumulator.configure(false,0.0,new double[0],new double[0]);
+            fail("configuration changed while in use");
+        } catch (IllegalStateException ex) {
+            assertTrue(ExposureAccumulator.isEnabled());
+        }
+    }
+
+    /** a row of the given length, with the type name first */
+    private static String[] createRow(int length){
+        String[] strv = new String[length];
+        Arrays.fill(strv,"0");
+        strv[0] = "Larva";
+        return strv;
+    }
+
+    @Test
+    public void testCompleteRow(){
+        Set<String> keys = NewAttributes.getNewKeys(LarvaStage.class);
+        String[] strv = createRow(AbstractLHSAttributes.numAttributes+keys.size());
+        int n = NewAttributes.checkNumValues(LarvaStage.class,strv);
+        assertEquals(keys.size(),n);
+        assertTrue(NewAttributes.getMissingValues(LarvaStage.class,n).isEmpty());
+    }
+
+    @Test
+    public void testRowWithoutExposure(){
+        assertTrue(ExposureAccumulator.isEnabled());
+        Set<String> keys  = NewAttributes.getNewKeys(LarvaStage.class);
+        Set<String> eKeys = ExposureAccumulator.getAttributeKeys();
+        assertTrue(keys.containsAll(eKeys));
+        String[] strv = createRow(AbstractLHSAttributes.numAttributes+keys.size()-eKeys.size());
+        int n = NewAttributes.checkNumValues(LarvaStage.class,strv);
+        assertEquals(keys.size()-eKeys.size(),n);
+        Map<String,Object> missing = NewAttributes.getMissingValues(LarvaStage.class,n);
+        assertEquals(eKeys,missing.keySet());
+        assertEquals(ExposureAccumulator.getDefaultValues(),missing);
+        assertEquals(0.0,(Double) missing.get(ExposureAccumulator.PROP_degreeDays),0.0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRowWithOtherFields(){
+        Set<String> keys = NewAttributes.getNewKeys(LarvaStage.class);
+        NewAttributes.checkNumValues(LarvaStage.class,createRow(AbstractLHSAttributes.numAttributes+keys.size()-1));
+    }
+
+    @Test
+    public void testSetValuesWithoutExposure(){
+        LarvaStageAttributes atts = new LarvaStageAttributes("Larva");
+        atts.setValue(NewAttributes.PROP_size,1.5);
+        String[] strv = atts.getCSV().split(AbstractLHSAttributes.cc);
+        int nOld = strv.length-ExposureAccumulator.getAttributeKeys().size();
+        String[] oldRow = Arrays.copyOf(strv,nOld);
+
+        LarvaStageAttributes read = new LarvaStageAttributes("Larva");
+        read.setValue(ExposureAccumulator.PROP_degreeDays,12.0);//accumulated before the row was read
+        read.setValues(oldRow);
+        assertEquals(1.5,(Double) read.getValue(NewAttributes.PROP_size),0.0);
+        assertEquals(0.0,(Double) read.getValue(ExposureAccumulator.PROP_degreeDays),0.0);
+        assertEquals(0.0,(Double) read.getValue(ExposureAccumulator.PROP_days),0.0);
+    }
+}
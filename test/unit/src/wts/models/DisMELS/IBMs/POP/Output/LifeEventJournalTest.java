@@ -0,0 +1,147 @@
+/*
+ * LifeEventJournalTest.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests writing life events with LifeEventJournal and reading them back with
+ * LifeEventJournalReader, across buffer hand-offs, threads and model runs.
+ *
+ * @author William Stockhausen
+ */
+public class LifeEventJournalTest {
+
+    /** stand-ins for two life stage classes */
+    private static final class StageA {}
+    private static final class StageB {}
+
+    private static File dir;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        dir = Files.createTempDirectory("POP_journal").toFile();
+        System.setProperty(LifeEventJournal.SYSPROP_JOURNAL,"true");
+        System.setProperty(GriddedRasterAccumulator.SYSPROP_DIR,dir.getPath());
+    }
+
+    @AfterClass
+    public static void tearDownClass(){
+        LifeEventJournal.finish();
+        new File(dir,LifeEventJournal.FILE_NAME).delete();
+        dir.delete();
+        System.clearProperty(LifeEventJournal.SYSPROP_JOURNAL);
+        System.clearProperty(GriddedRasterAccumulator.SYSPROP_DIR);
+    }
+
+    /** reads all records in the journal */
+    private static List<LifeEventJournalReader.Record> readAll() throws IOException {
+        List<LifeEventJournalReader.Record> lst = new ArrayList<>();
+        try (LifeEventJournalReader r = new LifeEventJournalReader(new File(dir,LifeEventJournal.FILE_NAME))){
+            LifeEventJournalReader.Record rec = new LifeEventJournalReader.Record();
+            while (r.next(rec)){
+                lst.add(rec);
+                rec = new LifeEventJournalReader.Record();
+            }
+        }
+        return lst;
+    }
+
+    private static void assertRecord(LifeEventJournalReader.Record r, byte type, String stage, byte cause,
+                                     long id, long otherID, double time, double number, double lon, double lat){
+        assertEquals(type,r.type);
+        assertEquals(stage,r.stage);
+        assertEquals(cause,r.cause);
+        assertEquals(id,r.id);
+        assertEquals(otherID,r.otherID);
+        assertEquals(time,r.time,0.0);
+        assertEquals(number,r.number,0.0);
+        assertEquals((float) lon,r.lon,0.0f);
+        assertEquals((float) lat,r.lat,0.0f);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        LifeEventJournal a = LifeEventJournal.getInstance(StageA.class);
+        LifeEventJournal b = LifeEventJournal.getInstance(StageB.class);
+        assertNotNull(a);
+        LifeEventJournal.finish();//start with an empty journal
+        a.birth(10L,1L,3600.0,1000.0,-160.5,56.25);
+        a.transition(10L,20L,7200.0,400.0,-160.75,56.5);
+        b.death(20L,LifeEventJournal.CAUSE_STRANDING,10800.0,300.0,-161.0,56.75);
+        b.death(21L,LifeEventJournal.CAUSE_MORTALITY,10800.0,0.0,-161.0,56.75);
+        b.gridExit(22L,14400.0,200.0,-170.0,50.0);
+        b.spawn(23L,18000.0,1.5E6,3,-162.0,57.0);
+        LifeEventJournal.finish();
+
+        List<LifeEventJournalReader.Record> lst = readAll();
+        assertEquals(6,lst.size());
+        assertRecord(lst.get(0),LifeEventJournal.TYPE_BIRTH,"StageA",LifeEventJournal.CAUSE_NONE,
+                     10L,1L,3600.0,1000.0,-160.5,56.25);
+        assertRecord(lst.get(1),LifeEventJournal.TYPE_TRANSITION,"StageA",LifeEventJournal.CAUSE_NONE,
+                     10L,20L,7200.0,400.0,-160.75,56.5);
+        assertRecord(lst.get(2),LifeEventJournal.TYPE_DEATH,"StageB",LifeEventJournal.CAUSE_STRANDING,
+                     20L,-1L,10800.0,300.0,-161.0,56.75);
+        assertRecord(lst.get(3),LifeEventJournal.TYPE_DEATH,"StageB",LifeEventJournal.CAUSE_MORTALITY,
+                     21L,-1L,10800.0,0.0,-161.0,56.75);
+        assertRecord(lst.get(4),LifeEventJournal.TYPE_GRID_EXIT,"StageB",LifeEventJournal.CAUSE_NONE,
+                     22L,-1L,14400.0,200.0,-170.0,50.0);
+        assertRecord(lst.get(5),LifeEventJournal.TYPE_SPAWN,"StageB",LifeEventJournal.CAUSE_NONE,
+                     23L,3L,18000.0,1.5E6,-162.0,57.0);
+        assertEquals("death,StageB,stranding,20,-1,10800.0,300.0,-161.0,56.75",lst.get(2).getCSV());
+    }
+
+    @Test
+    public void testManyRecordsFromThreads() throws Exception {
+        final LifeEventJournal a = LifeEventJournal.getInstance(StageA.class);
+        LifeEventJournal.finish();
+        final int nThreads = 4, nPerThread = 50000;//several buffers per thread
+        Thread[] threads = new Thread[nThreads];
+        for (int t=0;t<nThreads;t++){
+            final long base = t*1000000L;
+            threads[t] = new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    for (int i=0;i<nPerThread;i++) a.death(base+i,LifeEventJournal.CAUSE_AGE,i,1.0,0.0,0.0);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t: threads) t.join();
+        LifeEventJournal.finish();
+
+        List<LifeEventJournalReader.Record> lst = readAll();
+        assertEquals(nThreads*nPerThread,lst.size());
+        long[] next = new long[nThreads];//each thread's records are in order
+        for (LifeEventJournalReader.Record r: lst){
+            int t = (int)(r.id/1000000L);
+            assertEquals(next[t]++,r.id-t*1000000L);
+            assertEquals(LifeEventJournal.CAUSE_AGE,r.cause);
+        }
+    }
+
+    @Test
+    public void testNextRunStartsNewFile() throws IOException {
+        LifeEventJournal b = LifeEventJournal.getInstance(StageB.class);
+        LifeEventJournal.finish();
+        b.birth(1L,0L,0.0,1.0,0.0,0.0);
+        LifeEventJournal.finish();//end of the first run
+        b.birth(2L,0L,0.0,1.0,0.0,0.0);
+        LifeEventJournal.finish();//end of the second run
+
+        List<LifeEventJournalReader.Record> lst = readAll();
+        assertEquals(1,lst.size());
+        assertEquals(2L,lst.get(0).id);
+        assertEquals("StageB",lst.get(0).stage);//stages are defined again in the new file
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * QuantileSketchTest.java
+ */
+
+package wts.models.DisMELS.IBMs.POP.Output;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the accuracy of the quantiles from QuantileSketch, their weighting, and
+ * that merging sketches gives the sketch of all the values.
+ *
+ * @author William Stockhausen
+ */
+public class QuantileSketchTest {
+
+    private static final double[] QS = new double[]{0.0,0.01,0.05,0.25,0.5,0.75,0.95,0.99,1.0};
+
+    /** values with mixed signs, zeros and a wide range of magnitudes */
+    private static double[] createValues(long seed, int n){
+        Random rnd = new Random(seed);
+        double[] x = new double[n];
+        for (int i=0;i<n;i++){
+            double r = rnd.nextDouble();
+            if (r<0.05) x[i] = 0.0; else
+            if (r<0.25) x[i] = -Math.exp(2*rnd.nextGaussian()); else
+            x[i] = Math.exp(3*rnd.nextGaussian());
+        }
+        return x;
+    }
+
+    /** the smallest value such that the values up to it are a fraction q of all */
+    private static double exactQuantile(double[] sorted, double q){
+        int k = (int) Math.ceil(q*sorted.length);
+        return sorted[Math.max(k-1,0)];
+    }
+
+    @Test
+    public void testRelativeAccuracy(){
+        for (double alpha: new double[]{0.01,0.05}){
+            double[] x = createValues(20170601L,20000);
+            QuantileSketch sketch = new QuantileSketch(alpha);
+            for (double v: x) sketch.add(v);
+            Arrays.sort(x);
+            assertEquals(x.length,sketch.getCount());
+            for (double q: QS){
+                double exact = exactQuantile(x,q);
+                double est = sketch.getQuantile(q);
+                assertEquals("q="+q+", alpha="+alpha,exact,est,alpha*Math.abs(exact)+QuantileSketch.MIN_MAGNITUDE);
+            }
+        }
+    }
+
+    @Test
+    public void testMergeEqualsWhole(){
+        double[] x = createValues(42L,10000);
+        QuantileSketch whole = new QuantileSketch();
+        for (double v: x) whole.add(v);
+        //parts of different sizes, merged in reverse order
+        QuantileSketch[] parts = new QuantileSketch[4];
+        for (int p=0;p<parts.length;p++) parts[p] = new QuantileSketch();
+        for (int i=0;i<x.length;i++) parts[(i*i)%parts.length].add(x[i]);
+        QuantileSketch merged = new QuantileSketch();
+        for (int p=parts.length-1;p>=0;p--) merged.merge(parts[p]);
+        assertEquals(whole.getCount(),merged.getCount());
+        assertEquals(whole.getWeight(),merged.getWeight(),0.0);
+        for (double q: QS) assertEquals("q="+q,whole.getQuantile(q),merged.getQuantile(q),0.0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMergeDifferentAccuracy(){
+        new QuantileSketch(0.01).merge(new QuantileSketch(0.02));
+    }
+
+    @Test
+    public void testWeightedEqualsRepeated(){
+        Random rnd = new Random(7L);
+        QuantileSketch weighted = new QuantileSketch();
+        QuantileSketch repeated = new QuantileSketch();
+        for (int i=0;i<1000;i++){
+            double v = 10*rnd.nextDouble();
+            int w = 1+rnd.nextInt(5);
+            weighted.add(v,w);
+            for (int j=0;j<w;j++) repeated.add(v);
+        }
+        assertEquals(repeated.getWeight(),weighted.getWeight(),0.0);
+        for (double q: QS) assertEquals("q="+q,repeated.getQuantile(q),weighted.getQuantile(q),0.0);
+    }
+
+    @Test
+    public void testWeightsShiftQuantiles(){
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1.0,1.0);
+        sketch.add(100.0,99.0);
+        sketch.add(Double.NaN,1.0);//ignored
+        sketch.add(5.0,0.0);//ignored
+        assertEquals(2,sketch.getCount());
+        assertEquals(100.0,sketch.getQuantile(0.5),100.0*QuantileSketch.DEFAULT_ALPHA);
+        assertEquals(1.0,sketch.getQuantile(0.0),QuantileSketch.DEFAULT_ALPHA);
+        assertTrue(Double.isNaN(new QuantileSketch().getQuantile(0.5)));
+    }
+}
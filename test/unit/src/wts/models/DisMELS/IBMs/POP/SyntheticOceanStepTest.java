@@ -0,0 +1,243 @@
+/*
+ * SyntheticOceanStepTest.java
+ */
+
+package wts.models.DisMELS.IBMs.POP;
+
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import wts.models.DisMELS.IBMs.POP.Adult.AdultStage;
+import wts.models.DisMELS.IBMs.POP.Adult.AdultStageParameters;
+import wts.models.DisMELS.IBMs.POP.BenthicJuvenile.BenthicJuvenileStage;
+import wts.models.DisMELS.IBMs.POP.BenthicJuvenile.BenthicJuvenileStageParameters;
+import wts.models.DisMELS.IBMs.POP.Environment.SyntheticOcean;
+import wts.models.DisMELS.IBMs.POP.Larva.LarvaStage;
+import wts.models.DisMELS.IBMs.POP.Larva.LarvaStageParameters;
+import wts.models.DisMELS.IBMs.POP.Settler.SettlerStage;
+import wts.models.DisMELS.IBMs.POP.Settler.SettlerStageParameters;
+import wts.models.DisMELS.framework.AbstractLHS;
+import wts.models.DisMELS.framework.AbstractLHSParameters;
+import wts.models.DisMELS.framework.LifeStageAttributesInterface;
+import wts.models.DisMELS.framework.LifeStageInterface;
+
+/**
+ * Regression tests running each life stage's step() on a SyntheticOcean.
+ *
+ * The individuals do not swim (vertical movement is deselected and the random
+ * walk parameter is 0), so they drift with the ocean's steady current at a fixed
+ * sigma level: the cross-shelf drift is uniform, so J changes by a known amount,
+ * and the along-shelf position is checked against a Heun integration of the
+ * ocean's grid rates (the scheme the SyntheticOcean uses for the stages). The
+ * tests also check the grid exits, the transitions to the next stages and
+ * settlement in and out of the settlement depths (0-50 m, by default).
+ *
+ * @author William Stockhausen
+ */
+public class SyntheticOceanStepTest {
+
+    /** time step (s) */
+    private static final double DT = 3600.0;
+    /** number of steps in a day */
+    private static final int DAY = 24;
+    /** tolerance for grid positions (cells) and depths (m) */
+    private static final double TOL_IJ = 1.0E-4, TOL_Z = 1.0E-3;
+
+    /** the ocean: 200 x 200 cells of 2 km, 30 layers, jet at J = 100 */
+    private static final SyntheticOcean ocean = new SyntheticOcean(200,200,30);
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        SyntheticRun.start(ocean,null,120.0);
+    }
+
+    @AfterClass
+    public static void tearDownClass(){
+        SyntheticRun.finish();
+    }
+
+    /**
+     * Creates an individual that does not swim.
+     *
+     * @param cls        - the stage class
+     * @param I          - grid I position
+     * @param J          - grid J position
+     * @param depth      - depth (m, positive)
+     * @param ageInStage - age in stage (d)
+     * @param params     - parameter values to set (key, value pairs), or none
+     */
+    private static AbstractLHS create(Class<? extends AbstractLHS> cls, double I, double J, double depth,
+                                      double ageInStage, Object... params) throws Exception {
+        String typeName = cls.getSimpleName().replace("Stage","");
+        AbstractLHS proto = cls.getConstructor(String.class).newInstance(typeName);
+        AbstractLHSParameters p = (AbstractLHSParameters) proto.getParameters();
+        for (String cat: p.getIBMFunctionCategories())
+            if (cat.equals("vertical movement")) p.selectIBMFunctionForCategory(cat,null);
+        for (int i=0;i<params.length;i+=2) p.setValue((String) params[i],params[i+1]);
+        return SyntheticRun.createIndividual(proto,p,ocean,new double[]{I,J},depth,ageInStage,ageInStage,
+                                             1.0,10.0,0.1);
+    }
+
+    /** grid position {I,J,depth} of an individual, from its attributes */
+    private static double[] position(AbstractLHS lhs){
+        LifeStageAttributesInterface atts = (LifeStageAttributesInterface) lhs.getAttributes();
+        double lon = (Double) atts.getValue(LifeStageAttributesInterface.PROP_horizPos1);
+        double lat = (Double) atts.getValue(LifeStageAttributesInterface.PROP_horizPos2);
+        double[] IJ = ocean.computeIJfromLL(lat,lon);
+        return new double[]{IJ[0],IJ[1],(Double) atts.getValue(LifeStageAttributesInterface.PROP_vertPos)};
+    }
+
+    /**
+     * Drifts a particle with the current at a fixed sigma level (Heun steps).
+     *
+     * @return - position {I,J,depth} after the steps
+     */
+    private static double[] drift(double I, double J, double depth, int nSteps){
+        double[] p = new double[]{I,J,ocean.calcKfromZ(I,J,-depth)};
+        double[] uvw = new double[]{0.0,0.0,0.0};
+        for (int n=0;n<nSteps;n++){
+            double[] r0 = ocean.calcGridRates(p,uvw,n*DT);
+            double[] q  = new double[]{p[0]+DT*r0[0],p[1]+DT*r0[1],p[2]+DT*r0[2]};
+            double[] r1 = ocean.calcGridRates(q,uvw,(n+1)*DT);
+            for (int c=0;c<3;c++) p[c] += 0.5*DT*(r0[c]+r1[c]);
+        }
+        return new double[]{p[0],p[1],-ocean.calcZfromK(p[0],p[1],p[2])};
+    }
+
+    private static void step(AbstractLHS lhs, int nSteps){
+        for (int n=0;(n<nSteps)&&lhs.isActive();n++) lhs.step(DT);
+    }
+
+    /** J after drifting offshore at 0.01 m/s over the steps, in 2 km cells */
+    private static double offshore(double J, int nSteps){
+        return J+nSteps*DT*0.01/2000.0;
+    }
+
+    private static void assertDrifted(AbstractLHS lhs, double I, double J, double depth){
+        double[] exp = drift(I,J,depth,DAY);
+        double[] pos = position(lhs);
+        assertEquals("J",offshore(J,DAY),pos[1],TOL_IJ);
+        assertEquals("I",exp[0],pos[0],TOL_IJ);
+        assertEquals("depth",exp[2],pos[2],TOL_Z);
+        assertTrue("drifted along-shelf",pos[0]>I+1.0);
+        assertTrue(lhs.isAlive()&&lhs.isActive());
+    }
+
+    @Test
+    public void testLarvaDrift() throws Exception {
+        AbstractLHS lhs = create(LarvaStage.class,50.0,100.0,10.0,0.0);
+        step(lhs,DAY);
+        assertDrifted(lhs,50.0,100.0,10.0);
+    }
+
+    @Test
+    public void testAdultDrift() throws Exception {
+        AbstractLHS lhs = create(AdultStage.class,50.0,100.0,10.0,0.0);
+        step(lhs,DAY);
+        assertDrifted(lhs,50.0,100.0,10.0);
+    }
+
+    @Test
+    public void testSettlerDrift() throws Exception {
+        //the vertical swimming speed is a stage parameter, so only the cross-shelf drift is known
+        AbstractLHS lhs = create(SettlerStage.class,50.0,100.0,10.0,0.0);
+        step(lhs,DAY);
+        double[] pos = position(lhs);
+        assertEquals("J",offshore(100.0,DAY),pos[1],TOL_IJ);
+        assertTrue("drifted along-shelf",pos[0]>50.0);
+        assertTrue("in the water column",(pos[2]>=0.0)&&(pos[2]<=ocean.interpolateBathymetricDepth(pos)+TOL_Z));
+        assertTrue(lhs.isAlive()&&lhs.isActive());
+    }
+
+    @Test
+    public void testBenthicJuvenileStaysOnBottom() throws Exception {
+        AbstractLHS lhs = create(BenthicJuvenileStage.class,50.0,100.0,10.0,0.0);
+        step(lhs,DAY);
+        double[] pos = position(lhs);
+        assertEquals("I",50.0,pos[0],TOL_IJ);
+        assertEquals("J",100.0,pos[1],TOL_IJ);
+        assertEquals("depth",ocean.interpolateBathymetricDepth(pos),pos[2],TOL_Z);
+        assertTrue(lhs.isAlive()&&lhs.isActive());
+    }
+
+    @Test
+    public void testLarvaExitsGrid() throws Exception {
+        AbstractLHS lhs = create(LarvaStage.class,ocean.getL()-0.5,100.0,10.0,0.0);
+        step(lhs,DAY);
+        assertFalse("exited",lhs.isAlive()||lhs.isActive());
+        assertTrue("at the downstream edge",position(lhs)[0]>ocean.getL()-1.0);
+    }
+
+    @Test
+    public void testAdultExitsGrid() throws Exception {
+        AbstractLHS lhs = create(AdultStage.class,ocean.getL()-0.5,100.0,10.0,0.0);
+        step(lhs,DAY);
+        assertFalse("exited",lhs.isAlive()||lhs.isActive());
+        assertTrue("at the downstream edge",position(lhs)[0]>ocean.getL()-1.0);
+    }
+
+    @Test
+    public void testLarvaTransitions() throws Exception {
+        AbstractLHS young = create(LarvaStage.class,50.0,100.0,10.0,0.0,
+                                   LarvaStageParameters.PARAM_minStageDuration,10.0);
+        step(young,DAY);
+        assertTrue("too young",young.getMetamorphosedIndividuals(DT).isEmpty());
+
+        AbstractLHS old = create(LarvaStage.class,50.0,100.0,10.0,20.0,
+                                 LarvaStageParameters.PARAM_minStageDuration,10.0);
+        step(old,DAY);
+        List<LifeStageInterface> next = old.getMetamorphosedIndividuals(DT);
+        assertEquals(1,next.size());
+        assertTrue(next.get(0) instanceof SettlerStage);
+        assertFalse(old.isAlive()||old.isActive());
+    }
+
+    @Test
+    public void testSettlerSettlesInHabitat() throws Exception {
+        //inshore (bottom depth 34 m) and near the bottom
+        double h = ocean.interpolateBathymetricDepth(new double[]{50.0,10.0});
+        AbstractLHS lhs = create(SettlerStage.class,50.0,10.0,h-1.0,0.0,
+                                 SettlerStageParameters.PARAM_minSettlementDepth,0.0,
+                                 SettlerStageParameters.PARAM_maxSettlementDepth,50.0);
+        step(lhs,1);
+        List<LifeStageInterface> next = lhs.getMetamorphosedIndividuals(DT);
+        assertEquals(1,next.size());
+        assertTrue(next.get(0) instanceof BenthicJuvenileStage);
+        assertFalse(lhs.isAlive()||lhs.isActive());
+    }
+
+    @Test
+    public void testSettlerDoesNotSettleOffshore() throws Exception {
+        //mid-shelf (bottom depth 160 m), near the bottom but deeper than the settlement depths
+        double h = ocean.interpolateBathymetricDepth(new double[]{50.0,100.0});
+        AbstractLHS lhs = create(SettlerStage.class,50.0,100.0,h-1.0,0.0,
+                                 SettlerStageParameters.PARAM_minSettlementDepth,0.0,
+                                 SettlerStageParameters.PARAM_maxSettlementDepth,50.0);
+        step(lhs,1);
+        assertTrue(lhs.getMetamorphosedIndividuals(DT).isEmpty());
+        assertTrue(lhs.isAlive()&&lhs.isActive());
+    }
+
+    @Test
+    public void testBenthicJuvenileTransitions() throws Exception {
+        AbstractLHS lhs = create(BenthicJuvenileStage.class,50.0,10.0,30.0,20.0,
+                                 BenthicJuvenileStageParameters.PARAM_minStageDuration,10.0,
+                                 BenthicJuvenileStageParameters.PARAM_minSize,0.0);
+        step(lhs,1);
+        List<LifeStageInterface> next = lhs.getMetamorphosedIndividuals(DT);
+        assertEquals(1,next.size());
+        assertTrue(next.get(0) instanceof AdultStage);
+        assertFalse(lhs.isAlive()||lhs.isActive());
+    }
+
+    @Test
+    public void testAdultDoesNotTransitionEarly() throws Exception {
+        AbstractLHS lhs = create(AdultStage.class,50.0,100.0,10.0,0.0,
+                                 AdultStageParameters.PARAM_minStageDuration,10.0);
+        step(lhs,DAY);
+        assertTrue(lhs.getMetamorphosedIndividuals(DT).isEmpty());
+        assertTrue(lhs.isAlive()&&lhs.isActive());
+    }
+}